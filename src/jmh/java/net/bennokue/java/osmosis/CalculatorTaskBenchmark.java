@@ -0,0 +1,240 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+/**
+ * Measures {@link CalculatorPlugin_task#process(org.openstreetmap.osmosis.core.container.v0_6.NodeContainer)}
+ * on synthetic Nodes. The results are handed to a {@link Blackhole}, so only
+ * the task itself is measured. Run it with {@code -prof gc} to see the
+ * allocation rate per Node.
+ * <p>
+ * The task may change the tags of the Nodes it gets, so every Node is copied
+ * before it is processed. {@link #copyOnly(net.bennokue.java.osmosis.CalculatorTaskBenchmark.Nodes, org.openjdk.jmh.infra.Blackhole) copyOnly}
+ * measures the copying alone, subtract it from the other results.</p>
+ *
+ * @author bennokue
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CalculatorTaskBenchmark {
+
+    /**
+     * The number of Nodes processed per invocation.
+     */
+    private static final int NODE_COUNT = 1024;
+    /**
+     * The formulas by complexity.
+     */
+    private static final String SIMPLE_FORMULA = "ele/0.3048";
+    /**
+     * Uses every input variable and a few functions.
+     */
+    private static final String COMPLEX_FORMULA = "sqrt((lat-48.1)^2 + (lon-11.5)^2) * 111000 + sin(lat)*cos(lon) + ele/3 - log(abs(ele)+1) + width*2";
+
+    /**
+     * Synthetic Nodes: {@code ele}, {@code width} and {@code note} tags plus
+     * text and number tags up to the wanted tag count.
+     */
+    @State(Scope.Benchmark)
+    public static class Nodes {
+
+        /**
+         * The number of tags per Node.
+         */
+        @Param({"3", "10", "40"})
+        public int tagCount;
+        /**
+         * The Nodes, copied before they are processed.
+         */
+        Node[] templates;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random random = new Random(42);
+            OsmUser user = new OsmUser(1, "benchmark");
+            this.templates = new Node[NODE_COUNT];
+            for (int i = 0; i < NODE_COUNT; i++) {
+                List<Tag> tags = new ArrayList<>();
+                tags.add(new Tag("ele", Double.toString(500 + random.nextDouble() * 100)));
+                tags.add(new Tag("width", Integer.toString(random.nextInt(10))));
+                tags.add(new Tag("note", "remove me"));
+                for (int tag = tags.size(); tag < this.tagCount; tag++) {
+                    tags.add((tag % 2 == 0)
+                            ? new Tag("name:" + tag, "Some street name " + random.nextInt(1000))
+                            : new Tag("number:" + tag, Integer.toString(random.nextInt(100000))));
+                }
+                CommonEntityData data = new CommonEntityData(1000000L + i, 1, new Date(0), user, 1, tags);
+                this.templates[i] = new Node(data, 48 + random.nextDouble(), 11 + random.nextDouble());
+            }
+        }
+
+        /**
+         * @param i A Node index.
+         * @return A writeable copy of the Node.
+         */
+        NodeContainer copy(int i) {
+            Node template = this.templates[i];
+            Collection<Tag> tags = new ArrayList<>(template.getTags());
+            CommonEntityData data = new CommonEntityData(template.getId(), template.getVersion(), template.getTimestamp(),
+                    template.getUser(), template.getChangesetId(), tags);
+            return new NodeContainer(new Node(data, template.getLatitude(), template.getLongitude()));
+        }
+    }
+
+    /**
+     * A task that calculates and removes the {@code note} tag.
+     */
+    @State(Scope.Thread)
+    public static class CalculatingTask {
+
+        /**
+         * The formula complexity.
+         */
+        @Param({"simple", "complex"})
+        public String formula;
+        /**
+         * The engine.
+         */
+        @Param({"EXP4J", "COMPILED"})
+        public CalculatorOptions.Engine engine;
+        /**
+         * Nodes per columnar block, 1 for none. {@link #NODE_COUNT} is a
+         * multiple of it, so no Nodes are left over.
+         */
+        @Param({"1", "256"})
+        public int batchSize;
+        /**
+         * The task.
+         */
+        CalculatorPlugin_task task;
+
+        @Setup(Level.Trial)
+        public void setUp(Blackhole blackhole) {
+            CalculatorOptions options = new CalculatorOptions();
+            options.setEngine(this.engine);
+            options.setBatchSize(this.batchSize);
+            this.task = new CalculatorPlugin_task("ele,width,lat,lon", "result",
+                    this.formula.equals("simple") ? SIMPLE_FORMULA : COMPLEX_FORMULA, "note", options);
+            this.task.setSink(new BlackholeSink(blackhole));
+        }
+    }
+
+    /**
+     * A task that only removes the {@code note} tag.
+     */
+    @State(Scope.Thread)
+    public static class RemovingTask {
+
+        /**
+         * The task.
+         */
+        CalculatorPlugin_task task;
+
+        @Setup(Level.Trial)
+        public void setUp(Blackhole blackhole) {
+            this.task = new CalculatorPlugin_task("", "", "", "note");
+            this.task.setSink(new BlackholeSink(blackhole));
+        }
+    }
+
+    /**
+     * Copy the Nodes without processing them.
+     *
+     * @param nodes The Nodes.
+     * @param blackhole Consumes the copies.
+     */
+    @Benchmark
+    @OperationsPerInvocation(NODE_COUNT)
+    public void copyOnly(Nodes nodes, Blackhole blackhole) {
+        for (int i = 0; i < NODE_COUNT; i++) {
+            blackhole.consume(nodes.copy(i));
+        }
+    }
+
+    /**
+     * Calculate and remove.
+     *
+     * @param nodes The Nodes.
+     * @param state The task.
+     */
+    @Benchmark
+    @OperationsPerInvocation(NODE_COUNT)
+    public void calculateAndRemove(Nodes nodes, CalculatingTask state) {
+        for (int i = 0; i < NODE_COUNT; i++) {
+            state.task.process(nodes.copy(i));
+        }
+    }
+
+    /**
+     * Remove only.
+     *
+     * @param nodes The Nodes.
+     * @param state The task.
+     */
+    @Benchmark
+    @OperationsPerInvocation(NODE_COUNT)
+    public void removeOnly(Nodes nodes, RemovingTask state) {
+        for (int i = 0; i < NODE_COUNT; i++) {
+            state.task.process(nodes.copy(i));
+        }
+    }
+
+    /**
+     * Hands everything to a {@link Blackhole}.
+     */
+    static class BlackholeSink implements Sink {
+
+        /**
+         * Consumes the entities.
+         */
+        private final Blackhole blackhole;
+
+        /**
+         * @param blackhole Consumes the entities.
+         */
+        BlackholeSink(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void process(EntityContainer entityContainer) {
+            this.blackhole.consume(entityContainer);
+        }
+
+        @Override
+        public void initialize(Map<String, Object> metaData) {
+        }
+
+        @Override
+        public void complete() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the exact and the {@code fastTrig} {@link GeoFunctions}, called
+ * directly and from a compiled formula, for random points. The times are per
+ * point (or pair of points).
+ *
+ * @author bennokue
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GeoFunctionsBenchmark {
+
+    /**
+     * The number of points per invocation, a power of two.
+     */
+    private static final int POINTS = 1024;
+
+    /**
+     * Use the approximations of {@link FastTrig}?
+     */
+    @Param({"false", "true"})
+    public boolean fastTrig;
+
+    /**
+     * The latitudes of the points.
+     */
+    private double[] lats;
+    /**
+     * The longitudes of the points.
+     */
+    private double[] lons;
+    /**
+     * The variable values of the formula.
+     */
+    private double[] values;
+    /**
+     * The distance to a fixed point, compiled.
+     */
+    private Formula formula;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        this.lats = new double[POINTS];
+        this.lons = new double[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            this.lats[i] = 160 * random.nextDouble() - 80;
+            this.lons[i] = 360 * random.nextDouble() - 180;
+        }
+        this.values = new double[2];
+        this.formula = new FormulaFactory(new VariableSlots(Arrays.asList("lat", "lon"), Collections.<String>emptyList()),
+                CalculatorOptions.Engine.COMPILED, this.fastTrig).create("haversine(lat, lon, 48.137, 11.575)");
+    }
+
+    /**
+     * The distances between {@value #POINTS} pairs of consecutive points.
+     *
+     * @param blackhole Consumes the results.
+     */
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void haversine(Blackhole blackhole) {
+        for (int i = 0; i < POINTS; i++) {
+            int j = (i + 1) & (POINTS - 1);
+            blackhole.consume(this.fastTrig
+                    ? GeoFunctions.fastHaversine(this.lats[i], this.lons[i], this.lats[j], this.lons[j])
+                    : GeoFunctions.haversine(this.lats[i], this.lons[i], this.lats[j], this.lons[j]));
+        }
+    }
+
+    /**
+     * The UTM coordinates of {@value #POINTS} points.
+     *
+     * @param blackhole Consumes the results.
+     */
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void utm(Blackhole blackhole) {
+        for (int i = 0; i < POINTS; i++) {
+            if (this.fastTrig) {
+                blackhole.consume(GeoFunctions.fastUtmEasting(this.lats[i], this.lons[i]));
+                blackhole.consume(GeoFunctions.fastUtmNorthing(this.lats[i], this.lons[i]));
+            } else {
+                blackhole.consume(GeoFunctions.utmEasting(this.lats[i], this.lons[i]));
+                blackhole.consume(GeoFunctions.utmNorthing(this.lats[i], this.lons[i]));
+            }
+        }
+    }
+
+    /**
+     * The distances of {@value #POINTS} points to a fixed point, calculated
+     * by a compiled formula.
+     *
+     * @param blackhole Consumes the results.
+     */
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void compiledFormula(Blackhole blackhole) {
+        for (int i = 0; i < POINTS; i++) {
+            this.values[0] = this.lats[i];
+            this.values[1] = this.lons[i];
+            blackhole.consume(this.formula.evaluate(this.values));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the {@link RecordStore} backends: Filling a store with the Nodes of
+ * an extract and looking up the Nodes of Ways in random order.
+ *
+ * @author bennokue
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RecordStoreBenchmark {
+
+    /**
+     * The number of Nodes in the store.
+     */
+    private static final int NODE_COUNT = 1 << 20;
+    /**
+     * The number of lookups per invocation of {@link #lookup(org.openjdk.jmh.infra.Blackhole)}.
+     */
+    private static final int LOOKUPS = 1024;
+
+    /**
+     * The backend.
+     */
+    @Param({"ARRAY", "MAPPED", "SPARSE"})
+    public CalculatorOptions.RecordStoreType type;
+    /**
+     * {@code dense}: Consecutive ids. {@code holes}: Ids spread over a range
+     * 64 times bigger than the number of Nodes, like a regional extract.
+     */
+    @Param({"dense", "holes"})
+    public String ids;
+    /**
+     * The number of doubles per record: lat, lon and one tag.
+     */
+    @Param({"3"})
+    public int recordLength;
+
+    /**
+     * The ids of the Nodes, ascending.
+     */
+    private long[] nodeIds;
+    /**
+     * The ids to look up, in random order.
+     */
+    private long[] lookupIds;
+    /**
+     * The filled store for {@link #lookup(org.openjdk.jmh.infra.Blackhole)}.
+     */
+    private RecordStore store;
+    /**
+     * A record.
+     */
+    private double[] record;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        this.nodeIds = new long[NODE_COUNT];
+        long id = 1000000;
+        for (int i = 0; i < NODE_COUNT; i++) {
+            id += this.ids.equals("dense") ? 1 : 1 + random.nextInt(127);
+            this.nodeIds[i] = id;
+        }
+        this.lookupIds = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            this.lookupIds[i] = this.nodeIds[random.nextInt(NODE_COUNT)];
+        }
+        this.record = new double[this.recordLength];
+        this.store = fill();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.store.release();
+    }
+
+    /**
+     * @return A new store with all Nodes.
+     */
+    private RecordStore fill() {
+        RecordStore newStore = GeometryCalculator.createRecordStore(this.type, this.recordLength);
+        for (long nodeId : this.nodeIds) {
+            this.record[0] = nodeId;
+            newStore.put(nodeId, this.record);
+        }
+        return newStore;
+    }
+
+    /**
+     * Fill a new store with all Nodes.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void fillStore() {
+        fill().release();
+    }
+
+    /**
+     * Look up {@value #LOOKUPS} random Nodes.
+     *
+     * @param blackhole Consumes the results.
+     */
+    @Benchmark
+    public void lookup(Blackhole blackhole) {
+        for (long lookupId : this.lookupIds) {
+            blackhole.consume(this.store.get(lookupId, this.record));
+            blackhole.consume(this.record[0]);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package net.bennokue.java.osmosis;
+
+import org.openstreetmap.osmosis.core.pipeline.common.TaskConfiguration;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskManager;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskManagerFactory;
+import org.openstreetmap.osmosis.core.pipeline.v0_6.SinkManager;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+/**
+ * Factory class for the analyzer task, see {@link AnalyzerPlugin_task}.
+ *
+ * @author bennokue
+ */
+public class AnalyzerPlugin_factory extends TaskManagerFactory {
+
+    /**
+     * CLI argument for the comma separated list of keys to analyze, a key
+     * ending with {@code *} stands for every key with that prefix.
+     */
+    private static final String ARG_KEYS = "keys";
+    /**
+     * Default value for {@link #ARG_KEYS}: all keys.
+     */
+    private static final String DEFAULT_KEYS = "";
+    /**
+     * CLI argument for the maximum number of keys that get statistics.
+     */
+    private static final String ARG_MAX_KEYS = "maxKeys";
+    /**
+     * Default value for {@link #ARG_MAX_KEYS}, about 1 MB of statistics.
+     */
+    private static final int DEFAULT_MAX_KEYS = 1000;
+    /**
+     * CLI argument that enables the lenient number parsing, like the
+     * calculation task does.
+     */
+    private static final String ARG_LENIENT_NUMBERS = "lenientNumbers";
+
+    @Override
+    protected TaskManager createTaskManagerImpl(TaskConfiguration taskConfig) {
+        Sink task = new AnalyzerPlugin_task(
+                getStringArgument(taskConfig, ARG_KEYS, DEFAULT_KEYS),
+                getIntegerArgument(taskConfig, ARG_MAX_KEYS, DEFAULT_MAX_KEYS),
+                getBooleanArgument(taskConfig, ARG_LENIENT_NUMBERS, false));
+
+        return new SinkManager(taskConfig.getId(), task, taskConfig.getPipeArgs());
+    }
+}
@@ -0,0 +1,217 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openstreetmap.osmosis.core.container.v0_6.BoundContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityProcessor;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+/**
+ * Streams the input once and collects {@link TagStatistics} for the Node tag
+ * keys, to find out which tags are worth a calculation before running it:
+ * how many Nodes have the tag, how many of its values are numbers (parsed
+ * like the calculation does, see {@link TagValueParser}), their range and
+ * the approximate number of distinct values. A report is logged when the
+ * input is complete.
+ * <p>
+ * The memory is bounded: Only the first {@code maxKeys} keys get statistics
+ * (about 1 KB each), the occurrences and the number of distinct further keys
+ * are only counted. Ways and Relations are ignored.</p>
+ *
+ * @author bennokue
+ */
+public class AnalyzerPlugin_task implements Sink, EntityProcessor {
+
+    private static final Logger log = Logger.getLogger(AnalyzerPlugin_task.class.getName());
+    /**
+     * Keys with at least this share of numeric values are suggested as input
+     * tags.
+     */
+    private static final double NUMERIC_SUGGESTION_RATIO = 0.5;
+    /**
+     * The keys to analyze or {@code null} for all keys.
+     */
+    private final TagKeyMatcher keys;
+    /**
+     * The maximum number of keys that get statistics.
+     */
+    private final int maxKeys;
+    /**
+     * Parses the tag values.
+     */
+    private final TagValueParser parser;
+    /**
+     * The statistics, by key.
+     */
+    private final Map<String, TagStatistics> statistics = new HashMap<>();
+    /**
+     * The number of Nodes seen.
+     */
+    private long nodes = 0;
+    /**
+     * The number of tags whose key did not get statistics because there were
+     * too many keys.
+     */
+    private long untrackedTags = 0;
+    /**
+     * The number of values that are no numbers.
+     */
+    private long parseFailures = 0;
+    /**
+     * Estimates the number of keys without statistics.
+     */
+    private final HyperLogLog untrackedKeys = new HyperLogLog();
+
+    /**
+     * Create an analyzer.
+     *
+     * @param keysString The keys to analyze, separated by commas. A key
+     * ending with {@code *} stands for every key with that prefix (see
+     * {@link TagKeyMatcher}). Empty for all keys.
+     * @param maxKeys The maximum number of keys that get statistics.
+     * @param lenientNumbers See {@link TagValueParser#TagValueParser(boolean)}.
+     */
+    public AnalyzerPlugin_task(String keysString, int maxKeys, boolean lenientNumbers) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("At least one key has to be analyzed!");
+        }
+        TagKeyMatcher matcher = new TagKeyMatcher(Arrays.asList(keysString.replace(" ", "").split(",")), Collections.<String>emptyList());
+        this.keys = matcher.isEmpty() ? null : matcher;
+        this.maxKeys = maxKeys;
+        this.parser = new TagValueParser(lenientNumbers);
+    }
+
+    @Override
+    public void process(EntityContainer entityContainer) {
+        entityContainer.process(this);
+    }
+
+    @Override
+    public void process(NodeContainer container) {
+        this.nodes++;
+        for (Tag tag : container.getEntity().getTags()) {
+            String key = tag.getKey();
+            if (this.keys != null && !this.keys.matches(key)) {
+                continue;
+            }
+            TagStatistics keyStatistics = this.statistics.get(key);
+            if (keyStatistics == null) {
+                if (this.statistics.size() >= this.maxKeys) {
+                    this.untrackedTags++;
+                    this.untrackedKeys.add(key);
+                    continue;
+                }
+                keyStatistics = new TagStatistics(key);
+                this.statistics.put(key, keyStatistics);
+            }
+            double value = this.parser.parse(tag.getValue());
+            if (Double.isNaN(value)) {
+                this.parseFailures++;
+            }
+            keyStatistics.add(tag.getValue(), value);
+        }
+    }
+
+    @Override
+    public void process(BoundContainer boundContainer) {
+        // Nothing to analyze
+    }
+
+    @Override
+    public void process(WayContainer container) {
+        // Only Node tags are analyzed
+    }
+
+    @Override
+    public void process(RelationContainer container) {
+        // Only Node tags are analyzed
+    }
+
+    /**
+     * @return The number of Nodes seen so far.
+     */
+    public long getNodeCount() {
+        return this.nodes;
+    }
+
+    /**
+     * @return The statistics of the keys seen so far, the most frequent key
+     * first.
+     */
+    public List<TagStatistics> getStatistics() {
+        List<TagStatistics> sorted = new ArrayList<>(this.statistics.values());
+        Collections.sort(sorted, new Comparator<TagStatistics>() {
+            @Override
+            public int compare(TagStatistics first, TagStatistics second) {
+                if (first.getCount() != second.getCount()) {
+                    return (first.getCount() > second.getCount()) ? -1 : 1;
+                }
+                return first.getKey().compareTo(second.getKey());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @return The report that is logged when the task is complete.
+     */
+    String getReport() {
+        StringBuilder report = new StringBuilder(String.format(Locale.ENGLISH, "Analysis finished: %d nodes, %d keys", this.nodes, this.statistics.size()));
+        List<String> numericKeys = new ArrayList<>();
+        for (TagStatistics keyStatistics : getStatistics()) {
+            report.append(String.format(Locale.ENGLISH, "%n  %s: %d nodes (%.1f%%), %.1f%% numeric",
+                    keyStatistics.getKey(), keyStatistics.getCount(), 100d * keyStatistics.getCount() / this.nodes,
+                    100 * keyStatistics.getNumericRatio()));
+            if (keyStatistics.getNumericCount() > 0) {
+                report.append(String.format(Locale.ENGLISH, " from %s to %s", keyStatistics.getMin(), keyStatistics.getMax()));
+            }
+            report.append(String.format(Locale.ENGLISH, ", ~%d distinct values", keyStatistics.getDistinctValues()));
+            if (keyStatistics.getNumericRatio() >= NUMERIC_SUGGESTION_RATIO) {
+                numericKeys.add(keyStatistics.getKey());
+            }
+        }
+        if (this.untrackedTags > 0) {
+            report.append(String.format(Locale.ENGLISH, "%n  %d tags of ~%d further keys were not analyzed, raise maxKeys to include them",
+                    this.untrackedTags, this.untrackedKeys.estimate()));
+        }
+        if (this.parseFailures > 0) {
+            report.append(String.format(Locale.ENGLISH, "%n  %d values are no numbers", this.parseFailures));
+        }
+        if (!numericKeys.isEmpty()) {
+            StringBuilder inputTags = new StringBuilder();
+            for (String key : numericKeys) {
+                inputTags.append((inputTags.length() == 0) ? "" : ",").append(key);
+            }
+            report.append(String.format(Locale.ENGLISH, "%n  mostly numeric keys: inputTags=%s", inputTags));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void complete() {
+        log.log(Level.INFO, getReport());
+    }
+
+    @Override
+    public void release() {
+        // Nothing to release
+    }
+
+    @Override
+    public void initialize(Map<String, Object> metaData) {
+        // added in osmosis 0.41
+    }
+}
@@ -0,0 +1,257 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+
+/**
+ * A {@link RecordStore} that keeps the records in two primitive arrays on the
+ * heap: The ids in a {@code long[]}, the records one after another in a
+ * {@code double[]}. There is no object per entry, so a record of
+ * {@code n} values costs {@code 8 * (n + 1)} bytes.
+ * <p>
+ * OSM files are usually sorted by id, so records are appended and looked up
+ * by binary search. If ids arrive out of order, both arrays are sorted in
+ * place once before the next lookup. {@link #seal()} trims them to the
+ * stored records.</p>
+ * <p>
+ * A Java array holds at most about 2^31 values, so the store is full at
+ * about 2^31 / n records. Use a {@link MappedRecordStore} beyond.</p>
+ *
+ * @author bennokue
+ */
+class ArrayRecordStore implements RecordStore {
+
+    /**
+     * The initial capacity in records.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+    /**
+     * The maximum length of an array that every JVM can allocate.
+     */
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+    /**
+     * The number of doubles per record.
+     */
+    private final int recordLength;
+    /**
+     * The ids, sorted if {@link #sorted} is true.
+     */
+    private long[] ids = new long[INITIAL_CAPACITY];
+    /**
+     * The records, record {@code i} starts at {@code i * recordLength}.
+     */
+    private double[] records;
+    /**
+     * The number of stored records.
+     */
+    private int size = 0;
+    /**
+     * Are the ids sorted and unique?
+     */
+    private boolean sorted = true;
+
+    /**
+     * Create an empty store.
+     *
+     * @param recordLength The number of doubles per record.
+     */
+    ArrayRecordStore(int recordLength) {
+        this.recordLength = recordLength;
+        this.records = new double[INITIAL_CAPACITY * recordLength];
+    }
+
+    @Override
+    public int getRecordLength() {
+        return this.recordLength;
+    }
+
+    /**
+     * @return The number of stored records.
+     */
+    int size() {
+        return this.size;
+    }
+
+    @Override
+    public void put(long id, double[] record) {
+        if (this.size == this.ids.length) {
+            grow();
+        }
+        if (this.size > 0 && this.ids[this.size - 1] >= id) {
+            this.sorted = false;
+        }
+        this.ids[this.size] = id;
+        System.arraycopy(record, 0, this.records, this.size * this.recordLength, this.recordLength);
+        this.size++;
+    }
+
+    @Override
+    public boolean get(long id, double[] record) {
+        if (!this.sorted) {
+            sort();
+        }
+        int low = 0;
+        int high = this.size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = this.ids[middle];
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                System.arraycopy(this.records, middle * this.recordLength, record, 0, this.recordLength);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void seal() {
+        // get() must not sort concurrently, and nothing grows any more
+        if (!this.sorted) {
+            sort();
+        }
+        trim();
+    }
+
+    @Override
+    public void release() {
+        this.ids = new long[0];
+        this.records = new double[0];
+        this.size = 0;
+        this.sorted = true;
+    }
+
+    /**
+     * Grow both arrays by half.
+     *
+     * @throws OsmosisRuntimeException If the arrays can not grow any more.
+     */
+    private void grow() {
+        int capacity = grownCapacity(this.ids.length, this.recordLength);
+        long[] newIds = new long[capacity];
+        System.arraycopy(this.ids, 0, newIds, 0, this.size);
+        double[] newRecords = new double[capacity * this.recordLength];
+        System.arraycopy(this.records, 0, newRecords, 0, this.size * this.recordLength);
+        this.ids = newIds;
+        this.records = newRecords;
+    }
+
+    /**
+     * @param capacity The current capacity in records.
+     * @param recordLength The number of doubles per record.
+     * @return The capacity grown by half, but no more than an array of
+     * records can hold.
+     * @throws OsmosisRuntimeException If the capacity can not grow any more.
+     */
+    static int grownCapacity(int capacity, int recordLength) {
+        long maxCapacity = MAX_ARRAY_LENGTH / Math.max(1, recordLength);
+        if (capacity >= maxCapacity) {
+            throw new OsmosisRuntimeException("The array record store is full at " + capacity + " records of " + recordLength
+                    + " values, use recordStore=mapped for inputs this big!");
+        }
+        long grown = Math.max(INITIAL_CAPACITY, capacity + (long) (capacity >> 1));
+        return (int) Math.min(grown, maxCapacity);
+    }
+
+    /**
+     * Sort the records by id and drop duplicates, keeping the record that was
+     * stored last. The arrays are rearranged in place, so the only extra
+     * memory are two {@code int}s per record while the order is sorted.
+     */
+    private void sort() {
+        // Sort positions, a stable merge sort keeps duplicates in storage order
+        int[] order = new int[this.size];
+        for (int i = 0; i < this.size; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[this.size], 0, this.size);
+        permute(order);
+
+        // Duplicates are adjacent now, the last one was stored last
+        int count = 0;
+        for (int i = 0; i < this.size; i++) {
+            if (count > 0 && this.ids[count - 1] == this.ids[i]) {
+                count--;
+            }
+            if (count != i) {
+                this.ids[count] = this.ids[i];
+                System.arraycopy(this.records, i * this.recordLength, this.records, count * this.recordLength, this.recordLength);
+            }
+            count++;
+        }
+        this.size = count;
+        this.sorted = true;
+    }
+
+    /**
+     * Rearrange the ids and records in place by following the cycles of a
+     * permutation.
+     *
+     * @param order The position each entry comes from, by its new position.
+     * Entries are set to their index as they are moved.
+     */
+    private void permute(int[] order) {
+        double[] record = new double[this.recordLength];
+        for (int start = 0; start < order.length; start++) {
+            if (order[start] == start) {
+                continue;
+            }
+            long id = this.ids[start];
+            System.arraycopy(this.records, start * this.recordLength, record, 0, this.recordLength);
+            int target = start;
+            while (order[target] != start) {
+                int source = order[target];
+                this.ids[target] = this.ids[source];
+                System.arraycopy(this.records, source * this.recordLength, this.records, target * this.recordLength, this.recordLength);
+                order[target] = target;
+                target = source;
+            }
+            this.ids[target] = id;
+            System.arraycopy(record, 0, this.records, target * this.recordLength, this.recordLength);
+            order[target] = target;
+        }
+    }
+
+    /**
+     * Shrink both arrays to the stored records.
+     */
+    private void trim() {
+        if (this.size < this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, this.size);
+            this.records = Arrays.copyOf(this.records, this.size * this.recordLength);
+        }
+    }
+
+    /**
+     * Stable merge sort of positions by their id.
+     *
+     * @param order The positions to sort.
+     * @param buffer A buffer of the same size.
+     * @param from First index, inclusive.
+     * @param to Last index, exclusive.
+     */
+    private void mergeSort(int[] order, int[] buffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, buffer, from, middle);
+        mergeSort(order, buffer, middle, to);
+        if (this.ids[order[middle - 1]] <= this.ids[order[middle]]) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && this.ids[buffer[left]] <= this.ids[buffer[right]])) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+/**
+ * Hands the entities to the next stage of the pipeline on a dedicated
+ * thread, so the calculation does not wait for the output (e.g. XML writing
+ * and compression) and vice versa. The entities pass a bounded, lock-free
+ * ring buffer with a single producer (the thread that calls
+ * {@link #process(EntityContainer)}) and a single consumer (the downstream
+ * thread). They keep their order.
+ * <p>
+ * If the buffer is full, the producer waits (backpressure). If the next
+ * stage fails, the failure is thrown to the producer by the next call of
+ * {@link #process(EntityContainer)} or {@link #complete()}. The next stage
+ * is initialized, completed and released by the producer's thread, after the
+ * downstream thread has finished.</p>
+ *
+ * @author bennokue
+ */
+class AsyncSink implements Sink {
+
+    /**
+     * How long a thread sleeps while waiting for the other one, after
+     * {@link #SPINS} unsuccessful attempts.
+     */
+    private static final long PARK_NANOS = 50000;
+    /**
+     * How many times a waiting thread yields before it sleeps.
+     */
+    private static final int SPINS = 100;
+    /**
+     * The next stage of the pipeline.
+     */
+    private final Sink sink;
+    /**
+     * The ring buffer, its length is a power of two.
+     */
+    private final EntityContainer[] buffer;
+    /**
+     * {@code buffer.length - 1}.
+     */
+    private final int mask;
+    /**
+     * The number of entities taken by the consumer. Only written by the
+     * consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * The number of entities put by the producer. Only written by the
+     * producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The producer's last look at {@link #head}, so it rarely has to read it.
+     */
+    private long knownHead = 0;
+    /**
+     * Has the producer put its last entity?
+     */
+    private volatile boolean closed = false;
+    /**
+     * Should the consumer stop without taking the remaining entities?
+     */
+    private volatile boolean released = false;
+    /**
+     * Why the consumer stopped, {@code null} unless the next stage failed.
+     */
+    private volatile Throwable failure = null;
+    /**
+     * The consumer, {@code null} until the first entity arrives.
+     */
+    private Thread thread = null;
+
+    /**
+     * @param sink The next stage of the pipeline.
+     * @param capacity The minimum number of entities the buffer can hold,
+     * rounded up to a power of two.
+     */
+    AsyncSink(Sink sink, int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("The async capacity must be between 1 and 2^30!");
+        }
+        this.sink = sink;
+        int length = 1;
+        while (length < capacity) {
+            length <<= 1;
+        }
+        this.buffer = new EntityContainer[length];
+        this.mask = this.buffer.length - 1;
+    }
+
+    /**
+     * Start the consumer, if it is not running yet.
+     */
+    private void start() {
+        if (this.thread != null) {
+            return;
+        }
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "calculator-output");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * The loop of the consumer: Hand the entities to the next stage until
+     * the producer is done or the task is released.
+     */
+    private void consume() {
+        try {
+            long taken = this.head.get();
+            int idle = 0;
+            while (!this.released) {
+                long available = this.tail.get();
+                if (taken == available) {
+                    if (this.closed && taken == this.tail.get()) {
+                        return;
+                    }
+                    idle = pause(idle);
+                    continue;
+                }
+                idle = 0;
+                while (taken < available) {
+                    int index = (int) taken & this.mask;
+                    EntityContainer entity = this.buffer[index];
+                    this.buffer[index] = null;
+                    this.sink.process(entity);
+                    this.head.lazySet(++taken);
+                }
+            }
+        } catch (Throwable e) {
+            this.failure = e;
+        }
+    }
+
+    /**
+     * Wait a little for the other thread.
+     *
+     * @param idle The number of unsuccessful attempts so far.
+     * @return The number of unsuccessful attempts, including this one.
+     */
+    private static int pause(int idle) {
+        if (idle < SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+    /**
+     * @throws OsmosisRuntimeException If the next stage has failed.
+     */
+    private void checkFailure() {
+        Throwable cause = this.failure;
+        if (cause != null) {
+            throw new OsmosisRuntimeException("The next stage of the pipeline failed.", cause);
+        }
+    }
+
+    @Override
+    public void process(EntityContainer entityContainer) {
+        start();
+        long put = this.tail.get();
+        int idle = 0;
+        while (put - this.knownHead >= this.buffer.length) {
+            this.knownHead = this.head.get();
+            if (put - this.knownHead >= this.buffer.length) {
+                checkFailure();
+                idle = pause(idle);
+            }
+        }
+        checkFailure();
+        this.buffer[(int) put & this.mask] = entityContainer;
+        this.tail.lazySet(put + 1);
+    }
+
+    @Override
+    public void initialize(Map<String, Object> metaData) {
+        this.sink.initialize(metaData);
+    }
+
+    @Override
+    public void complete() {
+        if (this.thread != null) {
+            this.closed = true;
+            LockSupport.unpark(this.thread);
+            join();
+            checkFailure();
+        }
+        this.sink.complete();
+    }
+
+    /**
+     * Wait for the consumer to finish.
+     */
+    private void join() {
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OsmosisRuntimeException("Interrupted while waiting for the output thread.", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            if (this.thread != null && this.thread.isAlive()) {
+                this.released = true;
+                this.thread.interrupt();
+                join();
+            }
+        } finally {
+            this.sink.release();
+        }
+    }
+}
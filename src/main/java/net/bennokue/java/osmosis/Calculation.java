@@ -0,0 +1,54 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * A single formula and the tag its result is stored to.
+ *
+ * @author bennokue
+ */
+public class Calculation {
+
+    /**
+     * The name of the tag where the result will be stored at.
+     */
+    private final String outputTag;
+    /**
+     * The formula in exp4j syntax.
+     */
+    private final String formula;
+
+    /**
+     * Create a Calculation.
+     *
+     * @param outputTag The name of the tag where the result will be stored at.
+     * @param formula The formula in exp4j syntax.
+     */
+    public Calculation(String outputTag, String formula) {
+        if (outputTag.isEmpty()) {
+            throw new IllegalArgumentException("Output attribute name must not be empty!");
+        }
+        if (formula.isEmpty()) {
+            throw new IllegalArgumentException("The calculation for " + outputTag + " must not be empty!");
+        }
+        this.outputTag = outputTag;
+        this.formula = formula;
+    }
+
+    /**
+     * @return The name of the tag where the result will be stored at.
+     */
+    public String getOutputTag() {
+        return this.outputTag;
+    }
+
+    /**
+     * @return The formula in exp4j syntax.
+     */
+    public String getFormula() {
+        return this.formula;
+    }
+
+    @Override
+    public String toString() {
+        return this.outputTag + "=" + this.formula;
+    }
+}
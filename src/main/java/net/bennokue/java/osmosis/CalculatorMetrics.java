@@ -0,0 +1,286 @@
+package net.bennokue.java.osmosis;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The runtime metrics of a {@link CalculatorPlugin_task}: Every thread counts
+ * into its own {@link MetricsStripe}, the getters sum up all stripes. Can be
+ * watched via JMX while the task is running, see
+ * {@link CalculatorMetricsMXBean}.
+ *
+ * @author bennokue
+ */
+public class CalculatorMetrics implements CalculatorMetricsMXBean {
+
+    private static final Logger log = Logger.getLogger(CalculatorMetrics.class.getName());
+    /**
+     * Numbers the MXBeans of the tasks in this JVM.
+     */
+    private static final AtomicInteger instanceCount = new AtomicInteger();
+    /**
+     * The variables, by slot.
+     */
+    private final VariableSlots slots;
+    /**
+     * The stripes of all threads.
+     */
+    private final List<MetricsStripe> stripes = new ArrayList<>();
+    /**
+     * When counting started, see {@link System#nanoTime()}.
+     */
+    private volatile long startNanos = System.nanoTime();
+    /**
+     * The name of the registered MXBean or {@code null}.
+     */
+    private ObjectName objectName;
+
+    /**
+     * Create the metrics of a task.
+     *
+     * @param slots The task's variables.
+     */
+    CalculatorMetrics(VariableSlots slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * Create the stripe of a new thread.
+     *
+     * @return The stripe, must only be written by that thread.
+     */
+    MetricsStripe createStripe() {
+        MetricsStripe stripe = new MetricsStripe(this.slots.size());
+        synchronized (this.stripes) {
+            this.stripes.add(stripe);
+        }
+        return stripe;
+    }
+
+    /**
+     * Restart the clock of {@link #getNodesPerSecond()} and register the
+     * MXBean. Failing to register is logged, but not fatal.
+     */
+    void start() {
+        this.startNanos = System.nanoTime();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("net.bennokue.java.osmosis:type=CalculatorPlugin,name=calculate-node-tag-" + instanceCount.incrementAndGet());
+            server.registerMBean(this, name);
+            this.objectName = name;
+        } catch (JMException e) {
+            log.log(Level.WARNING, "Unable to register the metrics MXBean.", e);
+        }
+    }
+
+    /**
+     * Unregister the MXBean, if it has been registered.
+     */
+    void stop() {
+        if (this.objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            log.log(Level.WARNING, "Unable to unregister the metrics MXBean.", e);
+        }
+        this.objectName = null;
+    }
+
+    /**
+     * @param counter A counter of {@link MetricsStripe}.
+     * @return The sum over all stripes.
+     */
+    private long sum(int counter) {
+        long sum = 0;
+        synchronized (this.stripes) {
+            for (MetricsStripe stripe : this.stripes) {
+                sum += stripe.get(counter);
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long getNodesProcessed() {
+        return sum(MetricsStripe.NODES_PROCESSED);
+    }
+
+    @Override
+    public long getNodesCalculated() {
+        return sum(MetricsStripe.NODES_CALCULATED);
+    }
+
+    @Override
+    public long getWaysCalculated() {
+        return sum(MetricsStripe.WAYS_CALCULATED);
+    }
+
+    @Override
+    public long getRelationsCalculated() {
+        return sum(MetricsStripe.RELATIONS_CALCULATED);
+    }
+
+    @Override
+    public long getNodesUnchanged() {
+        return sum(MetricsStripe.NODES_UNCHANGED);
+    }
+
+    @Override
+    public long getNaNResults() {
+        return sum(MetricsStripe.NAN_RESULTS);
+    }
+
+    @Override
+    public long getInfiniteResults() {
+        return sum(MetricsStripe.INFINITE_RESULTS);
+    }
+
+    @Override
+    public long getParseFailures() {
+        return sum(MetricsStripe.PARSE_FAILURES);
+    }
+
+    @Override
+    public Map<String, Long> getMissingVariables() {
+        Map<String, Long> missing = new LinkedHashMap<>();
+        for (int slot = 0; slot < this.slots.size(); slot++) {
+            if (!this.slots.isInput(slot)) {
+                continue;
+            }
+            long count = 0;
+            synchronized (this.stripes) {
+                for (MetricsStripe stripe : this.stripes) {
+                    count += stripe.getMissing(slot);
+                }
+            }
+            missing.put(this.slots.getName(slot), count);
+        }
+        return missing;
+    }
+
+    @Override
+    public double getNodesPerSecond() {
+        long nanos = System.nanoTime() - this.startNanos;
+        return (nanos <= 0) ? 0 : getNodesProcessed() * 1e9 / nanos;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return sum(MetricsStripe.CACHE_HITS);
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return sum(MetricsStripe.CACHE_MISSES);
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = getCacheHits();
+        long lookups = hits + getCacheMisses();
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long[] getEvaluationTimeHistogram() {
+        long[] histogram = new long[MetricsStripe.HISTOGRAM_BUCKETS];
+        synchronized (this.stripes) {
+            for (MetricsStripe stripe : this.stripes) {
+                for (int bucket = 0; bucket < histogram.length; bucket++) {
+                    histogram[bucket] += stripe.getHistogram(bucket);
+                }
+            }
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getEvaluationTimePercentile(double percentile) {
+        long[] histogram = getEvaluationTimeHistogram();
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank && seen > 0) {
+                return (1L << bucket) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public long getBlocksEvaluated() {
+        return sum(MetricsStripe.BLOCKS_EVALUATED);
+    }
+
+    @Override
+    public double getBlockEvaluationTimePerNode() {
+        long nodes = sum(MetricsStripe.BLOCK_NODES);
+        return (nodes == 0) ? 0 : (double) sum(MetricsStripe.BLOCK_NANOS) / nodes;
+    }
+
+    /**
+     * @return A one-line progress summary.
+     */
+    String getSummary() {
+        return String.format(Locale.ENGLISH, "%d nodes processed (%.0f/s), %d calculated, %d NaN and %d infinite results, %d parse failures",
+                getNodesProcessed(), getNodesPerSecond(), getNodesCalculated(), getNaNResults(), getInfiniteResults(), getParseFailures());
+    }
+
+    /**
+     * @return The final report: The summary, the missing variables and the
+     * evaluation times.
+     */
+    String getReport() {
+        StringBuilder report = new StringBuilder("Calculation finished: ").append(getSummary());
+        long ways = getWaysCalculated();
+        long relations = getRelationsCalculated();
+        if (ways > 0 || relations > 0) {
+            report.append(String.format(Locale.ENGLISH, "%n  %d ways and %d relations calculated", ways, relations));
+        }
+        long unchanged = getNodesUnchanged();
+        if (unchanged > 0) {
+            report.append(String.format(Locale.ENGLISH, "%n  %d calculated nodes already had the results and were not changed", unchanged));
+        }
+        for (Map.Entry<String, Long> missing : getMissingVariables().entrySet()) {
+            if (missing.getValue() > 0) {
+                report.append(String.format(Locale.ENGLISH, "%n  %d nodes have no attribute called %s", missing.getValue(), missing.getKey()));
+            }
+        }
+        long hits = getCacheHits();
+        long misses = getCacheMisses();
+        if (hits + misses > 0) {
+            report.append(String.format(Locale.ENGLISH, "%n  formula cache: %d hits, %d misses, hit rate %.1f%%",
+                    hits, misses, 100d * hits / (hits + misses)));
+        }
+        if (getEvaluationTimePercentile(100) > 0) {
+            report.append(String.format(Locale.ENGLISH, "%n  evaluation time per node (sampled): median < %d ns, 99%% < %d ns",
+                    getEvaluationTimePercentile(50) + 1, getEvaluationTimePercentile(99) + 1));
+        }
+        long blocks = getBlocksEvaluated();
+        if (blocks > 0) {
+            report.append(String.format(Locale.ENGLISH, "%n  evaluation time per node in %d blocks: %.1f ns on average",
+                    blocks, getBlockEvaluationTimePerNode()));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,111 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link CalculatorMetrics} of a running task. The MXBean
+ * is registered as
+ * {@code net.bennokue.java.osmosis:type=CalculatorPlugin,name=calculate-node-tag-<n>}.
+ *
+ * @author bennokue
+ */
+public interface CalculatorMetricsMXBean {
+
+    /**
+     * @return The number of Nodes that passed the task.
+     */
+    long getNodesProcessed();
+
+    /**
+     * @return The number of Nodes whose calculations have been evaluated.
+     */
+    long getNodesCalculated();
+
+    /**
+     * @return The number of Ways whose calculation has been evaluated.
+     */
+    long getWaysCalculated();
+
+    /**
+     * @return The number of Relations whose calculation has been evaluated.
+     */
+    long getRelationsCalculated();
+
+    /**
+     * @return The number of calculated Nodes that already had the results and
+     * were forwarded without a change.
+     */
+    long getNodesUnchanged();
+
+    /**
+     * @return The number of results that are NaN.
+     */
+    long getNaNResults();
+
+    /**
+     * @return The number of results that are infinite.
+     */
+    long getInfiniteResults();
+
+    /**
+     * @return The number of tag values that could not be parsed as numbers.
+     */
+    long getParseFailures();
+
+    /**
+     * @return For every input variable, the number of Nodes that did not have
+     * it.
+     */
+    Map<String, Long> getMissingVariables();
+
+    /**
+     * @return The number of Nodes processed per second since the task has
+     * been initialized.
+     */
+    double getNodesPerSecond();
+
+    /**
+     * @return The number of results found in the formula caches.
+     */
+    long getCacheHits();
+
+    /**
+     * @return The number of results that had to be evaluated although the
+     * formula is cached.
+     */
+    long getCacheMisses();
+
+    /**
+     * @return The share of cache lookups that were hits, from 0 to 1. 0 if
+     * there is no cache.
+     */
+    double getCacheHitRate();
+
+    /**
+     * @return The evaluation time histogram of the sampled Nodes: Entry
+     * {@code b} counts the evaluations that took from {@code 2^(b-1)} to
+     * {@code 2^b - 1} nanoseconds. Nodes evaluated in blocks (batch mode) are
+     * not in it, see {@link #getBlockEvaluationTimePerNode()}.
+     */
+    long[] getEvaluationTimeHistogram();
+
+    /**
+     * @param percentile The percentile, from 0 to 100.
+     * @return The upper bound of the histogram bucket of that percentile in
+     * nanoseconds, 0 if nothing has been timed yet.
+     */
+    long getEvaluationTimePercentile(double percentile);
+
+    /**
+     * @return The number of blocks of Nodes that have been evaluated together
+     * (batch mode).
+     */
+    long getBlocksEvaluated();
+
+    /**
+     * @return The average evaluation time of a Node in a block in
+     * nanoseconds, i.e. the time of all blocks divided by their Nodes. 0 if
+     * no block has been evaluated yet.
+     */
+    double getBlockEvaluationTimePerNode();
+}
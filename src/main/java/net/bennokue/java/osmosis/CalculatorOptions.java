@@ -0,0 +1,629 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Optional tuning parameters of the {@link CalculatorPlugin_task}. Everything
+ * in here has a sensible default, so {@code new CalculatorOptions()} behaves
+ * exactly like the plain four-argument
+ * {@link CalculatorPlugin_task#CalculatorPlugin_task(java.lang.String, java.lang.String, java.lang.String, java.lang.String) CalculatorPlugin_task(...)}
+ * constructor.
+ *
+ * @author bennokue
+ */
+public class CalculatorOptions {
+
+    /**
+     * The engines that can evaluate a calculation.
+     */
+    public enum Engine {
+
+        /**
+         * exp4j interprets the calculation. This is the reference engine.
+         */
+        EXP4J,
+        /**
+         * The calculation is compiled to a JVM class, see
+         * {@link FormulaCompiler}.
+         */
+        COMPILED
+    }
+
+    /**
+     * Where the Node values for the Way and Relation calculations are kept.
+     */
+    public enum RecordStoreType {
+
+        /**
+         * Sorted primitive arrays on the heap, see {@link ArrayRecordStore}.
+         * The default, best for inputs up to a few ten million Nodes.
+         */
+        ARRAY,
+        /**
+         * A memory-mapped temporary file indexed by id, see
+         * {@link MappedRecordStore}. For very big inputs like the planet.
+         */
+        MAPPED,
+        /**
+         * Pages of consecutive ids on the heap that are only allocated if
+         * they are used, see {@link SparseRecordStore}. For extracts with
+         * holes in the id range and for unsorted inputs.
+         */
+        SPARSE
+    }
+
+    /**
+     * Default value for {@link #getWorkers()}: Everything happens on the
+     * thread that feeds the task.
+     */
+    public static final int DEFAULT_WORKERS = 1;
+    /**
+     * The number of threads that evaluate Nodes.
+     */
+    private int workers = DEFAULT_WORKERS;
+    /**
+     * Default value for {@link #getBatchSize()}: Every Node is evaluated on
+     * its own.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1;
+    /**
+     * The number of Nodes that are evaluated together.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    /**
+     * The number of entities buffered for the output thread, 0 for none.
+     */
+    private int asyncCapacity = 0;
+    /**
+     * Accept decimal commas and unit suffixes in tag values?
+     */
+    private boolean lenientNumbers = false;
+    /**
+     * Use the approximated trigonometry in the {@link GeoFunctions}?
+     */
+    private boolean fastTrig = false;
+    /**
+     * The engine that evaluates the calculation.
+     */
+    private Engine engine = Engine.EXP4J;
+    /**
+     * Calculations in addition to the one given to the task's constructor.
+     */
+    private final List<Calculation> calculations = new ArrayList<>();
+    /**
+     * The calculation that is evaluated on every Way or {@code null}.
+     */
+    private Calculation wayCalculation = null;
+    /**
+     * The calculation that is evaluated on every Relation or {@code null}.
+     */
+    private Calculation relationCalculation = null;
+    /**
+     * The Node tags that are aggregated for Ways and Relations.
+     */
+    private final List<String> aggregateTags = new ArrayList<>();
+    /**
+     * The radius of the neighborhood variables in meters, 0 for none.
+     */
+    private double neighborhoodRadius = 0;
+    /**
+     * The Node tags that are aggregated over the neighborhood of each Node.
+     */
+    private final List<String> neighborhoodTags = new ArrayList<>();
+    /**
+     * The Node tags whose values are aggregated over the whole input.
+     */
+    private final List<String> statisticsTags = new ArrayList<>();
+    /**
+     * The lookup tables.
+     */
+    private final List<Lookup> lookups = new ArrayList<>();
+    /**
+     * Default value for {@link #getDemCacheSize()}.
+     */
+    public static final int DEFAULT_DEM_CACHE_SIZE = 16;
+    /**
+     * The directory of the SRTM tiles or {@code null} for none.
+     */
+    private String demDirectory = null;
+    /**
+     * The maximum number of open SRTM tiles.
+     */
+    private int demCacheSize = DEFAULT_DEM_CACHE_SIZE;
+    /**
+     * Where the Node values for the Way and Relation calculations are kept.
+     */
+    private RecordStoreType recordStoreType = RecordStoreType.ARRAY;
+    /**
+     * Seconds between two progress summaries, 0 for none.
+     */
+    private int progressInterval = 0;
+    /**
+     * The predicate a Node has to fulfill to be calculated or {@code null}.
+     */
+    private String where = null;
+    /**
+     * Skip Nodes that lack an input variable of the calculations?
+     */
+    private boolean skipIfMissing = false;
+    /**
+     * The number of results cached per calculation and thread, 0 for none.
+     */
+    private int cacheSize = 0;
+    /**
+     * The format of the results.
+     */
+    private String outputFormat = ResultFormatter.DEFAULT;
+
+    /**
+     * @return The number of threads that evaluate Nodes. {@code 1} means that
+     * the Nodes are evaluated on the thread that feeds the task.
+     */
+    public int getWorkers() {
+        return this.workers;
+    }
+
+    /**
+     * Set the number of threads that evaluate Nodes. If more than one worker
+     * is used, the Nodes are evaluated in batches on a thread pool and handed
+     * to the next stage of the pipeline in their original order.
+     *
+     * @param workers The number of worker threads, must be at least 1.
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("The number of workers must be at least 1!");
+        }
+        this.workers = workers;
+    }
+
+    /**
+     * @return The number of Nodes that are evaluated together. {@code 1}
+     * means that every Node is evaluated on its own.
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * Evaluate the Nodes in blocks: The tag values of up to
+     * {@code batchSize} Nodes are parsed into one column per variable, then
+     * every calculation runs over the whole columns at once (see
+     * {@link Formula#evaluateBatch(double[][], int, double[])}). This pays
+     * off with the {@link Engine#COMPILED} engine. The Nodes are handed to
+     * the next stage in their original order, a block is finished before
+     * anything else is forwarded.
+     * <p>
+     * If there is more than one worker, the batch size is also the number of
+     * Nodes handed to a worker at once.</p>
+     *
+     * @param batchSize The number of Nodes per block, must be at least 1.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1!");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return The number of entities buffered for the output thread, 0 if
+     * the entities are handed to the next stage directly.
+     */
+    public int getAsyncCapacity() {
+        return this.asyncCapacity;
+    }
+
+    /**
+     * Hand the entities to the next stage of the pipeline on a dedicated
+     * thread (see {@link AsyncSink}), so the calculation and the output
+     * overlap. The calculation waits while the buffer is full.
+     *
+     * @param asyncCapacity The number of entities in the buffer (rounded up
+     * to a power of two), 0 to hand them to the next stage directly.
+     */
+    public void setAsyncCapacity(int asyncCapacity) {
+        if (asyncCapacity < 0 || asyncCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("The async capacity must be between 0 and 2^30!");
+        }
+        this.asyncCapacity = asyncCapacity;
+    }
+
+    /**
+     * @return Are decimal commas and unit suffixes accepted in tag values?
+     */
+    public boolean isLenientNumbers() {
+        return this.lenientNumbers;
+    }
+
+    /**
+     * Accept tag values like {@code 12,5} or {@code 512 m}. The known unit
+     * suffixes are stripped, not converted. See {@link TagValueParser}.
+     *
+     * @param lenientNumbers Accept decimal commas and unit suffixes?
+     */
+    public void setLenientNumbers(boolean lenientNumbers) {
+        this.lenientNumbers = lenientNumbers;
+    }
+
+    /**
+     * @return Do the {@link GeoFunctions} use the approximated trigonometry?
+     */
+    public boolean isFastTrig() {
+        return this.fastTrig;
+    }
+
+    /**
+     * Let {@code haversine}, {@code utmEasting} and {@code utmNorthing} use
+     * the polynomial approximations of {@link FastTrig} instead of
+     * {@link Math}. See {@link GeoFunctions} for the error bounds.
+     *
+     * @param fastTrig Use the approximations?
+     */
+    public void setFastTrig(boolean fastTrig) {
+        this.fastTrig = fastTrig;
+    }
+
+    /**
+     * @return The engine that evaluates the calculation.
+     */
+    public Engine getEngine() {
+        return this.engine;
+    }
+
+    /**
+     * Choose the engine that evaluates the calculation. Both engines accept
+     * the same syntax and calculate the same results.
+     *
+     * @param engine The engine.
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return The calculations in addition to the one given to the task's
+     * constructor, in the order they have been added.
+     */
+    public List<Calculation> getCalculations() {
+        return Collections.unmodifiableList(this.calculations);
+    }
+
+    /**
+     * Add a calculation. All calculations of a task are evaluated against the
+     * same parsed tag values, and a calculation may use the output of another
+     * one as variable.
+     *
+     * @param outputTag The name of the tag where the result will be stored.
+     * @param formula The formula in exp4j syntax.
+     */
+    public void addCalculation(String outputTag, String formula) {
+        this.calculations.add(new Calculation(outputTag, formula));
+    }
+
+    /**
+     * @return The calculation that is evaluated on every Way or {@code null}.
+     */
+    public Calculation getWayCalculation() {
+        return this.wayCalculation;
+    }
+
+    /**
+     * Evaluate a calculation on every Way. Its variables are aggregates over
+     * the Way's Nodes, see {@link GeometryCalculator}.
+     *
+     * @param outputTag The name of the Way tag where the result will be
+     * stored.
+     * @param formula The formula in exp4j syntax.
+     */
+    public void setWayCalculation(String outputTag, String formula) {
+        this.wayCalculation = new Calculation(outputTag, formula);
+    }
+
+    /**
+     * @return The calculation that is evaluated on every Relation or
+     * {@code null}.
+     */
+    public Calculation getRelationCalculation() {
+        return this.relationCalculation;
+    }
+
+    /**
+     * Evaluate a calculation on every Relation. Its variables are aggregates
+     * over the member Nodes and Ways, see {@link GeometryCalculator}.
+     *
+     * @param outputTag The name of the Relation tag where the result will be
+     * stored.
+     * @param formula The formula in exp4j syntax.
+     */
+    public void setRelationCalculation(String outputTag, String formula) {
+        this.relationCalculation = new Calculation(outputTag, formula);
+    }
+
+    /**
+     * @return The lookup tables.
+     */
+    public List<Lookup> getLookups() {
+        return Collections.unmodifiableList(this.lookups);
+    }
+
+    /**
+     * Give the Node calculations a variable from an external table, joined
+     * on the Node id or on the value of a tag, see {@link LookupTable}. The
+     * table is loaded when the task is created. The variable is missing for
+     * Nodes without an entry.
+     *
+     * @param lookup The table.
+     */
+    public void addLookup(Lookup lookup) {
+        this.lookups.add(lookup);
+    }
+
+    /**
+     * @return The directory of the SRTM tiles, {@code null} if the DEM
+     * functions are not available.
+     */
+    public String getDemDirectory() {
+        return this.demDirectory;
+    }
+
+    /**
+     * Give the Node calculations the functions {@code dem(lat, lon)} (the
+     * elevation in meters) and {@code slope(lat, lon)} (in degrees), sampled
+     * from the SRTM {@code .hgt} tiles in a directory, see {@link DemTiles}.
+     *
+     * @param demDirectory The directory, {@code null} for no DEM functions.
+     */
+    public void setDemDirectory(String demDirectory) {
+        this.demDirectory = demDirectory;
+    }
+
+    /**
+     * @return The maximum number of open SRTM tiles.
+     */
+    public int getDemCacheSize() {
+        return this.demCacheSize;
+    }
+
+    /**
+     * @param demCacheSize The maximum number of SRTM tiles that are kept
+     * memory-mapped, at least 1.
+     */
+    public void setDemCacheSize(int demCacheSize) {
+        if (demCacheSize < 1) {
+            throw new IllegalArgumentException("At least one DEM tile has to be cached!");
+        }
+        this.demCacheSize = demCacheSize;
+    }
+
+    /**
+     * @return Where the Node values for the Way and Relation calculations are
+     * kept.
+     */
+    public RecordStoreType getRecordStoreType() {
+        return this.recordStoreType;
+    }
+
+    /**
+     * Choose where the Node values for the Way and Relation calculations are
+     * kept. All types behave the same, they only differ in speed and memory
+     * usage.
+     *
+     * @param recordStoreType The type of the store.
+     */
+    public void setRecordStoreType(RecordStoreType recordStoreType) {
+        this.recordStoreType = recordStoreType;
+    }
+
+    /**
+     * @return Seconds between two progress summaries in the log, 0 if there
+     * are none.
+     */
+    public int getProgressInterval() {
+        return this.progressInterval;
+    }
+
+    /**
+     * Log a progress summary (see {@link CalculatorMetrics}) every few
+     * seconds. The final report is always logged.
+     *
+     * @param progressInterval Seconds between two summaries, 0 for none.
+     */
+    public void setProgressInterval(int progressInterval) {
+        if (progressInterval < 0) {
+            throw new IllegalArgumentException("The progress interval must not be negative!");
+        }
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * @return The predicate a Node has to fulfill to be calculated or
+     * {@code null} if all Nodes are calculated.
+     */
+    public String getWhere() {
+        return this.where;
+    }
+
+    /**
+     * Only calculate the Nodes that fulfill a predicate, e.g.
+     * {@code ele > 0 && has(height)}. The predicate is a formula that may use
+     * the operators and functions of {@link Predicates}, its variables are
+     * Node tags (or {@code lat} and {@code lon}) and it is true if its result
+     * is neither 0 nor NaN. Nodes that do not fulfill it are handed to the
+     * next stage untouched: nothing is calculated and no tag is removed.
+     * <p>
+     * If the predicate is false for a Node that has none of its tags, the
+     * Nodes without any of them are skipped after looking at their tag keys,
+     * without parsing anything.</p>
+     *
+     * @param where The predicate in exp4j syntax, {@code null} for none.
+     */
+    public void setWhere(String where) {
+        if (where != null && where.trim().isEmpty()) {
+            throw new IllegalArgumentException("The where predicate must not be empty!");
+        }
+        this.where = where;
+    }
+
+    /**
+     * @return Are Nodes skipped that lack an input variable of the
+     * calculations?
+     */
+    public boolean isSkipIfMissing() {
+        return this.skipIfMissing;
+    }
+
+    /**
+     * Hand Nodes that lack a numeric value for one of the tags the
+     * calculations use to the next stage untouched, instead of calculating
+     * NaN. Nodes without such a tag are skipped after looking at their tag
+     * keys, without parsing anything.
+     *
+     * @param skipIfMissing Skip Nodes with missing variables?
+     */
+    public void setSkipIfMissing(boolean skipIfMissing) {
+        this.skipIfMissing = skipIfMissing;
+    }
+
+    /**
+     * @return The number of results cached per calculation and thread, 0 if
+     * nothing is cached.
+     */
+    public int getCacheSize() {
+        return this.cacheSize;
+    }
+
+    /**
+     * Cache the results of the Node calculations, keyed on the values of the
+     * variables each calculation uses (see {@link MemoizingFormula}). This
+     * pays off if the values repeat heavily and the calculation is
+     * expensive; calculations that use {@code lat} or {@code lon} will rarely
+     * hit. The hit rate is part of the metrics.
+     *
+     * @param cacheSize The maximum number of results per calculation and
+     * worker thread, 0 for no cache.
+     */
+    public void setCacheSize(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("The cache size must not be negative!");
+        }
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @return The format of the results, see
+     * {@link #setOutputFormat(java.lang.String)}.
+     */
+    public String getOutputFormat() {
+        return this.outputFormat;
+    }
+
+    /**
+     * Choose how the results are written as tag values: {@code default}
+     * ({@link Double#toString(double)}), {@code fixed:N} (N decimal places),
+     * {@code integer} or {@code shortest} (plain notation, no trailing
+     * {@code .0}). See {@link ResultFormatter}. Applies to the Node, Way and
+     * Relation calculations.
+     *
+     * @param outputFormat The format.
+     * @throws IllegalArgumentException If the format is unknown.
+     */
+    public void setOutputFormat(String outputFormat) {
+        new ResultFormatter(outputFormat);
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * @return The Node tags whose values are aggregated for Ways and
+     * Relations.
+     */
+    public List<String> getAggregateTags() {
+        return Collections.unmodifiableList(this.aggregateTags);
+    }
+
+    /**
+     * Add a Node tag whose values are aggregated for Ways and Relations. The
+     * Way and Relation calculations can use its minimum, maximum and average
+     * as {@code min_<tag>}, {@code max_<tag>} and {@code avg_<tag>}.
+     *
+     * @param tag The tag name.
+     */
+    public void addAggregateTag(String tag) {
+        if (tag.isEmpty()) {
+            throw new IllegalArgumentException("Aggregate tag name must not be empty!");
+        }
+        this.aggregateTags.add(tag);
+    }
+
+    /**
+     * @return The radius of the neighborhood variables in meters, 0 if there
+     * are none.
+     */
+    public double getNeighborhoodRadius() {
+        return this.neighborhoodRadius;
+    }
+
+    /**
+     * Give the Node calculations the variables of the Nodes nearby (see
+     * {@link NeighborhoodIndex}): {@code nb_count} and {@code nb_avg_<tag>},
+     * {@code nb_min_<tag>}, {@code nb_max_<tag>} for every
+     * {@link #addNeighborhoodTag(java.lang.String) neighborhood tag}. The
+     * entities are kept in temporary files until the input is complete and
+     * then calculated in their original order.
+     *
+     * @param radius The radius in meters, 0 for no neighborhood variables.
+     */
+    public void setNeighborhoodRadius(double radius) {
+        if (!(radius >= 0) || Double.isInfinite(radius)) {
+            throw new IllegalArgumentException("The neighborhood radius must be a positive number of meters!");
+        }
+        this.neighborhoodRadius = radius;
+    }
+
+    /**
+     * @return The Node tags that are aggregated over the neighborhood.
+     */
+    public List<String> getNeighborhoodTags() {
+        return Collections.unmodifiableList(this.neighborhoodTags);
+    }
+
+    /**
+     * Add a Node tag whose values are aggregated over the neighborhood of each
+     * Node, see {@link #setNeighborhoodRadius(double)}.
+     *
+     * @param tag The tag name.
+     */
+    public void addNeighborhoodTag(String tag) {
+        if (tag.isEmpty()) {
+            throw new IllegalArgumentException("Neighborhood tag name must not be empty!");
+        }
+        this.neighborhoodTags.add(tag);
+    }
+
+    /**
+     * @return The Node tags whose values are aggregated over the whole input.
+     */
+    public List<String> getStatisticsTags() {
+        return Collections.unmodifiableList(this.statisticsTags);
+    }
+
+    /**
+     * Give the Node calculations global statistics of a Node tag (see
+     * {@link GlobalStatistics}): {@code min_<tag>}, {@code max_<tag>},
+     * {@code mean_<tag>}, {@code stddev_<tag>} and the quantiles
+     * {@code p5_<tag>}, {@code p25_<tag>}, {@code p50_<tag>},
+     * {@code p75_<tag>}, {@code p95_<tag>}. They are collected in a first
+     * pass, the entities are kept in temporary files until the input is
+     * complete and then calculated in their original order.
+     *
+     * @param tag The tag name.
+     */
+    public void addStatisticsTag(String tag) {
+        if (tag.isEmpty()) {
+            throw new IllegalArgumentException("Statistics tag name must not be empty!");
+        }
+        this.statisticsTags.add(tag);
+    }
+}
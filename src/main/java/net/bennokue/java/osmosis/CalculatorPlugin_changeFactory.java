@@ -0,0 +1,23 @@
+package net.bennokue.java.osmosis;
+
+import org.openstreetmap.osmosis.core.pipeline.common.TaskConfiguration;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskManager;
+import org.openstreetmap.osmosis.core.pipeline.v0_6.ChangeSinkChangeSourceManager;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSinkChangeSource;
+
+/**
+ * Factory class for the change stream variant of the Calculator plugin, see
+ * {@link CalculatorPlugin_changeTask}. Takes the same CLI arguments as
+ * {@link CalculatorPlugin_factory}.
+ *
+ * @author bennokue
+ */
+public class CalculatorPlugin_changeFactory extends CalculatorPlugin_factory {
+
+    @Override
+    protected TaskManager createTaskManagerImpl(TaskConfiguration taskConfig) {
+        ChangeSinkChangeSource task = new CalculatorPlugin_changeTask(createTask(taskConfig));
+
+        return new ChangeSinkChangeSourceManager(taskConfig.getId(), task, taskConfig.getPipeArgs());
+    }
+}
@@ -0,0 +1,144 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSinkChangeSource;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+/**
+ * Applies the Node calculations and the tag removal of a
+ * {@link CalculatorPlugin_task} to a change stream (e.g. an OsmChange file),
+ * so derived tags can be kept up to date from diffs: Created and modified
+ * Nodes are calculated, deleted Nodes as well as all Ways and Relations are
+ * passed through as they are. The changes keep their order.
+ * <p>
+ * The calculations that need the complete input (Way and Relation
+ * calculations, neighborhood and statistics variables) are not supported.</p>
+ *
+ * @author bennokue
+ */
+public class CalculatorPlugin_changeTask implements ChangeSinkChangeSource {
+
+    /**
+     * Does the calculations.
+     */
+    private final CalculatorPlugin_task task;
+    /**
+     * The changes that have not been passed on yet, in their order. The
+     * Nodes among them are being calculated by the {@link #task}, the others
+     * wait for the Nodes before them.
+     */
+    private final ArrayDeque<ChangeContainer> pending = new ArrayDeque<>();
+    /**
+     * Where the changes go.
+     */
+    private ChangeSink changeSink;
+
+    /**
+     * Create a change task.
+     *
+     * @param task The task whose Node calculations are applied. Its sink is
+     * set by this task.
+     * @throws IllegalArgumentException If the task needs the complete input.
+     */
+    public CalculatorPlugin_changeTask(CalculatorPlugin_task task) {
+        if (!task.isNodeOnly()) {
+            throw new IllegalArgumentException("A change stream can only be calculated without Way and Relation calculations, neighborhood and statistics variables!");
+        }
+        if (task.isAsync()) {
+            throw new IllegalArgumentException("A change stream can only be calculated without an output thread!");
+        }
+        this.task = task;
+        this.task.setSink(new CalculatedNodeSink());
+    }
+
+    /**
+     * @param change A change.
+     * @return Is it calculated by the {@link #task}?
+     */
+    private static boolean isCalculated(ChangeContainer change) {
+        return change.getAction() != ChangeAction.Delete && change.getEntityContainer() instanceof NodeContainer;
+    }
+
+    @Override
+    public void process(ChangeContainer change) {
+        if (isCalculated(change)) {
+            this.pending.addLast(change);
+            this.task.process((NodeContainer) change.getEntityContainer());
+        } else if (this.pending.isEmpty()) {
+            this.changeSink.process(change);
+        } else {
+            this.pending.addLast(change);
+        }
+    }
+
+    /**
+     * Pass on the changes at the head of {@link #pending} that are not
+     * calculated.
+     */
+    private void passWaiting() {
+        while (!this.pending.isEmpty() && !isCalculated(this.pending.peekFirst())) {
+            this.changeSink.process(this.pending.pollFirst());
+        }
+    }
+
+    @Override
+    public void setChangeSink(ChangeSink changeSink) {
+        this.changeSink = changeSink;
+    }
+
+    @Override
+    public void initialize(Map<String, Object> metaData) {
+        this.task.initialize(metaData);
+    }
+
+    @Override
+    public void complete() {
+        // Calculates the remaining Nodes, then completes the change sink
+        this.task.complete();
+    }
+
+    @Override
+    public void release() {
+        this.task.release();
+    }
+
+    /**
+     * Receives the calculated Nodes from the {@link #task} and passes them on
+     * with the action of their change.
+     */
+    private class CalculatedNodeSink implements Sink {
+
+        @Override
+        public void process(EntityContainer entityContainer) {
+            ChangeContainer change = pending.pollFirst();
+            if (change == null || !isCalculated(change)) {
+                throw new OsmosisRuntimeException("The calculation returned an unexpected entity " + entityContainer.getEntity().getId());
+            }
+            changeSink.process(new ChangeContainer(entityContainer, change.getAction()));
+            passWaiting();
+        }
+
+        @Override
+        public void initialize(Map<String, Object> metaData) {
+            changeSink.initialize(metaData);
+        }
+
+        @Override
+        public void complete() {
+            passWaiting();
+            changeSink.complete();
+        }
+
+        @Override
+        public void release() {
+            changeSink.release();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package net.bennokue.java.osmosis;
 
+import java.util.Locale;
 import java.util.logging.Logger;
 import org.openstreetmap.osmosis.core.pipeline.common.TaskConfiguration;
 import org.openstreetmap.osmosis.core.pipeline.common.TaskManager;
@@ -42,6 +43,16 @@ public class CalculatorPlugin_factory extends TaskManagerFactory {
      * Default value for {@link #ARG_CALCULATION_FORMULA}.
      */
     private static final String DEFAULT_CALCULATION_FORMULA = "";
+    /**
+     * CLI argument for further calculations, given as
+     * {@code outputTag=calculation} pairs separated by semicolons, e.g.
+     * {@code calculations=foot=ele/0.3048;yard=foot/3}.
+     */
+    private static final String ARG_CALCULATIONS = "calculations";
+    /**
+     * Default value for {@link #ARG_CALCULATIONS}.
+     */
+    private static final String DEFAULT_CALCULATIONS = "";
     /**
      * CLI argument for the node tags that should be removed. If there is also a
      * calculation, the tags will be removed afterwards.
@@ -51,17 +62,220 @@ public class CalculatorPlugin_factory extends TaskManagerFactory {
      * Default value for {@link #ARG_REMOVE_TAGS}.
      */
     private static final String DEFAULT_REMOVE_TAGS = "";
+    /**
+     * CLI argument for the number of threads that evaluate the Nodes. If it is
+     * bigger than 1, the Nodes are evaluated in batches on a thread pool and
+     * written in their original order.
+     */
+    private static final String ARG_WORKERS = "workers";
+    /**
+     * CLI argument for the number of Nodes that are evaluated together, column
+     * by column. 1 (default) evaluates every Node on its own.
+     */
+    private static final String ARG_BATCH_SIZE = "batchSize";
+    /**
+     * CLI argument for the number of entities buffered for the output
+     * thread, 0 (default) for no output thread.
+     */
+    private static final String ARG_ASYNC_CAPACITY = "asyncCapacity";
+    /**
+     * CLI argument that enables the lenient number parsing: Decimal commas
+     * and unit suffixes like {@code m} or {@code mph} are accepted.
+     */
+    private static final String ARG_LENIENT_NUMBERS = "lenientNumbers";
+    /**
+     * CLI argument that lets the trigonometric geo functions use fast
+     * polynomial approximations.
+     */
+    private static final String ARG_FAST_TRIG = "fastTrig";
+    /**
+     * CLI argument for the engine that evaluates the calculation:
+     * {@code exp4j} (default) or {@code compiled}.
+     */
+    private static final String ARG_ENGINE = "engine";
+    /**
+     * CLI argument for the calculation that is evaluated on every Way. Its
+     * variables are aggregates over the Way's Nodes.
+     */
+    private static final String ARG_WAY_CALCULATION = "wayCalculation";
+    /**
+     * CLI argument for the Way tag where the result of
+     * {@link #ARG_WAY_CALCULATION} will be stored.
+     */
+    private static final String ARG_WAY_OUTPUT_TAG = "wayOutputTag";
+    /**
+     * CLI argument for the calculation that is evaluated on every Relation.
+     * Its variables are aggregates over the member Nodes and Ways.
+     */
+    private static final String ARG_RELATION_CALCULATION = "relationCalculation";
+    /**
+     * CLI argument for the Relation tag where the result of
+     * {@link #ARG_RELATION_CALCULATION} will be stored.
+     */
+    private static final String ARG_RELATION_OUTPUT_TAG = "relationOutputTag";
+    /**
+     * CLI argument for the comma separated list of Node tags whose values are
+     * aggregated for Ways and Relations.
+     */
+    private static final String ARG_AGGREGATE_TAGS = "aggregateTags";
+    /**
+     * CLI argument for where the Node values for the Way and Relation
+     * calculations are kept: {@code array} (default), {@code mapped} or
+     * {@code sparse}.
+     */
+    private static final String ARG_RECORD_STORE = "recordStore";
+    /**
+     * CLI argument for the directory of the SRTM {@code .hgt} tiles of the
+     * {@code dem()} and {@code slope()} functions.
+     */
+    private static final String ARG_DEM_DIRECTORY = "demDirectory";
+    /**
+     * CLI argument for the lookup tables, given as {@code name=key@file}
+     * triples separated by semicolons. The key is {@code id} or a tag.
+     */
+    private static final String ARG_LOOKUP = "lookup";
+    /**
+     * CLI argument for the maximum number of open SRTM tiles.
+     */
+    private static final String ARG_DEM_CACHE_SIZE = "demCacheSize";
+    /**
+     * CLI argument for the radius in meters of the neighborhood variables, 0
+     * (default) for none.
+     */
+    private static final String ARG_NEIGHBORHOOD_RADIUS = "neighborhoodRadius";
+    /**
+     * CLI argument for the comma separated list of Node tags that are
+     * aggregated over the neighborhood of each Node.
+     */
+    private static final String ARG_NEIGHBORHOOD_TAGS = "neighborhoodTags";
+    /**
+     * CLI argument for the comma separated list of Node tags whose global
+     * statistics are collected in a first pass.
+     */
+    private static final String ARG_STATISTICS_TAGS = "statisticsTags";
+    /**
+     * CLI argument for the seconds between two progress summaries in the log,
+     * 0 (default) for none.
+     */
+    private static final String ARG_PROGRESS_INTERVAL = "progressInterval";
+    /**
+     * CLI argument for the predicate a Node has to fulfill to be calculated,
+     * e.g. {@code ele > 0 && has(height)}.
+     */
+    private static final String ARG_WHERE = "where";
+    /**
+     * CLI argument that passes Nodes through untouched if they lack a tag the
+     * calculations use.
+     */
+    private static final String ARG_SKIP_IF_MISSING = "skipIfMissing";
+    /**
+     * CLI argument for the number of results cached per calculation and
+     * thread, 0 (default) for no cache.
+     */
+    private static final String ARG_CACHE_SIZE = "cacheSize";
+    /**
+     * CLI argument for the format of the results: {@code default},
+     * {@code fixed:N}, {@code integer} or {@code shortest}.
+     */
+    private static final String ARG_OUTPUT_FORMAT = "outputFormat";
 
     @Override
     protected TaskManager createTaskManagerImpl(TaskConfiguration taskConfig) {
+        SinkSource task = createTask(taskConfig);
+
+        return new SinkSourceManager(taskConfig.getId(), task, taskConfig.getPipeArgs());
+    }
+
+    /**
+     * @param taskConfig The configuration of the task.
+     * @return The task configured by the CLI arguments.
+     */
+    protected CalculatorPlugin_task createTask(TaskConfiguration taskConfig) {
         // Get command line arguments
         String inputTagsString = getStringArgument(taskConfig, ARG_INPUT_TAGS, DEFAULT_INPUT_TAGS);
         String outputTag = getStringArgument(taskConfig, ARG_OUTPUT_TAGS, DEFAULT_OUTPUT_TAG);
         String calculation = getStringArgument(taskConfig, ARG_CALCULATION_FORMULA, DEFAULT_CALCULATION_FORMULA);
         String tagsToRemove = getStringArgument(taskConfig, ARG_REMOVE_TAGS, DEFAULT_REMOVE_TAGS);
 
-        SinkSource task = new CalculatorPlugin_task(inputTagsString, outputTag, calculation, tagsToRemove);
+        CalculatorOptions options = new CalculatorOptions();
+        for (String definition : getStringArgument(taskConfig, ARG_CALCULATIONS, DEFAULT_CALCULATIONS).split(";")) {
+            if (definition.trim().isEmpty()) {
+                continue;
+            }
+            int separator = definition.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Calculation " + definition + " has to be given as outputTag=calculation!");
+            }
+            options.addCalculation(definition.substring(0, separator).trim(), definition.substring(separator + 1).trim());
+        }
+        options.setWorkers(getIntegerArgument(taskConfig, ARG_WORKERS, CalculatorOptions.DEFAULT_WORKERS));
+        options.setSkipIfMissing(getBooleanArgument(taskConfig, ARG_SKIP_IF_MISSING, false));
+        String where = getStringArgument(taskConfig, ARG_WHERE, "");
+        if (!where.trim().isEmpty()) {
+            options.setWhere(where);
+        }
+        options.setOutputFormat(getStringArgument(taskConfig, ARG_OUTPUT_FORMAT, ResultFormatter.DEFAULT));
+        options.setCacheSize(getIntegerArgument(taskConfig, ARG_CACHE_SIZE, 0));
+        options.setBatchSize(getIntegerArgument(taskConfig, ARG_BATCH_SIZE, CalculatorOptions.DEFAULT_BATCH_SIZE));
+        options.setAsyncCapacity(getIntegerArgument(taskConfig, ARG_ASYNC_CAPACITY, 0));
+        options.setProgressInterval(getIntegerArgument(taskConfig, ARG_PROGRESS_INTERVAL, 0));
+        options.setLenientNumbers(getBooleanArgument(taskConfig, ARG_LENIENT_NUMBERS, false));
+        options.setFastTrig(getBooleanArgument(taskConfig, ARG_FAST_TRIG, false));
+        String engine = getStringArgument(taskConfig, ARG_ENGINE, CalculatorOptions.Engine.EXP4J.name());
+        try {
+            options.setEngine(CalculatorOptions.Engine.valueOf(engine.toUpperCase(Locale.ENGLISH)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown engine " + engine + ", use exp4j or compiled!", e);
+        }
 
-        return new SinkSourceManager(taskConfig.getId(), task, taskConfig.getPipeArgs());
+        String wayCalculation = getStringArgument(taskConfig, ARG_WAY_CALCULATION, "");
+        if (!wayCalculation.isEmpty()) {
+            options.setWayCalculation(getStringArgument(taskConfig, ARG_WAY_OUTPUT_TAG, ""), wayCalculation);
+        }
+        String relationCalculation = getStringArgument(taskConfig, ARG_RELATION_CALCULATION, "");
+        if (!relationCalculation.isEmpty()) {
+            options.setRelationCalculation(getStringArgument(taskConfig, ARG_RELATION_OUTPUT_TAG, ""), relationCalculation);
+        }
+        for (String tag : getStringArgument(taskConfig, ARG_AGGREGATE_TAGS, "").replace(" ", "").split(",")) {
+            if (!tag.isEmpty()) {
+                options.addAggregateTag(tag);
+            }
+        }
+        options.setNeighborhoodRadius(getDoubleArgument(taskConfig, ARG_NEIGHBORHOOD_RADIUS, 0));
+        for (String tag : getStringArgument(taskConfig, ARG_NEIGHBORHOOD_TAGS, "").replace(" ", "").split(",")) {
+            if (!tag.isEmpty()) {
+                options.addNeighborhoodTag(tag);
+            }
+        }
+        for (String tag : getStringArgument(taskConfig, ARG_STATISTICS_TAGS, "").replace(" ", "").split(",")) {
+            if (!tag.isEmpty()) {
+                options.addStatisticsTag(tag);
+            }
+        }
+        for (String definition : getStringArgument(taskConfig, ARG_LOOKUP, "").split(";")) {
+            if (definition.trim().isEmpty()) {
+                continue;
+            }
+            int equals = definition.indexOf('=');
+            int at = definition.indexOf('@', equals + 1);
+            if (equals < 0 || at < 0) {
+                throw new IllegalArgumentException("Lookup table " + definition + " has to be given as name=key@file!");
+            }
+            options.addLookup(new Lookup(definition.substring(0, equals).trim(), definition.substring(equals + 1, at).trim(),
+                    definition.substring(at + 1).trim()));
+        }
+        String demDirectory = getStringArgument(taskConfig, ARG_DEM_DIRECTORY, "");
+        if (!demDirectory.isEmpty()) {
+            options.setDemDirectory(demDirectory);
+        }
+        options.setDemCacheSize(getIntegerArgument(taskConfig, ARG_DEM_CACHE_SIZE, CalculatorOptions.DEFAULT_DEM_CACHE_SIZE));
+        String recordStore = getStringArgument(taskConfig, ARG_RECORD_STORE, CalculatorOptions.RecordStoreType.ARRAY.name());
+        try {
+            options.setRecordStoreType(CalculatorOptions.RecordStoreType.valueOf(recordStore.toUpperCase(Locale.ENGLISH)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown record store " + recordStore + ", use array, mapped or sparse!", e);
+        }
+
+        return new CalculatorPlugin_task(inputTagsString, outputTag, calculation, tagsToRemove, options);
     }
 }
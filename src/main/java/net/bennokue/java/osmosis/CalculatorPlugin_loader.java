@@ -14,6 +14,16 @@ public class CalculatorPlugin_loader implements PluginLoader {
      * The CLI argument that tells OSMOSIS to run the CalculatorPlugin.
      */
     public static final String taskName = "calculate-node-tag";
+    /**
+     * The CLI argument that tells OSMOSIS to run the analyzer, see
+     * {@link AnalyzerPlugin_task}.
+     */
+    public static final String analyzerTaskName = "analyze-node-tags";
+    /**
+     * The CLI argument that tells OSMOSIS to run the CalculatorPlugin on a
+     * change stream, see {@link CalculatorPlugin_changeTask}.
+     */
+    public static final String changeTaskName = "calculate-node-tag-change";
 
     @Override
     public Map<String, TaskManagerFactory> loadTaskFactories() {
@@ -21,6 +31,8 @@ public class CalculatorPlugin_loader implements PluginLoader {
         CalculatorPlugin_factory calculatorPlugin = new CalculatorPlugin_factory();
 
         factoryMap.put(taskName, calculatorPlugin);
+        factoryMap.put(analyzerTaskName, new AnalyzerPlugin_factory());
+        factoryMap.put(changeTaskName, new CalculatorPlugin_changeFactory());
 
         return factoryMap;
     }
@@ -1,21 +1,37 @@
 package net.bennokue.java.osmosis;
 
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import net.objecthunter.exp4j.Expression;
-import net.objecthunter.exp4j.ExpressionBuilder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.objecthunter.exp4j.function.Function;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
 import org.openstreetmap.osmosis.core.container.v0_6.BoundContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityProcessor;
 import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
-import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
 import org.openstreetmap.osmosis.core.domain.v0_6.Node;
 import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
 import org.openstreetmap.osmosis.core.task.v0_6.Sink;
@@ -30,36 +46,297 @@ import org.openstreetmap.osmosis.core.task.v0_6.SinkSource;
  * <p>
  * It is possible to calculate/remove only or to do both at the same time.</p>
  * <p>
- * <strong>Note</strong>: All the result values will be {@code double}s.
+ * Further calculations can be added with
+ * {@link CalculatorOptions#addCalculation(java.lang.String, java.lang.String)}.
+ * All of them are evaluated against the same parsed tag values. A calculation
+ * may use the output of another calculation as variable (if the output tag
+ * name is a valid variable name), the evaluation order is resolved once when
+ * the task is created.</p>
+ * <p>
+ * <strong>Note</strong>: All the result values will be {@code double}s.</p>
+ * <p>
+ * If more than one worker is configured (see
+ * {@link CalculatorOptions#setWorkers(int)}), the Nodes are collected in
+ * batches, evaluated on a thread pool and handed to the next stage in their
+ * original order. Ways, relations and bounds are only forwarded after all
+ * pending Nodes have been written.</p>
+ * <p>
+ * With a batch size bigger than 1 (see
+ * {@link CalculatorOptions#setBatchSize(int)}), blocks of Nodes are evaluated
+ * column by column: The tag values of the whole block are parsed first, then
+ * each calculation runs over the block in one tight loop. Like the worker
+ * batches, a block is finished before anything else is forwarded.</p>
+ * <p>
+ * Nodes can be filtered with a predicate (see
+ * {@link CalculatorOptions#setWhere(java.lang.String)}) and by the presence
+ * of the input tags (see {@link CalculatorOptions#setSkipIfMissing(boolean)}).
+ * Nodes that are filtered out are forwarded untouched, most of them after a
+ * look at their tag keys only.</p>
+ * <p>
+ * Ways and Relations can get a calculation of their own (see
+ * {@link CalculatorOptions#setWayCalculation(java.lang.String, java.lang.String)}),
+ * its variables are aggregates over the referenced Nodes like the length or
+ * the maximum of a Node tag. See {@link GeometryCalculator}.</p>
+ * <p>
+ * With a neighborhood radius (see
+ * {@link CalculatorOptions#setNeighborhoodRadius(double)}), the Node
+ * calculations can use aggregates over the nearby Nodes, e.g.
+ * {@code ele - nb_avg_ele}. Then all entities are kept in a temporary file
+ * until the input is complete, the neighborhoods are aggregated (see
+ * {@link NeighborhoodIndex}) and the entities are processed in their original
+ * order.</p>
+ * <p>
+ * With statistics tags (see
+ * {@link CalculatorOptions#addStatisticsTag(java.lang.String)}), the task
+ * works in two passes: The first pass collects global statistics of the tags
+ * (see {@link GlobalStatistics}) and keeps the entities in a temporary file,
+ * the second pass calculates them with the statistics bound as constants,
+ * e.g. {@code (ele - min_ele) / (max_ele - min_ele)}.</p>
+ * <p>
+ * Lookup tables (see {@link CalculatorOptions#addLookup(Lookup)}) join
+ * values from external files on the Node id or on a tag, e.g.
+ * {@code population * factor} with a table {@code factor} keyed by
+ * {@code country_code}.</p>
+ * <p>
+ * The task counts what it does (Nodes, NaN results, missing variables, ...),
+ * see {@link #getMetrics()}. The counters can be watched via JMX while the
+ * task is running, and a report is logged when it is complete.</p>
  *
  * @author bennokue
  */
 public class CalculatorPlugin_task implements SinkSource, EntityProcessor {
 
     private static final Logger log = Logger.getLogger(CalculatorPlugin_task.class.getName());
+    /**
+     * How many Nodes are handed to a worker thread at once if there is more
+     * than one worker.
+     */
+    private static final int PARALLEL_BATCH_SIZE = 1024;
+    /**
+     * How many batches per worker may be waiting for evaluation or for being
+     * written before the reader thread blocks.
+     */
+    private static final int PENDING_BATCHES_PER_WORKER = 2;
+    /**
+     * The names of the constants of newer exp4j versions. They are no tags,
+     * but exp4j 0.4 does not know them either.
+     */
+    private static final Set<String> CONSTANTS = new HashSet<>(Arrays.asList("pi", "\u03c0", "e", "\u03c6"));
+    /**
+     * An identifier that is not part of a number and not followed by an
+     * opening parenthesis, i.e. a candidate for a variable of a formula. The
+     * RPN of the formula tells which of them are variables.
+     */
+    private static final Pattern IDENTIFIER = Pattern.compile("(?<![\\p{L}\\p{N}_.])[\\p{L}_][\\p{L}\\p{N}_]*(?!\\s*[\\p{L}\\p{N}_(])");
     /**
      * The next stage of the OSMOSIS pipeline.
      */
     private Sink sink;
+    /**
+     * The number of entities buffered for the output thread, 0 for none.
+     */
+    private final int asyncCapacity;
     /**
      * The tags that should serve as variables for the calculation. If none are
      * needed, this HashSet is empty but not null.
      */
     private final HashSet<String> inputTags;
     /**
-     * The name of the tag where the output value will be stored at.
+     * The calculations in evaluation order: Each calculation comes after the
+     * calculations whose output it uses. Empty if there is nothing to
+     * calculate.
+     */
+    private final Calculation[] calculations;
+    /**
+     * The slot where the result of each calculation in {@link #calculations}
+     * is stored, {@code -1} if the output tag is no variable.
+     */
+    private final int[] outputSlots;
+    /**
+     * The result of each calculation in {@link #calculations} that has the
+     * same result for every Node (see
+     * {@link FormulaFactory#getConstantValue(java.lang.String)}), as tag
+     * value. {@code null} for the other calculations.
+     */
+    private final String[] constantTexts;
+    /**
+     * The result of each calculation with a {@link #constantTexts} entry.
+     */
+    private final double[] constantValues;
+    /**
+     * The slot of each input variable and calculated variable in the value
+     * arrays of an {@link EvaluationContext}.
+     */
+    private final VariableSlots slots;
+    /**
+     * Creates the {@link Formula}s of {@link #calculations}.
+     */
+    private final FormulaFactory formulaFactory;
+    /**
+     * The {@link EvaluationContext} of the feeding thread. Worker threads use
+     * {@link #workerContext}, because an {@link Exp4jFormula} is not
+     * thread-safe.
+     */
+    private final EvaluationContext context;
+    /**
+     * Accept decimal commas and unit suffixes in tag values?
+     */
+    private final boolean lenientNumbers;
+    /**
+     * The format of the results, see {@link ResultFormatter}.
+     */
+    private final String outputFormat;
+    /**
+     * The runtime metrics.
+     */
+    private final CalculatorMetrics metrics;
+    /**
+     * Nanoseconds between two progress summaries, 0 for none.
+     */
+    private final long progressIntervalNanos;
+    /**
+     * When the next progress summary is due, see {@link System#nanoTime()}.
+     */
+    private long nextProgressNanos;
+    /**
+     * The number of Nodes the feeding thread has seen.
+     */
+    private long nodesSeen = 0;
+    /**
+     * The tags that should be removed after the calculation: exact keys and
+     * prefixes like {@code source:*}. If none are supposed to be removed,
+     * this matcher is empty but not null.
+     */
+    private final TagKeyMatcher tagsToBeRemoved;
+    /**
+     * The {@link #tagsToBeRemoved} plus the output tags (ignoring their
+     * case), i.e. every tag a calculated Node loses.
+     */
+    private final TagKeyMatcher tagsToBeReplaced;
+    /**
+     * The predicate a Node has to fulfill to be calculated or {@code null}.
+     */
+    private final String where;
+    /**
+     * The tag slots of the predicate: A Node that has none of them is skipped
+     * without parsing anything. {@code null} if the predicate may be true for
+     * such Nodes.
+     */
+    private final int[] whereSlots;
+    /**
+     * Skip Nodes that lack one of the {@link #requiredSlots}?
+     */
+    private final boolean skipIfMissing;
+    /**
+     * The tag slots the calculations use.
+     */
+    private final int[] requiredSlots;
+    /**
+     * The number of results cached per calculation and thread, 0 for none.
+     */
+    private final int cacheSize;
+    /**
+     * Evaluates the Way and Relation calculations, {@code null} if there are
+     * none.
+     */
+    private final GeometryCalculator geometryCalculator;
+    /**
+     * Aggregates the nearby Nodes of every Node, {@code null} if there are no
+     * neighborhood variables.
+     */
+    private final NeighborhoodIndex neighborhood;
+    /**
+     * The lookup tables.
+     */
+    private final LookupTable[] lookupTables;
+    /**
+     * The slots of the lookup variables, in the order of
+     * {@link #lookupTables}.
+     */
+    private final int[] lookupSlots;
+    /**
+     * Collects the statistics of the first pass, {@code null} if there are
+     * no statistics tags.
+     */
+    private final GlobalStatistics statistics;
+    /**
+     * The slots of the statistics variables, in the order of
+     * {@link GlobalStatistics#getValues()}.
+     */
+    private final int[] statisticsSlots;
+    /**
+     * The statistics, {@code null} until the first pass is complete.
+     */
+    private double[] statisticsValues = null;
+    /**
+     * Keeps the entities until the {@link #neighborhood} and the
+     * {@link #statistics} are complete, {@code null} if there are neither.
+     */
+    private final EntitySpool spool;
+    /**
+     * Are the entities of the {@link #spool} being processed?
+     */
+    private boolean replaying = false;
+    /**
+     * The pool that evaluates the Node batches, {@code null} if only one
+     * worker is used.
+     */
+    private final ExecutorService workerPool;
+    /**
+     * The maximum number of batches that may be pending at the same time.
+     */
+    private final int maxPendingBatches;
+    /**
+     * Evaluate the Nodes of a batch column by column?
+     */
+    private final boolean columnar;
+    /**
+     * How many Nodes are collected before they are evaluated.
+     */
+    private final int batchSize;
+    /**
+     * The Nodes that have been collected for the next batch, {@code null} if
+     * every Node is evaluated right away.
+     */
+    private List<NodeContainer> currentBatch = null;
+    /**
+     * The batches that have been submitted to {@link #workerPool}, in the
+     * order of their submission.
      */
-    private final String outputTag;
+    private final ArrayDeque<Future<List<NodeContainer>>> pendingBatches = new ArrayDeque<>();
     /**
-     * The calculation given by the user, already built as exp4j
-     * {@link Expression}.
+     * Every worker thread gets its own {@link Formula} (if it is not
+     * thread-safe) and value arrays.
      */
-    private final Expression calculation;
+    private final ThreadLocal<EvaluationContext> workerContext = new ThreadLocal<EvaluationContext>() {
+        @Override
+        protected EvaluationContext initialValue() {
+            MetricsStripe stripe = metrics.createStripe();
+            EvaluationContext evaluationContext = new EvaluationContext(createFormulas(stripe), createPredicate(), slots.size(),
+                    lenientNumbers, outputFormat, stripe);
+            bindStatistics(evaluationContext);
+            return evaluationContext;
+        }
+    };
+
     /**
-     * The tags that should be removed after the calculation. If none are
-     * supposed to be removed, this HashSet is empty but not null.
+     * Create new CalculatorPlugin with default {@link CalculatorOptions} and
+     * perform some sanity checks, that might result in an
+     * IllegalArgumentException.
+     *
+     * @param inputTagsString The names of the tags that will be used as
+     * variables at the calculation. Separate them with commas.
+     * @param outputTagString The tag name where the result value will be
+     * stored.
+     * @param calculationString The calculation that should be performed. You
+     * can use every possible exp4j expression.
+     * @param tagsToBeRemovedString The names of the tags that will be removed
+     * after the calculation. Separate them with commas. A name ending with
+     * {@code *} removes every tag with that prefix, e.g. {@code source:*}.
      */
-    private final HashSet<String> tagsToBeRemoved;
+    public CalculatorPlugin_task(String inputTagsString, String outputTagString, String calculationString, String tagsToBeRemovedString) {
+        this(inputTagsString, outputTagString, calculationString, tagsToBeRemovedString, new CalculatorOptions());
+    }
 
     /**
      * Create new CalculatorPlugin and perform some sanity checks, that might
@@ -72,50 +349,375 @@ public class CalculatorPlugin_task implements SinkSource, EntityProcessor {
      * @param calculationString The calculation that should be performed. You
      * can use every possible exp4j expression.
      * @param tagsToBeRemovedString The names of the tags that will be removed
-     * after the calculation. Separate them with commas.
+     * after the calculation. Separate them with commas. A name ending with
+     * {@code *} removes every tag with that prefix, e.g. {@code source:*}.
+     * @param options Further tuning parameters.
      */
-    public CalculatorPlugin_task(String inputTagsString, String outputTagString, String calculationString, String tagsToBeRemovedString) {
+    public CalculatorPlugin_task(String inputTagsString, String outputTagString, String calculationString, String tagsToBeRemovedString, CalculatorOptions options) {
         this.inputTags = new HashSet<>(Arrays.asList(inputTagsString.replace(" ", "").split(",")));
-        this.tagsToBeRemoved = new HashSet<>(Arrays.asList(tagsToBeRemovedString.replace(" ", "").split(",")));
+        List<String> removalPatterns = Arrays.asList(tagsToBeRemovedString.replace(" ", "").split(","));
+        this.tagsToBeRemoved = new TagKeyMatcher(removalPatterns, Collections.<String>emptyList());
+        this.lenientNumbers = options.isLenientNumbers();
+        this.outputFormat = options.getOutputFormat();
 
         // What do we have to do?
-        // Nothing to do
-        if (calculationString.isEmpty() && tagsToBeRemovedString.isEmpty()) {
-            throw new IllegalArgumentException("Neither calculation nor deletion specified!");
-        } // Just calculate
-        else if (!calculationString.isEmpty() && tagsToBeRemovedString.isEmpty()) {
+        List<Calculation> definitions = new ArrayList<>();
+        if (!calculationString.isEmpty()) {
             if (outputTagString.equals("")) {
                 throw new IllegalArgumentException("Output attribute name must not be empty!");
             }
-            this.calculation = this.createExpression(calculationString);
-            this.outputTag = outputTagString;
-        } // Just delete
-        else if (calculationString.isEmpty() && !tagsToBeRemovedString.isEmpty()) {
-            this.calculation = null;
-            this.outputTag = null; // Prevents removing the tag given as outputTag.
-        } // Calculate AND delete
-        else {
-            if (outputTagString.equals("")) {
-                throw new IllegalArgumentException("Output attribute name must not be empty!");
+            definitions.add(new Calculation(outputTagString, calculationString));
+        }
+        definitions.addAll(options.getCalculations());
+        boolean geometry = options.getWayCalculation() != null || options.getRelationCalculation() != null;
+        // Nothing to do
+        if (definitions.isEmpty() && this.tagsToBeRemoved.isEmpty() && !geometry) {
+            throw new IllegalArgumentException("Neither calculation nor deletion specified!");
+        }
+        /*
+         * If we just delete, there are no output tags, which prevents removing
+         * the tag given as outputTag.
+         */
+        this.where = options.getWhere();
+        this.skipIfMissing = options.isSkipIfMissing();
+        if (this.where != null) {
+            if (definitions.isEmpty()) {
+                throw new IllegalArgumentException("The where predicate needs a Node calculation!");
+            }
+        }
+
+        // The outputs that can be used as variables by other calculations
+        List<String> computedVariables = new ArrayList<>();
+        boolean neighborhoodVariables = options.getNeighborhoodRadius() > 0;
+        if (neighborhoodVariables) {
+            if (definitions.isEmpty()) {
+                throw new IllegalArgumentException("The neighborhood variables need a Node calculation!");
+            }
+            computedVariables.addAll(NeighborhoodIndex.getVariables(options.getNeighborhoodTags()));
+        }
+        List<String> statisticsVariables = GlobalStatistics.getVariables(options.getStatisticsTags());
+        if (!statisticsVariables.isEmpty()) {
+            if (definitions.isEmpty()) {
+                throw new IllegalArgumentException("The statistics variables need a Node calculation!");
+            }
+            computedVariables.addAll(statisticsVariables);
+        }
+        for (Lookup lookup : options.getLookups()) {
+            if (definitions.isEmpty()) {
+                throw new IllegalArgumentException("The lookup tables need a Node calculation!");
+            }
+            boolean used = computedVariables.contains(lookup.getName());
+            for (Calculation definition : definitions) {
+                used |= definition.getOutputTag().equals(lookup.getName());
+            }
+            if (!isValidVariableName(lookup.getName()) || used) {
+                throw new IllegalArgumentException("The lookup table name " + lookup.getName() + " is no valid variable name or used twice!");
+            }
+            computedVariables.add(lookup.getName());
+        }
+        for (Calculation definition : definitions) {
+            if (isValidVariableName(definition.getOutputTag())) {
+                computedVariables.add(definition.getOutputTag());
+            }
+        }
+        List<Function> customFunctions = (options.getDemDirectory() == null) ? Collections.<Function>emptyList()
+                : new DemTiles(new File(options.getDemDirectory()), options.getDemCacheSize()).getFunctions();
+        if (this.where != null) {
+            addWhereTags(definitions, computedVariables, customFunctions, options);
+        }
+        this.slots = new VariableSlots(this.inputTags, computedVariables);
+        this.formulaFactory = new FormulaFactory(this.slots, options.getEngine(), options.isFastTrig());
+        for (Function function : customFunctions) {
+            this.formulaFactory.addFunction(function);
+        }
+        this.calculations = orderCalculations(definitions);
+        List<String> outputTags = new ArrayList<>();
+        for (Calculation calculation : this.calculations) {
+            outputTags.add(calculation.getOutputTag());
+        }
+        this.tagsToBeReplaced = new TagKeyMatcher(removalPatterns, outputTags);
+        this.outputSlots = new int[this.calculations.length];
+        this.constantTexts = new String[this.calculations.length];
+        this.constantValues = new double[this.calculations.length];
+        for (int i = 0; i < this.calculations.length; i++) {
+            String outputTag = this.calculations[i].getOutputTag();
+            this.outputSlots[i] = computedVariables.contains(outputTag) ? this.slots.getSlot(outputTag) : -1;
+            // Stamp constant results instead of evaluating them for every Node
+            Double constant = this.formulaFactory.getConstantValue(this.calculations[i].getFormula());
+            if (constant != null) {
+                this.constantValues[i] = constant;
+                this.constantTexts[i] = new ResultFormatter(this.outputFormat).format(constant);
+                log.log(Level.INFO, "The calculation {0} is constant, every Node gets {1}", new Object[]{this.calculations[i], this.constantTexts[i]});
+            }
+        }
+
+        this.metrics = new CalculatorMetrics(this.slots);
+        this.progressIntervalNanos = TimeUnit.SECONDS.toNanos(options.getProgressInterval());
+        this.asyncCapacity = options.getAsyncCapacity();
+        this.cacheSize = options.getCacheSize();
+        MetricsStripe stripe = this.metrics.createStripe();
+        this.context = new EvaluationContext(createFormulas(stripe), createPredicate(), this.slots.size(), this.lenientNumbers, this.outputFormat, stripe);
+        this.whereSlots = findWhereSlots();
+        Set<Integer> required = new HashSet<>();
+        for (Calculation calculation : this.calculations) {
+            for (String variable : this.formulaFactory.getVariables(calculation.getFormula())) {
+                int slot = this.slots.getSlot(variable);
+                if (isTagSlot(slot)) {
+                    required.add(slot);
+                }
+            }
+        }
+        this.requiredSlots = toArray(required);
+        this.geometryCalculator = geometry
+                ? new GeometryCalculator(options.getWayCalculation(), options.getRelationCalculation(),
+                        options.getAggregateTags(), options.getRecordStoreType(), options.getEngine(), options.isFastTrig(), this.lenientNumbers, this.outputFormat,
+                        this.context.metrics)
+                : null;
+        if (neighborhoodVariables) {
+            this.neighborhood = new NeighborhoodIndex(options.getNeighborhoodRadius(), options.getNeighborhoodTags(),
+                    options.getRecordStoreType(), this.lenientNumbers, this.slots);
+        } else {
+            this.neighborhood = null;
+        }
+        this.lookupTables = new LookupTable[options.getLookups().size()];
+        this.lookupSlots = new int[this.lookupTables.length];
+        for (int i = 0; i < this.lookupTables.length; i++) {
+            Lookup lookup = options.getLookups().get(i);
+            this.lookupTables[i] = LookupTable.load(lookup);
+            this.lookupSlots[i] = this.slots.getSlot(lookup.getName());
+        }
+        this.statisticsSlots = new int[statisticsVariables.size()];
+        for (int i = 0; i < this.statisticsSlots.length; i++) {
+            this.statisticsSlots[i] = this.slots.getSlot(statisticsVariables.get(i));
+        }
+        this.statistics = statisticsVariables.isEmpty() ? null : new GlobalStatistics(options.getStatisticsTags(), this.lenientNumbers);
+        this.spool = (this.neighborhood != null || this.statistics != null) ? new EntitySpool("spool") : null;
+
+        this.columnar = options.getBatchSize() > 1;
+        if (options.getWorkers() > 1) {
+            this.workerPool = Executors.newFixedThreadPool(options.getWorkers(), new WorkerThreadFactory());
+            this.maxPendingBatches = options.getWorkers() * PENDING_BATCHES_PER_WORKER;
+            this.batchSize = this.columnar ? options.getBatchSize() : PARALLEL_BATCH_SIZE;
+            this.currentBatch = new ArrayList<>(this.batchSize);
+        } else {
+            this.workerPool = null;
+            this.maxPendingBatches = 0;
+            this.batchSize = options.getBatchSize();
+            if (this.columnar) {
+                this.currentBatch = new ArrayList<>(this.batchSize);
+            }
+        }
+    }
+
+    /**
+     * Sort the calculations so that every calculation comes after the
+     * calculations whose output it uses. Apart from that, the given order is
+     * kept.
+     *
+     * @param definitions The calculations in the order given by the user.
+     * @return The calculations in evaluation order.
+     * @throws IllegalArgumentException If an output tag is given twice, a
+     * calculation is invalid or the calculations depend on each other in a
+     * cycle.
+     */
+    private Calculation[] orderCalculations(List<Calculation> definitions) {
+        int count = definitions.size();
+        // dependencies[i] contains the indices of the calculations i uses
+        List<Set<Integer>> dependencies = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Calculation definition = definitions.get(i);
+            Set<Integer> uses = new HashSet<>();
+            for (String variable : this.formulaFactory.getVariables(definition.getFormula())) {
+                for (int j = 0; j < count; j++) {
+                    if (definitions.get(j).getOutputTag().equals(variable) && j != i) {
+                        uses.add(j);
+                    }
+                }
+                if (variable.equals(definition.getOutputTag()) && !this.inputTags.contains(variable)) {
+                    throw new IllegalArgumentException("The calculation " + definition + " uses its own output!");
+                }
+            }
+            for (int j = 0; j < i; j++) {
+                if (definitions.get(j).getOutputTag().equalsIgnoreCase(definition.getOutputTag())) {
+                    throw new IllegalArgumentException("Output tag " + definition.getOutputTag() + " is calculated twice!");
+                }
+            }
+            dependencies.add(uses);
+        }
+
+        Calculation[] ordered = new Calculation[count];
+        Set<Integer> done = new HashSet<>();
+        for (int position = 0; position < count; position++) {
+            int next = -1;
+            for (int i = 0; i < count && next < 0; i++) {
+                if (!done.contains(i) && done.containsAll(dependencies.get(i))) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                List<Calculation> cycle = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    if (!done.contains(i)) {
+                        cycle.add(definitions.get(i));
+                    }
+                }
+                throw new IllegalArgumentException("These calculations depend on each other in a cycle: " + cycle);
+            }
+            done.add(next);
+            ordered[position] = definitions.get(next);
+        }
+        if (count > 1) {
+            log.log(Level.FINE, "Evaluation order of the calculations: {0}", Arrays.toString(ordered));
+        }
+        return ordered;
+    }
+
+    /**
+     * Create the {@link Formula}s of {@link #calculations}, using the
+     * configured engine. If there is a {@link #cacheSize}, each one gets its
+     * own {@link MemoizingFormula}.
+     *
+     * @param stripe The metrics of the thread that uses the Formulas.
+     * @return The Formulas, in evaluation order. If the engine is
+     * {@link CalculatorOptions.Engine#EXP4J} or there is a cache, they must
+     * not be shared with other threads.
+     */
+    private Formula[] createFormulas(MetricsStripe stripe) {
+        Formula[] formulas = new Formula[this.calculations.length];
+        for (int i = 0; i < formulas.length; i++) {
+            String formula = this.calculations[i].getFormula();
+            formulas[i] = this.formulaFactory.create(formula);
+            if (this.cacheSize > 0) {
+                List<Integer> keySlots = new ArrayList<>();
+                for (String variable : this.formulaFactory.getVariables(formula)) {
+                    keySlots.add(this.slots.getSlot(variable));
+                }
+                formulas[i] = new MemoizingFormula(formulas[i], toArray(keySlots), this.slots.size(), this.cacheSize, stripe);
+            }
+        }
+        return formulas;
+    }
+
+    /**
+     * Add the tags the {@link #where} predicate reads to the
+     * {@link #inputTags}, so they are read like input tags. The variables are
+     * found in the RPN of the predicate, like the variables of every formula;
+     * the computed variables (neighborhood, statistics, lookups) are no tags.
+     *
+     * @param definitions The Node calculations.
+     * @param computedVariables The variables that are not read from the
+     * Nodes.
+     * @param customFunctions The functions besides the built-in ones.
+     * @param options The options.
+     * @throws IllegalArgumentException If the predicate is invalid, uses the
+     * result of a calculation (which is not known before the Node passed the
+     * predicate) or one of exp4j's constants, which exp4j 0.4 does not have.
+     */
+    private void addWhereTags(List<Calculation> definitions, List<String> computedVariables, List<Function> customFunctions,
+            CalculatorOptions options) {
+        Set<String> candidates = new LinkedHashSet<>(this.inputTags);
+        Matcher identifiers = IDENTIFIER.matcher(this.where);
+        while (identifiers.find()) {
+            candidates.add(identifiers.group());
+        }
+        candidates.removeAll(computedVariables);
+        FormulaFactory factory = new FormulaFactory(new VariableSlots(candidates, computedVariables), options.getEngine(), options.isFastTrig());
+        for (Function function : customFunctions) {
+            factory.addFunction(function);
+        }
+        for (String variable : factory.getVariables(this.where)) {
+            if (CONSTANTS.contains(variable)) {
+                throw new IllegalArgumentException("The where predicate uses the constant " + variable + ", which is not supported, write the number instead!");
+            }
+            if (this.inputTags.contains(variable)) {
+                continue;
+            }
+            for (Calculation definition : definitions) {
+                if (definition.getOutputTag().equals(variable)) {
+                    throw new IllegalArgumentException("The where predicate uses " + variable
+                            + ", the result of a calculation, which is only known after the predicate!");
+                }
+            }
+            if (!computedVariables.contains(variable)) {
+                this.inputTags.add(variable);
             }
-            this.calculation = this.createExpression(calculationString);
-            this.outputTag = outputTagString;
         }
     }
 
     /**
-     * Create an exp4j Expression from the user-given String.
+     * Create the {@link Formula} of the {@link #where} predicate, using the
+     * configured engine.
      *
-     * @param calculationString The calculation to be performed as
-     * human-readable String.
-     * @return The Expression, ready to fill with variables and evaluate.
+     * @return The predicate or {@code null}.
      */
-    private Expression createExpression(String calculationString) {
-        Expression expression
-                = new ExpressionBuilder(calculationString)
-                .variables(this.inputTags)
-                .build();
-        return expression;
+    private Formula createPredicate() {
+        return (this.where == null) ? null : this.formulaFactory.create(this.where);
+    }
+
+    /**
+     * Find out if Nodes without any of the predicate's tags can be skipped
+     * without parsing: This is the case if the predicate does not use
+     * {@code lat} or {@code lon} and is false if all its variables are
+     * missing.
+     *
+     * @return The value for {@link #whereSlots}.
+     */
+    private int[] findWhereSlots() {
+        if (this.where == null) {
+            return null;
+        }
+        Set<Integer> tagSlots = new HashSet<>();
+        for (String variable : this.formulaFactory.getVariables(this.where)) {
+            int slot = this.slots.getSlot(variable);
+            if (!isTagSlot(slot)) {
+                return null;
+            }
+            tagSlots.add(slot);
+        }
+        double[] missing = new double[this.slots.size()];
+        Arrays.fill(missing, Double.NaN);
+        if (Predicates.isTrue(this.context.predicate.evaluate(missing))) {
+            return null;
+        }
+        return toArray(tagSlots);
+    }
+
+    /**
+     * @param slot A variable slot.
+     * @return Is its value read from a Node tag?
+     */
+    private boolean isTagSlot(int slot) {
+        return this.slots.isInput(slot) && slot != this.slots.getLatSlot() && slot != this.slots.getLonSlot();
+    }
+
+    /**
+     * @param values Some ints.
+     * @return The ints, sorted.
+     */
+    private static int[] toArray(Collection<Integer> values) {
+        int[] array = new int[values.size()];
+        int i = 0;
+        for (int value : values) {
+            array[i++] = value;
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * @param name A tag name.
+     * @return Can the name be used as variable in a calculation?
+     */
+    private static boolean isValidVariableName(String name) {
+        if (name.isEmpty() || !(Character.isLetter(name.charAt(0)) || name.charAt(0) == '_')) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!(Character.isLetterOrDigit(name.charAt(i)) || name.charAt(i) == '_')) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -123,145 +725,686 @@ public class CalculatorPlugin_task implements SinkSource, EntityProcessor {
         entityContainer.process(this);
     }
 
+    /**
+     * Bind the statistics of the first pass as constants. Tags without
+     * numeric values leave their variables unbound, so they are missing like
+     * an absent tag.
+     *
+     * @param evaluationContext The context of a thread.
+     */
+    private void bindStatistics(EvaluationContext evaluationContext) {
+        if (this.statisticsValues == null) {
+            return;
+        }
+        for (int i = 0; i < this.statisticsSlots.length; i++) {
+            if (!Double.isNaN(this.statisticsValues[i])) {
+                evaluationContext.bind(this.statisticsSlots[i], this.statisticsValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Keep an entity in the {@link #spool} until the first pass is complete.
+     *
+     * @param container The entity.
+     * @return {@code false} if the entity has to be processed now.
+     */
+    private boolean spool(EntityContainer container) {
+        if (this.spool == null || this.replaying) {
+            return false;
+        }
+        this.spool.add(container);
+        return true;
+    }
+
     @Override
     public void process(BoundContainer boundContainer) {
+        if (spool(boundContainer)) {
+            return;
+        }
+        flushNodes();
         sink.process(boundContainer);
     }
 
     @Override
     public void process(NodeContainer container) {
-        // Backup existing node entity
-        Node node = container.getEntity();
-        // Backup lat and lon of node entity
-        double lat = node.getLatitude();
-        double lon = node.getLongitude();
+        if (spool(container)) {
+            if (this.neighborhood != null) {
+                this.neighborhood.addNode(container.getEntity());
+            }
+            if (this.statistics != null) {
+                this.statistics.addNode(container.getEntity());
+            }
+            return;
+        }
+        if (this.geometryCalculator != null) {
+            this.geometryCalculator.addNode(container.getEntity());
+        }
+        if (this.progressIntervalNanos > 0 && (++this.nodesSeen & 0xfff) == 0 && System.nanoTime() >= this.nextProgressNanos) {
+            this.nextProgressNanos = System.nanoTime() + this.progressIntervalNanos;
+            log.log(Level.INFO, this.metrics.getSummary());
+        }
+        if (this.calculations.length == 0) {
+            // Removing is cheaper than handing the Node to a worker
+            sink.process(removeTags(container, this.context.metrics));
+            return;
+        }
+        if (this.currentBatch == null) {
+            sink.process(calculateNode(container, this.context));
+            return;
+        }
+        this.currentBatch.add(container);
+        if (this.currentBatch.size() < this.batchSize) {
+            return;
+        }
+        if (this.workerPool == null) {
+            writeNodes(calculateBatch(this.currentBatch, this.context));
+            this.currentBatch.clear();
+        } else {
+            submitCurrentBatch();
+            // Write everything that is already done, block if too much is pending
+            while (!this.pendingBatches.isEmpty()
+                    && (this.pendingBatches.peekFirst().isDone() || this.pendingBatches.size() >= this.maxPendingBatches)) {
+                writeBatch(this.pendingBatches.pollFirst());
+            }
+        }
+    }
+
+    /**
+     * Hand the Nodes collected in {@link #currentBatch} to the
+     * {@link #workerPool}.
+     */
+    private void submitCurrentBatch() {
+        final List<NodeContainer> batch = this.currentBatch;
+        this.currentBatch = new ArrayList<>(this.batchSize);
+        this.pendingBatches.addLast(this.workerPool.submit(new Callable<List<NodeContainer>>() {
+            @Override
+            public List<NodeContainer> call() {
+                return calculateBatch(batch, workerContext.get());
+            }
+        }));
+    }
 
-        // Get all the tags from the node
-        Collection<Tag> nodeTags = node.getTags();
+    /**
+     * Evaluate a batch of Nodes, column by column if {@link #columnar} is
+     * set.
+     *
+     * @param batch The Nodes.
+     * @param evaluationContext The {@link EvaluationContext} to use. Must not
+     * be shared with other threads.
+     * @return The adjusted Nodes, in the same order.
+     */
+    private List<NodeContainer> calculateBatch(List<NodeContainer> batch, EvaluationContext evaluationContext) {
+        if (this.columnar) {
+            return calculateColumns(batch, evaluationContext);
+        }
+        List<NodeContainer> result = new ArrayList<>(batch.size());
+        for (NodeContainer container : batch) {
+            result.add(calculateNode(container, evaluationContext));
+        }
+        return result;
+    }
 
-        HashMap<String, Double> nodeTagValues = null;
-        if (this.calculation != null) {
-            // If we want to calculate, we copy the attributes for later
-            nodeTagValues = tagCollectionToHashMap(nodeTags);
+    /**
+     * @param nodes Nodes to hand to the next stage, in this order.
+     */
+    private void writeNodes(List<NodeContainer> nodes) {
+        for (NodeContainer node : nodes) {
+            sink.process(node);
         }
+    }
 
-        /*
-         * Remove the output attribute and all attributesToBeRemoved. We need
-         * two loops to prevent ConcurrentModificationExceptions.
-         */
-        HashSet<Tag> tagObjectsToBeRemoved = new HashSet<>();
-        for (Tag tag : nodeTags) {
-            if (tag.getKey().equalsIgnoreCase(this.outputTag)) {
-                tagObjectsToBeRemoved.add(tag);
-            } else if (this.tagsToBeRemoved.contains(tag.getKey())) {
-                tagObjectsToBeRemoved.add(tag);
+    /**
+     * Wait for a batch to be evaluated and hand its Nodes to the next stage.
+     *
+     * @param batch The pending batch.
+     */
+    private void writeBatch(Future<List<NodeContainer>> batch) {
+        List<NodeContainer> nodes;
+        try {
+            nodes = batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OsmosisRuntimeException("Interrupted while waiting for the calculation workers.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new OsmosisRuntimeException("Calculation worker failed.", e.getCause());
+        }
+        writeNodes(nodes);
+    }
+
+    /**
+     * Evaluate and write all Nodes that have not been written yet. Must be
+     * called before anything else is handed to the next stage, so the order
+     * of the entities is preserved.
+     */
+    private void flushNodes() {
+        if (this.currentBatch == null) {
+            return;
+        }
+        if (this.workerPool == null) {
+            if (!this.currentBatch.isEmpty()) {
+                writeNodes(calculateBatch(this.currentBatch, this.context));
+                this.currentBatch.clear();
             }
-            /*
-             * Here we could insert a counting break condition, but there
-             * shouldn't be so many attributes.
-             */
+            return;
+        }
+        if (!this.currentBatch.isEmpty()) {
+            submitCurrentBatch();
+        }
+        while (!this.pendingBatches.isEmpty()) {
+            writeBatch(this.pendingBatches.pollFirst());
+        }
+    }
+
+    /**
+     * Remove the {@link #tagsToBeRemoved} from a Node, if there is nothing to
+     * calculate. If the Node has none of them, the container is returned
+     * untouched. Otherwise the tags are removed in place, read-only Nodes are
+     * copied first.
+     *
+     * @param container The container of the Node to process.
+     * @param stripe The metrics of the current thread.
+     * @return The container with the adjusted Node.
+     */
+    private NodeContainer removeTags(NodeContainer container, MetricsStripe stripe) {
+        stripe.increment(MetricsStripe.NODES_PROCESSED);
+        if (!hasTagToBeRemoved(container.getEntity().getTags())) {
+            return container;
         }
-        for (Tag removeTag : tagObjectsToBeRemoved) {
-            nodeTags.remove(removeTag);
+        NodeContainer writeable = container.getWriteableInstance();
+        Iterator<Tag> tags = writeable.getEntity().getTags().iterator();
+        while (tags.hasNext()) {
+            if (this.tagsToBeRemoved.matches(tags.next().getKey())) {
+                tags.remove();
+            }
         }
+        return writeable;
+    }
 
-        // Do the calculation if needed
-        if (this.calculation != null && nodeTagValues != null) {
-            // Also add lat, lon
-            nodeTagValues.put("lat", lat);
-            nodeTagValues.put("lon", lon);
+    /**
+     * @param tags The tags of an entity.
+     * @return Is one of the {@link #tagsToBeRemoved} among them?
+     */
+    private boolean hasTagToBeRemoved(Collection<Tag> tags) {
+        for (Tag tag : tags) {
+            if (this.tagsToBeRemoved.matches(tag.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            // Calculate the output value 
-            double resultValue = calculateOutputValue(nodeTagValues, node.getId());
+    /**
+     * Perform the calculation and the tag removal on a single Node. Only used
+     * if there is something to calculate, see
+     * {@link #removeTags(org.openstreetmap.osmosis.core.container.v0_6.NodeContainer, net.bennokue.java.osmosis.MetricsStripe) removeTags(...)}.
+     *
+     * @param container The container of the Node to process.
+     * @param evaluationContext The {@link EvaluationContext} to use. Must not
+     * be shared with other threads.
+     * @return The container with the adjusted Node.
+     */
+    private NodeContainer calculateNode(NodeContainer container, EvaluationContext evaluationContext) {
+        evaluationContext.metrics.increment(MetricsStripe.NODES_PROCESSED);
 
-            // Add new output tag
-            nodeTags.add(new Tag(this.outputTag, Double.toString(resultValue)));
+        // Copy the values for later
+        if (!readSelectedVariables(container.getEntity(), evaluationContext)) {
+            return container;
         }
 
-        // Create new node entity with adjusted attributes
-        CommonEntityData ced = new CommonEntityData(
-                node.getId(),
-                node.getVersion(),
-                node.getTimestamp(),
-                node.getUser(),
-                node.getChangesetId(),
-                nodeTags);
+        // Do the calculations
+        evaluationContext.metrics.increment(MetricsStripe.NODES_CALCULATED);
+        if (evaluationContext.metrics.sampleTiming()) {
+            long start = System.nanoTime();
+            calculateOutputValues(evaluationContext);
+            evaluationContext.metrics.evaluationTime(System.nanoTime() - start);
+        } else {
+            calculateOutputValues(evaluationContext);
+        }
 
-        // Distribute the new nodecontainer to the following sink
-        sink.process(new NodeContainer(new Node(ced, lat, lon)));
+        return applyOutputs(container, evaluationContext);
     }
 
     /**
-     * Perform the calculation on a single Node-Tag-set.
+     * Perform the calculations and the tag removal on a block of Nodes: The
+     * variable values of all Nodes are parsed into
+     * {@link EvaluationContext#columns}, then each calculation is evaluated
+     * over the whole block (see
+     * {@link Formula#evaluateBatch(double[][], int, double[])}) and finally
+     * the output tags are added. Gives the same results as
+     * {@link #calculateNode(org.openstreetmap.osmosis.core.container.v0_6.NodeContainer, net.bennokue.java.osmosis.EvaluationContext) calculateNode(...)}
+     * for every Node. The evaluation time is measured per block and counted
+     * with {@link MetricsStripe#blockTime(long, int)}, not in the histogram of
+     * single Nodes. Nodes that are filtered out get no row.
      *
-     * @param nodeTagValues The values of all tags of the Node to perform the
-     * calculation on.
-     * @param nodeId The OSM id of the Node to perform the calculation on. Will
-     * be used for logging only.
-     * @return The calculation result.
-     */
-    private double calculateOutputValue(HashMap<String, Double> nodeTagValues, long nodeId) {
-        // Iterate over all input variables and set them at the expression
-        for (String inputTag : this.inputTags) {
-            if (inputTag.isEmpty()) {
+     * @param block The Nodes.
+     * @param evaluationContext The {@link EvaluationContext} to use. Must not
+     * be shared with other threads.
+     * @return The adjusted Nodes, in the same order.
+     */
+    private List<NodeContainer> calculateColumns(List<NodeContainer> block, EvaluationContext evaluationContext) {
+        int count = block.size();
+        evaluationContext.ensureRows(count, this.calculations.length);
+        double[][] columns = evaluationContext.columns;
+        double[][] results = evaluationContext.results;
+        boolean[] selected = new boolean[count];
+        int rows = 0;
+        for (int position = 0; position < count; position++) {
+            Node node = block.get(position).getEntity();
+            evaluationContext.metrics.increment(MetricsStripe.NODES_PROCESSED);
+            if (!readSelectedVariables(node, evaluationContext)) {
                 continue;
-            } else if (nodeTagValues.containsKey(inputTag)) {
-                this.calculation.setVariable(inputTag, nodeTagValues.get(inputTag));
-            } else {
-                log.log(Level.INFO, "Warning! Node {0} has no attribute called {1}", new Object[]{nodeId, inputTag});
-                this.calculation.setVariable(inputTag, Double.NaN);
             }
+            selected[position] = true;
+            int row = rows++;
+            for (int slot = 0; slot < columns.length; slot++) {
+                if (evaluationContext.present[slot]) {
+                    columns[slot][row] = evaluationContext.values[slot];
+                } else {
+                    if (this.slots.isInput(slot)) {
+                        evaluationContext.metrics.missing(slot);
+                    }
+                    columns[slot][row] = Double.NaN;
+                }
+            }
+        }
+
+        if (rows > 0) {
+            long start = System.nanoTime();
+            for (int i = 0; i < this.calculations.length; i++) {
+                if (this.constantTexts[i] != null) {
+                    Arrays.fill(results[i], 0, rows, this.constantValues[i]);
+                } else {
+                    evaluationContext.formulas[i].evaluateBatch(columns, rows, results[i]);
+                }
+                // Later calculations may use the results
+                if (this.outputSlots[i] >= 0) {
+                    System.arraycopy(results[i], 0, columns[this.outputSlots[i]], 0, rows);
+                }
+            }
+            evaluationContext.metrics.blockTime(System.nanoTime() - start, rows);
+        }
+
+        List<NodeContainer> adjusted = new ArrayList<>(count);
+        int row = 0;
+        for (int position = 0; position < count; position++) {
+            if (!selected[position]) {
+                adjusted.add(block.get(position));
+                continue;
+            }
+            evaluationContext.metrics.increment(MetricsStripe.NODES_CALCULATED);
+            for (int i = 0; i < this.calculations.length; i++) {
+                double resultValue = results[i][row];
+                countResult(resultValue, evaluationContext.metrics);
+                evaluationContext.outputTexts[i] = (this.constantTexts[i] != null)
+                        ? this.constantTexts[i] : evaluationContext.formatter.format(resultValue);
+            }
+            adjusted.add(applyOutputs(block.get(position), evaluationContext));
+            row++;
         }
-        return this.calculation.evaluate();
+        return adjusted;
     }
 
     /**
-     * Convert a Collection of Tag objects to a HashMap, where
-     * {@code key = Tag.getKey()} and {@code value = Tag.getValue()}.
+     * Remove the output tags and the {@link #tagsToBeRemoved} from the tags
+     * of a Node.
      *
-     * @param collection The Collection&lt;Tag&gt; to be converted.
-     * @return The generated HashMap&lt;String, Double&gt;.
+     * @param nodeTags The tags of the Node.
      */
-    private static HashMap<String, Double> tagCollectionToHashMap(Collection<Tag> collection) {
-        HashMap<String, Double> hashMap = new HashMap<>();
-        for (Tag tag : collection) {
-            try {
-                hashMap.put(tag.getKey(), Double.parseDouble(tag.getValue()));
-            } catch (NumberFormatException e) {
-                log.log(Level.FINEST, "NumberFormatException while parsing " + tag.getKey() + " value", e);
-                // Ignore this attribute
+    private void removeOutputTags(Collection<Tag> nodeTags) {
+        // One pass, no matter how many patterns there are
+        Iterator<Tag> tags = nodeTags.iterator();
+        while (tags.hasNext()) {
+            if (this.tagsToBeReplaced.matches(tags.next().getKey())) {
+                tags.remove();
+            }
+        }
+    }
+
+    /**
+     * Give a Node the {@link EvaluationContext#outputTexts} as output tags
+     * and remove the {@link #tagsToBeRemoved}. If the Node already has
+     * exactly these output tags and none to be removed (e.g. because the
+     * input has been calculated before), the container is forwarded as it
+     * is. Otherwise the tags are changed in place, read-only Nodes are copied
+     * first.
+     *
+     * @param container The container of the calculated Node.
+     * @param evaluationContext The context that holds the results.
+     * @return The container with the adjusted Node.
+     */
+    private NodeContainer applyOutputs(NodeContainer container, EvaluationContext evaluationContext) {
+        if (hasOutputs(container.getEntity().getTags(), evaluationContext)) {
+            evaluationContext.metrics.increment(MetricsStripe.NODES_UNCHANGED);
+            return container;
+        }
+        NodeContainer writeable = container.getWriteableInstance();
+        Collection<Tag> nodeTags = writeable.getEntity().getTags();
+        removeOutputTags(nodeTags);
+        for (int i = 0; i < this.calculations.length; i++) {
+            nodeTags.add(new Tag(this.calculations[i].getOutputTag(), evaluationContext.outputTexts[i]));
+        }
+        return writeable;
+    }
+
+    /**
+     * @param nodeTags The tags of a Node.
+     * @param evaluationContext The context that holds the results.
+     * @return Does every output tag occur once with the result as value, and
+     * is there no tag to be removed?
+     */
+    private boolean hasOutputs(Collection<Tag> nodeTags, EvaluationContext evaluationContext) {
+        boolean[] found = evaluationContext.outputsFound;
+        Arrays.fill(found, false);
+        int count = 0;
+        for (Tag tag : nodeTags) {
+            if (!this.tagsToBeReplaced.matches(tag.getKey())) {
+                continue;
+            }
+            int output = findOutput(tag.getKey());
+            if (output < 0 || found[output] || !tag.getValue().equals(evaluationContext.outputTexts[output])) {
+                return false;
+            }
+            found[output] = true;
+            count++;
+        }
+        return count == this.calculations.length;
+    }
+
+    /**
+     * @param key A tag key.
+     * @return The index of the calculation with this output tag, -1 if there
+     * is none.
+     */
+    private int findOutput(String key) {
+        for (int i = 0; i < this.calculations.length; i++) {
+            if (this.calculations[i].getOutputTag().equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Count NaN and infinite results.
+     *
+     * @param resultValue The result of a calculation.
+     * @param stripe The metrics of the current thread.
+     */
+    private static void countResult(double resultValue, MetricsStripe stripe) {
+        if (Double.isNaN(resultValue)) {
+            stripe.increment(MetricsStripe.NAN_RESULTS);
+        } else if (Double.isInfinite(resultValue)) {
+            stripe.increment(MetricsStripe.INFINITE_RESULTS);
+        }
+    }
+
+    /**
+     * Perform all calculations on a single Node-Tag-set. The formatted
+     * results are stored in {@link EvaluationContext#outputTexts}.
+     *
+     * @param evaluationContext The {@link EvaluationContext} that holds the
+     * variable values of the Node, see
+     * {@link #readVariables(org.openstreetmap.osmosis.core.domain.v0_6.Node, net.bennokue.java.osmosis.EvaluationContext) readVariables(...)}.
+     */
+    private void calculateOutputValues(EvaluationContext evaluationContext) {
+        // Mark and count all missing input variables
+        for (int slot = 0; slot < this.slots.size(); slot++) {
+            if (!evaluationContext.present[slot]) {
+                if (this.slots.isInput(slot)) {
+                    evaluationContext.metrics.missing(slot);
+                }
+                evaluationContext.values[slot] = Double.NaN;
+            }
+        }
+        for (int i = 0; i < this.calculations.length; i++) {
+            double resultValue = (this.constantTexts[i] != null)
+                    ? this.constantValues[i]
+                    : evaluationContext.formulas[i].evaluate(evaluationContext.values);
+            countResult(resultValue, evaluationContext.metrics);
+            // Later calculations may use the result
+            if (this.outputSlots[i] >= 0) {
+                evaluationContext.values[this.outputSlots[i]] = resultValue;
+            }
+            evaluationContext.outputTexts[i] = (this.constantTexts[i] != null)
+                    ? this.constantTexts[i] : evaluationContext.formatter.format(resultValue);
+        }
+    }
+
+    /**
+     * Apply the {@link #skipIfMissing} and {@link #where} filters and read the
+     * variables of a Node that passes them (see
+     * {@link #readVariables(org.openstreetmap.osmosis.core.domain.v0_6.Node, net.bennokue.java.osmosis.EvaluationContext) readVariables(...)}).
+     * The tag keys are checked first, so most Nodes are filtered out without
+     * parsing anything.
+     *
+     * @param node The Node.
+     * @param evaluationContext Where to store the values.
+     * @return {@code false} if the Node is filtered out.
+     */
+    private boolean readSelectedVariables(Node node, EvaluationContext evaluationContext) {
+        if (this.skipIfMissing || this.whereSlots != null) {
+            evaluationContext.reset();
+            for (Tag tag : node.getTags()) {
+                int slot = this.slots.getTagSlot(tag.getKey());
+                if (slot >= 0) {
+                    evaluationContext.present[slot] = true;
+                }
+            }
+            if (this.skipIfMissing && !allPresent(this.requiredSlots, evaluationContext)) {
+                return false;
+            }
+            if (this.whereSlots != null && !anyPresent(this.whereSlots, evaluationContext)) {
+                return false;
+            }
+        }
+        readVariables(node, evaluationContext);
+        // Tag values that are no numbers are missing, too
+        if (this.skipIfMissing && !allPresent(this.requiredSlots, evaluationContext)) {
+            return false;
+        }
+        if (evaluationContext.predicate != null) {
+            for (int slot = 0; slot < this.slots.size(); slot++) {
+                if (!evaluationContext.present[slot]) {
+                    evaluationContext.values[slot] = Double.NaN;
+                }
+            }
+            return Predicates.isTrue(evaluationContext.predicate.evaluate(evaluationContext.values));
+        }
+        return true;
+    }
+
+    /**
+     * @param slotsToCheck Some slots.
+     * @param evaluationContext The values of a Node.
+     * @return Do all the slots have a value?
+     */
+    private static boolean allPresent(int[] slotsToCheck, EvaluationContext evaluationContext) {
+        for (int slot : slotsToCheck) {
+            if (!evaluationContext.present[slot]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param slotsToCheck Some slots.
+     * @param evaluationContext The values of a Node.
+     * @return Does at least one of the slots have a value?
+     */
+    private static boolean anyPresent(int[] slotsToCheck, EvaluationContext evaluationContext) {
+        for (int slot : slotsToCheck) {
+            if (evaluationContext.present[slot]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse the values of the input tags of a Node into the slots of an
+     * {@link EvaluationContext}. Tags that are no input tags are skipped
+     * without being parsed, values that are no numbers are counted in
+     * {@link MetricsStripe#PARSE_FAILURES} and left empty. The neighborhood
+     * variables are taken from the {@link #neighborhood}, the lookup variables
+     * from the {@link #lookupTables}.
+     *
+     * @param node The Node.
+     * @param evaluationContext Where to store the values.
+     */
+    private void readVariables(Node node, EvaluationContext evaluationContext) {
+        evaluationContext.reset();
+        for (Tag tag : node.getTags()) {
+            int slot = this.slots.getTagSlot(tag.getKey());
+            if (slot < 0) {
+                continue;
+            }
+            double value = evaluationContext.parser.parse(tag.getValue());
+            // Values that are no numbers are counted and ignored
+            if (!Double.isNaN(value)) {
+                evaluationContext.set(slot, value);
+            } else {
+                evaluationContext.metrics.increment(MetricsStripe.PARSE_FAILURES);
+            }
+        }
+        if (this.slots.getLatSlot() >= 0) {
+            evaluationContext.set(this.slots.getLatSlot(), node.getLatitude());
+        }
+        if (this.slots.getLonSlot() >= 0) {
+            evaluationContext.set(this.slots.getLonSlot(), node.getLongitude());
+        }
+        if (this.neighborhood != null) {
+            this.neighborhood.read(node.getId(), evaluationContext);
+        }
+        for (int i = 0; i < this.lookupTables.length; i++) {
+            double value = this.lookupTables[i].get(node);
+            if (!Double.isNaN(value)) {
+                evaluationContext.set(this.lookupSlots[i], value);
             }
         }
-        return hashMap;
     }
 
     @Override
     public void process(WayContainer container) {
-        sink.process(container);
+        if (spool(container)) {
+            return;
+        }
+        flushNodes();
+        if (this.geometryCalculator != null) {
+            sink.process(this.geometryCalculator.processWay(container));
+        } else {
+            sink.process(container);
+        }
     }
 
     @Override
     public void process(RelationContainer container) {
-        sink.process(container);
+        if (spool(container)) {
+            return;
+        }
+        flushNodes();
+        if (this.geometryCalculator != null) {
+            sink.process(this.geometryCalculator.processRelation(container));
+        } else {
+            sink.process(container);
+        }
     }
 
     @Override
     public void complete() {
+        if (this.spool != null && !this.replaying) {
+            if (this.neighborhood != null) {
+                this.neighborhood.sweep();
+                log.log(Level.INFO, "Aggregated the neighborhoods of {0} nodes", this.neighborhood.getNodeCount());
+            }
+            if (this.statistics != null) {
+                this.statisticsValues = this.statistics.getValues();
+                bindStatistics(this.context);
+                log.log(Level.INFO, this.statistics.getReport());
+            }
+            log.log(Level.INFO, "Calculating {0} entities", this.spool.size());
+            this.replaying = true;
+            this.spool.replay(this);
+        }
+        flushNodes();
+        log.log(Level.INFO, this.metrics.getReport());
         sink.complete();
     }
 
     @Override
     public void release() {
+        if (this.workerPool != null) {
+            this.workerPool.shutdownNow();
+        }
+        if (this.geometryCalculator != null) {
+            this.geometryCalculator.release();
+        }
+        if (this.spool != null) {
+            this.spool.release();
+        }
+        if (this.neighborhood != null) {
+            this.neighborhood.release();
+        }
+        this.metrics.stop();
         sink.release();
     }
 
     @Override
     public void setSink(Sink sink) {
-        this.sink = sink;
+        this.sink = (this.asyncCapacity > 0) ? new AsyncSink(sink, this.asyncCapacity) : sink;
+    }
+
+    /**
+     * @return Can the task calculate single Nodes, without the complete
+     * input? It cannot if there are Way or Relation calculations,
+     * neighborhood or statistics variables.
+     */
+    boolean isNodeOnly() {
+        return this.geometryCalculator == null && this.spool == null;
+    }
+
+    /**
+     * @return Does the task hand the entities to the next stage on an output
+     * thread?
+     */
+    boolean isAsync() {
+        return this.asyncCapacity > 0;
     }
 
     @Override
     public void initialize(Map<String, Object> metaData) {
         // added in osmosis 0.41
+        this.metrics.start();
+        this.nextProgressNanos = System.nanoTime() + this.progressIntervalNanos;
+        sink.initialize(metaData);
+    }
+
+    /**
+     * @return The runtime metrics of this task.
+     */
+    public CalculatorMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Creates the daemon threads of the {@link #workerPool}.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        /**
+         * Counts the created threads, used for their names.
+         */
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "calculate-node-tag-worker-" + this.threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
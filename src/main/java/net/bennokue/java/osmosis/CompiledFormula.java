@@ -0,0 +1,217 @@
+package net.bennokue.java.osmosis;
+
+import net.objecthunter.exp4j.function.Function;
+import net.objecthunter.exp4j.operator.Operator;
+
+/**
+ * Base class of the {@link Formula}s generated by {@link FormulaCompiler}.
+ * The generated subclass implements {@link #eval(double[])} as straight-line
+ * bytecode and {@link #evalColumns(double[][], int, double[])} as a loop
+ * around the same code, so the JIT can compile and inline it like
+ * hand-written code.
+ * <p>
+ * Instances are immutable and can be shared between threads, as long as the
+ * custom {@link Function}s and {@link Operator}s are thread-safe.</p>
+ * <p>
+ * This class and its helpers have to be public, because the generated class
+ * lives in its own class loader.</p>
+ *
+ * @author bennokue
+ */
+public abstract class CompiledFormula implements Formula {
+
+    /**
+     * The custom functions the generated code calls, indexed as chosen by the
+     * compiler.
+     */
+    protected final Function[] functions;
+    /**
+     * The custom operators the generated code calls, indexed as chosen by the
+     * compiler.
+     */
+    protected final Operator[] operators;
+
+    /**
+     * Called by the generated constructor.
+     *
+     * @param functions The custom functions used by the formula.
+     * @param operators The custom operators used by the formula.
+     */
+    protected CompiledFormula(Function[] functions, Operator[] operators) {
+        this.functions = functions;
+        this.operators = operators;
+    }
+
+    /**
+     * Evaluate the formula.
+     *
+     * @param vars The variable values, indexed by slot.
+     * @return The result.
+     */
+    public abstract double eval(double[] vars);
+
+    /**
+     * Evaluate the formula for every row of the columns.
+     *
+     * @param columns The variable values, indexed by slot and then by row.
+     * @param count The number of rows.
+     * @param results Where to store the results.
+     */
+    public abstract void evalColumns(double[][] columns, int count, double[] results);
+
+    @Override
+    public final double evaluate(double[] values) {
+        return eval(values);
+    }
+
+    @Override
+    public final void evaluateBatch(double[][] columns, int count, double[] results) {
+        evalColumns(columns, count, results);
+    }
+
+    /**
+     * Division with exp4j's semantics.
+     *
+     * @param dividend The dividend.
+     * @param divisor The divisor.
+     * @return The quotient.
+     * @throws ArithmeticException If the divisor is 0.
+     */
+    public static double divide(double dividend, double divisor) {
+        if (divisor == 0d) {
+            throw new ArithmeticException("Division by zero!");
+        }
+        return dividend / divisor;
+    }
+
+    /**
+     * Modulo with exp4j's semantics.
+     *
+     * @param dividend The dividend.
+     * @param divisor The divisor.
+     * @return The remainder.
+     * @throws ArithmeticException If the divisor is 0.
+     */
+    public static double modulo(double dividend, double divisor) {
+        if (divisor == 0d) {
+            throw new ArithmeticException("Division by zero!");
+        }
+        return dividend % divisor;
+    }
+
+    /**
+     * The binary logarithm, calculated exactly like exp4j does.
+     *
+     * @param value The argument.
+     * @return The binary logarithm.
+     */
+    public static double log2(double value) {
+        return Math.log(value) / Math.log(2d);
+    }
+
+    /**
+     * @param condition A condition.
+     * @return 1 if it is true, 0 otherwise.
+     */
+    private static double truth(boolean condition) {
+        return condition ? 1d : 0d;
+    }
+
+    /**
+     * The {@code >} operator, see {@link Predicates}.
+     *
+     * @param left The left operand.
+     * @param right The right operand.
+     * @return 1 or 0.
+     */
+    public static double greater(double left, double right) {
+        return truth(left > right);
+    }
+
+    /**
+     * The {@code <} operator, see {@link Predicates}.
+     *
+     * @param left The left operand.
+     * @param right The right operand.
+     * @return 1 or 0.
+     */
+    public static double less(double left, double right) {
+        return truth(left < right);
+    }
+
+    /**
+     * The {@code >=} operator, see {@link Predicates}.
+     *
+     * @param left The left operand.
+     * @param right The right operand.
+     * @return 1 or 0.
+     */
+    public static double greaterOrEqual(double left, double right) {
+        return truth(left >= right);
+    }
+
+    /**
+     * The {@code <=} operator, see {@link Predicates}.
+     *
+     * @param left The left operand.
+     * @param right The right operand.
+     * @return 1 or 0.
+     */
+    public static double lessOrEqual(double left, double right) {
+        return truth(left <= right);
+    }
+
+    /**
+     * The {@code ==} operator, see {@link Predicates}.
+     *
+     * @param left The left operand.
+     * @param right The right operand.
+     * @return 1 or 0.
+     */
+    public static double equal(double left, double right) {
+        return truth(left == right);
+    }
+
+    /**
+     * The {@code !=} operator, see {@link Predicates}.
+     *
+     * @param left The left operand.
+     * @param right The right operand.
+     * @return 1 or 0.
+     */
+    public static double notEqual(double left, double right) {
+        return truth(left != right);
+    }
+
+    /**
+     * The {@code &&} operator, see {@link Predicates}.
+     *
+     * @param left The left operand.
+     * @param right The right operand.
+     * @return 1 or 0.
+     */
+    public static double and(double left, double right) {
+        return truth(Predicates.isTrue(left) && Predicates.isTrue(right));
+    }
+
+    /**
+     * The {@code ||} operator, see {@link Predicates}.
+     *
+     * @param left The left operand.
+     * @param right The right operand.
+     * @return 1 or 0.
+     */
+    public static double or(double left, double right) {
+        return truth(Predicates.isTrue(left) || Predicates.isTrue(right));
+    }
+
+    /**
+     * The {@code has()} function, see {@link Predicates}.
+     *
+     * @param value A variable.
+     * @return 1 if the variable has a value, 0 if it is missing.
+     */
+    public static double has(double value) {
+        return truth(!Double.isNaN(value));
+    }
+}
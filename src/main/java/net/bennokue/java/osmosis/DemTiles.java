@@ -0,0 +1,263 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.objecthunter.exp4j.function.Function;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+
+/**
+ * Samples the elevation from SRTM {@code .hgt} tiles in a local directory,
+ * for the formula functions {@code dem(lat, lon)} and
+ * {@code slope(lat, lon)} (see {@link #getFunctions()}).
+ * <p>
+ * A tile covers one degree, e.g. {@code N48E011.hgt} from 48°N 11°E to
+ * 49°N 12°E, and holds a square grid of big-endian 16 bit samples in meters,
+ * from north to south and west to east (1201x1201 for SRTM3, 3601x3601 for
+ * SRTM1). The tiles are memory-mapped, so only the pages that are read take
+ * memory, and at most {@code cacheSize} tiles are kept open (least recently
+ * used first out). Missing tiles and voids give NaN.</p>
+ * <p>
+ * Thread-safe: The lookups only read the mapped buffers, the cache is
+ * synchronized. As the Nodes of an extract are mostly ordered by area, the
+ * tile of the previous lookup is tried first without a lock.</p>
+ *
+ * @author bennokue
+ */
+final class DemTiles {
+
+    private static final Logger log = Logger.getLogger(DemTiles.class.getName());
+    /**
+     * The sample value of voids.
+     */
+    private static final short VOID = Short.MIN_VALUE;
+    /**
+     * The directory of the tiles.
+     */
+    private final File directory;
+    /**
+     * The open tiles by {@link #key(int, int)}, least recently used first.
+     * Missing tiles are kept without samples, so they are looked up once.
+     */
+    private final LinkedHashMap<Integer, Tile> tiles;
+    /**
+     * The tile of the last lookup, a key that matches no tile before the
+     * first one.
+     */
+    private volatile Tile lastTile = new Tile(-1, null, 0);
+    /**
+     * {@code dem(lat, lon)}: The elevation in meters.
+     */
+    private final Function dem = new Function("dem", 2) {
+        @Override
+        public double apply(double... args) {
+            return elevation(args[0], args[1]);
+        }
+    };
+    /**
+     * {@code slope(lat, lon)}: The slope in degrees.
+     */
+    private final Function slope = new Function("slope", 2) {
+        @Override
+        public double apply(double... args) {
+            return slope(args[0], args[1]);
+        }
+    };
+
+    /**
+     * @param directory The directory of the {@code .hgt} files.
+     * @param cacheSize The maximum number of open tiles.
+     * @throws IllegalArgumentException If the directory does not exist or
+     * the cache size is less than 1.
+     */
+    DemTiles(File directory, final int cacheSize) {
+        if (!directory.isDirectory()) {
+            throw new IllegalArgumentException("The DEM directory " + directory + " does not exist!");
+        }
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException("At least one DEM tile has to be cached!");
+        }
+        this.directory = directory;
+        this.tiles = new LinkedHashMap<Integer, Tile>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+                // An evicted buffer is unmapped by the garbage collector
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @return The formula functions {@code dem(lat, lon)} and
+     * {@code slope(lat, lon)}.
+     */
+    List<Function> getFunctions() {
+        return Arrays.asList(this.dem, this.slope);
+    }
+
+    /**
+     * @param lat The latitude in degrees.
+     * @param lon The longitude in degrees.
+     * @return The elevation in meters, interpolated bilinearly between the
+     * four surrounding samples. NaN if the tile is missing or one of the
+     * samples is a void.
+     */
+    double elevation(double lat, double lon) {
+        if (!(lat >= -90 && lat < 90 && lon >= -180 && lon < 180)) {
+            return Double.NaN;
+        }
+        int tileLat = (int) Math.floor(lat);
+        int tileLon = (int) Math.floor(lon);
+        Tile tile = getTile(tileLat, tileLon);
+        if (tile.samples == null) {
+            return Double.NaN;
+        }
+        int last = tile.size - 1;
+        double row = (tileLat + 1 - lat) * last;
+        double column = (lon - tileLon) * last;
+        int row0 = Math.min((int) row, last - 1);
+        int column0 = Math.min((int) column, last - 1);
+        double rowFraction = row - row0;
+        double columnFraction = column - column0;
+        int index = row0 * tile.size + column0;
+        short northWest = tile.samples.get(index);
+        short northEast = tile.samples.get(index + 1);
+        short southWest = tile.samples.get(index + tile.size);
+        short southEast = tile.samples.get(index + tile.size + 1);
+        if (northWest == VOID || northEast == VOID || southWest == VOID || southEast == VOID) {
+            return Double.NaN;
+        }
+        double north = northWest + columnFraction * (northEast - northWest);
+        double south = southWest + columnFraction * (southEast - southWest);
+        return north + rowFraction * (south - north);
+    }
+
+    /**
+     * @param lat The latitude in degrees.
+     * @param lon The longitude in degrees.
+     * @return The slope in degrees (0 is flat), from the elevation one sample
+     * spacing to the north, south, east and west. NaN where the elevation is
+     * unknown.
+     */
+    double slope(double lat, double lon) {
+        if (!(lat >= -90 && lat < 90 && lon >= -180 && lon < 180)) {
+            return Double.NaN;
+        }
+        Tile tile = getTile((int) Math.floor(lat), (int) Math.floor(lon));
+        if (tile.samples == null) {
+            return Double.NaN;
+        }
+        double spacing = 1d / (tile.size - 1);
+        double northSouth = elevation(lat + spacing, lon) - elevation(lat - spacing, lon);
+        double eastWest = elevation(lat, lon + spacing) - elevation(lat, lon - spacing);
+        double meters = 2 * Math.toRadians(spacing) * GeoMath.EARTH_RADIUS;
+        double gradientY = northSouth / meters;
+        double gradientX = eastWest / (meters * Math.cos(Math.toRadians(lat)));
+        return Math.toDegrees(Math.atan(Math.sqrt(gradientX * gradientX + gradientY * gradientY)));
+    }
+
+    /**
+     * @param tileLat The latitude of the southern edge of a tile.
+     * @param tileLon The longitude of the western edge of a tile.
+     * @return A key for {@link #tiles}.
+     */
+    private static int key(int tileLat, int tileLon) {
+        return (tileLat + 90) * 360 + (tileLon + 180);
+    }
+
+    /**
+     * @param tileLat The latitude of the southern edge of a tile.
+     * @param tileLon The longitude of the western edge of a tile.
+     * @return The tile, without samples if there is no file.
+     */
+    private Tile getTile(int tileLat, int tileLon) {
+        int key = key(tileLat, tileLon);
+        Tile tile = this.lastTile;
+        if (tile.key == key) {
+            return tile;
+        }
+        synchronized (this.tiles) {
+            tile = this.tiles.get(key);
+            if (tile == null) {
+                tile = open(tileLat, tileLon, key);
+                this.tiles.put(key, tile);
+            }
+        }
+        this.lastTile = tile;
+        return tile;
+    }
+
+    /**
+     * @param tileLat The latitude of the southern edge of a tile.
+     * @param tileLon The longitude of the western edge of a tile.
+     * @param key The key of the tile.
+     * @return The memory-mapped tile, without samples if there is no file.
+     * @throws OsmosisRuntimeException If the file cannot be read or is no
+     * square grid.
+     */
+    private Tile open(int tileLat, int tileLon, int key) {
+        String name = String.format(Locale.ENGLISH, "%s%02d%s%03d.hgt", (tileLat < 0) ? "S" : "N", Math.abs(tileLat),
+                (tileLon < 0) ? "W" : "E", Math.abs(tileLon));
+        File file = new File(this.directory, name);
+        if (!file.isFile()) {
+            log.log(Level.INFO, "There is no DEM tile {0}, its elevations are NaN", file);
+            return new Tile(key, null, 0);
+        }
+        long samples = file.length() / 2;
+        int size = (int) Math.round(Math.sqrt(samples));
+        if (size < 2 || (long) size * size != samples || file.length() % 2 != 0) {
+            throw new OsmosisRuntimeException("The DEM tile " + file + " is no square grid of 16 bit samples.");
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()) {
+            // The mapping stays valid when the channel is closed
+            ShortBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length()).asShortBuffer();
+            log.log(Level.FINE, "Mapped the DEM tile {0} ({1}x{1} samples)", new Object[]{file, size});
+            return new Tile(key, buffer, size);
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to read the DEM tile " + file + ".", e);
+        }
+    }
+
+    /**
+     * A memory-mapped tile.
+     */
+    private static final class Tile {
+
+        /**
+         * The key of the tile, see {@link #key(int, int)}.
+         */
+        final int key;
+        /**
+         * The samples, row by row from north to south. Only read with
+         * absolute gets, so it can be shared by threads. {@code null} if the
+         * tile is missing.
+         */
+        final ShortBuffer samples;
+        /**
+         * The number of rows and columns.
+         */
+        final int size;
+
+        /**
+         * @param key The key of the tile.
+         * @param samples The samples or {@code null} if the tile is missing.
+         * @param size The number of rows and columns.
+         */
+        Tile(int key, ShortBuffer samples, int size) {
+            this.key = key;
+            this.samples = samples;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package net.bennokue.java.osmosis;
+
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityProcessor;
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.openstreetmap.osmosis.core.store.GenericObjectSerializationFactory;
+import org.openstreetmap.osmosis.core.store.SimpleObjectStore;
+
+/**
+ * Keeps the entities of a pass in a temporary file, so they can be processed
+ * again once the pass is complete. The entities are written in OSMOSIS'
+ * buffered binary store format (compressed), not as XML, and read back in
+ * their original order. Only a small buffer is kept on the heap.
+ *
+ * @author bennokue
+ */
+class EntitySpool implements Releasable {
+
+    /**
+     * The entities.
+     */
+    private final SimpleObjectStore<EntityContainer> store;
+    /**
+     * The number of entities.
+     */
+    private long size = 0;
+
+    /**
+     * Create an empty spool.
+     *
+     * @param name Part of the temporary file name.
+     */
+    EntitySpool(String name) {
+        this.store = new SimpleObjectStore<>(new GenericObjectSerializationFactory(), "calculator-" + name, true);
+    }
+
+    /**
+     * @param container An entity to keep.
+     */
+    void add(EntityContainer container) {
+        this.store.add(container);
+        this.size++;
+    }
+
+    /**
+     * @return The number of entities added.
+     */
+    long size() {
+        return this.size;
+    }
+
+    /**
+     * Hand all entities to a processor, in the order they were added. Nothing
+     * can be added afterwards.
+     *
+     * @param processor The processor.
+     */
+    void replay(EntityProcessor processor) {
+        this.store.complete();
+        ReleasableIterator<EntityContainer> entities = this.store.iterate();
+        try {
+            while (entities.hasNext()) {
+                entities.next().process(processor);
+            }
+        } finally {
+            entities.release();
+        }
+    }
+
+    @Override
+    public void release() {
+        this.store.release();
+    }
+}
@@ -0,0 +1,151 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * Everything a single thread needs to evaluate Nodes: its own
+ * {@link Formula}s, its own {@link TagValueParser}, its own
+ * {@link MetricsStripe} and the slot arrays (see
+ * {@link VariableSlots}) that are reused for every Node. Instances must not be
+ * shared between threads.
+ *
+ * @author bennokue
+ */
+class EvaluationContext {
+
+    /**
+     * The Formulas, in evaluation order. Only shared with other contexts if
+     * they are thread-safe.
+     */
+    final Formula[] formulas;
+    /**
+     * The predicate a Node has to fulfill to be calculated or {@code null}.
+     */
+    final Formula predicate;
+    /**
+     * The variable values of the current Node, indexed by slot.
+     */
+    final double[] values;
+    /**
+     * Whether the current Node provided a value for the slot.
+     */
+    final boolean[] present;
+    /**
+     * Whether the slot holds a constant for every Node, see
+     * {@link #bind(int, double)}.
+     */
+    private final boolean[] bound;
+    /**
+     * Parses the tag values.
+     */
+    final TagValueParser parser;
+    /**
+     * Writes the results.
+     */
+    final ResultFormatter formatter;
+    /**
+     * The formatted result of each Formula for the current Node.
+     */
+    final String[] outputTexts;
+    /**
+     * Which output tags have been found on the current Node, see
+     * {@link CalculatorPlugin_task}.
+     */
+    final boolean[] outputsFound;
+    /**
+     * The metrics of the thread.
+     */
+    final MetricsStripe metrics;
+    /**
+     * The variable values of a block of Nodes, indexed by slot and then by
+     * row. {@code null} until {@link #ensureRows(int, int)} is called.
+     */
+    double[][] columns = null;
+    /**
+     * The result of each Formula for a block of Nodes, indexed by Formula and
+     * then by row. {@code null} until {@link #ensureRows(int, int)} is
+     * called.
+     */
+    double[][] results = null;
+    /**
+     * The buffer of
+     * {@link NeighborhoodIndex#read(long, net.bennokue.java.osmosis.EvaluationContext)}.
+     * {@code null} until the first Node is read.
+     */
+    double[] neighborhoodRecord = null;
+    /**
+     * The number of rows {@link #columns} and {@link #results} can hold.
+     */
+    private int rowCapacity = 0;
+
+    /**
+     * Create a context.
+     *
+     * @param formulas The Formulas, must not be used by other threads unless
+     * they are thread-safe.
+     * @param predicate The predicate or {@code null}, like the Formulas.
+     * @param slotCount The number of variable slots.
+     * @param lenientNumbers See {@link TagValueParser#TagValueParser(boolean)}.
+     * @param outputFormat The format of the results, see
+     * {@link ResultFormatter}.
+     * @param metrics The metrics of the thread.
+     */
+    EvaluationContext(Formula[] formulas, Formula predicate, int slotCount, boolean lenientNumbers, String outputFormat,
+            MetricsStripe metrics) {
+        this.formulas = formulas;
+        this.predicate = predicate;
+        this.metrics = metrics;
+        this.parser = new TagValueParser(lenientNumbers);
+        this.formatter = new ResultFormatter(outputFormat);
+        this.outputTexts = new String[formulas.length];
+        this.outputsFound = new boolean[formulas.length];
+        this.values = new double[slotCount];
+        this.present = new boolean[slotCount];
+        this.bound = new boolean[slotCount];
+    }
+
+    /**
+     * Make sure that {@link #columns} and {@link #results} can hold a block
+     * of Nodes. The arrays are reused for every block.
+     *
+     * @param rows The number of Nodes in the block.
+     * @param formulaCount The number of Formulas.
+     */
+    void ensureRows(int rows, int formulaCount) {
+        if (rows <= this.rowCapacity) {
+            return;
+        }
+        this.columns = new double[this.values.length][rows];
+        this.results = new double[formulaCount][rows];
+        this.rowCapacity = rows;
+    }
+
+    /**
+     * Forget the values of the previous Node, except for the bound
+     * constants.
+     */
+    void reset() {
+        System.arraycopy(this.bound, 0, this.present, 0, this.bound.length);
+    }
+
+    /**
+     * Store a variable value.
+     *
+     * @param slot The variable's slot.
+     * @param value The value.
+     */
+    void set(int slot, double value) {
+        this.values[slot] = value;
+        this.present[slot] = true;
+    }
+
+    /**
+     * Store a value that stays the same for every Node. It is not reset and
+     * must not be {@link #set(int, double) set} by the Nodes.
+     *
+     * @param slot The variable's slot.
+     * @param value The value.
+     */
+    void bind(int slot, double value) {
+        set(slot, value);
+        this.bound[slot] = true;
+    }
+}
@@ -0,0 +1,63 @@
+package net.bennokue.java.osmosis;
+
+import net.objecthunter.exp4j.Expression;
+
+/**
+ * The reference {@link Formula}: Sets the variables the formula uses at an
+ * exp4j {@link Expression} and lets exp4j interpret it. Not thread-safe, because
+ * the Expression is mutated by
+ * {@link Expression#setVariable(java.lang.String, double)}.
+ *
+ * @author bennokue
+ */
+class Exp4jFormula implements Formula {
+
+    /**
+     * The Expression, owned by this Formula.
+     */
+    private final Expression expression;
+    /**
+     * The slots of the variables.
+     */
+    private final VariableSlots slots;
+    /**
+     * The slots of the variables the Expression actually uses. The others
+     * are never set.
+     */
+    private final int[] usedSlots;
+
+    /**
+     * Wrap an Expression.
+     *
+     * @param expression The Expression, must not be used by anyone else.
+     * @param slots The slots of the Expression's variables.
+     * @param usedSlots The slots of the variables the Expression uses.
+     */
+    Exp4jFormula(Expression expression, VariableSlots slots, int[] usedSlots) {
+        this.expression = expression;
+        this.slots = slots;
+        this.usedSlots = usedSlots.clone();
+    }
+
+    @Override
+    public double evaluate(double[] values) {
+        for (int slot : this.usedSlots) {
+            this.expression.setVariable(this.slots.getName(slot), values[slot]);
+        }
+        return this.expression.evaluate();
+    }
+
+    /**
+     * exp4j can only evaluate one set of variables at a time, so this is a
+     * plain loop over the rows.
+     */
+    @Override
+    public void evaluateBatch(double[][] columns, int count, double[] results) {
+        for (int row = 0; row < count; row++) {
+            for (int slot : this.usedSlots) {
+                this.expression.setVariable(this.slots.getName(slot), columns[slot][row]);
+            }
+            results[row] = this.expression.evaluate();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * Polynomial approximations of sine, cosine and arcsine for the
+ * {@code fastTrig} mode of the {@link GeoFunctions}. They trade the last
+ * digits of {@link Math} for short, branch-poor code the JIT can inline:
+ * <ul>
+ * <li>{@link #sin(double)} and {@link #cos(double)} reduce the argument to
+ * [-&pi;/4, &pi;/4] and evaluate Taylor polynomials of degree 11 and 12. The
+ * absolute error is below {@value #SIN_COS_ERROR} for |x| up to
+ * {@value #MAX_REDUCED}, larger arguments fall back to {@link Math}.</li>
+ * <li>{@link #asin(double)} evaluates the series of degree 23 on [0, 0.5]
+ * and uses asin(x) = &pi;/2 - 2 asin(sqrt((1 - x) / 2)) above. The absolute
+ * error is below {@value #ASIN_ERROR}.</li>
+ * </ul>
+ * All of them allocate nothing and return NaN for NaN.
+ *
+ * @author bennokue
+ */
+final class FastTrig {
+
+    /**
+     * The bound of the absolute error of {@link #sin(double)} and
+     * {@link #cos(double)}.
+     */
+    static final double SIN_COS_ERROR = 1e-11;
+    /**
+     * The bound of the absolute error of {@link #asin(double)}.
+     */
+    static final double ASIN_ERROR = 1e-9;
+    /**
+     * Larger arguments are not reduced, because the reduction loses
+     * precision.
+     */
+    static final double MAX_REDUCED = 1e6;
+    /**
+     * The first 33 bits of &pi;/2, so multiples of it are exact.
+     */
+    private static final double PI_2_HIGH = 1.5707963267341256;
+    /**
+     * The rest of &pi;/2.
+     */
+    private static final double PI_2_LOW = 6.077100506506192e-11;
+    /**
+     * The coefficients of the arcsine series, x, x^3, x^5, ...
+     */
+    private static final double[] ASIN_COEFFICIENTS = new double[12];
+
+    static {
+        // (2n)! / (4^n (n!)^2 (2n+1))
+        double factor = 1;
+        for (int n = 0; n < ASIN_COEFFICIENTS.length; n++) {
+            ASIN_COEFFICIENTS[n] = factor / (2 * n + 1);
+            factor *= (2 * n + 1) / (2d * n + 2);
+        }
+    }
+
+    /**
+     * Utility class.
+     */
+    private FastTrig() {
+    }
+
+    /**
+     * @param x An angle in radians.
+     * @return Its sine.
+     */
+    static double sin(double x) {
+        if (!(Math.abs(x) <= MAX_REDUCED)) {
+            return Math.sin(x);
+        }
+        double quadrant = Math.rint(x * (2 / Math.PI));
+        double r = (x - quadrant * PI_2_HIGH) - quadrant * PI_2_LOW;
+        switch ((int) quadrant & 3) {
+            case 0:
+                return sinPolynomial(r);
+            case 1:
+                return cosPolynomial(r);
+            case 2:
+                return -sinPolynomial(r);
+            default:
+                return -cosPolynomial(r);
+        }
+    }
+
+    /**
+     * @param x An angle in radians.
+     * @return Its cosine.
+     */
+    static double cos(double x) {
+        if (!(Math.abs(x) <= MAX_REDUCED)) {
+            return Math.cos(x);
+        }
+        double quadrant = Math.rint(x * (2 / Math.PI));
+        double r = (x - quadrant * PI_2_HIGH) - quadrant * PI_2_LOW;
+        switch ((int) quadrant & 3) {
+            case 0:
+                return cosPolynomial(r);
+            case 1:
+                return -sinPolynomial(r);
+            case 2:
+                return -cosPolynomial(r);
+            default:
+                return sinPolynomial(r);
+        }
+    }
+
+    /**
+     * @param x A value between -1 and 1.
+     * @return Its arcsine in radians, NaN outside of [-1, 1].
+     */
+    static double asin(double x) {
+        double abs = Math.abs(x);
+        if (!(abs <= 1)) {
+            return Double.NaN;
+        }
+        double result = (abs <= 0.5) ? asinSeries(abs) : Math.PI / 2 - 2 * asinSeries(Math.sqrt((1 - abs) / 2));
+        return (x < 0) ? -result : result;
+    }
+
+    /**
+     * @param r An angle between -&pi;/4 and &pi;/4.
+     * @return Its sine.
+     */
+    private static double sinPolynomial(double r) {
+        double r2 = r * r;
+        return r + r * r2 * (-1d / 6 + r2 * (1d / 120 + r2 * (-1d / 5040 + r2 * (1d / 362880 + r2 * (-1d / 39916800)))));
+    }
+
+    /**
+     * @param r An angle between -&pi;/4 and &pi;/4.
+     * @return Its cosine.
+     */
+    private static double cosPolynomial(double r) {
+        double r2 = r * r;
+        return 1 + r2 * (-1d / 2 + r2 * (1d / 24 + r2 * (-1d / 720 + r2 * (1d / 40320 + r2 * (-1d / 3628800 + r2 * (1d / 479001600))))));
+    }
+
+    /**
+     * @param x A value between 0 and 0.5.
+     * @return Its arcsine.
+     */
+    private static double asinSeries(double x) {
+        double x2 = x * x;
+        double sum = ASIN_COEFFICIENTS[ASIN_COEFFICIENTS.length - 1];
+        for (int n = ASIN_COEFFICIENTS.length - 2; n >= 0; n--) {
+            sum = sum * x2 + ASIN_COEFFICIENTS[n];
+        }
+        return x * sum;
+    }
+}
@@ -0,0 +1,31 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * A calculation that is ready to be evaluated. The variable values are
+ * passed in slot order, see {@link VariableSlots}.
+ *
+ * @author bennokue
+ */
+interface Formula {
+
+    /**
+     * Evaluate the calculation.
+     *
+     * @param values The variable values, indexed by slot. Missing values are
+     * {@link Double#NaN}.
+     * @return The result.
+     */
+    double evaluate(double[] values);
+
+    /**
+     * Evaluate the calculation for a block of Nodes at once. The values are
+     * stored column by column, so a Formula can run a tight loop over each
+     * column instead of being called once per Node.
+     *
+     * @param columns The variable values, indexed by slot and then by row.
+     * Missing values are {@link Double#NaN}.
+     * @param count The number of rows.
+     * @param results Where to store the result of each row.
+     */
+    void evaluateBatch(double[][] columns, int count, double[] results);
+}
@@ -0,0 +1,831 @@
+package net.bennokue.java.osmosis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.objecthunter.exp4j.function.Function;
+import net.objecthunter.exp4j.function.Functions;
+import net.objecthunter.exp4j.operator.Operator;
+import net.objecthunter.exp4j.operator.Operators;
+import net.objecthunter.exp4j.shuntingyard.ShuntingYard;
+import net.objecthunter.exp4j.tokenizer.FunctionToken;
+import net.objecthunter.exp4j.tokenizer.NumberToken;
+import net.objecthunter.exp4j.tokenizer.OperatorToken;
+import net.objecthunter.exp4j.tokenizer.Token;
+import net.objecthunter.exp4j.tokenizer.VariableToken;
+
+/**
+ * Compiles a calculation to a JVM class. The formula is parsed by exp4j's
+ * {@link ShuntingYard}, so the syntax is exactly the same as with the exp4j
+ * engine. The resulting reverse polish notation maps directly onto the JVM's
+ * operand stack:
+ * <ul>
+ * <li>Numbers become constants, variables become {@code vars[slot]}.</li>
+ * <li>exp4j's built-in operators become {@code dadd}, {@code dmul} etc.,
+ * division and modulo keep exp4j's division-by-zero check.</li>
+ * <li>exp4j's built-in functions become calls of the corresponding
+ * {@link Math} methods.</li>
+ * <li>Custom functions and operators are called through their
+ * {@code apply(double...)} method.</li>
+ * </ul>
+ * Two methods are generated from the same tokens: {@code eval} for a single
+ * Node and {@code evalColumns}, a loop over columns of variable values (see
+ * {@link Formula#evaluateBatch(double[][], int, double[])}). The loop loads
+ * every column array once before it starts, so its body is as tight as the
+ * straight-line {@code eval}.
+ * <p>
+ * The generated class file has version 49, which needs no stack map frames.</p>
+ *
+ * @author bennokue
+ */
+class FormulaCompiler {
+
+    /**
+     * Internal name of the generated class.
+     */
+    private static final String GENERATED_CLASS = "net/bennokue/java/osmosis/GeneratedFormula";
+    /**
+     * Internal name of the super class.
+     */
+    private static final String SUPER_CLASS = "net/bennokue/java/osmosis/CompiledFormula";
+    /**
+     * Internal name of the class of the geo functions.
+     */
+    private static final String GEO_CLASS = "net/bennokue/java/osmosis/GeoFunctions";
+    /**
+     * Descriptor of the constructors.
+     */
+    private static final String CONSTRUCTOR_DESCRIPTOR = "([Lnet/objecthunter/exp4j/function/Function;[Lnet/objecthunter/exp4j/operator/Operator;)V";
+    /**
+     * Descriptor of {@code evalColumns}.
+     */
+    private static final String EVAL_COLUMNS_DESCRIPTOR = "([[DI[D)V";
+    /**
+     * The local variable of the row index in {@code evalColumns}, after
+     * {@code this}, {@code columns}, {@code count} and {@code results}.
+     */
+    private static final int ROW_LOCAL = 4;
+    /**
+     * The exp4j built-in functions that have a {@link Math} counterpart with
+     * the same name.
+     */
+    private static final Set<String> MATH_FUNCTIONS = new HashSet<>(Arrays.asList(
+            "sin", "cos", "tan", "asin", "acos", "atan", "sinh", "cosh", "tanh", "abs", "log", "log10",
+            "log1p", "ceil", "floor", "sqrt", "cbrt", "pow", "exp", "expm1"));
+
+    /**
+     * The constant pool of the class being generated.
+     */
+    private final ConstantPool constants = new ConstantPool();
+    /**
+     * The bytecode of the method being generated.
+     */
+    private ByteArrayOutputStream code = new ByteArrayOutputStream();
+    /**
+     * The bytecode of {@code eval}.
+     */
+    private byte[] evalCode;
+    /**
+     * The maximum operand stack depth of {@code eval}.
+     */
+    private int evalMaxStack;
+    /**
+     * The bytecode of {@code evalColumns}.
+     */
+    private byte[] evalColumnsCode;
+    /**
+     * The maximum operand stack depth of {@code evalColumns}.
+     */
+    private int evalColumnsMaxStack;
+    /**
+     * While generating {@code evalColumns}: The local variable holding the
+     * column of each slot, {@code null} while generating {@code eval}.
+     */
+    private Map<Integer, Integer> columnLocals = null;
+    /**
+     * The first local variable that can be used to pass arguments to custom
+     * functions and operators.
+     */
+    private int argumentLocals = 2;
+    /**
+     * The custom functions called by the generated code.
+     */
+    private final List<Function> customFunctions = new ArrayList<>();
+    /**
+     * The custom operators called by the generated code.
+     */
+    private final List<Operator> customOperators = new ArrayList<>();
+    /**
+     * The current depth of the operand stack in words.
+     */
+    private int stackDepth = 0;
+    /**
+     * The maximum depth of the operand stack in words.
+     */
+    private int maxStackDepth = 0;
+    /**
+     * The maximum number of arguments of a custom function or operator.
+     */
+    private int maxCustomArguments = 0;
+    /**
+     * The number of local variables {@code evalColumns} uses before the
+     * arguments of custom calls.
+     */
+    private int evalColumnsLocals;
+
+    /**
+     * Use {@link #compile(java.lang.String, net.bennokue.java.osmosis.VariableSlots, java.util.Map, java.util.Map) compile(...)}.
+     */
+    private FormulaCompiler() {
+    }
+
+    /**
+     * Compile a calculation.
+     *
+     * @param calculation The calculation in exp4j syntax.
+     * @param slots The variables that may be used and their slots.
+     * @param functions Custom functions, by name.
+     * @param operators Custom operators, by symbol.
+     * @return The compiled formula.
+     * @throws IllegalArgumentException If the calculation is invalid.
+     */
+    static CompiledFormula compile(String calculation, VariableSlots slots, Map<String, Function> functions, Map<String, Operator> operators) {
+        Token[] tokens = ShuntingYard.convertToRPN(calculation, functions, operators, slots.getNames());
+        FormulaCompiler compiler = new FormulaCompiler();
+        compiler.generateEval(tokens, slots, calculation);
+        compiler.generateEvalColumns(tokens, slots, calculation);
+        byte[] classFile = compiler.writeClassFile();
+
+        try {
+            Class<?> generatedClass = new FormulaClassLoader().define(GENERATED_CLASS.replace('/', '.'), classFile);
+            return (CompiledFormula) generatedClass
+                    .getConstructor(Function[].class, Operator[].class)
+                    .newInstance(compiler.customFunctions.toArray(new Function[0]),
+                            compiler.customOperators.toArray(new Operator[0]));
+        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Could not instantiate compiled calculation " + calculation, e);
+        }
+    }
+
+    /**
+     * Generate {@code double eval(double[] vars)}.
+     *
+     * @param tokens The calculation in RPN.
+     * @param slots The variable slots.
+     * @param calculation The calculation, for error messages.
+     */
+    private void generateEval(Token[] tokens, VariableSlots slots, String calculation) {
+        for (Token token : tokens) {
+            emitToken(token, slots);
+        }
+        if (this.stackDepth != 2) {
+            throw new IllegalArgumentException("Invalid number of operands in calculation " + calculation);
+        }
+        emit(0xaf); // dreturn
+        this.evalCode = this.code.toByteArray();
+        this.evalMaxStack = this.maxStackDepth;
+    }
+
+    /**
+     * Generate
+     * {@code void evalColumns(double[][] columns, int count, double[] results)}:
+     * <pre>
+     * double[] column0 = columns[slot0]; ...
+     * for (int i = 0; i &lt; count; i++) {
+     *     results[i] = &lt;calculation with columnN[i] as variables&gt;;
+     * }
+     * </pre>
+     *
+     * @param tokens The calculation in RPN.
+     * @param slots The variable slots.
+     * @param calculation The calculation, for error messages.
+     */
+    private void generateEvalColumns(Token[] tokens, VariableSlots slots, String calculation) {
+        this.code = new ByteArrayOutputStream();
+        this.stackDepth = 0;
+        this.maxStackDepth = 0;
+        this.columnLocals = new HashMap<>();
+        int nextLocal = ROW_LOCAL + 1;
+        for (Token token : tokens) {
+            if (token.getType() == Token.TOKEN_VARIABLE) {
+                int slot = slots.getSlot(((VariableToken) token).getName());
+                if (!this.columnLocals.containsKey(slot)) {
+                    this.columnLocals.put(slot, nextLocal);
+                    // double[] columnN = columns[slot];
+                    emit(0x2b); // aload_1
+                    push(1);
+                    emitInt(slot);
+                    emit(0x32); // aaload
+                    pop(1);
+                    emitLocal(0x3a, nextLocal); // astore
+                    pop(1);
+                    nextLocal++;
+                }
+            }
+        }
+        this.argumentLocals = nextLocal;
+        this.evalColumnsLocals = nextLocal;
+
+        // int i = 0; goto condition;
+        emit(0x03); // iconst_0
+        emitLocal(0x36, ROW_LOCAL); // istore
+        int gotoPosition = this.code.size();
+        emit(0xa7); // goto
+        emitShort(0);
+
+        // results[i] = calculation;
+        int loopStart = this.code.size();
+        emit(0x2d); // aload_3
+        emitLocal(0x15, ROW_LOCAL); // iload
+        push(2);
+        for (Token token : tokens) {
+            emitToken(token, slots);
+        }
+        if (this.stackDepth != 4) {
+            throw new IllegalArgumentException("Invalid number of operands in calculation " + calculation);
+        }
+        emit(0x52); // dastore
+        pop(4);
+        // i++
+        emit(0x84); // iinc
+        emit(ROW_LOCAL);
+        emit(1);
+
+        // condition: if (i < count) goto loop;
+        int conditionStart = this.code.size();
+        emitLocal(0x15, ROW_LOCAL); // iload
+        emit(0x1c); // iload_2
+        emit(0xa1); // if_icmplt
+        emitShort(loopStart - this.code.size() + 1);
+        emit(0xb1); // return
+        this.evalColumnsMaxStack = Math.max(this.maxStackDepth, 2);
+
+        this.evalColumnsCode = this.code.toByteArray();
+        int gotoOffset = conditionStart - gotoPosition;
+        if (loopStart - conditionStart < Short.MIN_VALUE || gotoOffset > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Calculation too long: " + calculation);
+        }
+        this.evalColumnsCode[gotoPosition + 1] = (byte) (gotoOffset >>> 8);
+        this.evalColumnsCode[gotoPosition + 2] = (byte) gotoOffset;
+    }
+
+    /**
+     * Emit an instruction that takes a local variable index.
+     *
+     * @param opcode The opcode, e.g. {@code dload}.
+     * @param local The index of the local variable.
+     */
+    private void emitLocal(int opcode, int local) {
+        if (local > 255) {
+            throw new IllegalArgumentException("Calculation uses too many variables");
+        }
+        emit(opcode);
+        emit(local);
+    }
+
+    /**
+     * Emit the bytecode for a single RPN token.
+     *
+     * @param token The token.
+     * @param slots The variable slots.
+     */
+    private void emitToken(Token token, VariableSlots slots) {
+        switch (token.getType()) {
+            case Token.TOKEN_NUMBER:
+                emitConstant(((NumberToken) token).getValue());
+                break;
+            case Token.TOKEN_VARIABLE:
+                int slot = slots.getSlot(((VariableToken) token).getName());
+                if (this.columnLocals == null) {
+                    emit(0x2b); // aload_1
+                    push(1);
+                    emitInt(slot);
+                } else {
+                    emitLocal(0x19, this.columnLocals.get(slot)); // aload
+                    emitLocal(0x15, ROW_LOCAL); // iload
+                    push(2);
+                }
+                emit(0x31); // daload
+                pop(2);
+                push(2);
+                break;
+            case Token.TOKEN_OPERATOR:
+                emitOperator(((OperatorToken) token).getOperator());
+                break;
+            case Token.TOKEN_FUNCTION:
+                emitFunction(((FunctionToken) token).getFunction());
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected token type " + token.getType());
+        }
+    }
+
+    /**
+     * Emit an operator, inline if it is one of exp4j's built-in operators.
+     *
+     * @param operator The operator.
+     */
+    private void emitOperator(Operator operator) {
+        String symbol = operator.getSymbol();
+        int operands = operator.getNumOperands();
+        if (symbol.length() == 1 && Operators.getBuiltinOperator(symbol.charAt(0), operands) == operator) {
+            switch (symbol.charAt(0)) {
+                case '+':
+                    if (operands == 2) {
+                        emitBinary(0x63); // dadd
+                    }
+                    return;
+                case '-':
+                    if (operands == 2) {
+                        emitBinary(0x67); // dsub
+                    } else {
+                        emit(0x77); // dneg
+                    }
+                    return;
+                case '*':
+                    emitBinary(0x6b); // dmul
+                    return;
+                case '/':
+                    emitStaticCall(SUPER_CLASS, "divide", 2);
+                    return;
+                case '%':
+                    emitStaticCall(SUPER_CLASS, "modulo", 2);
+                    return;
+                case '^':
+                    emitStaticCall("java/lang/Math", "pow", 2);
+                    return;
+                default:
+                    break;
+            }
+        }
+        String predicate = Predicates.getStaticMethod(operator);
+        if (predicate != null) {
+            emitStaticCall(SUPER_CLASS, predicate, operands);
+            return;
+        }
+        int index = this.customOperators.indexOf(operator);
+        if (index < 0) {
+            index = this.customOperators.size();
+            this.customOperators.add(operator);
+        }
+        emitCustomCall("operators", "[Lnet/objecthunter/exp4j/operator/Operator;",
+                "net/objecthunter/exp4j/operator/Operator", index, operands);
+    }
+
+    /**
+     * Emit a function call, a direct {@link Math} call if it is one of exp4j's
+     * built-in functions and a direct call of the static method if it is a
+     * predicate or one of the {@link GeoFunctions}.
+     *
+     * @param function The function.
+     */
+    private void emitFunction(Function function) {
+        String name = function.getName();
+        if (Functions.getBuiltinFunction(name) == function) {
+            if (MATH_FUNCTIONS.contains(name)) {
+                emitStaticCall("java/lang/Math", name, function.getNumArguments());
+                return;
+            } else if (name.equals("log2")) {
+                emitStaticCall(SUPER_CLASS, "log2", 1);
+                return;
+            }
+        }
+        String predicate = Predicates.getStaticMethod(function);
+        if (predicate != null) {
+            emitStaticCall(SUPER_CLASS, predicate, function.getNumArguments());
+            return;
+        }
+        String geoFunction = GeoFunctions.getStaticMethod(function);
+        if (geoFunction != null) {
+            emitStaticCall(GEO_CLASS, geoFunction, function.getNumArguments());
+            return;
+        }
+        int index = this.customFunctions.indexOf(function);
+        if (index < 0) {
+            index = this.customFunctions.size();
+            this.customFunctions.add(function);
+        }
+        emitCustomCall("functions", "[Lnet/objecthunter/exp4j/function/Function;",
+                "net/objecthunter/exp4j/function/Function", index, function.getNumArguments());
+    }
+
+    /**
+     * Call {@code apply(double...)} of a custom function or operator. The
+     * arguments are taken from the operand stack, stored to local variables
+     * and copied to a new {@code double[]}.
+     *
+     * @param field The field of {@link CompiledFormula} holding the array.
+     * @param fieldDescriptor The field's descriptor.
+     * @param owner The internal name of the function/operator class.
+     * @param index The index in the array.
+     * @param arguments The number of arguments.
+     */
+    private void emitCustomCall(String field, String fieldDescriptor, String owner, int index, int arguments) {
+        this.maxCustomArguments = Math.max(this.maxCustomArguments, arguments);
+        for (int argument = arguments - 1; argument >= 0; argument--) {
+            emitLocal(0x39, this.argumentLocals + 2 * argument); // dstore
+            pop(2);
+        }
+        emit(0x2a); // aload_0
+        push(1);
+        emit(0xb4); // getfield
+        emitShort(this.constants.fieldRef(SUPER_CLASS, field, fieldDescriptor));
+        emitInt(index);
+        emit(0x32); // aaload
+        pop(1);
+        emitInt(arguments);
+        emit(0xbc); // newarray
+        emit(7); // T_DOUBLE
+        for (int argument = 0; argument < arguments; argument++) {
+            emit(0x59); // dup
+            push(1);
+            emitInt(argument);
+            emitLocal(0x18, this.argumentLocals + 2 * argument); // dload
+            push(2);
+            emit(0x52); // dastore
+            pop(4);
+        }
+        emit(0xb6); // invokevirtual
+        emitShort(this.constants.methodRef(owner, "apply", "([D)D"));
+        pop(2);
+        push(2);
+    }
+
+    /**
+     * Emit a binary instruction that consumes two doubles and produces one.
+     *
+     * @param opcode The opcode.
+     */
+    private void emitBinary(int opcode) {
+        emit(opcode);
+        pop(2);
+    }
+
+    /**
+     * Call a static method that takes doubles and returns a double.
+     *
+     * @param owner The internal name of the class.
+     * @param name The method name.
+     * @param arguments The number of double arguments.
+     */
+    private void emitStaticCall(String owner, String name, int arguments) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < arguments; i++) {
+            descriptor.append('D');
+        }
+        descriptor.append(")D");
+        emit(0xb8); // invokestatic
+        emitShort(this.constants.methodRef(owner, name, descriptor.toString()));
+        pop(2 * arguments);
+        push(2);
+    }
+
+    /**
+     * Push a double constant.
+     *
+     * @param value The constant.
+     */
+    private void emitConstant(double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            emit(0x0e); // dconst_0
+        } else if (value == 1d) {
+            emit(0x0f); // dconst_1
+        } else {
+            emit(0x14); // ldc2_w
+            emitShort(this.constants.doubleConstant(value));
+        }
+        push(2);
+    }
+
+    /**
+     * Push an int constant.
+     *
+     * @param value The constant.
+     */
+    private void emitInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(0x03 + value); // iconst_<n>
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit(0x10); // bipush
+            emit(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(0x11); // sipush
+            emitShort(value);
+        } else {
+            throw new IllegalArgumentException("Constant too big: " + value);
+        }
+        push(1);
+    }
+
+    /**
+     * Track words pushed to the operand stack.
+     *
+     * @param words The number of words.
+     */
+    private void push(int words) {
+        this.stackDepth += words;
+        this.maxStackDepth = Math.max(this.maxStackDepth, this.stackDepth);
+    }
+
+    /**
+     * Track words popped from the operand stack.
+     *
+     * @param words The number of words.
+     */
+    private void pop(int words) {
+        this.stackDepth -= words;
+        if (this.stackDepth < 0) {
+            throw new IllegalArgumentException("Invalid number of operands in calculation");
+        }
+    }
+
+    /**
+     * @param value A byte of the current method's code.
+     */
+    private void emit(int value) {
+        this.code.write(value);
+    }
+
+    /**
+     * @param value Two bytes of the current method's code, big endian.
+     */
+    private void emitShort(int value) {
+        this.code.write(value >>> 8);
+        this.code.write(value);
+    }
+
+    /**
+     * Assemble the class file.
+     *
+     * @return The class file.
+     */
+    private byte[] writeClassFile() {
+        // Reserve the constant pool entries before the pool is written
+        int thisClass = this.constants.classRef(GENERATED_CLASS);
+        int superClass = this.constants.classRef(SUPER_CLASS);
+        int superConstructor = this.constants.methodRef(SUPER_CLASS, "<init>", CONSTRUCTOR_DESCRIPTOR);
+        int constructorName = this.constants.utf8("<init>");
+        int constructorDescriptor = this.constants.utf8(CONSTRUCTOR_DESCRIPTOR);
+        int evalName = this.constants.utf8("eval");
+        int evalDescriptor = this.constants.utf8("([D)D");
+        int evalColumnsName = this.constants.utf8("evalColumns");
+        int evalColumnsDescriptor = this.constants.utf8(EVAL_COLUMNS_DESCRIPTOR);
+        int code = this.constants.utf8("Code");
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0); // minor version
+            out.writeShort(49); // major version: Java 5, no stack map frames
+            this.constants.writeTo(out);
+            out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(3); // methods
+
+            // public <init>(Function[], Operator[]) { super(functions, operators); }
+            byte[] constructorCode = new byte[]{
+                0x2a, 0x2b, 0x2c, // aload_0, aload_1, aload_2
+                (byte) 0xb7, (byte) (superConstructor >>> 8), (byte) superConstructor, // invokespecial
+                (byte) 0xb1 // return
+            };
+            writeMethod(out, constructorName, constructorDescriptor, code, 3, 3, constructorCode);
+
+            // public double eval(double[] vars)
+            writeMethod(out, evalName, evalDescriptor, code, this.evalMaxStack,
+                    2 + 2 * this.maxCustomArguments, this.evalCode);
+
+            // public void evalColumns(double[][] columns, int count, double[] results)
+            writeMethod(out, evalColumnsName, evalColumnsDescriptor, code, this.evalColumnsMaxStack,
+                    this.evalColumnsLocals + 2 * this.maxCustomArguments, this.evalColumnsCode);
+
+            out.writeShort(0); // attributes
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing to memory failed", e);
+        }
+    }
+
+    /**
+     * Write a public method with a Code attribute.
+     *
+     * @param out Where to write.
+     * @param name The constant pool index of the name.
+     * @param descriptor The constant pool index of the descriptor.
+     * @param codeName The constant pool index of "Code".
+     * @param maxStack The maximum operand stack depth.
+     * @param maxLocals The number of local variable words.
+     * @param bytecode The bytecode.
+     * @throws IOException Never, the stream writes to memory.
+     */
+    private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName, int maxStack, int maxLocals, byte[] bytecode) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1); // attributes
+        out.writeShort(codeName);
+        out.writeInt(12 + bytecode.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytecode.length);
+        out.write(bytecode);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    /**
+     * A class file's constant pool. Equal entries are stored once.
+     */
+    private static class ConstantPool {
+
+        /**
+         * The serialized entries.
+         */
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        /**
+         * Writes into {@link #entries}.
+         */
+        private final DataOutputStream out = new DataOutputStream(this.entries);
+        /**
+         * Index of each entry, keyed by a description of it.
+         */
+        private final Map<String, Integer> indices = new HashMap<>();
+        /**
+         * The next free index.
+         */
+        private int nextIndex = 1;
+
+        /**
+         * @param value A String.
+         * @return The index of its Utf8 entry.
+         */
+        int utf8(String value) {
+            Integer index = this.indices.get("U" + value);
+            if (index == null) {
+                index = add("U" + value, 1);
+                write(1);
+                try {
+                    this.out.writeUTF(value);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Writing to memory failed", e);
+                }
+            }
+            return index;
+        }
+
+        /**
+         * @param internalName The internal name of a class.
+         * @return The index of its Class entry.
+         */
+        int classRef(String internalName) {
+            int name = utf8(internalName);
+            Integer index = this.indices.get("C" + internalName);
+            if (index == null) {
+                index = add("C" + internalName, 1);
+                write(7);
+                writeShort(name);
+            }
+            return index;
+        }
+
+        /**
+         * @param owner The internal name of the declaring class.
+         * @param name The method name.
+         * @param descriptor The method descriptor.
+         * @return The index of the Methodref entry.
+         */
+        int methodRef(String owner, String name, String descriptor) {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        /**
+         * @param owner The internal name of the declaring class.
+         * @param name The field name.
+         * @param descriptor The field descriptor.
+         * @return The index of the Fieldref entry.
+         */
+        int fieldRef(String owner, String name, String descriptor) {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        /**
+         * @param value A double constant.
+         * @return The index of its Double entry, which occupies two indices.
+         */
+        int doubleConstant(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            Integer index = this.indices.get("D" + bits);
+            if (index == null) {
+                index = add("D" + bits, 2);
+                write(6);
+                try {
+                    this.out.writeLong(bits);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Writing to memory failed", e);
+                }
+            }
+            return index;
+        }
+
+        /**
+         * Add a Fieldref (tag 9) or Methodref (tag 10) and its NameAndType.
+         */
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            String key = tag + owner + '.' + name + descriptor;
+            Integer index = this.indices.get(key);
+            if (index == null) {
+                int ownerIndex = classRef(owner);
+                int nameIndex = utf8(name);
+                int descriptorIndex = utf8(descriptor);
+                String nameAndTypeKey = "N" + name + descriptor;
+                Integer nameAndType = this.indices.get(nameAndTypeKey);
+                if (nameAndType == null) {
+                    nameAndType = add(nameAndTypeKey, 1);
+                    write(12);
+                    writeShort(nameIndex);
+                    writeShort(descriptorIndex);
+                }
+                index = add(key, 1);
+                write(tag);
+                writeShort(ownerIndex);
+                writeShort(nameAndType);
+            }
+            return index;
+        }
+
+        /**
+         * Reserve the index for a new entry.
+         *
+         * @param key The description of the entry.
+         * @param size How many indices the entry occupies.
+         * @return The index.
+         */
+        private int add(String key, int size) {
+            int index = this.nextIndex;
+            this.indices.put(key, index);
+            this.nextIndex += size;
+            return index;
+        }
+
+        /**
+         * @param value A byte of the current entry.
+         */
+        private void write(int value) {
+            this.entries.write(value);
+        }
+
+        /**
+         * @param value Two bytes of the current entry, big endian.
+         */
+        private void writeShort(int value) {
+            this.entries.write(value >>> 8);
+            this.entries.write(value);
+        }
+
+        /**
+         * Write the constant pool count and all entries.
+         *
+         * @param target Where to write.
+         * @throws IOException If writing fails.
+         */
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(this.nextIndex);
+            this.entries.writeTo(target);
+        }
+    }
+
+    /**
+     * Every compiled class gets its own loader, so it can be unloaded
+     * together with its formula.
+     */
+    private static class FormulaClassLoader extends ClassLoader {
+
+        /**
+         * Create a loader that delegates to the plugin's class loader.
+         */
+        FormulaClassLoader() {
+            super(CompiledFormula.class.getClassLoader());
+        }
+
+        /**
+         * @param name The binary name of the class.
+         * @param classFile The class file.
+         * @return The defined class.
+         */
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.objecthunter.exp4j.ExpressionBuilder;
+import net.objecthunter.exp4j.function.Function;
+import net.objecthunter.exp4j.operator.Operator;
+import net.objecthunter.exp4j.shuntingyard.ShuntingYard;
+import net.objecthunter.exp4j.tokenizer.Token;
+import net.objecthunter.exp4j.tokenizer.VariableToken;
+
+/**
+ * Creates {@link Formula}s with the configured engine. All Formulas of a
+ * factory share the same {@link VariableSlots}, custom functions and custom
+ * operators. The comparison and logical operators of {@link Predicates} and
+ * the {@link GeoFunctions} are always available.
+ * <p>
+ * Every formula is simplified by the {@link FormulaOptimizer} before it is
+ * handed to the engine, the result is logged once per formula.</p>
+ *
+ * @author bennokue
+ */
+class FormulaFactory {
+
+    private static final Logger log = Logger.getLogger(FormulaFactory.class.getName());
+
+    /**
+     * The variables every formula may use.
+     */
+    private final VariableSlots slots;
+    /**
+     * The engine.
+     */
+    private final CalculatorOptions.Engine engine;
+    /**
+     * Custom functions, by name.
+     */
+    private final Map<String, Function> functions = new HashMap<>();
+    /**
+     * Custom operators, by symbol.
+     */
+    private final Map<String, Operator> operators = new HashMap<>();
+    /**
+     * The compiled formulas, by formula String. They are thread-safe, so each
+     * one is compiled once.
+     */
+    private final Map<String, CompiledFormula> compiledFormulas = new HashMap<>();
+    /**
+     * The optimized formulas, by formula String.
+     */
+    private final Map<String, String> optimizedFormulas = new HashMap<>();
+
+    /**
+     * Create a factory with the exact {@link GeoFunctions}.
+     *
+     * @param slots The variables every formula may use.
+     * @param engine The engine.
+     */
+    FormulaFactory(VariableSlots slots, CalculatorOptions.Engine engine) {
+        this(slots, engine, false);
+    }
+
+    /**
+     * Create a factory.
+     *
+     * @param slots The variables every formula may use.
+     * @param engine The engine.
+     * @param fastTrig Use the {@link GeoFunctions} with the approximations of
+     * {@link FastTrig}?
+     */
+    FormulaFactory(VariableSlots slots, CalculatorOptions.Engine engine, boolean fastTrig) {
+        this.slots = slots;
+        this.engine = engine;
+        for (Operator operator : Predicates.getOperators()) {
+            this.operators.put(operator.getSymbol(), operator);
+        }
+        this.functions.put(Predicates.HAS.getName(), Predicates.HAS);
+        for (Function function : GeoFunctions.getFunctions(fastTrig)) {
+            this.functions.put(function.getName(), function);
+        }
+    }
+
+    /**
+     * Make a custom function available to the formulas. Must be called before
+     * the first formula is created.
+     *
+     * @param function The function, must be thread-safe.
+     */
+    void addFunction(Function function) {
+        this.functions.put(function.getName(), function);
+    }
+
+    /**
+     * @return The variables every formula may use.
+     */
+    VariableSlots getSlots() {
+        return this.slots;
+    }
+
+    /**
+     * Create a Formula. If the engine is
+     * {@link CalculatorOptions.Engine#EXP4J}, it must not be shared with other
+     * threads.
+     *
+     * @param formula The formula in exp4j syntax.
+     * @return The Formula, ready to evaluate.
+     * @throws IllegalArgumentException If the formula is invalid.
+     */
+    Formula create(String formula) {
+        String optimized = optimize(formula);
+        switch (this.engine) {
+            case COMPILED:
+                synchronized (this.compiledFormulas) {
+                    CompiledFormula compiled = this.compiledFormulas.get(optimized);
+                    if (compiled == null) {
+                        compiled = FormulaCompiler.compile(optimized, this.slots, this.functions, this.operators);
+                        this.compiledFormulas.put(optimized, compiled);
+                    }
+                    return compiled;
+                }
+            case EXP4J:
+            default:
+                Set<String> variables = getVariables(optimized);
+                int[] usedSlots = new int[variables.size()];
+                int i = 0;
+                for (String variable : variables) {
+                    usedSlots[i++] = this.slots.getSlot(variable);
+                }
+                return new Exp4jFormula(new ExpressionBuilder(optimized)
+                        .variables(this.slots.getNames())
+                        .functions(new ArrayList<>(this.functions.values()))
+                        .operator(new ArrayList<>(this.operators.values()))
+                        .build(), this.slots, usedSlots);
+        }
+    }
+
+    /**
+     * Simplify a formula with the {@link FormulaOptimizer}. The result is
+     * logged when a formula is optimized for the first time.
+     *
+     * @param formula The formula in exp4j syntax.
+     * @return The simplified formula.
+     * @throws IllegalArgumentException If the formula is invalid.
+     */
+    String optimize(String formula) {
+        synchronized (this.optimizedFormulas) {
+            String optimized = this.optimizedFormulas.get(formula);
+            if (optimized == null) {
+                optimized = FormulaOptimizer.optimize(formula, this.functions, this.operators, this.slots.getNames());
+                this.optimizedFormulas.put(formula, optimized);
+                if (optimized.equals(formula)) {
+                    log.log(Level.FINE, "Nothing to optimize in calculation {0}", formula);
+                } else {
+                    log.log(Level.INFO, "Optimized calculation {0} to {1}", new Object[]{formula, optimized});
+                }
+            }
+            return optimized;
+        }
+    }
+
+    /**
+     * Find out if a formula has the same result for every Node.
+     *
+     * @param formula The formula in exp4j syntax.
+     * @return The result if the optimized formula has no variables,
+     * {@code null} otherwise or if evaluating it fails.
+     * @throws IllegalArgumentException If the formula is invalid.
+     */
+    Double getConstantValue(String formula) {
+        if (!getVariables(optimize(formula)).isEmpty()) {
+            return null;
+        }
+        try {
+            return create(formula).evaluate(new double[this.slots.size()]);
+        } catch (ArithmeticException e) {
+            // Fail for every Node, like without the optimizer
+            return null;
+        }
+    }
+
+    /**
+     * Find the variables a formula uses.
+     *
+     * @param formula The formula in exp4j syntax.
+     * @return The names of the variables, in order of their first appearance.
+     * @throws IllegalArgumentException If the formula is invalid.
+     */
+    Set<String> getVariables(String formula) {
+        Set<String> variables = new LinkedHashSet<>();
+        for (Token token : ShuntingYard.convertToRPN(formula, this.functions, this.operators, this.slots.getNames())) {
+            if (token.getType() == Token.TOKEN_VARIABLE) {
+                variables.add(((VariableToken) token).getName());
+            }
+        }
+        return variables;
+    }
+}
@@ -0,0 +1,317 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import net.objecthunter.exp4j.function.Function;
+import net.objecthunter.exp4j.function.Functions;
+import net.objecthunter.exp4j.operator.Operator;
+import net.objecthunter.exp4j.operator.Operators;
+import net.objecthunter.exp4j.shuntingyard.ShuntingYard;
+import net.objecthunter.exp4j.tokenizer.FunctionToken;
+import net.objecthunter.exp4j.tokenizer.NumberToken;
+import net.objecthunter.exp4j.tokenizer.OperatorToken;
+import net.objecthunter.exp4j.tokenizer.Token;
+import net.objecthunter.exp4j.tokenizer.VariableToken;
+
+/**
+ * Simplifies a formula before it is handed to an engine: The RPN from
+ * exp4j's {@link ShuntingYard} is turned into a tree, which is simplified
+ * bottom-up and printed as a fully parenthesized formula again.
+ * <ul>
+ * <li>Constant sub-terms are folded, e.g. {@code lat*(3.14159/180)} becomes
+ * {@code (lat * 0.017453277777777776)}. Only exp4j's built-in operators and
+ * functions and those of {@link Predicates} are folded, and only if the
+ * result is finite and no exception (e.g. a division by zero) occurs.</li>
+ * <li>Identities are removed: {@code x*1}, {@code 1*x}, {@code x/1},
+ * {@code x-0}, {@code x^1}, {@code +x} and {@code -(-x)}.</li>
+ * </ul>
+ * Every rewrite gives bit-identical results for every input, including NaN
+ * and infinite values. That is why {@code x+0} is kept ({@code -0.0+0} is
+ * {@code 0.0}), why {@code x*0} is kept ({@code NaN*0} is NaN) and why
+ * nothing is reassociated: {@code lat*(3.14159/180)*6371000} is
+ * {@code (lat*c)*6371000}, and {@code lat*(c*6371000)} could round
+ * differently.
+ *
+ * @author bennokue
+ */
+final class FormulaOptimizer {
+
+    private FormulaOptimizer() {
+    }
+
+    /**
+     * Simplify a formula.
+     *
+     * @param formula The formula in exp4j syntax.
+     * @param functions The custom functions, by name.
+     * @param operators The custom operators, by symbol.
+     * @param variables The variable names.
+     * @return The simplified formula or the given formula itself if nothing
+     * could be simplified.
+     * @throws IllegalArgumentException If the formula is invalid.
+     */
+    static String optimize(String formula, Map<String, Function> functions, Map<String, Operator> operators, Set<String> variables) {
+        Deque<Term> stack = new ArrayDeque<>();
+        boolean changed = false;
+        for (Token token : ShuntingYard.convertToRPN(formula, functions, operators, variables)) {
+            switch (token.getType()) {
+                case Token.TOKEN_NUMBER:
+                    stack.push(new Constant(((NumberToken) token).getValue()));
+                    break;
+                case Token.TOKEN_VARIABLE:
+                    stack.push(new Variable(((VariableToken) token).getName()));
+                    break;
+                case Token.TOKEN_OPERATOR: {
+                    Operator operator = ((OperatorToken) token).getOperator();
+                    Term[] operands = pop(stack, operator.getNumOperands(), formula);
+                    Application application = new Application(operator.getSymbol(), operator, null, operands);
+                    Term term = simplify(operator, operands);
+                    if (term == null) {
+                        term = fold(application);
+                    }
+                    changed |= term != application;
+                    stack.push(term);
+                    break;
+                }
+                case Token.TOKEN_FUNCTION: {
+                    Function function = ((FunctionToken) token).getFunction();
+                    Application application = new Application(function.getName(), null, function, pop(stack, function.getNumArguments(), formula));
+                    Term term = fold(application);
+                    changed |= term != application;
+                    stack.push(term);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unexpected token in calculation " + formula);
+            }
+        }
+        if (stack.size() != 1) {
+            throw new IllegalArgumentException("Invalid number of operands in calculation " + formula);
+        }
+        return changed ? stack.pop().toString() : formula;
+    }
+
+    /**
+     * @param stack The operand stack.
+     * @param count The number of operands to take.
+     * @param formula The formula, for error messages.
+     * @return The operands, in formula order.
+     */
+    private static Term[] pop(Deque<Term> stack, int count, String formula) {
+        if (stack.size() < count) {
+            throw new IllegalArgumentException("Invalid number of operands in calculation " + formula);
+        }
+        Term[] operands = new Term[count];
+        for (int i = count - 1; i >= 0; i--) {
+            operands[i] = stack.pop();
+        }
+        return operands;
+    }
+
+    /**
+     * Remove an exact identity.
+     *
+     * @param operator The operator.
+     * @param operands Its operands.
+     * @return The simplified term or {@code null} if there is no identity.
+     */
+    private static Term simplify(Operator operator, Term[] operands) {
+        String symbol = operator.getSymbol();
+        if (symbol.length() != 1 || Operators.getBuiltinOperator(symbol.charAt(0), operands.length) != operator) {
+            return null;
+        }
+        if (operands.length == 1) {
+            if (symbol.equals("+")) {
+                return operands[0];
+            }
+            if (operands[0] instanceof Application && ((Application) operands[0]).isNegation()) {
+                return ((Application) operands[0]).operands[0];
+            }
+            return null;
+        }
+        Term left = operands[0];
+        Term right = operands[1];
+        switch (symbol.charAt(0)) {
+            case '*':
+                return right.is(1) ? left : left.is(1) ? right : null;
+            case '/':
+            case '^':
+                return right.is(1) ? left : null;
+            case '-':
+                return right.is(0) ? left : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Fold an application whose operands are all constants.
+     *
+     * @param application The application.
+     * @return A {@link Constant} or the application itself.
+     */
+    private static Term fold(Application application) {
+        double[] arguments = new double[application.operands.length];
+        for (int i = 0; i < arguments.length; i++) {
+            if (!(application.operands[i] instanceof Constant)) {
+                return application;
+            }
+            arguments[i] = ((Constant) application.operands[i]).value;
+        }
+        if (!application.isPure()) {
+            return application;
+        }
+        double value;
+        try {
+            value = (application.operator != null) ? application.operator.apply(arguments) : application.function.apply(arguments);
+        } catch (ArithmeticException e) {
+            // Keep the failure where it happens without the optimizer
+            return application;
+        }
+        return (Double.isNaN(value) || Double.isInfinite(value)) ? application : new Constant(value);
+    }
+
+    /**
+     * A node of the formula tree.
+     */
+    private abstract static class Term {
+
+        /**
+         * @param constant A value.
+         * @return Is this term exactly that constant?
+         */
+        boolean is(double constant) {
+            return false;
+        }
+    }
+
+    /**
+     * A number.
+     */
+    private static final class Constant extends Term {
+
+        /**
+         * The number, finite.
+         */
+        final double value;
+
+        /**
+         * @param value The number.
+         */
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean is(double constant) {
+            return Double.doubleToLongBits(this.value) == Double.doubleToLongBits(constant);
+        }
+
+        /**
+         * {@link Double#toString(double)} is parsed back to the same value,
+         * negative numbers are written as a negation.
+         */
+        @Override
+        public String toString() {
+            return (Double.doubleToLongBits(this.value) < 0) ? "(-" + (-this.value) + ")" : Double.toString(this.value);
+        }
+    }
+
+    /**
+     * A variable.
+     */
+    private static final class Variable extends Term {
+
+        /**
+         * The name.
+         */
+        final String name;
+
+        /**
+         * @param name The name.
+         */
+        Variable(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    /**
+     * An operator or function applied to operands.
+     */
+    private static final class Application extends Term {
+
+        /**
+         * The symbol or function name.
+         */
+        final String name;
+        /**
+         * The operator or {@code null}.
+         */
+        final Operator operator;
+        /**
+         * The function or {@code null}.
+         */
+        final Function function;
+        /**
+         * The operands, in formula order.
+         */
+        final Term[] operands;
+
+        /**
+         * @param name The symbol or function name.
+         * @param operator The operator or {@code null}.
+         * @param function The function or {@code null}.
+         * @param operands The operands.
+         */
+        Application(String name, Operator operator, Function function, Term[] operands) {
+            this.name = name;
+            this.operator = operator;
+            this.function = function;
+            this.operands = operands;
+        }
+
+        /**
+         * @return Is this the built-in unary minus?
+         */
+        boolean isNegation() {
+            return this.operator != null && this.operator == Operators.getBuiltinOperator('-', 1);
+        }
+
+        /**
+         * @return Does the result only depend on the operands, so it can be
+         * folded?
+         */
+        boolean isPure() {
+            if (this.operator != null) {
+                return Predicates.getStaticMethod(this.operator) != null
+                        || (this.name.length() == 1 && Operators.getBuiltinOperator(this.name.charAt(0), this.operands.length) == this.operator);
+            }
+            return Predicates.getStaticMethod(this.function) != null || GeoFunctions.getStaticMethod(this.function) != null
+                    || Functions.getBuiltinFunction(this.name) == this.function;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            if (this.function != null) {
+                text.append(this.name).append('(');
+                for (int i = 0; i < this.operands.length; i++) {
+                    text.append((i == 0) ? "" : ", ").append(this.operands[i]);
+                }
+                return text.append(')').toString();
+            }
+            if (this.operands.length == 1) {
+                return text.append('(').append(this.name).append(this.operands[0]).append(')').toString();
+            }
+            return text.append('(').append(this.operands[0]).append(' ').append(this.name).append(' ')
+                    .append(this.operands[1]).append(')').toString();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import net.objecthunter.exp4j.function.Function;
+
+/**
+ * The geo functions that every {@link FormulaFactory} knows, e.g.
+ * {@code haversine(lat, lon, 48.137, 11.575)} or {@code tileX(lon, 14)}.
+ * Angles are in degrees, lengths in meters:
+ * <ul>
+ * <li>{@code haversine(lat1, lon1, lat2, lon2)}: The great-circle distance
+ * on a sphere with the mean earth radius.</li>
+ * <li>{@code deg2rad(x)}, {@code rad2deg(x)}</li>
+ * <li>{@code mercX(lon)}, {@code mercY(lat)}: Web Mercator (EPSG:3857)
+ * coordinates.</li>
+ * <li>{@code utmZone(lat, lon)}, {@code utmEasting(lat, lon)},
+ * {@code utmNorthing(lat, lon)}: The UTM zone (including the exceptions of
+ * Norway and Svalbard) and the WGS84 coordinates in that zone, with the false
+ * northing on the southern hemisphere. NaN outside of 80&deg;S to 84&deg;N.
+ * </li>
+ * <li>{@code tileX(lon, zoom)}, {@code tileY(lat, zoom)}: The index of the
+ * slippy map tile at an integer zoom level from 0 to
+ * {@value #MAX_ZOOM}, clamped to the tiles of that level.</li>
+ * </ul>
+ * They are implemented by public static methods of this class that neither
+ * allocate nor keep state, which the compiled engine calls directly and the
+ * {@link FormulaOptimizer} may evaluate in advance.
+ * <p>
+ * In the {@code fastTrig} mode, {@code haversine}, {@code utmEasting} and
+ * {@code utmNorthing} use the approximations of {@link FastTrig} instead of
+ * {@link Math#sin(double)}, {@link Math#cos(double)} and
+ * {@link Math#asin(double)}. The error of {@code haversine} is below
+ * {@value #FAST_HAVERSINE_ERROR} m (at most 6.3 mm in 5 million random and
+ * nearly antipodal pairs, largest around a quarter of the circumference),
+ * the error of the UTM coordinates is below {@value #FAST_UTM_ERROR} m.</p>
+ *
+ * @author bennokue
+ */
+public final class GeoFunctions {
+
+    /**
+     * The bound of the absolute error of {@link #fastHaversine} in meters.
+     */
+    static final double FAST_HAVERSINE_ERROR = 0.01;
+    /**
+     * The bound of the absolute error of {@link #fastUtmEasting} and
+     * {@link #fastUtmNorthing} in meters.
+     */
+    static final double FAST_UTM_ERROR = 0.001;
+    /**
+     * The highest zoom level of {@code tileX} and {@code tileY}.
+     */
+    static final int MAX_ZOOM = 30;
+    /**
+     * The radius of the Web Mercator sphere in meters, the WGS84 semi-major
+     * axis.
+     */
+    private static final double WGS84_A = 6378137;
+    /**
+     * The WGS84 flattening.
+     */
+    private static final double WGS84_F = 1 / 298.257223563;
+    /**
+     * The scale factor on the central meridian of a UTM zone.
+     */
+    private static final double UTM_K0 = 0.9996;
+    /**
+     * The easting of the central meridian.
+     */
+    private static final double UTM_FALSE_EASTING = 500000;
+    /**
+     * The northing of the equator on the southern hemisphere.
+     */
+    private static final double UTM_FALSE_NORTHING = 10000000;
+    /**
+     * The third flattening n.
+     */
+    private static final double N = WGS84_F / (2 - WGS84_F);
+    /**
+     * k0 times the rectifying radius A.
+     */
+    private static final double UTM_K0_A = UTM_K0 * WGS84_A / (1 + N) * (1 + N * N / 4 + N * N * N * N / 64);
+    /**
+     * The factor 2 sqrt(n) / (1 + n) of the conformal latitude, which is the
+     * eccentricity.
+     */
+    private static final double E = 2 * Math.sqrt(N) / (1 + N);
+    /**
+     * The coefficients of the Krüger series, accurate to well below a
+     * millimeter within a zone.
+     */
+    private static final double ALPHA1 = N / 2 - 2 * N * N / 3 + 5 * N * N * N / 16;
+    /**
+     * See {@link #ALPHA1}.
+     */
+    private static final double ALPHA2 = 13 * N * N / 48 - 3 * N * N * N / 5;
+    /**
+     * See {@link #ALPHA1}.
+     */
+    private static final double ALPHA3 = 61 * N * N * N / 240;
+    /**
+     * The static method of this class that implements each function.
+     */
+    private static final Map<Function, String> STATIC_METHODS = new IdentityHashMap<>();
+    /**
+     * The functions that are the same in both modes.
+     */
+    private static final List<Function> COMMON = Arrays.<Function>asList(
+            new Function("deg2rad", 1) {
+                @Override
+                public double apply(double... args) {
+                    return deg2rad(args[0]);
+                }
+            },
+            new Function("rad2deg", 1) {
+                @Override
+                public double apply(double... args) {
+                    return rad2deg(args[0]);
+                }
+            },
+            new Function("mercX", 1) {
+                @Override
+                public double apply(double... args) {
+                    return mercX(args[0]);
+                }
+            },
+            new Function("mercY", 1) {
+                @Override
+                public double apply(double... args) {
+                    return mercY(args[0]);
+                }
+            },
+            new Function("utmZone", 2) {
+                @Override
+                public double apply(double... args) {
+                    return utmZone(args[0], args[1]);
+                }
+            },
+            new Function("tileX", 2) {
+                @Override
+                public double apply(double... args) {
+                    return tileX(args[0], args[1]);
+                }
+            },
+            new Function("tileY", 2) {
+                @Override
+                public double apply(double... args) {
+                    return tileY(args[0], args[1]);
+                }
+            });
+    /**
+     * The trigonometric functions with {@link Math}.
+     */
+    private static final List<Function> EXACT = Arrays.<Function>asList(
+            new Function("haversine", 4) {
+                @Override
+                public double apply(double... args) {
+                    return haversine(args[0], args[1], args[2], args[3]);
+                }
+            },
+            new Function("utmEasting", 2) {
+                @Override
+                public double apply(double... args) {
+                    return utmEasting(args[0], args[1]);
+                }
+            },
+            new Function("utmNorthing", 2) {
+                @Override
+                public double apply(double... args) {
+                    return utmNorthing(args[0], args[1]);
+                }
+            });
+    /**
+     * The trigonometric functions with {@link FastTrig}.
+     */
+    private static final List<Function> FAST = Arrays.<Function>asList(
+            new Function("haversine", 4) {
+                @Override
+                public double apply(double... args) {
+                    return fastHaversine(args[0], args[1], args[2], args[3]);
+                }
+            },
+            new Function("utmEasting", 2) {
+                @Override
+                public double apply(double... args) {
+                    return fastUtmEasting(args[0], args[1]);
+                }
+            },
+            new Function("utmNorthing", 2) {
+                @Override
+                public double apply(double... args) {
+                    return fastUtmNorthing(args[0], args[1]);
+                }
+            });
+
+    static {
+        String[] methods = new String[]{"deg2rad", "rad2deg", "mercX", "mercY", "utmZone", "tileX", "tileY"};
+        for (int i = 0; i < methods.length; i++) {
+            STATIC_METHODS.put(COMMON.get(i), methods[i]);
+        }
+        methods = new String[]{"haversine", "utmEasting", "utmNorthing"};
+        for (int i = 0; i < methods.length; i++) {
+            STATIC_METHODS.put(EXACT.get(i), methods[i]);
+            STATIC_METHODS.put(FAST.get(i), "fast" + Character.toUpperCase(methods[i].charAt(0)) + methods[i].substring(1));
+        }
+    }
+
+    /**
+     * Utility class.
+     */
+    private GeoFunctions() {
+    }
+
+    /**
+     * @param fastTrig Use the approximations of {@link FastTrig}?
+     * @return The functions.
+     */
+    static List<Function> getFunctions(boolean fastTrig) {
+        Function[] functions = new Function[COMMON.size() + EXACT.size()];
+        COMMON.toArray(functions);
+        List<Function> trigonometric = fastTrig ? FAST : EXACT;
+        for (int i = 0; i < trigonometric.size(); i++) {
+            functions[COMMON.size() + i] = trigonometric.get(i);
+        }
+        return Collections.unmodifiableList(Arrays.asList(functions));
+    }
+
+    /**
+     * @param function A {@link Function}.
+     * @return The name of the static method of this class that implements it,
+     * {@code null} if it is none of the geo functions.
+     */
+    static String getStaticMethod(Function function) {
+        return STATIC_METHODS.get(function);
+    }
+
+    /**
+     * @param lat1 Latitude of the first point in degrees.
+     * @param lon1 Longitude of the first point in degrees.
+     * @param lat2 Latitude of the second point in degrees.
+     * @param lon2 Longitude of the second point in degrees.
+     * @return The great-circle distance in meters, see
+     * {@link GeoMath#haversine(double, double, double, double)}.
+     */
+    public static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        return GeoMath.haversine(lat1, lon1, lat2, lon2);
+    }
+
+    /**
+     * @param lat1 Latitude of the first point in degrees.
+     * @param lon1 Longitude of the first point in degrees.
+     * @param lat2 Latitude of the second point in degrees.
+     * @param lon2 Longitude of the second point in degrees.
+     * @return The great-circle distance in meters, with {@link FastTrig}.
+     */
+    public static double fastHaversine(double lat1, double lon1, double lat2, double lon2) {
+        return GeoMath.haversine(lat1, lon1, lat2, lon2, true);
+    }
+
+    /**
+     * @param degrees An angle in degrees.
+     * @return The angle in radians.
+     */
+    public static double deg2rad(double degrees) {
+        return Math.toRadians(degrees);
+    }
+
+    /**
+     * @param radians An angle in radians.
+     * @return The angle in degrees.
+     */
+    public static double rad2deg(double radians) {
+        return Math.toDegrees(radians);
+    }
+
+    /**
+     * @param lon A longitude in degrees.
+     * @return The Web Mercator x coordinate in meters.
+     */
+    public static double mercX(double lon) {
+        return WGS84_A * Math.toRadians(lon);
+    }
+
+    /**
+     * @param lat A latitude in degrees.
+     * @return The Web Mercator y coordinate in meters, infinite at the poles.
+     */
+    public static double mercY(double lat) {
+        double sinPhi = Math.sin(Math.toRadians(lat));
+        return WGS84_A / 2 * Math.log((1 + sinPhi) / (1 - sinPhi));
+    }
+
+    /**
+     * @param lat A latitude in degrees.
+     * @param lon A longitude in degrees.
+     * @return The UTM zone from 1 to 60, NaN outside of 80&deg;S to 84&deg;N.
+     */
+    public static double utmZone(double lat, double lon) {
+        int zone = zone(lat, lon);
+        return (zone == 0) ? Double.NaN : zone;
+    }
+
+    /**
+     * @param lat A latitude in degrees.
+     * @param lon A longitude in degrees.
+     * @return The easting in meters in the zone of {@link #utmZone}.
+     */
+    public static double utmEasting(double lat, double lon) {
+        return utm(lat, lon, false, false);
+    }
+
+    /**
+     * @param lat A latitude in degrees.
+     * @param lon A longitude in degrees.
+     * @return The northing in meters in the zone of {@link #utmZone}.
+     */
+    public static double utmNorthing(double lat, double lon) {
+        return utm(lat, lon, true, false);
+    }
+
+    /**
+     * @param lat A latitude in degrees.
+     * @param lon A longitude in degrees.
+     * @return {@link #utmEasting} with {@link FastTrig}.
+     */
+    public static double fastUtmEasting(double lat, double lon) {
+        return utm(lat, lon, false, true);
+    }
+
+    /**
+     * @param lat A latitude in degrees.
+     * @param lon A longitude in degrees.
+     * @return {@link #utmNorthing} with {@link FastTrig}.
+     */
+    public static double fastUtmNorthing(double lat, double lon) {
+        return utm(lat, lon, true, true);
+    }
+
+    /**
+     * @param lon A longitude in degrees.
+     * @param zoom A zoom level.
+     * @return The x index of the tile, NaN for an invalid zoom level.
+     */
+    public static double tileX(double lon, double zoom) {
+        if (!isZoom(zoom)) {
+            return Double.NaN;
+        }
+        return clampTile((lon + 180) / 360 * Math.scalb(1d, (int) zoom), zoom);
+    }
+
+    /**
+     * @param lat A latitude in degrees.
+     * @param zoom A zoom level.
+     * @return The y index of the tile, counted from the north, NaN for an
+     * invalid zoom level.
+     */
+    public static double tileY(double lat, double zoom) {
+        if (!isZoom(zoom)) {
+            return Double.NaN;
+        }
+        return clampTile((0.5 - mercY(lat) / (2 * Math.PI * WGS84_A)) * Math.scalb(1d, (int) zoom), zoom);
+    }
+
+    /**
+     * @param zoom A zoom level.
+     * @return Is it an integer from 0 to {@link #MAX_ZOOM}?
+     */
+    private static boolean isZoom(double zoom) {
+        return zoom >= 0 && zoom <= MAX_ZOOM && zoom == Math.rint(zoom);
+    }
+
+    /**
+     * @param position The position in tiles.
+     * @param zoom A valid zoom level.
+     * @return The index of the tile, clamped to the tiles of the zoom level.
+     */
+    private static double clampTile(double position, double zoom) {
+        if (Double.isNaN(position)) {
+            return Double.NaN;
+        }
+        return Math.max(0, Math.min(Math.scalb(1d, (int) zoom) - 1, Math.floor(position)));
+    }
+
+    /**
+     * @param lat A latitude in degrees.
+     * @param lon A longitude in degrees.
+     * @return The UTM zone, 0 if there is none.
+     */
+    private static int zone(double lat, double lon) {
+        if (!(lat >= -80 && lat <= 84 && lon >= -180 && lon <= 180)) {
+            return 0;
+        }
+        if (lat >= 56 && lat < 64 && lon >= 3 && lon < 12) {
+            return 32;
+        }
+        if (lat >= 72 && lon >= 0 && lon < 42) {
+            return (lon < 9) ? 31 : (lon < 21) ? 33 : (lon < 33) ? 35 : 37;
+        }
+        return Math.min(60, (int) Math.floor((lon + 180) / 6) + 1);
+    }
+
+    /**
+     * Transverse Mercator with the Krüger series of third order.
+     *
+     * @param lat A latitude in degrees.
+     * @param lon A longitude in degrees.
+     * @param northing Return the northing instead of the easting?
+     * @param fastTrig Use {@link FastTrig}?
+     * @return The coordinate in meters, NaN outside of the UTM zones.
+     */
+    private static double utm(double lat, double lon, boolean northing, boolean fastTrig) {
+        int zone = zone(lat, lon);
+        if (zone == 0) {
+            return Double.NaN;
+        }
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon - (6 * zone - 183));
+        double sinPhi = fastTrig ? FastTrig.sin(phi) : Math.sin(phi);
+        double sinLambda = fastTrig ? FastTrig.sin(lambda) : Math.sin(lambda);
+        double cosLambda = fastTrig ? FastTrig.cos(lambda) : Math.cos(lambda);
+        // Conformal latitude: tau = sinh(s), sqrt(1 + tau^2) = cosh(s)
+        double s = atanh(sinPhi) - E * atanh(E * sinPhi);
+        double tau = Math.sinh(s);
+        double xi = Math.atan2(tau, cosLambda);
+        double eta = atanh(sinLambda / Math.cosh(s));
+        // The multiple angles by recurrence instead of further trigonometry
+        double r2 = tau * tau + cosLambda * cosLambda;
+        double sin2 = 2 * tau * cosLambda / r2;
+        double cos2 = (cosLambda * cosLambda - tau * tau) / r2;
+        double sin4 = 2 * sin2 * cos2;
+        double cos4 = cos2 * cos2 - sin2 * sin2;
+        double sin6 = sin4 * cos2 + cos4 * sin2;
+        double cos6 = cos4 * cos2 - sin4 * sin2;
+        double exp2 = Math.exp(2 * eta);
+        double sinh2 = (exp2 - 1 / exp2) / 2;
+        double cosh2 = (exp2 + 1 / exp2) / 2;
+        double sinh4 = 2 * sinh2 * cosh2;
+        double cosh4 = cosh2 * cosh2 + sinh2 * sinh2;
+        double sinh6 = sinh4 * cosh2 + cosh4 * sinh2;
+        double cosh6 = cosh4 * cosh2 + sinh4 * sinh2;
+        if (northing) {
+            double y = UTM_K0_A * (xi + ALPHA1 * sin2 * cosh2 + ALPHA2 * sin4 * cosh4 + ALPHA3 * sin6 * cosh6);
+            return (lat < 0) ? y + UTM_FALSE_NORTHING : y;
+        }
+        return UTM_FALSE_EASTING + UTM_K0_A * (eta + ALPHA1 * cos2 * sinh2 + ALPHA2 * cos4 * sinh4 + ALPHA3 * cos6 * sinh6);
+    }
+
+    /**
+     * @param x A value between -1 and 1.
+     * @return Its inverse hyperbolic tangent.
+     */
+    private static double atanh(double x) {
+        return Math.log((1 + x) / (1 - x)) / 2;
+    }
+}
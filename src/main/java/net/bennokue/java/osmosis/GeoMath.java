@@ -0,0 +1,72 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * Geodetic helper functions. All of them work on primitive doubles and do
+ * not allocate anything.
+ *
+ * @author bennokue
+ */
+final class GeoMath {
+
+    /**
+     * The mean earth radius in meters (IUGG).
+     */
+    static final double EARTH_RADIUS = 6371008.8;
+
+    /**
+     * Utility class.
+     */
+    private GeoMath() {
+    }
+
+    /**
+     * The great-circle distance between two points, calculated with the
+     * haversine formula on a spherical earth.
+     *
+     * @param lat1 Latitude of the first point in degrees.
+     * @param lon1 Longitude of the first point in degrees.
+     * @param lat2 Latitude of the second point in degrees.
+     * @param lon2 Longitude of the second point in degrees.
+     * @return The distance in meters.
+     */
+    static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        return haversine(lat1, lon1, lat2, lon2, false);
+    }
+
+    /**
+     * The great-circle distance between two points, calculated with the
+     * haversine formula on a spherical earth. Beyond a quarter of the
+     * circumference, asin(sqrt(a)) magnifies every error of the haversine a,
+     * so the distance is taken from the complement 1 - a there, which is a
+     * sum of two non-negative terms.
+     *
+     * @param lat1 Latitude of the first point in degrees.
+     * @param lon1 Longitude of the first point in degrees.
+     * @param lat2 Latitude of the second point in degrees.
+     * @param lon2 Longitude of the second point in degrees.
+     * @param fastTrig Use the approximations of {@link FastTrig}?
+     * @return The distance in meters.
+     */
+    static double haversine(double lat1, double lon1, double lat2, double lon2, boolean fastTrig) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double halfDeltaPhi = (phi2 - phi1) / 2;
+        double halfDeltaLambda = Math.toRadians(lon2 - lon1) / 2;
+        double sinHalfDeltaPhi = fastTrig ? FastTrig.sin(halfDeltaPhi) : Math.sin(halfDeltaPhi);
+        double sinHalfDeltaLambda = fastTrig ? FastTrig.sin(halfDeltaLambda) : Math.sin(halfDeltaLambda);
+        double cosProduct = fastTrig ? FastTrig.cos(phi1) * FastTrig.cos(phi2) : Math.cos(phi1) * Math.cos(phi2);
+        double a = sinHalfDeltaPhi * sinHalfDeltaPhi + cosProduct * sinHalfDeltaLambda * sinHalfDeltaLambda;
+        if (!(a > 0.5)) {
+            return 2 * EARTH_RADIUS * (fastTrig ? FastTrig.asin(Math.sqrt(a)) : Math.asin(Math.sqrt(a)));
+        }
+        // 1 - a = cos^2(dPhi/2) cos^2(dLambda/2) + sin^2((phi1+phi2)/2) sin^2(dLambda/2)
+        double halfSumPhi = (phi1 + phi2) / 2;
+        double cosHalfDeltaPhi = fastTrig ? FastTrig.cos(halfDeltaPhi) : Math.cos(halfDeltaPhi);
+        double cosHalfDeltaLambda = fastTrig ? FastTrig.cos(halfDeltaLambda) : Math.cos(halfDeltaLambda);
+        double sinHalfSumPhi = fastTrig ? FastTrig.sin(halfSumPhi) : Math.sin(halfSumPhi);
+        double complement = cosHalfDeltaPhi * cosHalfDeltaPhi * cosHalfDeltaLambda * cosHalfDeltaLambda
+                + sinHalfSumPhi * sinHalfSumPhi * sinHalfDeltaLambda * sinHalfDeltaLambda;
+        double sqrtComplement = Math.min(1d, Math.sqrt(complement));
+        return 2 * EARTH_RADIUS * (Math.PI / 2 - (fastTrig ? FastTrig.asin(sqrtComplement) : Math.asin(sqrtComplement)));
+    }
+}
@@ -0,0 +1,420 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+
+/**
+ * Evaluates calculations on Ways and Relations. Their variables are aggregates
+ * over the Nodes they reference:
+ * <ul>
+ * <li>{@code node_count}: The number of Nodes of a Way. The repeated first
+ * Node of a closed Way is counted once. For a Relation, the number of member
+ * Nodes plus the {@code node_count} of every member Way, see below.</li>
+ * <li>{@code length}: The haversine length of a Way in meters, the sum of the
+ * member Ways' lengths for a Relation.</li>
+ * <li>{@code member_count}: The number of members of a Relation.</li>
+ * <li>{@code min_<tag>}, {@code max_<tag>}, {@code avg_<tag>}: For every
+ * aggregate tag, over all referenced Nodes that have a numeric value. Other
+ * characters than letters, digits and {@code _} in the tag name are replaced
+ * by {@code _}, e.g. {@code max_addr_height}.</li>
+ * </ul>
+ * A Relation only keeps the aggregates of its member Ways, not their Nodes.
+ * So a Node that is shared by several members, like the Node joining two
+ * consecutive Ways of a route or a multipolygon, is counted once per member,
+ * and weighted as often in {@code avg_<tag>}.
+ * The Nodes have to be passed to {@link #addNode(org.openstreetmap.osmosis.core.domain.v0_6.Node) addNode(...)}
+ * first, their coordinates and aggregate tag values are kept in a
+ * {@link RecordStore}. The Ways' aggregates are kept as well if there is
+ * a Relation calculation. Nodes and Ways that are not in the stream (e.g. cut
+ * off by a bounding box) are skipped. Relations that are members of a
+ * Relation are ignored.
+ * <p>
+ * Everything happens on the thread that feeds the task, so this class is not
+ * thread-safe.</p>
+ *
+ * @author bennokue
+ */
+class GeometryCalculator implements Releasable {
+
+    /**
+     * The Way calculation or {@code null}.
+     */
+    private final Calculation wayCalculation;
+    /**
+     * The Relation calculation or {@code null}.
+     */
+    private final Calculation relationCalculation;
+    /**
+     * The Formula of {@link #wayCalculation} or {@code null}.
+     */
+    private final Formula wayFormula;
+    /**
+     * The Formula of {@link #relationCalculation} or {@code null}.
+     */
+    private final Formula relationFormula;
+    /**
+     * The tags whose values are aggregated.
+     */
+    private final String[] aggregateTags;
+    /**
+     * Tag key to its index in {@link #aggregateTags}.
+     */
+    private final HashMap<String, Integer> aggregateTagIndex = new HashMap<>();
+    /**
+     * Parses the aggregate tag values.
+     */
+    private final TagValueParser parser;
+    /**
+     * The metrics of the feeding thread.
+     */
+    private final MetricsStripe metrics;
+    /**
+     * Node id to {@code [lat, lon, value of each aggregate tag]}, missing
+     * values are NaN.
+     */
+    private final RecordStore nodes;
+    /**
+     * Way id to its aggregate, see {@link #newAggregate()}. {@code null} if
+     * there is no Relation calculation.
+     */
+    private final RecordStore ways;
+    /**
+     * Buffer for a Node record.
+     */
+    private final double[] nodeRecord;
+    /**
+     * Buffer for a Way record.
+     */
+    private final double[] wayRecord;
+    /**
+     * The aggregate of the current Way or Relation.
+     */
+    private final double[] aggregate;
+    /**
+     * The variable values of the current Way or Relation.
+     */
+    private final double[] values;
+    /**
+     * Writes the results.
+     */
+    private final ResultFormatter formatter;
+
+    /**
+     * Set up the calculations.
+     *
+     * @param wayCalculation The Way calculation or {@code null}.
+     * @param relationCalculation The Relation calculation or {@code null}.
+     * @param aggregateTags The Node tags whose values are aggregated.
+     * @param recordStoreType Where the Node and Way values are kept.
+     * @param engine The engine that evaluates the calculations.
+     * @param fastTrig See {@link CalculatorOptions#setFastTrig(boolean)}.
+     * @param lenientNumbers See {@link TagValueParser#TagValueParser(boolean)}.
+     * @param outputFormat The format of the results, see
+     * {@link ResultFormatter}.
+     * @param metrics The metrics of the feeding thread.
+     * @throws IllegalArgumentException If a calculation is invalid or two
+     * aggregate tags result in the same variable name.
+     */
+    GeometryCalculator(Calculation wayCalculation, Calculation relationCalculation, Collection<String> aggregateTags,
+            CalculatorOptions.RecordStoreType recordStoreType, CalculatorOptions.Engine engine, boolean fastTrig, boolean lenientNumbers, String outputFormat,
+            MetricsStripe metrics) {
+        this.wayCalculation = wayCalculation;
+        this.relationCalculation = relationCalculation;
+        this.aggregateTags = new LinkedHashSet<>(aggregateTags).toArray(new String[0]);
+        for (int i = 0; i < this.aggregateTags.length; i++) {
+            this.aggregateTagIndex.put(this.aggregateTags[i], i);
+        }
+        this.parser = new TagValueParser(lenientNumbers);
+        this.formatter = new ResultFormatter(outputFormat);
+        this.metrics = metrics;
+
+        List<String> wayVariables = new ArrayList<>();
+        wayVariables.add("node_count");
+        wayVariables.add("length");
+        addTagVariables(wayVariables);
+        List<String> relationVariables = new ArrayList<>();
+        relationVariables.add("member_count");
+        relationVariables.add("node_count");
+        relationVariables.add("length");
+        addTagVariables(relationVariables);
+
+        this.wayFormula = (wayCalculation == null) ? null
+                : new FormulaFactory(new VariableSlots(new ArrayList<String>(), wayVariables), engine, fastTrig).create(wayCalculation.getFormula());
+        this.relationFormula = (relationCalculation == null) ? null
+                : new FormulaFactory(new VariableSlots(new ArrayList<String>(), relationVariables), engine, fastTrig).create(relationCalculation.getFormula());
+
+        this.nodes = createRecordStore(recordStoreType, 2 + this.aggregateTags.length);
+        this.ways = (relationCalculation == null) ? null : createRecordStore(recordStoreType, 2 + 4 * this.aggregateTags.length);
+        this.nodeRecord = new double[this.nodes.getRecordLength()];
+        this.wayRecord = new double[2 + 4 * this.aggregateTags.length];
+        this.aggregate = new double[2 + 4 * this.aggregateTags.length];
+        this.values = new double[relationVariables.size()];
+    }
+
+    /**
+     * Create an empty {@link RecordStore}.
+     *
+     * @param type The type of the store.
+     * @param recordLength The number of doubles per record.
+     * @return The store.
+     */
+    static RecordStore createRecordStore(CalculatorOptions.RecordStoreType type, int recordLength) {
+        switch (type) {
+            case MAPPED:
+                return new MappedRecordStore(recordLength);
+            case SPARSE:
+                return new SparseRecordStore(recordLength);
+            case ARRAY:
+            default:
+                return new ArrayRecordStore(recordLength);
+        }
+    }
+
+    /**
+     * Add the {@code min_}, {@code max_} and {@code avg_} variables of every
+     * aggregate tag.
+     *
+     * @param variables Where to add the variable names.
+     * @throws IllegalArgumentException If two tags result in the same name.
+     */
+    private void addTagVariables(List<String> variables) {
+        for (String prefix : new String[]{"min_", "max_", "avg_"}) {
+            for (String tag : this.aggregateTags) {
+                String name = prefix + tag.replaceAll("[^\\p{L}\\p{N}_]", "_");
+                if (variables.contains(name)) {
+                    throw new IllegalArgumentException("Aggregate tag " + tag + " results in the variable " + name + " twice!");
+                }
+                variables.add(name);
+            }
+        }
+    }
+
+    /**
+     * Remember a Node's coordinates and aggregate tag values.
+     *
+     * @param node The Node, as read from the input.
+     */
+    void addNode(Node node) {
+        this.nodeRecord[0] = node.getLatitude();
+        this.nodeRecord[1] = node.getLongitude();
+        for (int i = 0; i < this.aggregateTags.length; i++) {
+            this.nodeRecord[2 + i] = Double.NaN;
+        }
+        if (this.aggregateTags.length > 0) {
+            for (Tag tag : node.getTags()) {
+                Integer index = this.aggregateTagIndex.get(tag.getKey());
+                if (index != null) {
+                    this.nodeRecord[2 + index] = this.parser.parse(tag.getValue());
+                    if (Double.isNaN(this.nodeRecord[2 + index])) {
+                        this.metrics.increment(MetricsStripe.PARSE_FAILURES);
+                    }
+                }
+            }
+        }
+        this.nodes.put(node.getId(), this.nodeRecord);
+    }
+
+    /**
+     * Aggregate the Nodes of a Way and evaluate the Way calculation.
+     *
+     * @param container The Way.
+     * @return The Way with the output tag, or the unchanged container if
+     * there is no Way calculation.
+     */
+    WayContainer processWay(WayContainer container) {
+        List<WayNode> wayNodes = container.getEntity().getWayNodes();
+        newAggregate();
+        int count = wayNodes.size();
+        // The repeated first Node of a closed Way only adds to the length
+        boolean closed = count > 1 && wayNodes.get(0).getNodeId() == wayNodes.get(count - 1).getNodeId();
+        double previousLat = Double.NaN;
+        double previousLon = Double.NaN;
+        for (int i = 0; i < count; i++) {
+            if (!this.nodes.get(wayNodes.get(i).getNodeId(), this.nodeRecord)) {
+                continue;
+            }
+            double lat = this.nodeRecord[0];
+            double lon = this.nodeRecord[1];
+            if (!Double.isNaN(previousLat)) {
+                this.aggregate[1] += GeoMath.haversine(previousLat, previousLon, lat, lon);
+            }
+            previousLat = lat;
+            previousLon = lon;
+            if (!(closed && i == count - 1)) {
+                addNodeRecord();
+            }
+        }
+        if (this.ways != null) {
+            this.ways.put(container.getEntity().getId(), this.aggregate);
+        }
+        if (this.wayFormula == null) {
+            return container;
+        }
+        this.values[0] = this.aggregate[0];
+        this.values[1] = this.aggregate[1];
+        fillTagValues(2);
+        this.metrics.increment(MetricsStripe.WAYS_CALCULATED);
+        WayContainer result = container.getWriteableInstance();
+        setOutputTag(result.getEntity(), this.wayCalculation.getOutputTag(), evaluate(this.wayFormula));
+        return result;
+    }
+
+    /**
+     * Aggregate the member Nodes and Ways of a Relation and evaluate the
+     * Relation calculation. The aggregates of the members are added up, so
+     * shared Nodes are counted once per member.
+     *
+     * @param container The Relation.
+     * @return The Relation with the output tag, or the unchanged container if
+     * there is no Relation calculation.
+     */
+    RelationContainer processRelation(RelationContainer container) {
+        if (this.relationFormula == null) {
+            return container;
+        }
+        List<RelationMember> members = container.getEntity().getMembers();
+        newAggregate();
+        for (RelationMember member : members) {
+            if (member.getMemberType() == EntityType.Node) {
+                if (this.nodes.get(member.getMemberId(), this.nodeRecord)) {
+                    addNodeRecord();
+                }
+            } else if (member.getMemberType() == EntityType.Way) {
+                if (this.ways.get(member.getMemberId(), this.wayRecord)) {
+                    addWayRecord();
+                }
+            }
+        }
+        this.values[0] = members.size();
+        this.values[1] = this.aggregate[0];
+        this.values[2] = this.aggregate[1];
+        fillTagValues(3);
+        this.metrics.increment(MetricsStripe.RELATIONS_CALCULATED);
+        RelationContainer result = container.getWriteableInstance();
+        setOutputTag(result.getEntity(), this.relationCalculation.getOutputTag(), evaluate(this.relationFormula));
+        return result;
+    }
+
+    /**
+     * Reset {@link #aggregate}: {@code [node count, length]}, followed by
+     * {@code [min, max, sum, count]} for every aggregate tag.
+     */
+    private void newAggregate() {
+        this.aggregate[0] = 0;
+        this.aggregate[1] = 0;
+        for (int i = 0; i < this.aggregateTags.length; i++) {
+            int offset = 2 + 4 * i;
+            this.aggregate[offset] = Double.POSITIVE_INFINITY;
+            this.aggregate[offset + 1] = Double.NEGATIVE_INFINITY;
+            this.aggregate[offset + 2] = 0;
+            this.aggregate[offset + 3] = 0;
+        }
+    }
+
+    /**
+     * Add {@link #nodeRecord} to {@link #aggregate}.
+     */
+    private void addNodeRecord() {
+        this.aggregate[0]++;
+        for (int i = 0; i < this.aggregateTags.length; i++) {
+            double value = this.nodeRecord[2 + i];
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            int offset = 2 + 4 * i;
+            this.aggregate[offset] = Math.min(this.aggregate[offset], value);
+            this.aggregate[offset + 1] = Math.max(this.aggregate[offset + 1], value);
+            this.aggregate[offset + 2] += value;
+            this.aggregate[offset + 3]++;
+        }
+    }
+
+    /**
+     * Add {@link #wayRecord} to {@link #aggregate}.
+     */
+    private void addWayRecord() {
+        this.aggregate[0] += this.wayRecord[0];
+        this.aggregate[1] += this.wayRecord[1];
+        for (int i = 0; i < this.aggregateTags.length; i++) {
+            int offset = 2 + 4 * i;
+            this.aggregate[offset] = Math.min(this.aggregate[offset], this.wayRecord[offset]);
+            this.aggregate[offset + 1] = Math.max(this.aggregate[offset + 1], this.wayRecord[offset + 1]);
+            this.aggregate[offset + 2] += this.wayRecord[offset + 2];
+            this.aggregate[offset + 3] += this.wayRecord[offset + 3];
+        }
+    }
+
+    /**
+     * Copy the min, max and avg values of {@link #aggregate} to
+     * {@link #values}. They are NaN if no Node had a value.
+     *
+     * @param firstSlot The slot of the first {@code min_} variable.
+     */
+    private void fillTagValues(int firstSlot) {
+        int tagCount = this.aggregateTags.length;
+        for (int i = 0; i < tagCount; i++) {
+            int offset = 2 + 4 * i;
+            boolean empty = this.aggregate[offset + 3] == 0;
+            this.values[firstSlot + i] = empty ? Double.NaN : this.aggregate[offset];
+            this.values[firstSlot + tagCount + i] = empty ? Double.NaN : this.aggregate[offset + 1];
+            this.values[firstSlot + 2 * tagCount + i] = empty ? Double.NaN : this.aggregate[offset + 2] / this.aggregate[offset + 3];
+        }
+    }
+
+    /**
+     * Evaluate a Formula on {@link #values} and count NaN and infinite
+     * results.
+     *
+     * @param formula The Formula.
+     * @return The result.
+     */
+    private double evaluate(Formula formula) {
+        double result = formula.evaluate(this.values);
+        if (Double.isNaN(result)) {
+            this.metrics.increment(MetricsStripe.NAN_RESULTS);
+        } else if (Double.isInfinite(result)) {
+            this.metrics.increment(MetricsStripe.INFINITE_RESULTS);
+        }
+        return result;
+    }
+
+    /**
+     * Replace the output tag of an entity.
+     *
+     * @param entity A writeable entity.
+     * @param outputTag The name of the output tag, existing tags are removed
+     * ignoring the case.
+     * @param value The result.
+     */
+    private void setOutputTag(Entity entity, String outputTag, double value) {
+        Collection<Tag> tags = entity.getTags();
+        Iterator<Tag> iterator = tags.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getKey().equalsIgnoreCase(outputTag)) {
+                iterator.remove();
+            }
+        }
+        tags.add(new Tag(outputTag, this.formatter.format(value)));
+    }
+
+    @Override
+    public void release() {
+        this.nodes.release();
+        if (this.ways != null) {
+            this.ways.release();
+        }
+    }
+}
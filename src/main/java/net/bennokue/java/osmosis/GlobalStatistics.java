@@ -0,0 +1,175 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+
+/**
+ * Aggregates the values of Node tags over the whole input, for the first
+ * pass of the two-pass mode: minimum, maximum, mean and standard deviation
+ * (population, by Welford's online algorithm) and the 5%, 25%, 50%, 75% and
+ * 95% quantiles (estimated by {@link P2Quantile}). They become the variables
+ * {@code min_<tag>}, {@code max_<tag>}, {@code mean_<tag>},
+ * {@code stddev_<tag>}, {@code p5_<tag>}, {@code p25_<tag>},
+ * {@code p50_<tag>}, {@code p75_<tag>} and {@code p95_<tag>} of the Node
+ * calculations. The memory does not depend on the number of Nodes.
+ * <p>
+ * Not thread-safe.</p>
+ *
+ * @author bennokue
+ */
+class GlobalStatistics {
+
+    /**
+     * The prefixes of the variables, in the order of {@link #getValues()}.
+     */
+    private static final String[] PREFIXES = new String[]{"min_", "max_", "mean_", "stddev_", "p5_", "p25_", "p50_", "p75_", "p95_"};
+    /**
+     * The estimated quantiles.
+     */
+    private static final double[] QUANTILES = new double[]{0.05, 0.25, 0.5, 0.75, 0.95};
+    /**
+     * The aggregated tags.
+     */
+    private final String[] tags;
+    /**
+     * Parses the tag values.
+     */
+    private final TagValueParser parser;
+    /**
+     * The number of numeric values of each tag.
+     */
+    private final long[] counts;
+    /**
+     * The minimum of each tag.
+     */
+    private final double[] min;
+    /**
+     * The maximum of each tag.
+     */
+    private final double[] max;
+    /**
+     * The running mean of each tag.
+     */
+    private final double[] mean;
+    /**
+     * The running sum of squared deviations from the mean of each tag.
+     */
+    private final double[] squares;
+    /**
+     * The quantile estimators of each tag.
+     */
+    private final P2Quantile[][] quantiles;
+
+    /**
+     * @param tags The tags whose values are aggregated.
+     * @param lenientNumbers See {@link TagValueParser#TagValueParser(boolean)}.
+     */
+    GlobalStatistics(Collection<String> tags, boolean lenientNumbers) {
+        this.tags = tags.toArray(new String[tags.size()]);
+        this.parser = new TagValueParser(lenientNumbers);
+        this.counts = new long[this.tags.length];
+        this.min = new double[this.tags.length];
+        this.max = new double[this.tags.length];
+        this.mean = new double[this.tags.length];
+        this.squares = new double[this.tags.length];
+        this.quantiles = new P2Quantile[this.tags.length][QUANTILES.length];
+        for (int t = 0; t < this.tags.length; t++) {
+            this.min[t] = Double.POSITIVE_INFINITY;
+            this.max[t] = Double.NEGATIVE_INFINITY;
+            for (int q = 0; q < QUANTILES.length; q++) {
+                this.quantiles[t][q] = new P2Quantile(QUANTILES[q]);
+            }
+        }
+    }
+
+    /**
+     * @param tags The aggregated tags.
+     * @return The variable names, in the order of {@link #getValues()}.
+     * Characters other than letters, digits and {@code _} become {@code _}.
+     * @throws IllegalArgumentException If two tags result in the same
+     * variable.
+     */
+    static List<String> getVariables(Collection<String> tags) {
+        List<String> variables = new ArrayList<>();
+        for (String tag : tags) {
+            for (String prefix : PREFIXES) {
+                String name = prefix + tag.replaceAll("[^\\p{L}\\p{N}_]", "_");
+                if (variables.contains(name)) {
+                    throw new IllegalArgumentException("Statistics tag " + tag + " results in the variable " + name + " twice!");
+                }
+                variables.add(name);
+            }
+        }
+        return variables;
+    }
+
+    /**
+     * @param node A Node of the input.
+     */
+    void addNode(Node node) {
+        for (Tag tag : node.getTags()) {
+            for (int t = 0; t < this.tags.length; t++) {
+                if (this.tags[t].equals(tag.getKey())) {
+                    add(t, this.parser.parse(tag.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param t The index of a tag.
+     * @param value One of its values, NaN values are ignored.
+     */
+    private void add(int t, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        this.counts[t]++;
+        this.min[t] = Math.min(this.min[t], value);
+        this.max[t] = Math.max(this.max[t], value);
+        double delta = value - this.mean[t];
+        this.mean[t] += delta / this.counts[t];
+        this.squares[t] += delta * (value - this.mean[t]);
+        for (P2Quantile quantile : this.quantiles[t]) {
+            quantile.add(value);
+        }
+    }
+
+    /**
+     * @return The values of the variables, NaN for tags without numeric
+     * values.
+     */
+    double[] getValues() {
+        double[] values = new double[this.tags.length * PREFIXES.length];
+        int i = 0;
+        for (int t = 0; t < this.tags.length; t++) {
+            boolean empty = this.counts[t] == 0;
+            values[i++] = empty ? Double.NaN : this.min[t];
+            values[i++] = empty ? Double.NaN : this.max[t];
+            values[i++] = empty ? Double.NaN : this.mean[t];
+            values[i++] = empty ? Double.NaN : Math.sqrt(this.squares[t] / this.counts[t]);
+            for (P2Quantile quantile : this.quantiles[t]) {
+                values[i++] = quantile.estimate();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return The statistics of every tag, one line each.
+     */
+    String getReport() {
+        StringBuilder report = new StringBuilder("Statistics of the first pass:");
+        double[] values = getValues();
+        for (int t = 0; t < this.tags.length; t++) {
+            int offset = t * PREFIXES.length;
+            report.append(String.format(Locale.ENGLISH, "%n  %s: %d values, min %s, max %s, mean %s, stddev %s, median ~%s",
+                    this.tags[t], this.counts[t], values[offset], values[offset + 1], values[offset + 2], values[offset + 3], values[offset + 6]));
+        }
+        return report.toString();
+    }
+}
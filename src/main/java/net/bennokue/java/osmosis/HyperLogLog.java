@@ -0,0 +1,83 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * Estimates the number of distinct Strings in a stream in constant memory
+ * (HyperLogLog by Flajolet et al.): Each String is hashed to 64 bits, the
+ * first {@value #PRECISION} bits choose a register, which keeps the maximum
+ * number of leading zeros of the remaining bits. With {@value #REGISTERS}
+ * one-byte registers, the standard error is about 3%. Small counts are
+ * estimated by linear counting, so they are nearly exact.
+ * <p>
+ * Not thread-safe.</p>
+ *
+ * @author bennokue
+ */
+class HyperLogLog {
+
+    /**
+     * The number of hash bits that choose the register.
+     */
+    static final int PRECISION = 10;
+    /**
+     * The number of registers.
+     */
+    static final int REGISTERS = 1 << PRECISION;
+    /**
+     * The bias correction of the raw estimate for {@link #REGISTERS}.
+     */
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+    /**
+     * The registers.
+     */
+    private final byte[] registers = new byte[REGISTERS];
+
+    /**
+     * @param value A String of the stream.
+     */
+    void add(String value) {
+        long hash = hash(value);
+        int register = (int) (hash >>> (Long.SIZE - PRECISION));
+        // The marker bit limits the rank if all remaining bits are zero
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > this.registers[register]) {
+            this.registers[register] = (byte) rank;
+        }
+    }
+
+    /**
+     * @return The estimated number of distinct Strings added so far.
+     */
+    long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : this.registers) {
+            sum += Math.scalb(1d, -register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @param value A String.
+     * @return Its 64 bit hash: a polynomial over the characters, mixed with
+     * the finalizer of MurmurHash3.
+     */
+    static long hash(String value) {
+        long hash = 1125899906842597L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = 31 * hash + value.charAt(i);
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,140 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+
+/**
+ * A map from {@code long} keys to {@code int} values with open addressing and
+ * linear probing. Keys and values are kept in primitive arrays, so neither
+ * lookups nor insertions allocate anything except when the table grows.
+ * <p>
+ * Not thread-safe.</p>
+ *
+ * @author bennokue
+ */
+class LongIntHashMap {
+
+    /**
+     * The table grows when it is fuller than this.
+     */
+    private static final double MAX_LOAD = 0.5;
+    /**
+     * The keys, {@link #used} tells which positions are occupied.
+     */
+    private long[] keys;
+    /**
+     * The values, at the position of their key.
+     */
+    private int[] values;
+    /**
+     * Which positions are occupied.
+     */
+    private boolean[] used;
+    /**
+     * The number of entries.
+     */
+    private int size = 0;
+
+    /**
+     * Create an empty map.
+     *
+     * @param expectedSize The number of entries the map should hold without
+     * growing.
+     */
+    LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.used = new boolean[capacity];
+    }
+
+    /**
+     * @return The number of entries.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return The number of positions of the table.
+     */
+    int capacity() {
+        return this.keys.length;
+    }
+
+    /**
+     * @param key A key.
+     * @param missingValue What to return if the key is not in the map.
+     * @return The key's value or {@code missingValue}.
+     */
+    int get(long key, int missingValue) {
+        int mask = this.keys.length - 1;
+        for (int position = hash(key) & mask; this.used[position]; position = (position + 1) & mask) {
+            if (this.keys[position] == key) {
+                return this.values[position];
+            }
+        }
+        return missingValue;
+    }
+
+    /**
+     * Store a value, replacing the previous value of the key.
+     *
+     * @param key The key.
+     * @param value The value.
+     */
+    void put(long key, int value) {
+        if (this.size + 1 > this.keys.length * MAX_LOAD) {
+            grow();
+        }
+        int mask = this.keys.length - 1;
+        int position = hash(key) & mask;
+        while (this.used[position]) {
+            if (this.keys[position] == key) {
+                this.values[position] = value;
+                return;
+            }
+            position = (position + 1) & mask;
+        }
+        this.used[position] = true;
+        this.keys[position] = key;
+        this.values[position] = value;
+        this.size++;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    void clear() {
+        Arrays.fill(this.used, false);
+        this.size = 0;
+    }
+
+    /**
+     * Double the table and insert all entries again.
+     */
+    private void grow() {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        boolean[] oldUsed = this.used;
+        this.keys = new long[oldKeys.length * 2];
+        this.values = new int[oldKeys.length * 2];
+        this.used = new boolean[oldKeys.length * 2];
+        this.size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Spread the bits of a key, OSM ids are often consecutive.
+     *
+     * @param key The key.
+     * @return The hash code.
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,78 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * A lookup table that gives the Node calculations a variable from an
+ * external file, joined on the Node id or on the value of a Node tag, see
+ * {@link LookupTable}.
+ *
+ * @author bennokue
+ */
+public class Lookup {
+
+    /**
+     * The key that stands for the Node id.
+     */
+    public static final String ID_KEY = "id";
+    /**
+     * The name of the variable.
+     */
+    private final String name;
+    /**
+     * {@link #ID_KEY} or the tag whose value is looked up.
+     */
+    private final String key;
+    /**
+     * The file of the table.
+     */
+    private final String file;
+
+    /**
+     * Create a Lookup.
+     *
+     * @param name The name of the variable.
+     * @param key {@link #ID_KEY} or the tag whose value is looked up.
+     * @param file The file of the table: {@code .csv} for lines of
+     * {@code key,value}, otherwise a binary table (see {@link LookupTable}).
+     */
+    public Lookup(String name, String key, String file) {
+        if (name.isEmpty() || key.isEmpty() || file.isEmpty()) {
+            throw new IllegalArgumentException("A lookup table needs a name, a key and a file!");
+        }
+        this.name = name;
+        this.key = key;
+        this.file = file;
+    }
+
+    /**
+     * @return The name of the variable.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return {@link #ID_KEY} or the tag whose value is looked up.
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return The file of the table.
+     */
+    public String getFile() {
+        return this.file;
+    }
+
+    /**
+     * @return Is the table keyed by Node id?
+     */
+    public boolean isIdKey() {
+        return ID_KEY.equals(this.key);
+    }
+
+    @Override
+    public String toString() {
+        return this.name + "=" + this.key + "@" + this.file;
+    }
+}
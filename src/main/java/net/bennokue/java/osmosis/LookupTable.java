@@ -0,0 +1,437 @@
+package net.bennokue.java.osmosis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+
+/**
+ * A table of numbers from an external file, joined to the Nodes on their id
+ * or on the value of a tag (see {@link Lookup}). Two formats are supported:
+ * <ul>
+ * <li>{@code .csv} files with one {@code key,value} pair per line (the
+ * value is the last field, so keys may contain commas). Empty lines, lines
+ * starting with {@code #} and a header line are skipped. The table is kept
+ * on the heap in a {@link LongIntHashMap} from the id, or an open-addressing
+ * table of the tag values, to the position in a {@code double[]}, about 40
+ * bytes per entry plus the tag values.</li>
+ * <li>Binary files (any other extension) for tables keyed by id, with many
+ * millions of rows: 16 byte records of a big-endian {@code long} id and a
+ * {@code double} value, sorted by id. The file is memory-mapped and searched
+ * binarily, it takes no heap at all.</li>
+ * </ul>
+ * The load time and the memory are logged. Lookups are thread-safe once the
+ * table is loaded.
+ *
+ * @author bennokue
+ */
+abstract class LookupTable {
+
+    private static final Logger log = Logger.getLogger(LookupTable.class.getName());
+    /**
+     * The size of a record of a binary table.
+     */
+    static final int RECORD_BYTES = 16;
+    /**
+     * The definition of the table.
+     */
+    final Lookup lookup;
+
+    /**
+     * @param lookup The definition of the table.
+     */
+    private LookupTable(Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    /**
+     * Load a table and log the load time and the memory it takes.
+     *
+     * @param lookup The definition of the table.
+     * @return The table.
+     * @throws IllegalArgumentException If the file cannot be read or is
+     * malformed.
+     */
+    static LookupTable load(Lookup lookup) {
+        File file = new File(lookup.getFile());
+        long start = System.nanoTime();
+        LookupTable table;
+        try {
+            if (file.getName().toLowerCase(Locale.ENGLISH).endsWith(".csv")) {
+                table = HashTable.read(lookup, file);
+            } else if (lookup.isIdKey()) {
+                table = MappedTable.map(lookup, file);
+            } else {
+                throw new IllegalArgumentException("The binary lookup table " + lookup + " has to be keyed by " + Lookup.ID_KEY + "!");
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read the lookup table " + lookup + ".", e);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        double megabytes = table.getHeapBytes() / 1e6;
+        log.log(Level.INFO, String.format(Locale.ENGLISH, "Loaded lookup table %s: %d entries in %d ms, %.1f MB on the heap (%.1f MB per million entries)%s",
+                lookup, table.size(), millis, megabytes, (table.size() == 0) ? 0 : megabytes * 1e6 / table.size(),
+                (table instanceof MappedTable) ? String.format(Locale.ENGLISH, ", %.1f MB mapped", file.length() / 1e6) : ""));
+        return table;
+    }
+
+    /**
+     * @param node A Node.
+     * @return The value for its id or for the value of its key tag, NaN if
+     * there is none.
+     */
+    double get(Node node) {
+        if (this.lookup.isIdKey()) {
+            return get(node.getId());
+        }
+        for (Tag tag : node.getTags()) {
+            if (tag.getKey().equals(this.lookup.getKey())) {
+                return get(tag.getValue());
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * @param id A Node id.
+     * @return Its value, NaN if there is none.
+     */
+    abstract double get(long id);
+
+    /**
+     * @param value A tag value.
+     * @return Its value, NaN if there is none.
+     */
+    abstract double get(String value);
+
+    /**
+     * @return The number of entries.
+     */
+    abstract long size();
+
+    /**
+     * @return The approximate number of heap bytes the table takes.
+     */
+    abstract long getHeapBytes();
+
+    /**
+     * A table read from a CSV file into a primitive hash map (ids) or an
+     * open-addressing hash table (tag values). The tag values are compared on
+     * every probe, so values with the same hash are told apart.
+     */
+    static final class HashTable extends LookupTable {
+
+        /**
+         * The position of each id in {@link #values}, {@code null} for tables
+         * keyed by a tag.
+         */
+        private final LongIntHashMap positions;
+        /**
+         * The values.
+         */
+        private double[] values = new double[1024];
+        /**
+         * The tag values at the same positions, {@code null} for tables keyed
+         * by id.
+         */
+        private String[] keys;
+        /**
+         * The hash table of the tag values with linear probing: The position
+         * in {@link #keys} plus one, 0 for an empty slot. At most half full,
+         * the length is a power of two. {@code null} for tables keyed by id.
+         */
+        private int[] slots;
+        /**
+         * The number of entries.
+         */
+        private int size = 0;
+        /**
+         * The number of characters of the {@link #keys}.
+         */
+        private long keyChars = 0;
+
+        /**
+         * @param lookup The definition of the table.
+         */
+        private HashTable(Lookup lookup) {
+            super(lookup);
+            this.positions = lookup.isIdKey() ? new LongIntHashMap(1024) : null;
+            this.keys = lookup.isIdKey() ? null : new String[this.values.length];
+            this.slots = lookup.isIdKey() ? null : new int[2 * this.values.length];
+        }
+
+        /**
+         * @param lookup The definition of the table.
+         * @param file The CSV file.
+         * @return The table.
+         * @throws IOException If the file cannot be read.
+         */
+        static HashTable read(Lookup lookup, File file) throws IOException {
+            HashTable table = new HashTable(lookup);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                int lineNumber = 0;
+                boolean first = true;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    int separator = line.lastIndexOf(',');
+                    String key = (separator < 0) ? "" : line.substring(0, separator).trim();
+                    double value = (separator < 0) ? Double.NaN : parseNumber(line.substring(separator + 1));
+                    if (Double.isNaN(value)) {
+                        if (first) {
+                            // A header
+                            first = false;
+                            continue;
+                        }
+                        throw new IllegalArgumentException("Line " + lineNumber + " of the lookup table " + lookup + " is no key,number pair!");
+                    }
+                    first = false;
+                    table.put(key, value, lineNumber);
+                }
+            }
+            return table;
+        }
+
+        /**
+         * @param text A value of the file.
+         * @return The number, NaN if it is none.
+         */
+        private static double parseNumber(String text) {
+            try {
+                return Double.parseDouble(text.trim());
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        /**
+         * @param key The key as it is written in the file.
+         * @param value Its value.
+         * @param lineNumber The line, for error messages.
+         */
+        private void put(String key, double value, int lineNumber) {
+            if (this.keys == null) {
+                long id;
+                try {
+                    id = Long.parseLong(key);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Line " + lineNumber + " of the lookup table " + this.lookup + " has no id!", e);
+                }
+                int position = this.positions.get(id, -1);
+                if (position >= 0) {
+                    // The last value wins
+                    this.values[position] = value;
+                    return;
+                }
+                this.positions.put(id, add(value));
+                return;
+            }
+            int slot = findSlot(key);
+            if (this.slots[slot] != 0) {
+                // The last value wins
+                this.values[this.slots[slot] - 1] = value;
+                return;
+            }
+            int position = add(value);
+            this.keys[position] = key;
+            this.keyChars += key.length();
+            this.slots[slot] = position + 1;
+            if (2 * this.size > this.slots.length) {
+                rehash();
+            }
+        }
+
+        /**
+         * Append a value, growing the arrays if needed.
+         *
+         * @param value The value.
+         * @return Its position.
+         */
+        private int add(double value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+                if (this.keys != null) {
+                    this.keys = Arrays.copyOf(this.keys, this.size * 2);
+                }
+            }
+            this.values[this.size] = value;
+            return this.size++;
+        }
+
+        /**
+         * @param key A tag value.
+         * @return The slot of the key, or the empty slot where it belongs.
+         */
+        private int findSlot(String key) {
+            int mask = this.slots.length - 1;
+            long hash = HyperLogLog.hash(key);
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (this.slots[slot] != 0 && !this.keys[this.slots[slot] - 1].equals(key)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Double the hash table of the tag values.
+         */
+        private void rehash() {
+            this.slots = new int[2 * this.slots.length];
+            for (int position = 0; position < this.size; position++) {
+                this.slots[findSlot(this.keys[position])] = position + 1;
+            }
+        }
+
+        @Override
+        double get(long id) {
+            if (this.positions == null) {
+                return Double.NaN;
+            }
+            int position = this.positions.get(id, -1);
+            return (position < 0) ? Double.NaN : this.values[position];
+        }
+
+        @Override
+        double get(String value) {
+            if (this.slots == null) {
+                return Double.NaN;
+            }
+            int position = this.slots[findSlot(value)] - 1;
+            return (position < 0) ? Double.NaN : this.values[position];
+        }
+
+        @Override
+        long size() {
+            return this.size;
+        }
+
+        @Override
+        long getHeapBytes() {
+            // Keys, values and flags of the map or the slots, the values, the Strings
+            long bytes = this.values.length * 8L;
+            if (this.keys == null) {
+                bytes += this.positions.capacity() * 13L;
+            } else {
+                bytes += this.slots.length * 4L + this.keys.length * 8L + this.size * 40L + this.keyChars * 2;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * A binary table of records sorted by id, memory-mapped in segments of
+     * at most 1 GB.
+     */
+    static final class MappedTable extends LookupTable {
+
+        /**
+         * The number of bits of the record number within a segment.
+         */
+        private static final int SEGMENT_BITS = 26;
+        /**
+         * The segments. Only read with absolute gets, so they can be shared
+         * by threads.
+         */
+        private final ByteBuffer[] segments;
+        /**
+         * The number of records.
+         */
+        private final long size;
+
+        /**
+         * @param lookup The definition of the table.
+         * @param segments The segments.
+         * @param size The number of records.
+         */
+        private MappedTable(Lookup lookup, ByteBuffer[] segments, long size) {
+            super(lookup);
+            this.segments = segments;
+            this.size = size;
+        }
+
+        /**
+         * @param lookup The definition of the table.
+         * @param file The binary file.
+         * @return The table.
+         * @throws IOException If the file cannot be read.
+         */
+        static MappedTable map(Lookup lookup, File file) throws IOException {
+            long length = file.length();
+            if (!file.isFile() || length % RECORD_BYTES != 0) {
+                throw new IllegalArgumentException("The lookup table " + lookup + " is no file of " + RECORD_BYTES + " byte records!");
+            }
+            long size = length / RECORD_BYTES;
+            ByteBuffer[] segments = new ByteBuffer[(int) ((size + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS)];
+            try (RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()) {
+                for (int i = 0; i < segments.length; i++) {
+                    long offset = ((long) i << SEGMENT_BITS) * RECORD_BYTES;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(length - offset, (long) RECORD_BYTES << SEGMENT_BITS));
+                }
+            }
+            MappedTable table = new MappedTable(lookup, segments, size);
+            for (long record = 1; record < size; record++) {
+                if (table.getId(record - 1) >= table.getId(record)) {
+                    throw new IllegalArgumentException("The lookup table " + lookup + " is not sorted by id at record " + record + "!");
+                }
+            }
+            return table;
+        }
+
+        /**
+         * @param record A record number.
+         * @return The id of the record.
+         */
+        private long getId(long record) {
+            return this.segments[(int) (record >>> SEGMENT_BITS)].getLong((int) (record & ((1L << SEGMENT_BITS) - 1)) * RECORD_BYTES);
+        }
+
+        @Override
+        double get(long id) {
+            long low = 0;
+            long high = this.size - 1;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                long middleId = getId(middle);
+                if (middleId < id) {
+                    low = middle + 1;
+                } else if (middleId > id) {
+                    high = middle - 1;
+                } else {
+                    return this.segments[(int) (middle >>> SEGMENT_BITS)]
+                            .getDouble((int) (middle & ((1L << SEGMENT_BITS) - 1)) * RECORD_BYTES + 8);
+                }
+            }
+            return Double.NaN;
+        }
+
+        @Override
+        double get(String value) {
+            return Double.NaN;
+        }
+
+        @Override
+        long size() {
+            return this.size;
+        }
+
+        @Override
+        long getHeapBytes() {
+            return 0;
+        }
+    }
+}
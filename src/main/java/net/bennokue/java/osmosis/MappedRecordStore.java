@@ -0,0 +1,174 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+
+/**
+ * A {@link RecordStore} for very big inputs like the planet: The records live
+ * in a memory-mapped temporary file, outside of the Java heap. The file is
+ * indexed by id, so looking up a record is a single multiplication and no
+ * search at all. Unused id ranges are never written and stay holes in the
+ * (sparse) file.
+ * <p>
+ * The file is mapped in segments of up to {@value #SEGMENT_BYTES} bytes, as a
+ * single mapping is limited to 2 GiB. Each record is preceded by a flag that
+ * marks it as present. Negative ids (entities that have not been uploaded
+ * yet) are kept in a small {@link ArrayRecordStore}.</p>
+ * <p>
+ * The temporary file is deleted by {@link #release()}.</p>
+ *
+ * @author bennokue
+ */
+class MappedRecordStore implements RecordStore {
+
+    private static final Logger log = Logger.getLogger(MappedRecordStore.class.getName());
+    /**
+     * The maximum size of a mapped segment.
+     */
+    static final int SEGMENT_BYTES = 1 << 30;
+    /**
+     * The number of doubles per record.
+     */
+    private final int recordLength;
+    /**
+     * The size of a record including its presence flag.
+     */
+    private final int recordBytes;
+    /**
+     * The number of records per segment. Records never span two segments.
+     */
+    private final long recordsPerSegment;
+    /**
+     * The temporary file.
+     */
+    private final File file;
+    /**
+     * The open temporary file.
+     */
+    private final RandomAccessFile randomAccessFile;
+    /**
+     * The mapped segments, {@code null} if a segment has not been used yet.
+     */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    /**
+     * The records with negative ids.
+     */
+    private final ArrayRecordStore negativeIds;
+
+    /**
+     * Create an empty store in a new temporary file.
+     *
+     * @param recordLength The number of doubles per record.
+     * @throws OsmosisRuntimeException If the file can not be created.
+     */
+    MappedRecordStore(int recordLength) {
+        this.recordLength = recordLength;
+        this.recordBytes = 8 * (recordLength + 1);
+        this.recordsPerSegment = SEGMENT_BYTES / this.recordBytes;
+        this.negativeIds = new ArrayRecordStore(recordLength);
+        try {
+            this.file = File.createTempFile("osmosis-calculator-records", null);
+            this.file.deleteOnExit();
+            this.randomAccessFile = new RandomAccessFile(this.file, "rw");
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to create the temporary record file.", e);
+        }
+    }
+
+    @Override
+    public int getRecordLength() {
+        return this.recordLength;
+    }
+
+    @Override
+    public void put(long id, double[] record) {
+        if (id < 0) {
+            this.negativeIds.put(id, record);
+            return;
+        }
+        MappedByteBuffer segment = getSegment((int) (id / this.recordsPerSegment), true);
+        int position = (int) (id % this.recordsPerSegment) * this.recordBytes;
+        segment.putDouble(position, 1d);
+        for (int i = 0; i < this.recordLength; i++) {
+            segment.putDouble(position + 8 * (i + 1), record[i]);
+        }
+    }
+
+    @Override
+    public boolean get(long id, double[] record) {
+        if (id < 0) {
+            return this.negativeIds.get(id, record);
+        }
+        MappedByteBuffer segment = getSegment((int) (id / this.recordsPerSegment), false);
+        if (segment == null) {
+            return false;
+        }
+        int position = (int) (id % this.recordsPerSegment) * this.recordBytes;
+        if (segment.getDouble(position) == 0d) {
+            return false;
+        }
+        for (int i = 0; i < this.recordLength; i++) {
+            record[i] = segment.getDouble(position + 8 * (i + 1));
+        }
+        return true;
+    }
+
+    @Override
+    public void seal() {
+        // The segments are only read by absolute position
+        this.negativeIds.seal();
+    }
+
+    /**
+     * Get a mapped segment.
+     *
+     * @param index The segment's index.
+     * @param create Map the segment if it has not been used yet?
+     * @return The segment, {@code null} if it has not been used yet and
+     * {@code create} is false.
+     * @throws OsmosisRuntimeException If the file can not be mapped.
+     */
+    private MappedByteBuffer getSegment(int index, boolean create) {
+        if (index < this.segments.size() && this.segments.get(index) != null) {
+            return this.segments.get(index);
+        }
+        if (!create) {
+            return null;
+        }
+        while (this.segments.size() <= index) {
+            this.segments.add(null);
+        }
+        try {
+            long segmentBytes = this.recordsPerSegment * this.recordBytes;
+            MappedByteBuffer segment = this.randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, index * segmentBytes, segmentBytes);
+            segment.order(ByteOrder.nativeOrder());
+            this.segments.set(index, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to map segment " + index + " of the temporary record file.", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        this.segments.clear();
+        this.negativeIds.release();
+        try {
+            this.randomAccessFile.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to close the temporary record file.", e);
+        }
+        if (!this.file.delete()) {
+            log.log(Level.WARNING, "Unable to delete the temporary record file {0}.", this.file);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * A bounded result cache in front of another {@link Formula}, keyed on the
+ * values of the variables the formula uses. Pays off for formulas whose
+ * inputs repeat heavily (e.g. integer SRTM elevations or the {@code level}
+ * tag) and that are expensive to evaluate.
+ * <p>
+ * The cache is an open-addressing table without any objects per entry: The
+ * raw bits of the key values are stored in a {@code long[]}, the results in
+ * a {@code double[]}. A key is only looked for in a set of {@value #WAYS}
+ * neighbouring entries, so there are no probe chains and nothing has to be
+ * deleted. When a set is full, CLOCK chooses the entry to replace: Every hit
+ * sets a reference bit, the set's hand clears the bits it passes and evicts
+ * the first entry without one.</p>
+ * <p>
+ * The key values are compared bit by bit, so NaN (a missing variable) is a
+ * key like any other, and {@code -0.0} and {@code 0.0} are different keys.
+ * Not thread-safe, every {@link EvaluationContext} gets its own cache.</p>
+ *
+ * @author bennokue
+ */
+class MemoizingFormula implements Formula {
+
+    /**
+     * The number of entries of a set, a power of two.
+     */
+    static final int WAYS = 8;
+    /**
+     * The cached Formula.
+     */
+    private final Formula formula;
+    /**
+     * The slots of the variables the formula uses, i.e. the key.
+     */
+    private final int[] keySlots;
+    /**
+     * The key values of the entries, {@code keySlots.length} per entry.
+     */
+    private final long[] keys;
+    /**
+     * The results of the entries.
+     */
+    private final double[] results;
+    /**
+     * Is the entry in use?
+     */
+    private final boolean[] used;
+    /**
+     * The reference bits of the entries.
+     */
+    private final boolean[] referenced;
+    /**
+     * The CLOCK hand of each set.
+     */
+    private final byte[] hands;
+    /**
+     * {@code number of sets - 1}.
+     */
+    private final int setMask;
+    /**
+     * Counts the hits and misses.
+     */
+    private final MetricsStripe metrics;
+    /**
+     * The variable values of a row in
+     * {@link #evaluateBatch(double[][], int, double[])}, indexed by slot.
+     */
+    private final double[] rowValues;
+
+    /**
+     * Put a cache in front of a Formula.
+     *
+     * @param formula The Formula.
+     * @param keySlots The slots of the variables the formula uses.
+     * @param slotCount The number of variable slots.
+     * @param capacity The maximum number of cached results, rounded up to a
+     * power of two and at least {@value #WAYS}.
+     * @param metrics Counts the hits and misses.
+     */
+    MemoizingFormula(Formula formula, int[] keySlots, int slotCount, int capacity, MetricsStripe metrics) {
+        this.formula = formula;
+        this.keySlots = keySlots.clone();
+        this.metrics = metrics;
+        int entries = WAYS;
+        while (entries < capacity) {
+            entries <<= 1;
+        }
+        this.setMask = entries / WAYS - 1;
+        this.keys = new long[entries * keySlots.length];
+        this.results = new double[entries];
+        this.used = new boolean[entries];
+        this.referenced = new boolean[entries];
+        this.hands = new byte[entries / WAYS];
+        this.rowValues = new double[slotCount];
+    }
+
+    @Override
+    public double evaluate(double[] values) {
+        int set = hash(values) & this.setMask;
+        int first = set * WAYS;
+        for (int entry = first; entry < first + WAYS; entry++) {
+            if (this.used[entry] && matches(entry, values)) {
+                this.referenced[entry] = true;
+                this.metrics.increment(MetricsStripe.CACHE_HITS);
+                return this.results[entry];
+            }
+        }
+        this.metrics.increment(MetricsStripe.CACHE_MISSES);
+        double result = this.formula.evaluate(values);
+        int entry = victim(set);
+        int keyOffset = entry * this.keySlots.length;
+        for (int i = 0; i < this.keySlots.length; i++) {
+            this.keys[keyOffset + i] = Double.doubleToLongBits(values[this.keySlots[i]]);
+        }
+        this.results[entry] = result;
+        this.used[entry] = true;
+        this.referenced[entry] = false;
+        return result;
+    }
+
+    /**
+     * Look up every row in the cache, the misses are evaluated one by one.
+     */
+    @Override
+    public void evaluateBatch(double[][] columns, int count, double[] batchResults) {
+        for (int row = 0; row < count; row++) {
+            for (int slot : this.keySlots) {
+                this.rowValues[slot] = columns[slot][row];
+            }
+            batchResults[row] = evaluate(this.rowValues);
+        }
+    }
+
+    /**
+     * @param values Variable values.
+     * @return The hash of the key values.
+     */
+    private int hash(double[] values) {
+        long hash = 0;
+        for (int slot : this.keySlots) {
+            hash = (hash + Double.doubleToLongBits(values[slot])) * 0x9e3779b97f4a7c15L;
+        }
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * @param entry An entry in use.
+     * @param values Variable values.
+     * @return Does the entry belong to the values?
+     */
+    private boolean matches(int entry, double[] values) {
+        int keyOffset = entry * this.keySlots.length;
+        for (int i = 0; i < this.keySlots.length; i++) {
+            if (this.keys[keyOffset + i] != Double.doubleToLongBits(values[this.keySlots[i]])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Choose the entry of a set that gets a new result: A free one, otherwise
+     * the first one without reference bit after the set's CLOCK hand.
+     *
+     * @param set The set.
+     * @return The entry.
+     */
+    private int victim(int set) {
+        int first = set * WAYS;
+        for (int entry = first; entry < first + WAYS; entry++) {
+            if (!this.used[entry]) {
+                return entry;
+            }
+        }
+        int hand = this.hands[set];
+        while (this.referenced[first + hand]) {
+            this.referenced[first + hand] = false;
+            hand = (hand + 1) & (WAYS - 1);
+        }
+        this.hands[set] = (byte) ((hand + 1) & (WAYS - 1));
+        return first + hand;
+    }
+}
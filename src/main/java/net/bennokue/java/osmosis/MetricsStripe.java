@@ -0,0 +1,187 @@
+package net.bennokue.java.osmosis;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters of a single thread, see {@link CalculatorMetrics}. Only the
+ * owning thread writes to a stripe, so an increment is a plain read and an
+ * ordered write without any locking or CAS loop. Other threads may read the
+ * counters at any time and see values that are at most slightly outdated.
+ *
+ * @author bennokue
+ */
+class MetricsStripe {
+
+    /**
+     * Counter: Nodes that passed the task.
+     */
+    static final int NODES_PROCESSED = 0;
+    /**
+     * Counter: Nodes whose calculations have been evaluated.
+     */
+    static final int NODES_CALCULATED = 1;
+    /**
+     * Counter: Ways whose calculation has been evaluated.
+     */
+    static final int WAYS_CALCULATED = 2;
+    /**
+     * Counter: Relations whose calculation has been evaluated.
+     */
+    static final int RELATIONS_CALCULATED = 3;
+    /**
+     * Counter: Results that are NaN.
+     */
+    static final int NAN_RESULTS = 4;
+    /**
+     * Counter: Results that are infinite.
+     */
+    static final int INFINITE_RESULTS = 5;
+    /**
+     * Counter: Tag values that could not be parsed as numbers.
+     */
+    static final int PARSE_FAILURES = 6;
+    /**
+     * Counter: Results found in a {@link MemoizingFormula}.
+     */
+    static final int CACHE_HITS = 7;
+    /**
+     * Counter: Results not found in a {@link MemoizingFormula}.
+     */
+    static final int CACHE_MISSES = 8;
+    /**
+     * Counter: Calculated Nodes that already had the results and were
+     * forwarded as they are.
+     */
+    static final int NODES_UNCHANGED = 9;
+    /**
+     * Counter: Blocks of Nodes evaluated together (batch mode).
+     */
+    static final int BLOCKS_EVALUATED = 10;
+    /**
+     * Counter: Nodes evaluated in blocks.
+     */
+    static final int BLOCK_NODES = 11;
+    /**
+     * Counter: Nanoseconds spent evaluating blocks.
+     */
+    static final int BLOCK_NANOS = 12;
+    /**
+     * The number of counters above.
+     */
+    private static final int COUNTERS = 13;
+    /**
+     * The number of buckets of the evaluation time histogram. Bucket
+     * {@code b} counts the times from {@code 2^(b-1)} to {@code 2^b - 1}
+     * nanoseconds, the last bucket everything above.
+     */
+    static final int HISTOGRAM_BUCKETS = 40;
+    /**
+     * Only every n-th Node is timed, because reading the clock is not free. A
+     * power of two.
+     */
+    static final int TIMING_SAMPLE_RATE = 16;
+    /**
+     * The counters, followed by the missing counts per variable slot and the
+     * histogram buckets.
+     */
+    private final AtomicLongArray counters;
+    /**
+     * The index of the missing count of slot 0.
+     */
+    private final int missingOffset;
+    /**
+     * The index of histogram bucket 0.
+     */
+    private final int histogramOffset;
+    /**
+     * Counts the Nodes for the timing sample. Only used by the owning thread.
+     */
+    private int timingCounter = 0;
+
+    /**
+     * Create a stripe with all counters at 0.
+     *
+     * @param slotCount The number of variable slots.
+     */
+    MetricsStripe(int slotCount) {
+        this.missingOffset = COUNTERS;
+        this.histogramOffset = COUNTERS + slotCount;
+        this.counters = new AtomicLongArray(this.histogramOffset + HISTOGRAM_BUCKETS);
+    }
+
+    /**
+     * Add 1 to a counter. Must only be called by the owning thread.
+     *
+     * @param counter The counter, e.g. {@link #NODES_PROCESSED}.
+     */
+    void increment(int counter) {
+        this.counters.lazySet(counter, this.counters.get(counter) + 1);
+    }
+
+    /**
+     * Count a missing variable value. Must only be called by the owning
+     * thread.
+     *
+     * @param slot The variable slot.
+     */
+    void missing(int slot) {
+        increment(this.missingOffset + slot);
+    }
+
+    /**
+     * @return Should the current Node be timed? Must only be called by the
+     * owning thread.
+     */
+    boolean sampleTiming() {
+        return (++this.timingCounter & (TIMING_SAMPLE_RATE - 1)) == 0;
+    }
+
+    /**
+     * Count the evaluation of a block of Nodes. Its time does not go to the
+     * histogram, which only holds the times of single Nodes. Must only be
+     * called by the owning thread.
+     *
+     * @param nanos The time of the whole block in nanoseconds.
+     * @param nodes The number of Nodes in the block.
+     */
+    void blockTime(long nanos, int nodes) {
+        increment(BLOCKS_EVALUATED);
+        this.counters.lazySet(BLOCK_NODES, this.counters.get(BLOCK_NODES) + nodes);
+        this.counters.lazySet(BLOCK_NANOS, this.counters.get(BLOCK_NANOS) + nanos);
+    }
+
+    /**
+     * Add the evaluation time of a single Node to the histogram. Must only be
+     * called by the owning thread.
+     *
+     * @param nanos The time in nanoseconds.
+     */
+    void evaluationTime(long nanos) {
+        int bucket = Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+        increment(this.histogramOffset + bucket);
+    }
+
+    /**
+     * @param counter The counter, e.g. {@link #NODES_PROCESSED}.
+     * @return Its value.
+     */
+    long get(int counter) {
+        return this.counters.get(counter);
+    }
+
+    /**
+     * @param slot A variable slot.
+     * @return How often the variable was missing.
+     */
+    long getMissing(int slot) {
+        return this.counters.get(this.missingOffset + slot);
+    }
+
+    /**
+     * @param bucket A histogram bucket.
+     * @return The number of sampled evaluations in the bucket.
+     */
+    long getHistogram(int bucket) {
+        return this.counters.get(this.histogramOffset + bucket);
+    }
+}
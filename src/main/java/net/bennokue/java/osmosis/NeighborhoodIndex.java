@@ -0,0 +1,480 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.openstreetmap.osmosis.core.sort.common.FileBasedSort;
+import org.openstreetmap.osmosis.core.store.SingleClassObjectSerializationFactory;
+import org.openstreetmap.osmosis.core.store.StoreClassRegister;
+import org.openstreetmap.osmosis.core.store.StoreReader;
+import org.openstreetmap.osmosis.core.store.StoreWriter;
+import org.openstreetmap.osmosis.core.store.Storeable;
+
+/**
+ * Aggregates the tag values of the nearby Nodes of every Node, i.e. of all
+ * other Nodes within a radius (great-circle distance, see
+ * {@link GeoMath#haversine(double, double, double, double)}). The results are
+ * the variables {@code nb_count} (the number of nearby Nodes) and
+ * {@code nb_avg_<tag>}, {@code nb_min_<tag>}, {@code nb_max_<tag>} over the
+ * nearby Nodes that have a numeric value, e.g. {@code ele - nb_avg_ele}.
+ * <p>
+ * The coordinates and tag values of the Nodes are sorted into latitude bands
+ * as high as the radius, by longitude within each band. The sort runs on
+ * disk ({@link FileBasedSort}), so the whole input is never on the heap.
+ * Then the bands are swept from south to north: Only three neighbouring
+ * bands are kept in memory, and the nearby Nodes of a Node are found by
+ * binary search over the longitude window the radius allows in each of them.
+ * The results are kept in a {@link RecordStore} by Node id.</p>
+ * <p>
+ * {@link #addNode(org.openstreetmap.osmosis.core.domain.v0_6.Node)} and
+ * {@link #sweep()} must be called by one thread,
+ * {@link #read(long, net.bennokue.java.osmosis.EvaluationContext)} may be
+ * called by several threads afterwards. The sweep seals the
+ * {@link RecordStore}, so they read it without locking, each into the buffer
+ * of its {@link EvaluationContext}.</p>
+ *
+ * @author bennokue
+ */
+class NeighborhoodIndex implements Releasable {
+
+    /**
+     * The variable with the number of nearby Nodes.
+     */
+    static final String COUNT_VARIABLE = "nb_count";
+    /**
+     * The prefixes of the aggregate variables, in record order.
+     */
+    private static final String[] AGGREGATE_PREFIXES = new String[]{"nb_avg_", "nb_min_", "nb_max_"};
+    /**
+     * The radius in meters.
+     */
+    private final double radius;
+    /**
+     * The height of a band in degrees of latitude, i.e. the radius as angle.
+     */
+    private final double bandHeight;
+    /**
+     * The aggregated tags.
+     */
+    private final String[] tags;
+    /**
+     * Parses the tag values.
+     */
+    private final TagValueParser parser;
+    /**
+     * The Nodes, sorted by band and longitude.
+     */
+    private final FileBasedSort<Point> points;
+    /**
+     * The results by Node id: the count, then average, minimum and maximum of
+     * each tag.
+     */
+    private final RecordStore aggregates;
+    /**
+     * The slot of each record value, see {@link #aggregates}.
+     */
+    private final int[] recordSlots;
+    /**
+     * The number of values summed up per tag while a Node is aggregated.
+     */
+    private final long[] counts;
+    /**
+     * The number of Nodes added.
+     */
+    private long nodes = 0;
+
+    /**
+     * Create an empty index.
+     *
+     * @param radius The radius in meters.
+     * @param tags The tags whose values are aggregated.
+     * @param recordStoreType Where the results are kept.
+     * @param lenientNumbers See {@link TagValueParser#TagValueParser(boolean)}.
+     * @param slots The variable slots, must contain {@link #getVariables(java.util.Collection)}.
+     * @throws IllegalArgumentException If the radius is not positive.
+     */
+    NeighborhoodIndex(double radius, Collection<String> tags, CalculatorOptions.RecordStoreType recordStoreType,
+            boolean lenientNumbers, VariableSlots slots) {
+        if (!(radius > 0)) {
+            throw new IllegalArgumentException("The neighborhood radius has to be positive!");
+        }
+        this.radius = radius;
+        this.bandHeight = Math.toDegrees(radius / GeoMath.EARTH_RADIUS);
+        this.tags = tags.toArray(new String[tags.size()]);
+        this.parser = new TagValueParser(lenientNumbers);
+        this.points = new FileBasedSort<>(new SingleClassObjectSerializationFactory(Point.class), new PointComparator(), true);
+        List<String> variables = getVariables(tags);
+        this.aggregates = GeometryCalculator.createRecordStore(recordStoreType, variables.size());
+        this.recordSlots = new int[variables.size()];
+        for (int i = 0; i < variables.size(); i++) {
+            this.recordSlots[i] = slots.getSlot(variables.get(i));
+        }
+        this.counts = new long[this.tags.length];
+    }
+
+    /**
+     * @param tags The aggregated tags.
+     * @return The variable names, in record order. Characters other than
+     * letters, digits and {@code _} become {@code _}.
+     * @throws IllegalArgumentException If two tags result in the same
+     * variable.
+     */
+    static List<String> getVariables(Collection<String> tags) {
+        List<String> variables = new ArrayList<>();
+        variables.add(COUNT_VARIABLE);
+        for (String tag : tags) {
+            for (String prefix : AGGREGATE_PREFIXES) {
+                String name = prefix + tag.replaceAll("[^\\p{L}\\p{N}_]", "_");
+                if (variables.contains(name)) {
+                    throw new IllegalArgumentException("Neighborhood tag " + tag + " results in the variable " + name + " twice!");
+                }
+                variables.add(name);
+            }
+        }
+        return variables;
+    }
+
+    /**
+     * @param node A Node of the input.
+     */
+    void addNode(Node node) {
+        double[] values = new double[this.tags.length];
+        Arrays.fill(values, Double.NaN);
+        for (Tag tag : node.getTags()) {
+            for (int i = 0; i < this.tags.length; i++) {
+                if (this.tags[i].equals(tag.getKey())) {
+                    values[i] = this.parser.parse(tag.getValue());
+                }
+            }
+        }
+        int band = (int) Math.floor((node.getLatitude() + 90) / this.bandHeight);
+        this.points.add(new Point(node.getId(), band, node.getLatitude(), node.getLongitude(), values));
+        this.nodes++;
+    }
+
+    /**
+     * @return The number of Nodes added.
+     */
+    long getNodeCount() {
+        return this.nodes;
+    }
+
+    /**
+     * Aggregate the nearby Nodes of every Node and seal the results. No Node
+     * can be added afterwards.
+     */
+    void sweep() {
+        ReleasableIterator<Point> sorted = this.points.iterate();
+        try {
+            Point[] next = new Point[1];
+            if (sorted.hasNext()) {
+                next[0] = sorted.next();
+            }
+            Band previous = null;
+            Band current = readBand(sorted, next);
+            Band following = readBand(sorted, next);
+            double[] aggregate = new double[this.recordSlots.length];
+            while (current != null) {
+                for (int i = 0; i < current.size(); i++) {
+                    aggregate(current, i, previous, following, aggregate);
+                    this.aggregates.put(current.points.get(i).id, aggregate);
+                }
+                previous = current;
+                current = following;
+                following = readBand(sorted, next);
+            }
+        } finally {
+            sorted.release();
+        }
+        this.aggregates.seal();
+    }
+
+    /**
+     * Read the Nodes of the next band.
+     *
+     * @param sorted The sorted Nodes.
+     * @param next The next Node at index 0, {@code null} at the end.
+     * @return The band or {@code null} at the end.
+     */
+    private static Band readBand(ReleasableIterator<Point> sorted, Point[] next) {
+        if (next[0] == null) {
+            return null;
+        }
+        Band band = new Band(next[0].band);
+        while (next[0] != null && next[0].band == band.index) {
+            band.points.add(next[0]);
+            next[0] = sorted.hasNext() ? sorted.next() : null;
+        }
+        band.index();
+        return band;
+    }
+
+    /**
+     * Aggregate the nearby Nodes of a Node.
+     *
+     * @param band The band of the Node.
+     * @param position The position of the Node in its band.
+     * @param previous The band before or {@code null}.
+     * @param following The band after or {@code null}.
+     * @param aggregate Where to write the record to.
+     */
+    private void aggregate(Band band, int position, Band previous, Band following, double[] aggregate) {
+        Point point = band.points.get(position);
+        double cosMax = Math.cos(Math.toRadians(Math.min(90, Math.abs(point.lat) + this.bandHeight)));
+        double sinHalfRadius = Math.sin(this.radius / GeoMath.EARTH_RADIUS / 2);
+        // sin(dLon/2) <= sin(radius/2) / sqrt(cos(lat1) cos(lat2)) bounds the longitude difference
+        double window = (sinHalfRadius < cosMax) ? Math.toDegrees(2 * Math.asin(sinHalfRadius / cosMax)) : 360;
+        aggregate[0] = 0;
+        for (int t = 0; t < this.tags.length; t++) {
+            aggregate[1 + 3 * t] = 0;
+            aggregate[2 + 3 * t] = Double.POSITIVE_INFINITY;
+            aggregate[3 + 3 * t] = Double.NEGATIVE_INFINITY;
+        }
+        long[] counts = this.counts;
+        Arrays.fill(counts, 0);
+        for (Band neighbour : new Band[]{previous, band, following}) {
+            if (neighbour == null || Math.abs(neighbour.index - band.index) > 1) {
+                continue;
+            }
+            if (window >= 180) {
+                collect(neighbour, 0, neighbour.size(), point, aggregate, counts);
+                continue;
+            }
+            double from = point.lon - window;
+            double to = point.lon + window;
+            collect(neighbour, neighbour.lowerBound(Math.max(-180, from)), neighbour.lowerBound(Math.nextUp(Math.min(180, to))), point, aggregate, counts);
+            // Across the antimeridian
+            if (from < -180) {
+                collect(neighbour, neighbour.lowerBound(from + 360), neighbour.size(), point, aggregate, counts);
+            }
+            if (to > 180) {
+                collect(neighbour, 0, neighbour.lowerBound(Math.nextUp(to - 360)), point, aggregate, counts);
+            }
+        }
+        for (int t = 0; t < this.tags.length; t++) {
+            if (counts[t] == 0) {
+                aggregate[1 + 3 * t] = Double.NaN;
+                aggregate[2 + 3 * t] = Double.NaN;
+                aggregate[3 + 3 * t] = Double.NaN;
+            } else {
+                aggregate[1 + 3 * t] /= counts[t];
+            }
+        }
+    }
+
+    /**
+     * Add the Nodes of a band range that are within the radius to an
+     * aggregate.
+     *
+     * @param band The band.
+     * @param from The first position.
+     * @param to The position after the last one.
+     * @param point The Node whose nearby Nodes are aggregated.
+     * @param aggregate The record, with the sums instead of the averages.
+     * @param counts The number of values summed up per tag.
+     */
+    private void collect(Band band, int from, int to, Point point, double[] aggregate, long[] counts) {
+        for (int i = from; i < to; i++) {
+            Point other = band.points.get(i);
+            if (other == point || Math.abs(other.lat - point.lat) > this.bandHeight
+                    || GeoMath.haversine(point.lat, point.lon, other.lat, other.lon) > this.radius) {
+                continue;
+            }
+            aggregate[0]++;
+            for (int t = 0; t < this.tags.length; t++) {
+                double value = other.values[t];
+                if (!Double.isNaN(value)) {
+                    counts[t]++;
+                    aggregate[1 + 3 * t] += value;
+                    aggregate[2 + 3 * t] = Math.min(aggregate[2 + 3 * t], value);
+                    aggregate[3 + 3 * t] = Math.max(aggregate[3 + 3 * t], value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the neighborhood variables of a Node. Nodes that were not swept get
+     * none.
+     *
+     * @param id The id of the Node.
+     * @param evaluationContext Where to store the values.
+     */
+    void read(long id, EvaluationContext evaluationContext) {
+        double[] record = evaluationContext.neighborhoodRecord;
+        if (record == null) {
+            record = new double[this.recordSlots.length];
+            evaluationContext.neighborhoodRecord = record;
+        }
+        if (!this.aggregates.get(id, record)) {
+            return;
+        }
+        for (int i = 0; i < record.length; i++) {
+            if (!Double.isNaN(record[i])) {
+                evaluationContext.set(this.recordSlots[i], record[i]);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        this.points.release();
+        this.aggregates.release();
+    }
+
+    /**
+     * The Nodes of a band, sorted by longitude.
+     */
+    private static final class Band {
+
+        /**
+         * The band number.
+         */
+        final int index;
+        /**
+         * The Nodes.
+         */
+        final List<Point> points = new ArrayList<>();
+        /**
+         * The longitudes of the Nodes, for binary search.
+         */
+        private double[] lons;
+
+        /**
+         * @param index The band number.
+         */
+        Band(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Build the longitude index once all Nodes are added.
+         */
+        void index() {
+            this.lons = new double[this.points.size()];
+            for (int i = 0; i < this.lons.length; i++) {
+                this.lons[i] = this.points.get(i).lon;
+            }
+        }
+
+        /**
+         * @return The number of Nodes.
+         */
+        int size() {
+            return this.lons.length;
+        }
+
+        /**
+         * @param lon A longitude.
+         * @return The position of the first Node with at least that
+         * longitude.
+         */
+        int lowerBound(double lon) {
+            int low = 0;
+            int high = this.lons.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (this.lons[middle] < lon) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Sorts the Nodes by band and longitude.
+     */
+    private static final class PointComparator implements Comparator<Point> {
+
+        @Override
+        public int compare(Point first, Point second) {
+            if (first.band != second.band) {
+                return (first.band < second.band) ? -1 : 1;
+            }
+            int byLon = Double.compare(first.lon, second.lon);
+            return (byLon != 0) ? byLon : Long.compare(first.id, second.id);
+        }
+    }
+
+    /**
+     * The coordinates and aggregated tag values of a Node, as they are
+     * sorted on disk. Public, because OSMOSIS creates the instances by
+     * reflection.
+     */
+    public static final class Point implements Storeable {
+
+        /**
+         * The Node id.
+         */
+        final long id;
+        /**
+         * The band number.
+         */
+        final int band;
+        /**
+         * The latitude.
+         */
+        final double lat;
+        /**
+         * The longitude.
+         */
+        final double lon;
+        /**
+         * The tag values, NaN if missing.
+         */
+        final double[] values;
+
+        /**
+         * @param id The Node id.
+         * @param band The band number.
+         * @param lat The latitude.
+         * @param lon The longitude.
+         * @param values The tag values.
+         */
+        Point(long id, int band, double lat, double lon, double[] values) {
+            this.id = id;
+            this.band = band;
+            this.lat = lat;
+            this.lon = lon;
+            this.values = values;
+        }
+
+        /**
+         * Read a stored Point.
+         *
+         * @param reader The store.
+         * @param register Unused.
+         */
+        public Point(StoreReader reader, StoreClassRegister register) {
+            this.id = reader.readLong();
+            this.band = reader.readInteger();
+            this.lat = reader.readDouble();
+            this.lon = reader.readDouble();
+            this.values = new double[reader.readInteger()];
+            for (int i = 0; i < this.values.length; i++) {
+                this.values[i] = reader.readDouble();
+            }
+        }
+
+        @Override
+        public void store(StoreWriter writer, StoreClassRegister register) {
+            writer.writeLong(this.id);
+            writer.writeInteger(this.band);
+            writer.writeDouble(this.lat);
+            writer.writeDouble(this.lon);
+            writer.writeInteger(this.values.length);
+            for (double value : this.values) {
+                writer.writeDouble(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a quantile of a stream of values in constant memory with the P²
+ * algorithm (Jain and Chlamtac, 1985): Five markers track the minimum, the
+ * quantile, the maximum and two points in between. Each value moves the
+ * markers' positions, and a marker that drifts away from its desired
+ * position is adjusted by piecewise-parabolic interpolation. Until there are
+ * five values, the quantile is interpolated exactly.
+ * <p>
+ * Not thread-safe.</p>
+ *
+ * @author bennokue
+ */
+class P2Quantile {
+
+    /**
+     * The quantile, between 0 and 1.
+     */
+    private final double quantile;
+    /**
+     * The heights of the markers, i.e. the first values while there are
+     * less than five.
+     */
+    private final double[] heights = new double[5];
+    /**
+     * The actual positions of the markers, starting at 1.
+     */
+    private final int[] positions = new int[]{1, 2, 3, 4, 5};
+    /**
+     * The desired positions of the markers.
+     */
+    private final double[] desired;
+    /**
+     * How much the desired positions move with every value.
+     */
+    private final double[] increments;
+    /**
+     * The number of values.
+     */
+    private long count = 0;
+
+    /**
+     * @param quantile The quantile, between 0 and 1, e.g. 0.5 for the median.
+     */
+    P2Quantile(double quantile) {
+        if (!(quantile >= 0 && quantile <= 1)) {
+            throw new IllegalArgumentException("A quantile has to be between 0 and 1!");
+        }
+        this.quantile = quantile;
+        this.desired = new double[]{1, 1 + 2 * quantile, 1 + 4 * quantile, 3 + 2 * quantile, 5};
+        this.increments = new double[]{0, quantile / 2, quantile, (1 + quantile) / 2, 1};
+    }
+
+    /**
+     * @param value A value of the stream, not NaN.
+     */
+    void add(double value) {
+        if (this.count < 5) {
+            this.heights[(int) this.count++] = value;
+            if (this.count == 5) {
+                Arrays.sort(this.heights);
+            }
+            return;
+        }
+        this.count++;
+        double[] q = this.heights;
+        int cell;
+        if (value < q[0]) {
+            q[0] = value;
+            cell = 0;
+        } else if (value >= q[4]) {
+            q[4] = Math.max(q[4], value);
+            cell = 3;
+        } else {
+            cell = 0;
+            while (value >= q[cell + 1]) {
+                cell++;
+            }
+        }
+        for (int i = cell + 1; i < 5; i++) {
+            this.positions[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            this.desired[i] += this.increments[i];
+        }
+        for (int i = 1; i <= 3; i++) {
+            double drift = this.desired[i] - this.positions[i];
+            if ((drift >= 1 && this.positions[i + 1] - this.positions[i] > 1)
+                    || (drift <= -1 && this.positions[i - 1] - this.positions[i] < -1)) {
+                int step = (drift > 0) ? 1 : -1;
+                double height = parabolic(i, step);
+                if (!(q[i - 1] < height && height < q[i + 1])) {
+                    height = q[i] + step * (q[i + step] - q[i]) / (this.positions[i + step] - this.positions[i]);
+                }
+                q[i] = height;
+                this.positions[i] += step;
+            }
+        }
+    }
+
+    /**
+     * @param i A middle marker.
+     * @param step The direction it moves, 1 or -1.
+     * @return Its new height by piecewise-parabolic interpolation.
+     */
+    private double parabolic(int i, int step) {
+        double[] q = this.heights;
+        int[] n = this.positions;
+        return q[i] + (double) step / (n[i + 1] - n[i - 1])
+                * ((n[i] - n[i - 1] + step) * (q[i + 1] - q[i]) / (n[i + 1] - n[i])
+                + (n[i + 1] - n[i] - step) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+    }
+
+    /**
+     * @return The estimated quantile, NaN if there are no values.
+     */
+    double estimate() {
+        if (this.count >= 5) {
+            return this.heights[2];
+        }
+        if (this.count == 0) {
+            return Double.NaN;
+        }
+        double[] sorted = Arrays.copyOf(this.heights, (int) this.count);
+        Arrays.sort(sorted);
+        double rank = this.quantile * (sorted.length - 1);
+        int lower = (int) Math.floor(rank);
+        int upper = Math.min(lower + 1, sorted.length - 1);
+        return sorted[lower] + (rank - lower) * (sorted[upper] - sorted[lower]);
+    }
+}
@@ -0,0 +1,143 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import net.objecthunter.exp4j.function.Function;
+import net.objecthunter.exp4j.operator.Operator;
+
+/**
+ * The comparison and logical operators and the {@code has()} function that
+ * every {@link FormulaFactory} knows, so a calculation can be used as a
+ * predicate, e.g. {@code ele > 0 && has(height)}.
+ * <p>
+ * All of them return 1 for true and 0 for false. A value is true if it is
+ * neither 0 nor NaN, and comparisons with a missing (NaN) value are false,
+ * except for {@code !=}. They are implemented by static methods of
+ * {@link CompiledFormula}, which the compiled engine calls directly.</p>
+ *
+ * @author bennokue
+ */
+final class Predicates {
+
+    /**
+     * Below {@link Operator#PRECEDENCE_ADDITION}, so {@code a+1 > b} compares
+     * the sum.
+     */
+    private static final int PRECEDENCE_COMPARISON = 300;
+    /**
+     * Below the ordering comparisons.
+     */
+    private static final int PRECEDENCE_EQUALITY = 250;
+    /**
+     * Below every comparison.
+     */
+    private static final int PRECEDENCE_AND = 200;
+    /**
+     * Below {@code &&}.
+     */
+    private static final int PRECEDENCE_OR = 100;
+    /**
+     * The static method of {@link CompiledFormula} that implements each
+     * operator and function.
+     */
+    private static final Map<Object, String> STATIC_METHODS = new IdentityHashMap<>();
+    /**
+     * {@code has(x)}: Does the variable have a value?
+     */
+    static final Function HAS = new Function("has", 1) {
+        @Override
+        public double apply(double... args) {
+            return CompiledFormula.has(args[0]);
+        }
+    };
+    /**
+     * The operators.
+     */
+    private static final List<Operator> OPERATORS = Collections.unmodifiableList(Arrays.<Operator>asList(
+            new Operator(">", 2, true, PRECEDENCE_COMPARISON) {
+                @Override
+                public double apply(double... args) {
+                    return CompiledFormula.greater(args[0], args[1]);
+                }
+            },
+            new Operator("<", 2, true, PRECEDENCE_COMPARISON) {
+                @Override
+                public double apply(double... args) {
+                    return CompiledFormula.less(args[0], args[1]);
+                }
+            },
+            new Operator(">=", 2, true, PRECEDENCE_COMPARISON) {
+                @Override
+                public double apply(double... args) {
+                    return CompiledFormula.greaterOrEqual(args[0], args[1]);
+                }
+            },
+            new Operator("<=", 2, true, PRECEDENCE_COMPARISON) {
+                @Override
+                public double apply(double... args) {
+                    return CompiledFormula.lessOrEqual(args[0], args[1]);
+                }
+            },
+            new Operator("==", 2, true, PRECEDENCE_EQUALITY) {
+                @Override
+                public double apply(double... args) {
+                    return CompiledFormula.equal(args[0], args[1]);
+                }
+            },
+            new Operator("!=", 2, true, PRECEDENCE_EQUALITY) {
+                @Override
+                public double apply(double... args) {
+                    return CompiledFormula.notEqual(args[0], args[1]);
+                }
+            },
+            new Operator("&&", 2, true, PRECEDENCE_AND) {
+                @Override
+                public double apply(double... args) {
+                    return CompiledFormula.and(args[0], args[1]);
+                }
+            },
+            new Operator("||", 2, true, PRECEDENCE_OR) {
+                @Override
+                public double apply(double... args) {
+                    return CompiledFormula.or(args[0], args[1]);
+                }
+            }));
+
+    static {
+        String[] methods = new String[]{"greater", "less", "greaterOrEqual", "lessOrEqual", "equal", "notEqual", "and", "or"};
+        for (int i = 0; i < methods.length; i++) {
+            STATIC_METHODS.put(OPERATORS.get(i), methods[i]);
+        }
+        STATIC_METHODS.put(HAS, "has");
+    }
+
+    private Predicates() {
+    }
+
+    /**
+     * @return The operators, by symbol.
+     */
+    static List<Operator> getOperators() {
+        return OPERATORS;
+    }
+
+    /**
+     * @param operatorOrFunction An {@link Operator} or {@link Function}.
+     * @return The name of the static method of {@link CompiledFormula} that
+     * implements it, {@code null} if it is none of the predicates.
+     */
+    static String getStaticMethod(Object operatorOrFunction) {
+        return STATIC_METHODS.get(operatorOrFunction);
+    }
+
+    /**
+     * @param value A result.
+     * @return Is it true, i.e. neither 0 nor NaN?
+     */
+    static boolean isTrue(double value) {
+        return value != 0d && !Double.isNaN(value);
+    }
+}
@@ -0,0 +1,48 @@
+package net.bennokue.java.osmosis;
+
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+
+/**
+ * Stores a fixed number of doubles (a "record") per OSM id, e.g. the
+ * coordinates and tag values of the Nodes for later lookups by Ways. The
+ * implementations differ in where the records live, see
+ * {@link CalculatorOptions.RecordStoreType}.
+ * <p>
+ * If an id is stored twice, the later record wins. Implementations are not
+ * thread-safe, unless they are {@link #seal() sealed}.</p>
+ *
+ * @author bennokue
+ */
+interface RecordStore extends Releasable {
+
+    /**
+     * @return The number of doubles per record.
+     */
+    int getRecordLength();
+
+    /**
+     * Store a record.
+     *
+     * @param id The OSM id.
+     * @param record The values, at least {@link #getRecordLength()} of them.
+     * The array is copied.
+     */
+    void put(long id, double[] record);
+
+    /**
+     * Look up a record.
+     *
+     * @param id The OSM id.
+     * @param record Where to copy the values to.
+     * @return {@code false} if there is no record for the id.
+     */
+    boolean get(long id, double[] record);
+
+    /**
+     * Finish storing: Nothing may be {@link #put(long, double[]) put}
+     * afterwards, but {@link #get(long, double[])} may be called by several
+     * threads at once. The thread that sealed the store has to hand it to the
+     * others in a way that publishes its state safely, e.g. through a queue.
+     */
+    void seal();
+}
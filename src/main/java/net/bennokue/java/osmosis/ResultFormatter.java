@@ -0,0 +1,216 @@
+package net.bennokue.java.osmosis;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Locale;
+
+/**
+ * Turns calculation results into tag values. The format is given as a
+ * String:
+ * <ul>
+ * <li>{@code default}: {@link Double#toString(double)}, e.g.
+ * {@code 514.1383389311949} or {@code 1.0E-5}.</li>
+ * <li>{@code fixed:N}: Exactly {@code N} decimal places (0 to
+ * {@value #MAX_DECIMALS}), e.g. {@code 514.14} for {@code fixed:2}.</li>
+ * <li>{@code integer}: Rounded to a whole number, e.g. {@code 514}.</li>
+ * <li>{@code shortest}: The digits of {@link Double#toString(double)}, which
+ * are parsed back to the same double, in plain notation and without a
+ * trailing {@code .0}, e.g. {@code 514} or {@code 0.00001}.</li>
+ * </ul>
+ * {@code fixed} and {@code integer} round like {@link Math#round(double)},
+ * i.e. halves towards positive infinity. What is rounded is the result times
+ * {@code 10^N} as a double, not the exact binary value of the result, so
+ * {@code fixed:2} writes {@code 0.02} for {@code 0.015} like a person would,
+ * although the closest double is slightly below. Only if the scaled double
+ * has no fraction left (from {@code 2^53}), the exact result is rounded. A
+ * result that rounds to 0 is written without sign. NaN and infinite results are always written like
+ * {@link Double#toString(double)} does.
+ * <p>
+ * {@code fixed} and {@code integer} are written digit by digit into a reused
+ * buffer, so the tag value String is the only allocation. Results that
+ * repeat, e.g. from integer elevations, are served from a small
+ * direct-mapped cache of the last Strings, so their tag values are not even
+ * formatted again. Not thread-safe, every thread needs its own
+ * instance.</p>
+ *
+ * @author bennokue
+ */
+class ResultFormatter {
+
+    /**
+     * The default format.
+     */
+    static final String DEFAULT = "default";
+    /**
+     * The maximum number of decimal places of {@code fixed:N}.
+     */
+    static final int MAX_DECIMALS = 17;
+    /**
+     * The number of cached Strings, a power of two.
+     */
+    private static final int CACHE_SIZE = 1024;
+    /**
+     * Scaled results below this are rounded exactly by
+     * {@link Math#round(double)}, because doubles up to {@code 2^53} are exact
+     * integers.
+     */
+    private static final double FAST_LIMIT = 1e15;
+    /**
+     * {@code 2^53}, doubles from here on have no fraction.
+     */
+    private static final double EXACT_INTEGER_LIMIT = 9007199254740992d;
+    /**
+     * {@code 10^i}.
+     */
+    private static final double[] POWERS_OF_TEN = new double[MAX_DECIMALS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * The styles.
+     */
+    private enum Style {
+
+        DEFAULT, FIXED, SHORTEST
+    }
+    /**
+     * The style.
+     */
+    private final Style style;
+    /**
+     * The number of decimal places of {@link Style#FIXED}, 0 for
+     * {@code integer}.
+     */
+    private final int decimals;
+    /**
+     * The bits of the cached results.
+     */
+    private final long[] cachedBits = new long[CACHE_SIZE];
+    /**
+     * The cached Strings, {@code null} for free entries.
+     */
+    private final String[] cachedStrings = new String[CACHE_SIZE];
+    /**
+     * The buffer {@link #formatFixed(double)} writes to: sign, 19 digits,
+     * point and decimals.
+     */
+    private final char[] buffer = new char[2 + 19 + MAX_DECIMALS];
+
+    /**
+     * Create a formatter.
+     *
+     * @param format The format, see the class description.
+     * @throws IllegalArgumentException If the format is unknown.
+     */
+    ResultFormatter(String format) {
+        String normalized = format.trim().toLowerCase(Locale.ENGLISH);
+        if (normalized.equals(DEFAULT)) {
+            this.style = Style.DEFAULT;
+            this.decimals = 0;
+        } else if (normalized.equals("shortest")) {
+            this.style = Style.SHORTEST;
+            this.decimals = 0;
+        } else if (normalized.equals("integer")) {
+            this.style = Style.FIXED;
+            this.decimals = 0;
+        } else if (normalized.startsWith("fixed:")) {
+            this.style = Style.FIXED;
+            try {
+                this.decimals = Integer.parseInt(normalized.substring("fixed:".length()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid output format " + format + ", use fixed:N with a number N!", e);
+            }
+            if (this.decimals < 0 || this.decimals > MAX_DECIMALS) {
+                throw new IllegalArgumentException("Invalid output format " + format + ", use fixed:0 to fixed:" + MAX_DECIMALS + "!");
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown output format " + format + ", use default, fixed:N, integer or shortest!");
+        }
+    }
+
+    /**
+     * @param value A result.
+     * @return The tag value.
+     */
+    String format(double value) {
+        long bits = Double.doubleToLongBits(value);
+        int index = (int) ((bits * 0x9e3779b97f4a7c15L) >>> 54);
+        String cached = this.cachedStrings[index];
+        if (cached != null && this.cachedBits[index] == bits) {
+            return cached;
+        }
+        String text;
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            text = Double.toString(value);
+        } else {
+            switch (this.style) {
+                case FIXED:
+                    text = formatFixed(value);
+                    break;
+                case SHORTEST:
+                    text = formatShortest(value);
+                    break;
+                case DEFAULT:
+                default:
+                    text = Double.toString(value);
+                    break;
+            }
+        }
+        this.cachedBits[index] = bits;
+        this.cachedStrings[index] = text;
+        return text;
+    }
+
+    /**
+     * @param value A finite result.
+     * @return The result with {@link #decimals} decimal places.
+     */
+    private String formatFixed(double value) {
+        double scaledValue = value * POWERS_OF_TEN[this.decimals];
+        if (!(Math.abs(scaledValue) < FAST_LIMIT)) {
+            // Halves towards positive infinity, like Math.round
+            RoundingMode halfCeiling = (value < 0) ? RoundingMode.HALF_DOWN : RoundingMode.HALF_UP;
+            if (Math.abs(scaledValue) < EXACT_INTEGER_LIMIT) {
+                return new BigDecimal(scaledValue).setScale(0, halfCeiling).movePointLeft(this.decimals).toPlainString();
+            }
+            return new BigDecimal(value).setScale(this.decimals, halfCeiling).toPlainString();
+        }
+        long scaled = Math.round(scaledValue);
+        boolean negative = scaled < 0;
+        long remaining = Math.abs(scaled);
+        int position = this.buffer.length;
+        for (int i = 0; i < this.decimals; i++) {
+            this.buffer[--position] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        if (this.decimals > 0) {
+            this.buffer[--position] = '.';
+        }
+        do {
+            this.buffer[--position] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (negative) {
+            this.buffer[--position] = '-';
+        }
+        return new String(this.buffer, position, this.buffer.length - position);
+    }
+
+    /**
+     * @param value A finite result.
+     * @return The digits of {@link Double#toString(double)} in plain notation
+     * without trailing zeros.
+     */
+    private static String formatShortest(double value) {
+        String text = Double.toString(value);
+        if (text.indexOf('E') >= 0) {
+            return new BigDecimal(text).stripTrailingZeros().toPlainString();
+        }
+        return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+    }
+}
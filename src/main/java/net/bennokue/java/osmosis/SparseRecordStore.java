@@ -0,0 +1,179 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link RecordStore} for id ranges with holes, e.g. regional extracts of
+ * the planet: The ids are split into pages of {@value #PAGE_IDS} consecutive
+ * ids, and only the pages that contain at least one record are allocated. A
+ * {@link LongIntHashMap} finds the page of an id.
+ * <p>
+ * Within a page, a bitmap marks the present ids and the records are packed
+ * without gaps, so a page costs about 768 bytes plus the records themselves,
+ * no matter how thinly the ids are spread. Looking up a record is a hash
+ * probe, a bit count and an array access; there is no sorting and no binary
+ * search. Ids may arrive in any order, but ascending ids within a page are
+ * the cheapest.</p>
+ *
+ * @author bennokue
+ */
+class SparseRecordStore implements RecordStore {
+
+    /**
+     * The number of ids per page, a power of two.
+     */
+    static final int PAGE_IDS = 1 << 12;
+    /**
+     * {@code log2(PAGE_IDS)}.
+     */
+    private static final int PAGE_SHIFT = 12;
+    /**
+     * The number of doubles per record.
+     */
+    private final int recordLength;
+    /**
+     * Page number ({@code id >> PAGE_SHIFT}) to index in {@link #pages}.
+     */
+    private final LongIntHashMap pageIndex = new LongIntHashMap(1024);
+    /**
+     * The allocated pages.
+     */
+    private final List<Page> pages = new ArrayList<>();
+
+    /**
+     * Create an empty store.
+     *
+     * @param recordLength The number of doubles per record.
+     */
+    SparseRecordStore(int recordLength) {
+        this.recordLength = recordLength;
+    }
+
+    @Override
+    public int getRecordLength() {
+        return this.recordLength;
+    }
+
+    @Override
+    public void put(long id, double[] record) {
+        long pageNumber = id >> PAGE_SHIFT;
+        int pageNumberIndex = this.pageIndex.get(pageNumber, -1);
+        Page page;
+        if (pageNumberIndex < 0) {
+            page = new Page(this.recordLength);
+            this.pageIndex.put(pageNumber, this.pages.size());
+            this.pages.add(page);
+        } else {
+            page = this.pages.get(pageNumberIndex);
+        }
+        page.put((int) (id & (PAGE_IDS - 1)), record);
+    }
+
+    @Override
+    public boolean get(long id, double[] record) {
+        int page = this.pageIndex.get(id >> PAGE_SHIFT, -1);
+        return page >= 0 && this.pages.get(page).get((int) (id & (PAGE_IDS - 1)), record);
+    }
+
+    @Override
+    public void seal() {
+        // get() does not modify anything
+    }
+
+    @Override
+    public void release() {
+        this.pageIndex.clear();
+        this.pages.clear();
+    }
+
+    /**
+     * The records of {@value #PAGE_IDS} consecutive ids.
+     */
+    private static class Page {
+
+        /**
+         * The number of doubles per record.
+         */
+        private final int recordLength;
+        /**
+         * One bit per id of the page, set if the record is present.
+         */
+        private final long[] bits = new long[PAGE_IDS / 64];
+        /**
+         * The number of present records in the words before each word of
+         * {@link #bits}.
+         */
+        private final int[] ranks = new int[PAGE_IDS / 64];
+        /**
+         * The present records, ordered by id.
+         */
+        private double[] records;
+        /**
+         * The number of present records.
+         */
+        private int count = 0;
+
+        /**
+         * Create an empty page.
+         *
+         * @param recordLength The number of doubles per record.
+         */
+        Page(int recordLength) {
+            this.recordLength = recordLength;
+            this.records = new double[8 * recordLength];
+        }
+
+        /**
+         * @param offset An id's offset within the page.
+         * @return The position of the id's record in {@link #records}, if it
+         * is present.
+         */
+        private int rank(int offset) {
+            int word = offset >>> 6;
+            return this.ranks[word] + Long.bitCount(this.bits[word] & ((1L << offset) - 1));
+        }
+
+        /**
+         * Store a record.
+         *
+         * @param offset The id's offset within the page.
+         * @param record The values.
+         */
+        void put(int offset, double[] record) {
+            int word = offset >>> 6;
+            long bit = 1L << offset;
+            int position = rank(offset) * this.recordLength;
+            if ((this.bits[word] & bit) == 0) {
+                if ((this.count + 1) * this.recordLength > this.records.length) {
+                    double[] newRecords = new double[Math.min(PAGE_IDS, 2 * this.count) * this.recordLength];
+                    System.arraycopy(this.records, 0, newRecords, 0, this.count * this.recordLength);
+                    this.records = newRecords;
+                }
+                // Make room, nothing to move if the ids are ascending
+                System.arraycopy(this.records, position, this.records, position + this.recordLength, this.count * this.recordLength - position);
+                this.bits[word] |= bit;
+                for (int i = word + 1; i < this.ranks.length; i++) {
+                    this.ranks[i]++;
+                }
+                this.count++;
+            }
+            System.arraycopy(record, 0, this.records, position, this.recordLength);
+        }
+
+        /**
+         * Look up a record.
+         *
+         * @param offset The id's offset within the page.
+         * @param record Where to copy the values to.
+         * @return {@code false} if the record is not present.
+         */
+        boolean get(int offset, double[] record) {
+            if ((this.bits[offset >>> 6] & (1L << offset)) == 0) {
+                return false;
+            }
+            System.arraycopy(this.records, rank(offset) * this.recordLength, record, 0, this.recordLength);
+            return true;
+        }
+    }
+}
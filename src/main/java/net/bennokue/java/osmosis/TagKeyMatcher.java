@@ -0,0 +1,281 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides whether a tag key is one of a set of keys, compiled once so that
+ * the time per key does not depend on the number of keys:
+ * <ul>
+ * <li>Patterns like {@code fixme} (exact key) or {@code source:*} and
+ * {@code note*} (every key with that prefix, {@code *} alone matches every
+ * key) are compiled into a trie, which is walked once along the characters
+ * of the key.</li>
+ * <li>Keys that are matched ignoring their case (like
+ * {@link String#equalsIgnoreCase(java.lang.String)} does) are bucketed by
+ * length and kept in upper and lower case, so most keys are rejected by
+ * their length alone.</li>
+ * </ul>
+ * Immutable and thread-safe.
+ *
+ * @author bennokue
+ */
+final class TagKeyMatcher {
+
+    /**
+     * The wildcard that may end a pattern.
+     */
+    static final char WILDCARD = '*';
+    /**
+     * The characters of the transitions of each trie node, sorted.
+     */
+    private final char[][] labels;
+    /**
+     * The trie nodes the transitions lead to.
+     */
+    private final int[][] children;
+    /**
+     * Does a key end at the trie node?
+     */
+    private final boolean[] keyEnds;
+    /**
+     * Does every key that reaches the trie node match?
+     */
+    private final boolean[] prefixEnds;
+    /**
+     * The keys matched ignoring the case, by length.
+     */
+    private final char[][][] ignoreCaseKeys;
+    /**
+     * The same keys in upper case.
+     */
+    private final char[][][] upperCaseKeys;
+    /**
+     * The upper case keys in lower case.
+     */
+    private final char[][][] lowerCaseKeys;
+    /**
+     * Is nothing matched at all?
+     */
+    private final boolean empty;
+
+    /**
+     * Compile a matcher.
+     *
+     * @param patterns Exact keys or prefixes followed by {@link #WILDCARD}.
+     * Blank patterns are ignored, surrounding whitespace is stripped.
+     * @param ignoreCaseKeys Keys that are matched ignoring their case.
+     * @throws IllegalArgumentException If a pattern has a {@link #WILDCARD}
+     * anywhere but at its end.
+     */
+    TagKeyMatcher(Collection<String> patterns, Collection<String> ignoreCaseKeys) {
+        Builder root = new Builder();
+        boolean hasPattern = false;
+        for (String rawPattern : patterns) {
+            String pattern = rawPattern.trim();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            int wildcard = pattern.indexOf(WILDCARD);
+            if (wildcard >= 0 && wildcard != pattern.length() - 1) {
+                throw new IllegalArgumentException("Invalid tag pattern " + pattern + ", " + WILDCARD + " is only allowed at the end!");
+            }
+            Builder node = root;
+            int length = (wildcard >= 0) ? wildcard : pattern.length();
+            for (int i = 0; i < length; i++) {
+                Builder child = node.children.get(pattern.charAt(i));
+                if (child == null) {
+                    child = new Builder();
+                    node.children.put(pattern.charAt(i), child);
+                }
+                node = child;
+            }
+            if (wildcard >= 0) {
+                node.prefixEnd = true;
+            } else {
+                node.keyEnd = true;
+            }
+            hasPattern = true;
+        }
+        List<Builder> nodes = new ArrayList<>();
+        root.number(nodes);
+        this.labels = new char[nodes.size()][];
+        this.children = new int[nodes.size()][];
+        this.keyEnds = new boolean[nodes.size()];
+        this.prefixEnds = new boolean[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            Builder node = nodes.get(i);
+            this.labels[i] = new char[node.children.size()];
+            this.children[i] = new int[node.children.size()];
+            int transition = 0;
+            for (Map.Entry<Character, Builder> entry : node.children.entrySet()) {
+                this.labels[i][transition] = entry.getKey();
+                this.children[i][transition] = entry.getValue().index;
+                transition++;
+            }
+            this.keyEnds[i] = node.keyEnd;
+            this.prefixEnds[i] = node.prefixEnd;
+        }
+
+        int maxLength = -1;
+        for (String key : ignoreCaseKeys) {
+            maxLength = Math.max(maxLength, key.length());
+        }
+        this.ignoreCaseKeys = new char[maxLength + 1][][];
+        this.upperCaseKeys = new char[maxLength + 1][][];
+        this.lowerCaseKeys = new char[maxLength + 1][][];
+        for (String key : ignoreCaseKeys) {
+            int length = key.length();
+            char[] upperCase = new char[length];
+            char[] lowerCase = new char[length];
+            for (int i = 0; i < length; i++) {
+                upperCase[i] = Character.toUpperCase(key.charAt(i));
+                lowerCase[i] = Character.toLowerCase(upperCase[i]);
+            }
+            this.ignoreCaseKeys[length] = append(this.ignoreCaseKeys[length], key.toCharArray());
+            this.upperCaseKeys[length] = append(this.upperCaseKeys[length], upperCase);
+            this.lowerCaseKeys[length] = append(this.lowerCaseKeys[length], lowerCase);
+        }
+        this.empty = !hasPattern && ignoreCaseKeys.isEmpty();
+    }
+
+    /**
+     * @param key A tag key.
+     * @return Is it matched by one of the patterns or keys?
+     */
+    boolean matches(String key) {
+        return matchesPattern(key) || matchesIgnoringCase(key);
+    }
+
+    /**
+     * @return Is no key matched at all?
+     */
+    boolean isEmpty() {
+        return this.empty;
+    }
+
+    /**
+     * @param key A tag key.
+     * @return Is it matched by one of the patterns?
+     */
+    private boolean matchesPattern(String key) {
+        int node = 0;
+        for (int i = 0; i < key.length(); i++) {
+            if (this.prefixEnds[node]) {
+                return true;
+            }
+            int transition = find(this.labels[node], key.charAt(i));
+            if (transition < 0) {
+                return false;
+            }
+            node = this.children[node][transition];
+        }
+        return this.keyEnds[node] || this.prefixEnds[node];
+    }
+
+    /**
+     * @param key A tag key.
+     * @return Is it one of the keys matched ignoring the case?
+     */
+    private boolean matchesIgnoringCase(String key) {
+        int length = key.length();
+        if (length >= this.ignoreCaseKeys.length || this.ignoreCaseKeys[length] == null) {
+            return false;
+        }
+        char[][] keys = this.ignoreCaseKeys[length];
+        for (int candidate = 0; candidate < keys.length; candidate++) {
+            int i = 0;
+            while (i < length) {
+                char c = key.charAt(i);
+                if (c != keys[candidate][i]) {
+                    // The same comparisons as String.equalsIgnoreCase
+                    char upper = Character.toUpperCase(c);
+                    if (upper != this.upperCaseKeys[length][candidate][i]
+                            && Character.toLowerCase(upper) != this.lowerCaseKeys[length][candidate][i]) {
+                        break;
+                    }
+                }
+                i++;
+            }
+            if (i == length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param sortedLabels The labels of a trie node.
+     * @param c A character.
+     * @return The index of the character, negative if it is missing.
+     */
+    private static int find(char[] sortedLabels, char c) {
+        int low = 0;
+        int high = sortedLabels.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (sortedLabels[middle] < c) {
+                low = middle + 1;
+            } else if (sortedLabels[middle] > c) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param keys Keys or {@code null}.
+     * @param key Another key.
+     * @return The keys with the new one at the end.
+     */
+    private static char[][] append(char[][] keys, char[] key) {
+        if (keys == null) {
+            return new char[][]{key};
+        }
+        char[][] extended = new char[keys.length + 1][];
+        System.arraycopy(keys, 0, extended, 0, keys.length);
+        extended[keys.length] = key;
+        return extended;
+    }
+
+    /**
+     * A trie node while the matcher is compiled.
+     */
+    private static final class Builder {
+
+        /**
+         * The transitions, sorted by character.
+         */
+        final TreeMap<Character, Builder> children = new TreeMap<>();
+        /**
+         * Does a key end here?
+         */
+        boolean keyEnd;
+        /**
+         * Does a prefix end here?
+         */
+        boolean prefixEnd;
+        /**
+         * The index of the compiled node.
+         */
+        int index;
+
+        /**
+         * Number this node and all below it, the root gets 0.
+         *
+         * @param nodes The numbered nodes, by index.
+         */
+        void number(List<Builder> nodes) {
+            this.index = nodes.size();
+            nodes.add(this);
+            for (Builder child : this.children.values()) {
+                child.number(nodes);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * What {@link AnalyzerPlugin_task} knows about the values of one tag key:
+ * how often it occurs, how many of its values are numbers, their minimum and
+ * maximum and the approximate number of distinct values. Takes about 1 KB,
+ * no matter how many values there are.
+ * <p>
+ * Not thread-safe.</p>
+ *
+ * @author bennokue
+ */
+public class TagStatistics {
+
+    /**
+     * The tag key.
+     */
+    private final String key;
+    /**
+     * The number of Nodes with the tag.
+     */
+    private long count = 0;
+    /**
+     * The number of values that are numbers.
+     */
+    private long numericCount = 0;
+    /**
+     * The minimum of the numeric values.
+     */
+    private double min = Double.POSITIVE_INFINITY;
+    /**
+     * The maximum of the numeric values.
+     */
+    private double max = Double.NEGATIVE_INFINITY;
+    /**
+     * Estimates the number of distinct values.
+     */
+    private final HyperLogLog distinctValues = new HyperLogLog();
+
+    /**
+     * @param key The tag key.
+     */
+    TagStatistics(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Count a value.
+     *
+     * @param value The tag value.
+     * @param number The value as number, NaN if it is none.
+     */
+    void add(String value, double number) {
+        this.count++;
+        if (!Double.isNaN(number)) {
+            this.numericCount++;
+            this.min = Math.min(this.min, number);
+            this.max = Math.max(this.max, number);
+        }
+        this.distinctValues.add(value);
+    }
+
+    /**
+     * @return The tag key.
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return The number of Nodes with the tag.
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return The number of values that are numbers.
+     */
+    public long getNumericCount() {
+        return this.numericCount;
+    }
+
+    /**
+     * @return The share of values that are numbers, between 0 and 1.
+     */
+    public double getNumericRatio() {
+        return (this.count == 0) ? 0 : (double) this.numericCount / this.count;
+    }
+
+    /**
+     * @return The minimum of the numeric values, NaN if there is none.
+     */
+    public double getMin() {
+        return (this.numericCount == 0) ? Double.NaN : this.min;
+    }
+
+    /**
+     * @return The maximum of the numeric values, NaN if there is none.
+     */
+    public double getMax() {
+        return (this.numericCount == 0) ? Double.NaN : this.max;
+    }
+
+    /**
+     * @return The estimated number of distinct values, see
+     * {@link HyperLogLog}.
+     */
+    public long getDistinctValues() {
+        return this.distinctValues.estimate();
+    }
+}
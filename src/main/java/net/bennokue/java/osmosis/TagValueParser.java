@@ -0,0 +1,219 @@
+package net.bennokue.java.osmosis;
+
+/**
+ * Hand-written parser for numeric tag values that never throws. Instead of
+ * a {@link NumberFormatException}, a value that can not be parsed results in
+ * {@link Double#NaN}; counting those is up to the caller. No valid value is
+ * parsed to NaN.
+ * <p>
+ * The accepted syntax is a decimal number with optional sign, fraction and
+ * exponent, surrounded by optional whitespace, e.g. {@code 512},
+ * {@code -0.5} or {@code 1.2e3}. In <em>lenient</em> mode, a decimal comma
+ * ({@code 12,5}) and one of the {@link #UNIT_SUFFIXES} ({@code 512 m},
+ * {@code 50 mph}) are accepted as well. The unit is stripped, not converted.
+ * A comma after one to three digits that do not start with 0 and before
+ * exactly three digits ({@code 1,000}) might as well be a thousands
+ * separator, so such values are rejected as ambiguous. {@code 0,125} or
+ * {@code 1234,567} are accepted.
+ * </p>
+ * <p>
+ * Numbers with up to 18 significant digits and a small decimal exponent are
+ * converted exactly without creating any object; everything else is handed
+ * to {@link Double#parseDouble(java.lang.String)} after it has been validated.
+ * </p>
+ * Instances are immutable and thread-safe.
+ *
+ * @author bennokue
+ */
+class TagValueParser {
+
+    /**
+     * The unit suffixes that are stripped in lenient mode. Longer suffixes
+     * have to come before their prefixes.
+     */
+    static final String[] UNIT_SUFFIXES = new String[]{
+        "km/h", "knots", "kmh", "kph", "mph", "nmi", "kn", "km", "mi", "ft", "m", "t", "%"
+    };
+    /**
+     * Powers of ten that can be represented exactly as double.
+     */
+    private static final double[] EXACT_POWERS_OF_TEN = new double[]{
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /**
+     * Mantissas up to this value are exactly representable as double.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    /**
+     * More significant digits than this do not fit into a long.
+     */
+    private static final int MAX_MANTISSA_DIGITS = 18;
+    /**
+     * Accept decimal commas and unit suffixes?
+     */
+    private final boolean lenient;
+
+    /**
+     * Create a parser.
+     *
+     * @param lenient Accept decimal commas and unit suffixes?
+     */
+    TagValueParser(boolean lenient) {
+        this.lenient = lenient;
+    }
+
+    /**
+     * Parse a tag value.
+     *
+     * @param value The tag value.
+     * @return The numeric value or {@link Double#NaN} if the value is not a
+     * number.
+     */
+    double parse(String value) {
+        int length = value.length();
+        int pos = skipWhitespace(value, 0);
+
+        boolean negative = false;
+        if (pos < length && (value.charAt(pos) == '-' || value.charAt(pos) == '+')) {
+            negative = value.charAt(pos) == '-';
+            pos++;
+        }
+        int numberStart = pos;
+
+        long mantissa = 0;
+        int mantissaDigits = 0;
+        int exponent = 0;
+        boolean truncated = false;
+        boolean anyDigit = false;
+        boolean decimalComma = false;
+
+        // Integer part
+        while (pos < length && isDigit(value.charAt(pos))) {
+            int digit = value.charAt(pos) - '0';
+            anyDigit = true;
+            if (mantissaDigits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + digit;
+                if (mantissa != 0) {
+                    mantissaDigits++;
+                }
+            } else {
+                exponent++;
+                truncated |= digit != 0;
+            }
+            pos++;
+        }
+        int integerDigits = pos - numberStart;
+        // Fraction
+        if (pos < length && (value.charAt(pos) == '.' || (this.lenient && value.charAt(pos) == ','))) {
+            decimalComma = value.charAt(pos) == ',';
+            pos++;
+            int fractionStart = pos;
+            while (pos < length && isDigit(value.charAt(pos))) {
+                int digit = value.charAt(pos) - '0';
+                anyDigit = true;
+                if (mantissaDigits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + digit;
+                    if (mantissa != 0) {
+                        mantissaDigits++;
+                    }
+                    exponent--;
+                } else {
+                    truncated |= digit != 0;
+                }
+                pos++;
+            }
+            if (decimalComma && pos - fractionStart == 3 && integerDigits >= 1 && integerDigits <= 3
+                    && value.charAt(numberStart) != '0') {
+                // 1,000 is either 1.0 or 1000, but no group follows 0 or 1234
+                return Double.NaN;
+            }
+        }
+        if (!anyDigit) {
+            return Double.NaN;
+        }
+        // Exponent
+        if (pos < length && (value.charAt(pos) == 'e' || value.charAt(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < length && (value.charAt(pos) == '-' || value.charAt(pos) == '+')) {
+                negativeExponent = value.charAt(pos) == '-';
+                pos++;
+            }
+            if (pos >= length || !isDigit(value.charAt(pos))) {
+                return Double.NaN;
+            }
+            int explicitExponent = 0;
+            while (pos < length && isDigit(value.charAt(pos))) {
+                if (explicitExponent < 100000) {
+                    explicitExponent = explicitExponent * 10 + (value.charAt(pos) - '0');
+                }
+                pos++;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        int numberEnd = pos;
+
+        // Trailing whitespace and unit
+        pos = skipWhitespace(value, pos);
+        if (this.lenient && pos < length) {
+            pos = skipWhitespace(value, skipUnit(value, pos));
+        }
+        if (pos != length) {
+            return Double.NaN;
+        }
+
+        double result;
+        if (mantissa == 0) {
+            result = 0.0;
+        } else if (!truncated && mantissa <= MAX_EXACT_MANTISSA
+                && exponent >= -22 && exponent <= 22) {
+            // Both operands are exact, so the result is correctly rounded
+            result = (exponent >= 0)
+                    ? mantissa * EXACT_POWERS_OF_TEN[exponent]
+                    : mantissa / EXACT_POWERS_OF_TEN[-exponent];
+        } else {
+            // Rare: Let the JDK do the correct rounding, the syntax is valid
+            String number = value.substring(numberStart, numberEnd);
+            if (decimalComma) {
+                number = number.replace(',', '.');
+            }
+            result = Double.parseDouble(number);
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * @param value The String to scan.
+     * @param pos Where the unit might start.
+     * @return The position after the unit, {@code pos} if there is none.
+     */
+    private static int skipUnit(String value, int pos) {
+        for (String unit : UNIT_SUFFIXES) {
+            if (value.startsWith(unit, pos)) {
+                return pos + unit.length();
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @param value The String to scan.
+     * @param pos Where to start.
+     * @return The position of the first non-whitespace character.
+     */
+    private static int skipWhitespace(String value, int pos) {
+        while (pos < value.length() && value.charAt(pos) <= ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @param c A character.
+     * @return Is it an ASCII digit?
+     */
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
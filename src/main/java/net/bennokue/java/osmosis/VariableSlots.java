@@ -0,0 +1,157 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Assigns every variable of a calculation a fixed position ("slot") in a
+ * {@code double[]}. The index is built once, so looking up which slot a tag
+ * belongs to costs a single HashMap probe and does not allocate anything.
+ * <p>
+ * {@code lat} and {@code lon} get slots like every other variable, but their
+ * values are taken from the Node's coordinates instead of its tags.</p>
+ *
+ * @author bennokue
+ */
+class VariableSlots {
+
+    /**
+     * The variable names, indexed by their slot.
+     */
+    private final String[] names;
+    /**
+     * Whether the slot's value is read from the Node.
+     */
+    private final boolean[] input;
+    /**
+     * Tag key to slot. Does not contain {@code lat} and {@code lon}.
+     */
+    private final HashMap<String, Integer> tagSlots = new HashMap<>();
+    /**
+     * The slot of the {@code lat} variable or {@code -1}.
+     */
+    private final int latSlot;
+    /**
+     * The slot of the {@code lon} variable or {@code -1}.
+     */
+    private final int lonSlot;
+
+    /**
+     * Build the slot index for variables that are all read from the Nodes.
+     *
+     * @param variableNames The variable names. Empty names are ignored.
+     */
+    public VariableSlots(Collection<String> variableNames) {
+        this(variableNames, Collections.<String>emptyList());
+    }
+
+    /**
+     * Build the slot index.
+     *
+     * @param variableNames The names of the variables that are read from the
+     * Nodes. Empty names are ignored.
+     * @param computedNames The names of additional variables whose values are
+     * calculated, not read from the Nodes. If a name is also in
+     * {@code variableNames}, both share the slot.
+     */
+    public VariableSlots(Collection<String> variableNames, Collection<String> computedNames) {
+        LinkedHashSet<String> allNames = new LinkedHashSet<>();
+        for (String name : variableNames) {
+            if (!name.isEmpty()) {
+                allNames.add(name);
+            }
+        }
+        int inputCount = allNames.size();
+        allNames.addAll(computedNames);
+        this.names = allNames.toArray(new String[allNames.size()]);
+        this.input = new boolean[this.names.length];
+        int lat = -1;
+        int lon = -1;
+        for (int slot = 0; slot < inputCount; slot++) {
+            String name = this.names[slot];
+            this.input[slot] = true;
+            if (name.equals("lat")) {
+                lat = slot;
+            } else if (name.equals("lon")) {
+                lon = slot;
+            } else {
+                this.tagSlots.put(name, slot);
+            }
+        }
+        this.latSlot = lat;
+        this.lonSlot = lon;
+    }
+
+    /**
+     * @return The number of slots.
+     */
+    public int size() {
+        return this.names.length;
+    }
+
+    /**
+     * @param slot A slot.
+     * @return The name of the variable stored at that slot.
+     */
+    public String getName(int slot) {
+        return this.names[slot];
+    }
+
+    /**
+     * @param slot A slot.
+     * @return Is the slot's value read from the Node, i.e. is it an input tag
+     * or {@code lat}/{@code lon}?
+     */
+    public boolean isInput(int slot) {
+        return this.input[slot];
+    }
+
+    /**
+     * @return All variable names, in slot order.
+     */
+    public Set<String> getNames() {
+        return new LinkedHashSet<>(Arrays.asList(this.names));
+    }
+
+    /**
+     * @param name A variable name.
+     * @return The variable's slot.
+     * @throws IllegalArgumentException If there is no such variable.
+     */
+    public int getSlot(String name) {
+        for (int slot = 0; slot < this.names.length; slot++) {
+            if (this.names[slot].equals(name)) {
+                return slot;
+            }
+        }
+        throw new IllegalArgumentException("Unknown variable " + name);
+    }
+
+    /**
+     * @param tagKey The key of a Node tag.
+     * @return The slot the tag's value belongs to, {@code -1} if the tag is not
+     * used as a variable.
+     */
+    public int getTagSlot(String tagKey) {
+        Integer slot = this.tagSlots.get(tagKey);
+        return (slot == null) ? -1 : slot;
+    }
+
+    /**
+     * @return The slot of the {@code lat} variable or {@code -1}.
+     */
+    public int getLatSlot() {
+        return this.latSlot;
+    }
+
+    /**
+     * @return The slot of the {@code lon} variable or {@code -1}.
+     */
+    public int getLonSlot() {
+        return this.lonSlot;
+    }
+}
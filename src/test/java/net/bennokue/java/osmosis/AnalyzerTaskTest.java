@@ -0,0 +1,69 @@
+package net.bennokue.java.osmosis;
+
+import java.util.List;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.node;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+
+/**
+ * Feeds hand-made Nodes into an {@link AnalyzerPlugin_task} and checks the
+ * statistics.
+ *
+ * @author bennokue
+ */
+public class AnalyzerTaskTest {
+
+    @Test
+    /**
+     * Counts, numeric ratio and range are exact, the distinct values are
+     * estimated closely.
+     */
+    public void testStatistics() {
+        AnalyzerPlugin_task task = new AnalyzerPlugin_task("", 10, false);
+        for (int i = 0; i < 5000; i++) {
+            task.process(new NodeContainer(node(i, new Tag("ele", Integer.toString(i % 2000)), new Tag("name", (i % 2 == 0) ? "a" : "12,5"))));
+        }
+        task.process(new NodeContainer(node(5000)));
+        task.complete();
+
+        assertEquals(5001, task.getNodeCount());
+        List<TagStatistics> statistics = task.getStatistics();
+        assertEquals(2, statistics.size());
+        TagStatistics ele = statistics.get(0);
+        assertEquals("ele", ele.getKey());
+        assertEquals(5000, ele.getCount());
+        assertEquals(1.0, ele.getNumericRatio(), 0.0);
+        assertEquals(0.0, ele.getMin(), 0.0);
+        assertEquals(1999.0, ele.getMax(), 0.0);
+        assertEquals(2000, ele.getDistinctValues(), 2000 * 0.1);
+        TagStatistics name = statistics.get(1);
+        assertEquals(0.0, name.getNumericRatio(), 0.0);
+        assertTrue(Double.isNaN(name.getMin()));
+        assertEquals(2, name.getDistinctValues());
+        assertTrue(task.getReport(), task.getReport().contains("mostly numeric keys: inputTags=ele"));
+        assertTrue(task.getReport(), task.getReport().contains("5000 values are no numbers"));
+    }
+
+    @Test
+    /**
+     * Only the selected keys are analyzed, and only up to the maximum number
+     * of keys.
+     */
+    public void testKeysAndLimit() {
+        AnalyzerPlugin_task task = new AnalyzerPlugin_task("ele*,height", 2, true);
+        task.process(new NodeContainer(node(1, new Tag("ele", "512 m"), new Tag("highway", "crossing"))));
+        task.process(new NodeContainer(node(2, new Tag("height", "12,5"), new Tag("ele:ft", "1680"), new Tag("ele:m", "512"))));
+        task.complete();
+
+        List<TagStatistics> statistics = task.getStatistics();
+        assertEquals(2, statistics.size());
+        assertEquals("ele", statistics.get(0).getKey());
+        assertEquals(512.0, statistics.get(0).getMax(), 0.0);
+        assertEquals("height", statistics.get(1).getKey());
+        assertEquals(12.5, statistics.get(1).getMin(), 0.0);
+        assertTrue(task.getReport(), task.getReport().contains("2 tags of ~2 further keys were not analyzed"));
+    }
+}
@@ -0,0 +1,99 @@
+package net.bennokue.java.osmosis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.node;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.tags;
+
+/**
+ * Tests {@link AsyncSink}.
+ *
+ * @author bennokue
+ */
+public class AsyncSinkTest {
+
+    @Test
+    /**
+     * The entities keep their order, also when the producer has to wait for
+     * a small buffer.
+     */
+    public void testOrder() {
+        CollectingSink downstream = new CollectingSink();
+        AsyncSink sink = new AsyncSink(downstream, 3);
+        NodeContainer[] nodes = new NodeContainer[10000];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new NodeContainer(node(i));
+            sink.process(nodes[i]);
+        }
+        sink.complete();
+        sink.release();
+
+        assertTrue(downstream.isCompleted());
+        assertEquals(nodes.length, downstream.getEntities().size());
+        for (int i = 0; i < nodes.length; i++) {
+            assertSame(nodes[i], downstream.getEntities().get(i));
+        }
+    }
+
+    @Test
+    /**
+     * A failure of the next stage reaches the producer, even while it waits
+     * for a full buffer.
+     */
+    public void testFailure() {
+        CollectingSink downstream = new CollectingSink() {
+            @Override
+            public void process(EntityContainer entityContainer) {
+                if (getEntities().size() == 2) {
+                    throw new IllegalStateException("disk full");
+                }
+                super.process(entityContainer);
+            }
+        };
+        AsyncSink sink = new AsyncSink(downstream, 1);
+        try {
+            for (int i = 0; i < 100; i++) {
+                sink.process(new NodeContainer(node(i)));
+            }
+            sink.complete();
+            fail("The failure of the next stage has been lost");
+        } catch (OsmosisRuntimeException e) {
+            assertEquals("disk full", e.getCause().getMessage());
+        } finally {
+            sink.release();
+        }
+        assertFalse(downstream.isCompleted());
+        assertEquals(2, downstream.getEntities().size());
+    }
+
+    @Test
+    /**
+     * The calculation hands its results to the output thread.
+     */
+    public void testTask() {
+        CalculatorOptions options = new CalculatorOptions();
+        options.setAsyncCapacity(2);
+        options.setWorkers(2);
+        CalculatorPlugin_task task = new CalculatorPlugin_task("ele", "double", "ele*2", "", options);
+        CollectingSink sink = new CollectingSink();
+        task.setSink(sink);
+        for (int i = 0; i < 100; i++) {
+            task.process(new NodeContainer(node(i, new Tag("ele", Integer.toString(i)))));
+        }
+        task.complete();
+        task.release();
+
+        assertEquals(100, sink.getEntities().size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("ele=" + i + ",double=" + (2d * i), tags(sink.getEntities().get(i)));
+        }
+    }
+}
@@ -2,6 +2,7 @@ package net.bennokue.java.osmosis;
 
 import java.io.File;
 import java.net.URI;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
@@ -150,6 +151,192 @@ public class CalculatorPluginTest {
                 new String[]{"/osm/node/tag[@k=\"foot\"]/@v", "/osm/node/tag[@k=\"ele\"]/@v"});
     }
 
+    @Test
+    /**
+     * Tests the parallel mode: The results have to be the same and in the same
+     * order as in {@link #testForCalculationAndDeletion()}.
+     */
+    public void testForParallelWorkers() throws Exception {
+        String[] expectedFoot = new String[]{
+            "1686.805574", "1679.94788", "1693.464159", "1684.527215", "1674.662369",
+            "1665.725161", "1668.445115", "1693.065993", "1692.925843", "1691.144428",
+            "1687.863187", "1684.615353", "1688.002915", "1671.379803", "1683.855478",
+            "1663.091133", "1661.511623", "1675.267277", "1685.300059", "1680.626214"
+        };
+        String[] expectedEle = new String[]{};
+        CalculatorOptions options = new CalculatorOptions();
+        options.setWorkers(4);
+        conductTest("/munich_lmu_srtm.osm",
+                "ele",
+                "foot",
+                "ele/0.3048",
+                "ele",
+                options,
+                new String[][]{expectedFoot, expectedEle},
+                new String[]{"/osm/node/tag[@k=\"foot\"]/@v", "/osm/node/tag[@k=\"ele\"]/@v"});
+    }
+
+    @Test
+    /**
+     * Tests several calculations in one pass, where one calculation uses the
+     * output of another one that is given later. Demo data used is a JOSM
+     * download of a small area in Munich, anriched with SRTM data using Franz
+     * Graf's SRTM plugin.
+     */
+    public void testForDependentCalculations() throws Exception {
+        String[] expectedFoot = new String[]{
+            "1686.805574", "1679.94788", "1693.464159", "1684.527215", "1674.662369",
+            "1665.725161", "1668.445115", "1693.065993", "1692.925843", "1691.144428",
+            "1687.863187", "1684.615353", "1688.002915", "1671.379803", "1683.855478",
+            "1663.091133", "1661.511623", "1675.267277", "1685.300059", "1680.626214"
+        };
+        String[] expectedYard = new String[]{
+            "562.2685246", "559.9826265", "564.4880529", "561.5090716", "558.2207896",
+            "555.2417202", "556.1483717", "564.3553311", "564.3086142", "563.7148093",
+            "562.6210622", "561.5384509", "562.6676384", "557.1266011", "561.2851594",
+            "554.3637111", "553.8372078", "558.4224256", "561.7666864", "560.2087380"
+        };
+        CalculatorOptions options = new CalculatorOptions();
+        options.addCalculation("yard", "foot/3");
+        options.addCalculation("foot", "ele/0.3048");
+        conductTest("/munich_lmu_srtm.osm",
+                "ele",
+                "",
+                "",
+                "",
+                options,
+                new String[][]{expectedFoot, expectedYard},
+                new String[]{"/osm/node/tag[@k=\"foot\"]/@v", "/osm/node/tag[@k=\"yard\"]/@v"});
+    }
+
+    @Test
+    /**
+     * Tests the columnar batches, alone and on worker threads: The results
+     * have to be the same as in {@link #testForDependentCalculations()}, also
+     * for the incomplete last batch.
+     */
+    public void testForColumnarBatches() throws Exception {
+        String[] expectedFoot = new String[]{
+            "1686.805574", "1679.94788", "1693.464159", "1684.527215", "1674.662369",
+            "1665.725161", "1668.445115", "1693.065993", "1692.925843", "1691.144428",
+            "1687.863187", "1684.615353", "1688.002915", "1671.379803", "1683.855478",
+            "1663.091133", "1661.511623", "1675.267277", "1685.300059", "1680.626214"
+        };
+        String[] expectedYard = new String[]{
+            "562.2685246", "559.9826265", "564.4880529", "561.5090716", "558.2207896",
+            "555.2417202", "556.1483717", "564.3553311", "564.3086142", "563.7148093",
+            "562.6210622", "561.5384509", "562.6676384", "557.1266011", "561.2851594",
+            "554.3637111", "553.8372078", "558.4224256", "561.7666864", "560.2087380"
+        };
+        for (int workers = 1; workers <= 3; workers += 2) {
+            CalculatorOptions options = new CalculatorOptions();
+            options.setEngine(CalculatorOptions.Engine.COMPILED);
+            options.setBatchSize(7);
+            options.setWorkers(workers);
+            options.addCalculation("yard", "foot/3");
+            conductTest("/munich_lmu_srtm.osm",
+                    "ele",
+                    "foot",
+                    "ele/0.3048",
+                    "ele",
+                    options,
+                    new String[][]{expectedFoot, expectedYard, new String[]{}},
+                    new String[]{"/osm/node/tag[@k=\"foot\"]/@v", "/osm/node/tag[@k=\"yard\"]/@v", "/osm/node/tag[@k=\"ele\"]/@v"});
+        }
+    }
+
+    @Test
+    /**
+     * Tests the Way and Relation calculations with their aggregate variables.
+     * Demo data used is a JOSM download of a small area in Munich, anriched
+     * with SRTM data using Franz Graf's SRTM plugin.
+     */
+    public void testForWayAndRelationAggregates() throws Exception {
+        String[] expectedWayLength = new String[]{
+            "211.51516856", "236.10488039", "40.03587761", "311.15353749", "6984.02002296"
+        };
+        String[] expectedRelationLength = new String[]{
+            "1621.37279681", "1141.09463184", "1145.08350802", "2016.06226045", "870.97875242"
+        };
+        CalculatorOptions options = new CalculatorOptions();
+        options.setWayCalculation("length", "length");
+        options.setRelationCalculation("length", "length");
+        conductTest("/munich_lmu_srtm.osm", "", "", "", "", options,
+                new String[][]{expectedWayLength, expectedRelationLength},
+                new String[]{"/osm/way/tag[@k=\"length\"]/@v", "/osm/relation/tag[@k=\"length\"]/@v"});
+
+        String[] expectedWayNodes = new String[]{"10", "13", "5", "6", "36"};
+        String[] expectedRelationMembers = new String[]{"174", "97", "37", "29", "33"};
+        options = new CalculatorOptions();
+        options.setWayCalculation("nodes", "node_count");
+        options.setRelationCalculation("members", "member_count");
+        conductTest("/munich_lmu_srtm.osm", "", "", "", "", options,
+                new String[][]{expectedWayNodes, expectedRelationMembers},
+                new String[]{"/osm/way/tag[@k=\"nodes\"]/@v", "/osm/relation/tag[@k=\"members\"]/@v"});
+
+        String[] expectedMaxEle = new String[]{
+            "509.60684618", "510.91672634", "509.21714529", "513.09696608", "521.36012729"
+        };
+        String[] expectedAvgEle = new String[]{
+            "508.56111599", "509.87485076", "508.41575866", "509.39606303", "513.74736513"
+        };
+        options = new CalculatorOptions();
+        options.addAggregateTag("ele");
+        options.setWayCalculation("max_ele", "max_ele");
+        options.addCalculation("foot", "ele/0.3048");
+        conductTest("/munich_lmu_srtm.osm", "ele", "", "", "", options,
+                new String[][]{expectedMaxEle},
+                new String[]{"/osm/way/tag[@k=\"max_ele\"]/@v"});
+        options = new CalculatorOptions();
+        options.addAggregateTag("ele");
+        options.setWayCalculation("avg_ele", "avg_ele");
+        options.setWorkers(4);
+        conductTest("/munich_lmu_srtm.osm", "", "", "", "", options,
+                new String[][]{expectedAvgEle},
+                new String[]{"/osm/way/tag[@k=\"avg_ele\"]/@v"});
+    }
+
+    @Test
+    /**
+     * Tests the metrics. Demo data used is a JOSM download of a small area in
+     * Munich, which has no ele tags.
+     */
+    public void testForMetrics() throws Exception {
+        File inputFile = new File(new URI(CalculatorPluginTest.class.getResource("/munich_lmu_original.osm").toString()).getSchemeSpecificPart());
+        File outputFile = java.io.File.createTempFile("osmosiscalctest", null, null);
+        if (deleteTemporaryFiles) {
+            outputFile.deleteOnExit();
+        }
+        CalculatorOptions options = new CalculatorOptions();
+        options.setWorkers(2);
+        OsmosisRunner runner = new OsmosisRunner(inputFile, outputFile, "ele,lat", "foot", "ele/0.3048", "", options);
+        runner.runOsmosis();
+        CalculatorMetrics metrics = runner.calculator.getMetrics();
+        assertEquals(5507, metrics.getNodesProcessed());
+        assertEquals(5507, metrics.getNodesCalculated());
+        assertEquals(5507, metrics.getNaNResults());
+        assertEquals(0, metrics.getInfiniteResults());
+        assertEquals(Long.valueOf(5507), metrics.getMissingVariables().get("ele"));
+        assertEquals(Long.valueOf(0), metrics.getMissingVariables().get("lat"));
+        long sampled = 0;
+        for (long count : metrics.getEvaluationTimeHistogram()) {
+            sampled += count;
+        }
+        assertEquals(5507 / MetricsStripe.TIMING_SAMPLE_RATE, sampled, 2);
+        assertEquals(0, metrics.getBlocksEvaluated());
+
+        // Blocks are timed as a whole, not in the histogram
+        options.setBatchSize(64);
+        runner = new OsmosisRunner(inputFile, outputFile, "ele,lat", "foot", "ele/0.3048", "", options);
+        runner.runOsmosis();
+        metrics = runner.calculator.getMetrics();
+        assertEquals(5507, metrics.getNodesCalculated());
+        assertEquals(0, metrics.getEvaluationTimePercentile(100));
+        assertTrue(metrics.getBlocksEvaluated() >= 5507 / 64);
+        assertTrue(metrics.getBlockEvaluationTimePerNode() > 0);
+        assertTrue(metrics.getReport(), metrics.getReport().contains(" blocks: "));
+    }
+
     /**
      * Same as
      * {@link #conductTest(java.lang.String, java.lang.String, java.lang.String, java.lang.String, java.lang.String, java.lang.String[][], java.lang.String[]) conductTest(...)},
@@ -195,12 +382,37 @@ public class CalculatorPluginTest {
      * @throws Exception If anything goes wrong.
      */
     private static void conductTest(String inputFileString, String inputTags, String outputTag, String calculation, String removeTags, String[][] expectedResults, String[] xpathQueries) throws Exception {
+        conductTest(inputFileString, inputTags, outputTag, calculation, removeTags, new CalculatorOptions(), expectedResults, xpathQueries);
+    }
+
+    /**
+     * Same as
+     * {@link #conductTest(java.lang.String, java.lang.String, java.lang.String, java.lang.String, java.lang.String, java.lang.String[][], java.lang.String[]) conductTest(...)},
+     * but with custom {@link CalculatorOptions}.
+     *
+     * @param inputFileString The demo file to be used.
+     * @param inputTags See
+     * {@link CalculatorPlugin_task#CalculatorPlugin_task(java.lang.String, java.lang.String, java.lang.String, java.lang.String) CalculatorPlugin_task(...)}.
+     * @param outputTag See
+     * {@link CalculatorPlugin_task#CalculatorPlugin_task(java.lang.String, java.lang.String, java.lang.String, java.lang.String) CalculatorPlugin_task(...)}.
+     * @param calculation See
+     * {@link CalculatorPlugin_task#CalculatorPlugin_task(java.lang.String, java.lang.String, java.lang.String, java.lang.String) CalculatorPlugin_task(...)}.
+     * @param removeTags See
+     * {@link CalculatorPlugin_task#CalculatorPlugin_task(java.lang.String, java.lang.String, java.lang.String, java.lang.String) CalculatorPlugin_task(...)}.
+     * @param options The {@link CalculatorOptions} to pass to the plugin.
+     * @param expectedResults The expected results for each xpathQuery on the
+     * final document as String[], bundled as a String[][].
+     * @param xpathQueries The XPath queries that have to be performed at the
+     * final document.
+     * @throws Exception If anything goes wrong.
+     */
+    private static void conductTest(String inputFileString, String inputTags, String outputTag, String calculation, String removeTags, CalculatorOptions options, String[][] expectedResults, String[] xpathQueries) throws Exception {
         File inputFile = new File(new URI(CalculatorPluginTest.class.getResource(inputFileString).toString()).getSchemeSpecificPart());
         File outputFile = java.io.File.createTempFile("osmosiscalctest", null, null);
         if (deleteTemporaryFiles) {
             outputFile.deleteOnExit();
         }
-        OsmosisRunner runner = new OsmosisRunner(inputFile, outputFile, inputTags, outputTag, calculation, removeTags);
+        OsmosisRunner runner = new OsmosisRunner(inputFile, outputFile, inputTags, outputTag, calculation, removeTags, options);
         runner.runOsmosis();
         if (expectedResults.length != xpathQueries.length) {
             throw new IllegalArgumentException("Please give as many results as tests!");
@@ -0,0 +1,415 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+
+/**
+ * Feeds hand-made entities directly into a {@link CalculatorPlugin_task} and
+ * checks what arrives at the next stage.
+ *
+ * @author bennokue
+ */
+public class CalculatorTaskTest {
+
+    @Test
+    /**
+     * If only tags are removed, Nodes without such tags are passed through
+     * untouched and read-only Nodes are copied instead of changed.
+     */
+    public void testRemoveOnly() {
+        CalculatorPlugin_task task = new CalculatorPlugin_task("", "", "", "note,fixme");
+        CollectingSink sink = new CollectingSink();
+        task.setSink(sink);
+
+        NodeContainer untouched = new NodeContainer(node(1, new Tag("highway", "crossing")));
+        NodeContainer writeable = new NodeContainer(node(2, new Tag("note", "x"), new Tag("highway", "crossing")));
+        Node readOnlyNode = node(3, new Tag("fixme", "x"), new Tag("ele", "512"));
+        readOnlyNode.makeReadOnly();
+        NodeContainer readOnly = new NodeContainer(readOnlyNode);
+        task.process(untouched);
+        task.process(writeable);
+        task.process(readOnly);
+        task.complete();
+
+        assertSame(untouched, sink.getEntities().get(0));
+        assertSame(writeable, sink.getEntities().get(1));
+        assertEquals("highway=crossing", tags(sink.getEntities().get(1)));
+        assertNotSame(readOnly, sink.getEntities().get(2));
+        assertEquals("ele=512", tags(sink.getEntities().get(2)));
+        assertEquals(2, readOnlyNode.getTags().size());
+        assertEquals(3, task.getMetrics().getNodesProcessed());
+        assertTrue(sink.isCompleted());
+    }
+
+    @Test
+    /**
+     * Prefix patterns remove every matching tag, with and without a
+     * calculation, and the output tags are replaced ignoring their case.
+     */
+    public void testRemovePatterns() {
+        CalculatorPlugin_task removeOnly = new CalculatorPlugin_task("", "", "", "source:*,note*,fixme");
+        CollectingSink removed = new CollectingSink();
+        removeOnly.setSink(removed);
+        removeOnly.process(new NodeContainer(node(1, new Tag("source", "survey"), new Tag("source:ele", "gps"),
+                new Tag("notes", "x"), new Tag("fixme", "x"), new Tag("fixme:type", "x"))));
+        removeOnly.complete();
+        assertEquals("source=survey,fixme:type=x", tags(removed.getEntities().get(0)));
+
+        CalculatorPlugin_task calculating = new CalculatorPlugin_task("ele", "ele:ft", "ele/0.3048", "source:*");
+        CollectingSink calculated = new CollectingSink();
+        calculating.setSink(calculated);
+        calculating.process(new NodeContainer(node(1, new Tag("ELE:FT", "1"), new Tag("ele", "0"), new Tag("source:ele", "gps"))));
+        calculating.complete();
+        assertEquals("ele=0,ele:ft=0.0", tags(calculated.getEntities().get(0)));
+    }
+
+    @Test
+    /**
+     * Only Nodes that fulfill the where predicate are calculated, the others
+     * are passed through untouched. Checked with both engines, one Node at a
+     * time and in columnar batches.
+     */
+    public void testWhere() {
+        for (CalculatorOptions.Engine engine : CalculatorOptions.Engine.values()) {
+            for (int batchSize = 1; batchSize <= 2; batchSize++) {
+                CalculatorOptions options = new CalculatorOptions();
+                options.setEngine(engine);
+                options.setBatchSize(batchSize);
+                options.setWhere("ele > 500 && has(height) || ele == -1");
+                CalculatorPlugin_task task = new CalculatorPlugin_task("ele", "ft", "ele/0.3048*2", "height", options);
+                CollectingSink sink = new CollectingSink();
+                task.setSink(sink);
+
+                NodeContainer noTags = new NodeContainer(node(1));
+                NodeContainer matching = new NodeContainer(node(2, new Tag("ele", "609.6"), new Tag("height", "3")));
+                NodeContainer tooLow = new NodeContainer(node(3, new Tag("ele", "400"), new Tag("height", "3")));
+                NodeContainer noHeight = new NodeContainer(node(4, new Tag("ele", "609.6")));
+                NodeContainer minusOne = new NodeContainer(node(5, new Tag("ele", "-1")));
+                task.process(noTags);
+                task.process(matching);
+                task.process(tooLow);
+                task.process(noHeight);
+                task.process(minusOne);
+                task.complete();
+
+                String message = engine + ", batch size " + batchSize;
+                assertEquals(message, 5, sink.getEntities().size());
+                assertSame(message, noTags, sink.getEntities().get(0));
+                assertEquals(message, "ele=609.6,ft=4000.0", tags(sink.getEntities().get(1)));
+                assertSame(message, tooLow, sink.getEntities().get(2));
+                assertEquals(message, "ele=400,height=3", tags(sink.getEntities().get(2)));
+                assertSame(message, noHeight, sink.getEntities().get(3));
+                assertEquals(message, "ele=-1,ft=-6.561679790026246", tags(sink.getEntities().get(4)));
+                assertEquals(message, 2, task.getMetrics().getNodesCalculated());
+                task.release();
+            }
+        }
+    }
+
+    @Test
+    /**
+     * The tags of the where predicate are found in its RPN: Function names are
+     * no tags, the results of calculations and constants are rejected at
+     * startup instead of being read as missing tags.
+     */
+    public void testWhereVariables() {
+        CalculatorOptions options = new CalculatorOptions();
+        options.setWhere("has(height) && tileX(lon, 2) >= 0");
+        CalculatorPlugin_task task = new CalculatorPlugin_task("ele", "ft", "ele/0.3048", "", options);
+        CollectingSink sink = new CollectingSink();
+        task.setSink(sink);
+        task.process(new NodeContainer(node(1, new Tag("ele", "0"), new Tag("height", "3"))));
+        task.complete();
+        assertEquals("ele=0,height=3,ft=0.0", tags(sink.getEntities().get(0)));
+
+        for (String where : new String[]{"ele > pi", "half > 100", "ele > unknown(1)"}) {
+            options = new CalculatorOptions();
+            options.setWhere(where);
+            options.addCalculation("half", "ele/2");
+            try {
+                new CalculatorPlugin_task("ele", "ft", "ele/0.3048", "", options);
+                fail(where + " has been accepted");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    /**
+     * With skipIfMissing, Nodes without a numeric value for every input tag
+     * are passed through untouched.
+     */
+    public void testSkipIfMissing() {
+        CalculatorOptions options = new CalculatorOptions();
+        options.setSkipIfMissing(true);
+        CalculatorPlugin_task task = new CalculatorPlugin_task("ele,width,lat", "sum", "ele+width+lat", "", options);
+        CollectingSink sink = new CollectingSink();
+        task.setSink(sink);
+
+        NodeContainer eleOnly = new NodeContainer(node(1, new Tag("ele", "1")));
+        NodeContainer noNumber = new NodeContainer(node(2, new Tag("ele", "1"), new Tag("width", "wide")));
+        NodeContainer complete = new NodeContainer(node(3, new Tag("ele", "1"), new Tag("width", "0.5")));
+        task.process(eleOnly);
+        task.process(noNumber);
+        task.process(complete);
+        task.complete();
+
+        assertSame(eleOnly, sink.getEntities().get(0));
+        assertSame(noNumber, sink.getEntities().get(1));
+        assertEquals("ele=1,width=0.5,sum=49.6", tags(sink.getEntities().get(2)));
+        assertEquals(1, task.getMetrics().getNodesCalculated());
+        assertEquals(0, (long) task.getMetrics().getMissingVariables().get("width"));
+        task.release();
+    }
+
+    @Test
+    /**
+     * With a cache, repeated input values are looked up instead of evaluated,
+     * the results stay the same.
+     */
+    public void testCache() {
+        for (CalculatorOptions.Engine engine : CalculatorOptions.Engine.values()) {
+            CalculatorOptions options = new CalculatorOptions();
+            options.setEngine(engine);
+            options.setCacheSize(16);
+            options.addCalculation("half", "ft/2");
+            CalculatorPlugin_task task = new CalculatorPlugin_task("ele", "ft", "ele/0.3048", "", options);
+            CollectingSink sink = new CollectingSink();
+            task.setSink(sink);
+            task.process(new NodeContainer(node(1, new Tag("ele", "3.048"))));
+            task.process(new NodeContainer(node(2, new Tag("ele", "3.048"))));
+            task.process(new NodeContainer(node(3, new Tag("ele", "6.096"))));
+            task.complete();
+
+            assertEquals(engine.name(), "ele=3.048,ft=10.0,half=5.0", tags(sink.getEntities().get(0)));
+            assertEquals(engine.name(), "ele=3.048,ft=10.0,half=5.0", tags(sink.getEntities().get(1)));
+            assertEquals(engine.name(), "ele=6.096,ft=20.0,half=10.0", tags(sink.getEntities().get(2)));
+            assertEquals(engine.name(), 2, task.getMetrics().getCacheHits());
+            assertEquals(engine.name(), 4, task.getMetrics().getCacheMisses());
+            task.release();
+        }
+    }
+
+    @Test
+    /**
+     * A calculation without variables is evaluated once, every Node gets the
+     * same tag value.
+     */
+    public void testConstant() {
+        CalculatorOptions options = new CalculatorOptions();
+        options.addCalculation("sum", "ele+one");
+        CalculatorPlugin_task task = new CalculatorPlugin_task("ele", "one", "2^3^2/512", "", options);
+        CollectingSink sink = new CollectingSink();
+        task.setSink(sink);
+        task.process(new NodeContainer(node(1, new Tag("ele", "1"))));
+        task.process(new NodeContainer(node(2)));
+        task.complete();
+
+        assertEquals("ele=1,one=1.0,sum=2.0", tags(sink.getEntities().get(0)));
+        assertEquals("one=1.0,sum=NaN", tags(sink.getEntities().get(1)));
+        assertSame(value(sink.getEntities().get(0), "one"), value(sink.getEntities().get(1), "one"));
+        task.release();
+    }
+
+    @Test
+    /**
+     * The output format applies to every calculation, including constant
+     * ones.
+     */
+    public void testOutputFormat() {
+        CalculatorOptions options = new CalculatorOptions();
+        options.addCalculation("ratio", "ele/3");
+        options.setOutputFormat("fixed:3");
+        CalculatorPlugin_task task = new CalculatorPlugin_task("ele", "one", "2^0", "", options);
+        CollectingSink sink = new CollectingSink();
+        task.setSink(sink);
+        task.process(new NodeContainer(node(1, new Tag("ele", "514"))));
+        task.process(new NodeContainer(node(2)));
+        task.complete();
+
+        assertEquals("ele=514,one=1.000,ratio=171.333", tags(sink.getEntities().get(0)));
+        assertEquals("one=1.000,ratio=NaN", tags(sink.getEntities().get(1)));
+        task.release();
+    }
+
+    @Test
+    /**
+     * Nodes that already have the results are forwarded as they are, the
+     * others are changed in place unless they are read-only, one at a time
+     * and in columnar batches.
+     */
+    public void testUnchanged() {
+        for (CalculatorOptions.Engine engine : CalculatorOptions.Engine.values()) {
+            for (int batchSize = 1; batchSize <= 2; batchSize++) {
+                CalculatorOptions options = new CalculatorOptions();
+                options.setEngine(engine);
+                options.setBatchSize(batchSize);
+                options.addCalculation("one", "1");
+                CalculatorPlugin_task task = new CalculatorPlugin_task("ele", "ft", "ele/0.3048", "note", options);
+                CollectingSink sink = new CollectingSink();
+                task.setSink(sink);
+
+                NodeContainer calculated = new NodeContainer(node(1, new Tag("one", "1.0"), new Tag("ele", "609.6"), new Tag("ft", "2000.0")));
+                NodeContainer stale = new NodeContainer(node(2, new Tag("ele", "609.6"), new Tag("ft", "1.0"), new Tag("one", "1.0")));
+                NodeContainer withNote = new NodeContainer(node(3, new Tag("ele", "609.6"), new Tag("ft", "2000.0"), new Tag("one", "1.0"),
+                        new Tag("note", "x")));
+                Node readOnlyNode = node(4, new Tag("ele", "609.6"), new Tag("ft", "2000.0"), new Tag("one", "1.0"));
+                readOnlyNode.makeReadOnly();
+                NodeContainer readOnly = new NodeContainer(readOnlyNode);
+                Node readOnlyStaleNode = node(5, new Tag("ele", "304.8"), new Tag("ft", "2000.0"), new Tag("one", "1.0"));
+                readOnlyStaleNode.makeReadOnly();
+                NodeContainer readOnlyStale = new NodeContainer(readOnlyStaleNode);
+                task.process(calculated);
+                task.process(stale);
+                task.process(withNote);
+                task.process(readOnly);
+                task.process(readOnlyStale);
+                task.complete();
+
+                String message = engine + ", batch size " + batchSize;
+                assertSame(message, calculated, sink.getEntities().get(0));
+                assertEquals(message, "one=1.0,ele=609.6,ft=2000.0", tags(sink.getEntities().get(0)));
+                assertSame(message, stale, sink.getEntities().get(1));
+                assertEquals(message, "ele=609.6,ft=2000.0,one=1.0", tags(sink.getEntities().get(1)));
+                assertEquals(message, "ele=609.6,ft=2000.0,one=1.0", tags(sink.getEntities().get(2)));
+                assertSame(message, readOnly, sink.getEntities().get(3));
+                assertNotSame(message, readOnlyStale, sink.getEntities().get(4));
+                assertEquals(message, "ele=304.8,ft=1000.0,one=1.0", tags(sink.getEntities().get(4)));
+                assertEquals(message, "ele=304.8,ft=2000.0,one=1.0", tags(readOnlyStale));
+                assertEquals(message, 2, task.getMetrics().getNodesUnchanged());
+                task.release();
+            }
+        }
+    }
+
+    @Test
+    /**
+     * The Node calculations can use the aggregates of the nearby Nodes, the
+     * entities keep their order.
+     */
+    public void testNeighborhood() {
+        for (int workers = 1; workers <= 3; workers += 2) {
+            for (int batchSize = 1; batchSize <= 4; batchSize += 3) {
+                CalculatorOptions options = new CalculatorOptions();
+                options.setWorkers(workers);
+                options.setBatchSize(batchSize);
+                options.setNeighborhoodRadius(100);
+                options.addNeighborhoodTag("ele");
+                options.addCalculation("nb", "nb_count");
+                CalculatorPlugin_task task = new CalculatorPlugin_task("ele", "smooth", "ele - nb_avg_ele", "", options);
+                CollectingSink sink = new CollectingSink();
+                task.setSink(sink);
+                // About 11 m between two of the first three Nodes, the fourth is far away
+                task.process(new NodeContainer(node(1, 48.1, 11.5, new Tag("ele", "500"))));
+                task.process(new NodeContainer(node(2, 48.1001, 11.5, new Tag("ele", "510"))));
+                task.process(new NodeContainer(node(3, 48.1, 11.5001)));
+                task.process(new NodeContainer(node(4, 48.2, 11.5, new Tag("ele", "900"))));
+                task.process(new WayContainer(new Way(1, 1, new Date(0), new OsmUser(1, "test"), 1)));
+                task.complete();
+
+                String message = workers + " workers, batch size " + batchSize;
+                assertEquals(message, 5, sink.getEntities().size());
+                assertEquals(message, "ele=500,smooth=-10.0,nb=2.0", tags(sink.getEntities().get(0)));
+                assertEquals(message, "ele=510,smooth=10.0,nb=2.0", tags(sink.getEntities().get(1)));
+                assertEquals(message, "smooth=NaN,nb=2.0", tags(sink.getEntities().get(2)));
+                assertEquals(message, "ele=900,smooth=NaN,nb=0.0", tags(sink.getEntities().get(3)));
+                assertTrue(message, sink.getEntities().get(4) instanceof WayContainer);
+                task.release();
+            }
+        }
+    }
+
+    @Test
+    public void testStatistics() {
+        for (int workers = 1; workers <= 3; workers += 2) {
+            CalculatorOptions options = new CalculatorOptions();
+            options.setWorkers(workers);
+            options.addStatisticsTag("ele");
+            options.addStatisticsTag("pop");
+            options.setWhere("ele > mean_ele");
+            options.addCalculation("z", "(ele - mean_ele) / stddev_ele");
+            CalculatorPlugin_task task = new CalculatorPlugin_task("ele,pop", "scaled", "(ele - min_ele) / (max_ele - min_ele) + p50_pop", "", options);
+            CollectingSink sink = new CollectingSink();
+            task.setSink(sink);
+            task.process(new NodeContainer(node(1, new Tag("ele", "100"))));
+            task.process(new NodeContainer(node(2, new Tag("ele", "300"))));
+            task.process(new NodeContainer(node(3, new Tag("ele", "500"))));
+            task.complete();
+
+            String message = workers + " workers";
+            assertEquals(message, 3, sink.getEntities().size());
+            assertEquals(message, "ele=100", tags(sink.getEntities().get(0)));
+            assertEquals(message, "ele=300", tags(sink.getEntities().get(1)));
+            // pop has no values, so its statistics are missing like an absent tag
+            assertEquals(message, "ele=500,scaled=NaN,z=1.224744871391589", tags(sink.getEntities().get(2)));
+            task.release();
+        }
+    }
+
+    /**
+     * @param container An entity.
+     * @param key A tag key.
+     * @return The value of the tag or {@code null}.
+     */
+    static String value(EntityContainer container, String key) {
+        for (Tag tag : container.getEntity().getTags()) {
+            if (tag.getKey().equals(key)) {
+                return tag.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param container An entity.
+     * @return Its tags as {@code key=value}, separated by commas.
+     */
+    static String tags(EntityContainer container) {
+        StringBuilder tags = new StringBuilder();
+        for (Tag tag : container.getEntity().getTags()) {
+            tags.append(tags.length() == 0 ? "" : ",").append(tag.getKey()).append('=').append(tag.getValue());
+        }
+        return tags.toString();
+    }
+
+    /**
+     * Create a writeable Node.
+     *
+     * @param id The id.
+     * @param tags The tags.
+     * @return The Node.
+     */
+    static Node node(long id, Tag... tags) {
+        return node(id, 48.1, 11.5, tags);
+    }
+
+    /**
+     * Create a writeable Node at a position.
+     *
+     * @param id The id.
+     * @param lat The latitude.
+     * @param lon The longitude.
+     * @param tags The tags.
+     * @return The Node.
+     */
+    static Node node(long id, double lat, double lon, Tag... tags) {
+        Collection<Tag> tagList = new ArrayList<>(Arrays.asList(tags));
+        return new Node(id, 1, new Date(0), new OsmUser(1, "test"), 1, tagList, lat, lon);
+    }
+}
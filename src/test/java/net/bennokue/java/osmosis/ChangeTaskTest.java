@@ -0,0 +1,112 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.node;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.tags;
+
+/**
+ * Tests {@link CalculatorPlugin_changeTask}.
+ *
+ * @author bennokue
+ */
+public class ChangeTaskTest {
+
+    @Test
+    /**
+     * Created and modified Nodes are calculated, the other changes pass
+     * through, all keep their order.
+     */
+    public void testChanges() {
+        for (int workers = 1; workers <= 3; workers += 2) {
+            for (int batchSize = 1; batchSize <= 4; batchSize += 3) {
+                CalculatorOptions options = new CalculatorOptions();
+                options.setWorkers(workers);
+                options.setBatchSize(batchSize);
+                CalculatorPlugin_changeTask task = new CalculatorPlugin_changeTask(
+                        new CalculatorPlugin_task("ele", "ft", "ele/0.3048", "fixme", options));
+                CollectingChangeSink sink = new CollectingChangeSink();
+                task.setChangeSink(sink);
+
+                ChangeContainer deleted = new ChangeContainer(new NodeContainer(node(2, new Tag("ele", "1"), new Tag("fixme", "x"))), ChangeAction.Delete);
+                ChangeContainer way = new ChangeContainer(new WayContainer(new Way(1, 1, new Date(0), new OsmUser(1, "test"), 1)), ChangeAction.Create);
+                task.initialize(null);
+                task.process(new ChangeContainer(new NodeContainer(node(1, new Tag("ele", "304.8"))), ChangeAction.Create));
+                task.process(deleted);
+                task.process(new ChangeContainer(new NodeContainer(node(3, new Tag("ele", "609.6"), new Tag("fixme", "x"))), ChangeAction.Modify));
+                task.process(way);
+                task.process(new ChangeContainer(new NodeContainer(node(4)), ChangeAction.Modify));
+                task.complete();
+
+                String message = workers + " workers, batch size " + batchSize;
+                List<ChangeContainer> changes = sink.changes;
+                assertEquals(message, 5, changes.size());
+                assertEquals(message, ChangeAction.Create, changes.get(0).getAction());
+                assertEquals(message, "ele=304.8,ft=1000.0", tags(changes.get(0).getEntityContainer()));
+                assertSame(message, deleted, changes.get(1));
+                assertEquals(message, "ele=1,fixme=x", tags(changes.get(1).getEntityContainer()));
+                assertEquals(message, ChangeAction.Modify, changes.get(2).getAction());
+                assertEquals(message, "ele=609.6,ft=2000.0", tags(changes.get(2).getEntityContainer()));
+                assertSame(message, way, changes.get(3));
+                assertEquals(message, ChangeAction.Modify, changes.get(4).getAction());
+                assertEquals(message, "ft=NaN", tags(changes.get(4).getEntityContainer()));
+                assertTrue(message, sink.completed);
+                task.release();
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWayCalculation() {
+        CalculatorOptions options = new CalculatorOptions();
+        options.setWayCalculation("length", "length");
+        new CalculatorPlugin_changeTask(new CalculatorPlugin_task("ele", "ft", "ele/0.3048", "", options));
+    }
+
+    /**
+     * Keeps the changes it gets.
+     */
+    private static class CollectingChangeSink implements ChangeSink {
+
+        /**
+         * The changes, in the order they arrived.
+         */
+        private final List<ChangeContainer> changes = new ArrayList<>();
+        /**
+         * Has {@link #complete()} been called?
+         */
+        private boolean completed = false;
+
+        @Override
+        public void process(ChangeContainer change) {
+            this.changes.add(change);
+        }
+
+        @Override
+        public void initialize(Map<String, Object> metaData) {
+        }
+
+        @Override
+        public void complete() {
+            this.completed = true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
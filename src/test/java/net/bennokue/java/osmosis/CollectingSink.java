@@ -0,0 +1,57 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+/**
+ * A Sink that keeps everything it gets, for tests that do not need an XML
+ * round trip.
+ *
+ * @author bennokue
+ */
+public class CollectingSink implements Sink {
+
+    /**
+     * The entities, in the order they arrived.
+     */
+    private final List<EntityContainer> entities = new ArrayList<>();
+    /**
+     * Has {@link #complete()} been called?
+     */
+    private boolean completed = false;
+
+    @Override
+    public void process(EntityContainer entityContainer) {
+        this.entities.add(entityContainer);
+    }
+
+    @Override
+    public void initialize(Map<String, Object> metaData) {
+    }
+
+    @Override
+    public void complete() {
+        this.completed = true;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    /**
+     * @return The entities, in the order they arrived.
+     */
+    public List<EntityContainer> getEntities() {
+        return this.entities;
+    }
+
+    /**
+     * @return Has {@link #complete()} been called?
+     */
+    public boolean isCompleted() {
+        return this.completed;
+    }
+}
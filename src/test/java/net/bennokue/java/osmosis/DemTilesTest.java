@@ -0,0 +1,101 @@
+package net.bennokue.java.osmosis;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.node;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.tags;
+
+/**
+ * Tests {@link DemTiles} with a small synthetic tile: an inclined plane that
+ * rises 10 m per sample to the east and 5 m per sample to the north, with a
+ * void in the south-east corner.
+ *
+ * @author bennokue
+ */
+public class DemTilesTest {
+
+    /**
+     * The number of rows and columns of the tile.
+     */
+    private static final int SIZE = 11;
+    /**
+     * The directory of the tile.
+     */
+    private File directory;
+
+    @Before
+    public void createTile() throws IOException {
+        this.directory = Files.createTempDirectory("osmosiscalcdem").toFile();
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(new File(this.directory, "N48E011.hgt")))) {
+            for (int row = 0; row < SIZE; row++) {
+                for (int column = 0; column < SIZE; column++) {
+                    boolean isVoid = row == SIZE - 1 && column == SIZE - 1;
+                    output.writeShort(isVoid ? Short.MIN_VALUE : 100 + 10 * column - 5 * row);
+                }
+            }
+        }
+    }
+
+    @After
+    public void deleteTile() {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void testSampling() {
+        DemTiles dem = new DemTiles(this.directory, 1);
+        // Bilinear between samples, exact on the samples
+        assertEquals(102.5, dem.elevation(48.95, 11.05), 1e-9);
+        assertEquals(100, dem.elevation(48.99999999, 11), 1e-5);
+        assertEquals(125, dem.elevation(48.1, 11.7), 1e-9);
+        assertTrue(Double.isNaN(dem.elevation(48.01, 11.99)));
+        assertTrue(Double.isNaN(dem.elevation(47.5, 11.5)));
+        assertTrue(Double.isNaN(dem.elevation(95, 11.5)));
+        // Back to the first tile after the missing one
+        assertEquals(102.5, dem.elevation(48.95, 11.05), 1e-9);
+
+        double spacing = Math.toRadians(0.1) * GeoMath.EARTH_RADIUS;
+        double east = 10 / (spacing * Math.cos(Math.toRadians(48.5)));
+        double north = 5 / spacing;
+        assertEquals(Math.toDegrees(Math.atan(Math.hypot(east, north))), dem.slope(48.5, 11.5), 1e-9);
+        assertTrue(Double.isNaN(dem.slope(47.5, 11.5)));
+    }
+
+    @Test
+    public void testFunctions() {
+        for (CalculatorOptions.Engine engine : CalculatorOptions.Engine.values()) {
+            CalculatorOptions options = new CalculatorOptions();
+            options.setEngine(engine);
+            options.setDemDirectory(this.directory.getPath());
+            options.setOutputFormat("fixed:1");
+            options.addCalculation("flat", "slope(lat, lon) < 1");
+            CalculatorPlugin_task task = new CalculatorPlugin_task("lat,lon", "ele", "dem(lat, lon)", "", options);
+            CollectingSink sink = new CollectingSink();
+            task.setSink(sink);
+            task.process(new NodeContainer(node(1, 48.55, 11.55)));
+            task.process(new NodeContainer(node(2, 10, 10)));
+            task.complete();
+            task.release();
+
+            assertEquals(engine.toString(), "ele=132.5,flat=1.0", tags(sink.getEntities().get(0)));
+            assertEquals(engine.toString(), "ele=NaN,flat=0.0", tags(sink.getEntities().get(1)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingDirectory() {
+        new DemTiles(new File(this.directory, "missing"), 1);
+    }
+}
@@ -0,0 +1,106 @@
+package net.bennokue.java.osmosis;
+
+import java.io.File;
+import java.net.URI;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Differential test harness for the calculation engines: Every formula is
+ * evaluated on the Munich demo data by the exp4j reference engine and by the
+ * compiled engine, the resulting tag values have to be exactly the same. The
+ * compiled engine is also run column by column in batches.
+ *
+ * @author bennokue
+ */
+public class EngineDifferentialTest {
+
+    /**
+     * The batch size of the columnar runs, chosen so that the last batch of
+     * the demo data is incomplete.
+     */
+    private static final int BATCH_SIZE = 100;
+    /**
+     * The formulas to compare, using the variables {@code lat}, {@code lon}
+     * and {@code ele}. They cover all of exp4j's built-in operators and
+     * functions and the operators of {@link Predicates}. Constant parts are
+     * folded before either engine sees them (see {@link FormulaOptimizer}),
+     * so every operator and function is also used with a variable argument.
+     */
+    private static final String[] FORMULAS = new String[]{
+        "13",
+        "lat",
+        "lat+7",
+        "lat-lon",
+        "(lat+lon)/2",
+        "ele/0.3048",
+        "-ele^2 + +lat",
+        "2^3^2 - 3-2-1",
+        "2^(lat/48)^3 - lon-2-1",
+        "ele % 7 * lon",
+        "sin(lat)*cos(lon) + tan(lat) - log2(ele)",
+        "abs(-lat) + sqrt(ele) + cbrt(lon) + pow(ele, 1.5)",
+        "floor(ele) + ceil(lon) - exp(lat/100) + expm1(lon/20) + log(lat) + log1p(ele) + log10(ele)",
+        "tanh(lat)*sinh(lon/10)*cosh(lat/50) + asin(lat/90) + acos(lon/90) + atan(lon)",
+        "(ele > 520) + (lat <= 48.15 && lon != 11.58)*2 + (ele >= lat || has(ele) == 0)*4 + (lon < 11.6)*8"
+    };
+
+    @Test
+    /**
+     * Compare the engines on the SRTM-enriched data.
+     */
+    public void testSrtmData() throws Exception {
+        compareEngines("/munich_lmu_srtm.osm");
+    }
+
+    @Test
+    /**
+     * Compare the engines on the original data, where {@code ele} is missing
+     * and therefore NaN.
+     */
+    public void testOriginalData() throws Exception {
+        compareEngines("/munich_lmu_original.osm");
+    }
+
+    /**
+     * Evaluate all {@link #FORMULAS} with both engines and compare the
+     * results.
+     *
+     * @param inputFileString The demo file to be used.
+     * @throws Exception If anything goes wrong.
+     */
+    private static void compareEngines(String inputFileString) throws Exception {
+        for (String formula : FORMULAS) {
+            String[] reference = calculate(inputFileString, formula, CalculatorOptions.Engine.EXP4J, 1);
+            String[] compiled = calculate(inputFileString, formula, CalculatorOptions.Engine.COMPILED, 1);
+            String[] columnar = calculate(inputFileString, formula, CalculatorOptions.Engine.COMPILED, BATCH_SIZE);
+            assertTrue(formula, reference.length > 0);
+            assertArrayEquals(formula, reference, compiled);
+            assertArrayEquals(formula, reference, columnar);
+        }
+    }
+
+    /**
+     * Run the plugin with the given engine.
+     *
+     * @param inputFileString The demo file to be used.
+     * @param formula The calculation.
+     * @param engine The engine.
+     * @param batchSize See {@link CalculatorOptions#setBatchSize(int)}.
+     * @return The values of the output tags.
+     * @throws Exception If anything goes wrong.
+     */
+    private static String[] calculate(String inputFileString, String formula, CalculatorOptions.Engine engine, int batchSize) throws Exception {
+        File inputFile = new File(new URI(EngineDifferentialTest.class.getResource(inputFileString).toString()).getSchemeSpecificPart());
+        File outputFile = File.createTempFile("osmosiscalctest", null, null);
+        if (CalculatorPluginTest.deleteTemporaryFiles) {
+            outputFile.deleteOnExit();
+        }
+        CalculatorOptions options = new CalculatorOptions();
+        options.setEngine(engine);
+        options.setBatchSize(batchSize);
+        new OsmosisRunner(inputFile, outputFile, "lat,lon,ele", "result", formula, "", options).runOsmosis();
+        return new XMLFlattener(outputFile).getXPathAsArray("/osm/node/tag[@k=\"result\"]/@v");
+    }
+}
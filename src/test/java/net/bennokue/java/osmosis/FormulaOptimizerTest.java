@@ -0,0 +1,116 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import net.objecthunter.exp4j.Expression;
+import net.objecthunter.exp4j.ExpressionBuilder;
+import net.objecthunter.exp4j.function.Function;
+import net.objecthunter.exp4j.operator.Operator;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests the simplifications of the {@link FormulaOptimizer} and that they do
+ * not change any result.
+ *
+ * @author bennokue
+ */
+public class FormulaOptimizerTest {
+
+    /**
+     * The variables of the test formulas.
+     */
+    private static final Set<String> VARIABLES = new HashSet<>(Arrays.asList("lat", "ele"));
+    /**
+     * The variable values the original and the optimized formulas are
+     * compared with.
+     */
+    private static final double[] VALUES = new double[]{48.15, -0.0, 0.0, -3.5, Double.NaN, Double.POSITIVE_INFINITY};
+
+    @Test
+    /**
+     * Constant sub-terms are folded, identities removed, the rest is kept.
+     */
+    public void testOptimize() {
+        assertOptimized("((lat * " + (3.14159 / 180) + ") * 6371000.0)", "lat*(3.14159/180)*6371000");
+        assertOptimized("506.0", "2^3^2 - 3-2-1");
+        assertOptimized("((-2.5) * ele)", "-2.5*ele");
+        assertOptimized("(ele + 0.0)", "ele*1 + 0*1");
+        assertOptimized("sqrt(lat)", "sqrt(lat/1)^1 - 0");
+        assertOptimized("lat", "+-(-lat)");
+        assertOptimized("((lat > 2.0) && 1.0)", "lat > 1+1 && has(5)");
+        // Nothing to do
+        assertOptimized("13", "13");
+        assertOptimized("lat*ele", "lat*ele");
+        // Not folded: exceptions and results that are not finite
+        assertOptimized("ele/0", "ele/0");
+        assertOptimized("(ele + (1.0 / 0.0))", "ele + 1/0*1");
+        assertOptimized("log(0) + ele", "log(0) + ele");
+    }
+
+    /**
+     * Check the optimized formula and that it calculates exactly the same
+     * results as the original one.
+     *
+     * @param expected The expected optimized formula.
+     * @param formula The original formula.
+     */
+    private static void assertOptimized(String expected, String formula) {
+        String optimized = FormulaOptimizer.optimize(formula, functions(), operators(), VARIABLES);
+        assertEquals(formula, expected, optimized);
+        Expression original = build(formula);
+        Expression simplified = build(optimized);
+        for (double lat : VALUES) {
+            for (double ele : VALUES) {
+                String message = formula + " with lat=" + lat + ", ele=" + ele;
+                assertEquals(message, evaluate(original, lat, ele), evaluate(simplified, lat, ele));
+            }
+        }
+    }
+
+    /**
+     * @return The functions of {@link Predicates}, by name.
+     */
+    private static HashMap<String, Function> functions() {
+        HashMap<String, Function> functions = new HashMap<>();
+        functions.put(Predicates.HAS.getName(), Predicates.HAS);
+        return functions;
+    }
+
+    /**
+     * @return The operators of {@link Predicates}, by symbol.
+     */
+    private static HashMap<String, Operator> operators() {
+        HashMap<String, Operator> operators = new HashMap<>();
+        for (Operator operator : Predicates.getOperators()) {
+            operators.put(operator.getSymbol(), operator);
+        }
+        return operators;
+    }
+
+    /**
+     * @param formula A formula.
+     * @return The exp4j Expression.
+     */
+    private static Expression build(String formula) {
+        return new ExpressionBuilder(formula).variables(VARIABLES).function(Predicates.HAS)
+                .operator(Predicates.getOperators()).build();
+    }
+
+    /**
+     * @param expression An Expression.
+     * @param lat The value of {@code lat}.
+     * @param ele The value of {@code ele}.
+     * @return The result as String, so -0.0 and 0.0 differ, or the
+     * exception.
+     */
+    private static String evaluate(Expression expression, double lat, double ele) {
+        try {
+            return Double.toString(expression.setVariable("lat", lat).setVariable("ele", ele).evaluate());
+        } catch (ArithmeticException e) {
+            return e.toString();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Collections;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.node;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.tags;
+
+/**
+ * Tests the {@link GeoFunctions} against reference values, the error bounds
+ * of the {@code fastTrig} mode and both engines.
+ *
+ * @author bennokue
+ */
+public class GeoFunctionsTest {
+
+    @Test
+    /**
+     * Known coordinates, the UTM values are from the series of Snyder.
+     */
+    public void testProjections() {
+        assertEquals(Math.PI, GeoFunctions.deg2rad(180), 0);
+        assertEquals(180, GeoFunctions.rad2deg(Math.PI), 0);
+        assertEquals(20037508.342789244, GeoFunctions.mercX(180), 1e-6);
+        assertEquals(6129677.091807682, GeoFunctions.mercY(48.137), 1e-6);
+        assertEquals(0, GeoFunctions.mercY(0), 0);
+
+        assertEquals(8718, GeoFunctions.tileX(11.575, 14), 0);
+        assertEquals(5685, GeoFunctions.tileY(48.137, 14), 0);
+        assertEquals(0, GeoFunctions.tileX(-180, 0), 0);
+        assertEquals(0, GeoFunctions.tileY(90, 3), 0);
+        assertEquals(7, GeoFunctions.tileX(180, 3), 0);
+        assertEquals(7, GeoFunctions.tileY(-90, 3), 0);
+        assertTrue(Double.isNaN(GeoFunctions.tileX(11.575, 2.5)));
+        assertTrue(Double.isNaN(GeoFunctions.tileY(48.137, 31)));
+
+        assertEquals(32, GeoFunctions.utmZone(48.137, 11.575), 0);
+        assertEquals(32, GeoFunctions.utmZone(60, 5), 0);
+        assertEquals(33, GeoFunctions.utmZone(78, 15), 0);
+        assertEquals(60, GeoFunctions.utmZone(0, 180), 0);
+        assertTrue(Double.isNaN(GeoFunctions.utmZone(85, 0)));
+        assertEquals(166021.44317933184, GeoFunctions.utmEasting(0, 0), 1e-3);
+        assertEquals(0, GeoFunctions.utmNorthing(0, 0), 1e-3);
+        assertEquals(691567.3263921974, GeoFunctions.utmEasting(48.137, 11.575), 1e-2);
+        assertEquals(5334734.330827763, GeoFunctions.utmNorthing(48.137, 11.575), 1e-2);
+        assertEquals(334368.633646655, GeoFunctions.utmEasting(-33.8688, 151.2093), 1e-2);
+        assertEquals(6250948.345329111, GeoFunctions.utmNorthing(-33.8688, 151.2093), 1e-2);
+        assertTrue(Double.isNaN(GeoFunctions.utmNorthing(-81, 0)));
+    }
+
+    @Test
+    /**
+     * The approximations stay within the documented bounds.
+     */
+    public void testFastTrig() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double x = (random.nextDouble() - 0.5) * 1000;
+            assertEquals(Math.sin(x), FastTrig.sin(x), FastTrig.SIN_COS_ERROR);
+            assertEquals(Math.cos(x), FastTrig.cos(x), FastTrig.SIN_COS_ERROR);
+            double y = 2 * random.nextDouble() - 1;
+            assertEquals(Math.asin(y), FastTrig.asin(y), FastTrig.ASIN_ERROR);
+
+            // Random, nearly antipodal and close pairs
+            double lat1 = 180 * random.nextDouble() - 90;
+            double lon1 = 360 * random.nextDouble() - 180;
+            double lat2 = 180 * random.nextDouble() - 90;
+            double lon2 = 360 * random.nextDouble() - 180;
+            if (i % 3 == 1) {
+                double offset = Math.pow(10, -8 * random.nextDouble());
+                lat2 = -lat1 + offset * (random.nextDouble() - 0.5);
+                lon2 = lon1 + 180 + offset * (random.nextDouble() - 0.5);
+            } else if (i % 3 == 2) {
+                lat2 = lat1 + random.nextDouble() * 0.01;
+                lon2 = lon1 + random.nextDouble() * 0.01;
+            }
+            assertEquals(GeoFunctions.haversine(lat1, lon1, lat2, lon2), GeoFunctions.fastHaversine(lat1, lon1, lat2, lon2),
+                    GeoFunctions.FAST_HAVERSINE_ERROR);
+            double lat = 164 * random.nextDouble() - 80;
+            assertEquals(GeoFunctions.utmEasting(lat, lon1), GeoFunctions.fastUtmEasting(lat, lon1), GeoFunctions.FAST_UTM_ERROR);
+            assertEquals(GeoFunctions.utmNorthing(lat, lon1), GeoFunctions.fastUtmNorthing(lat, lon1), GeoFunctions.FAST_UTM_ERROR);
+        }
+        double halfCircumference = Math.PI * GeoMath.EARTH_RADIUS;
+        assertEquals(halfCircumference, GeoFunctions.haversine(45.0001, 67.18, -45.0001, -112.82), 1e-6);
+        assertEquals(halfCircumference, GeoFunctions.fastHaversine(45.0001, 67.18, -45.0001, -112.82), GeoFunctions.FAST_HAVERSINE_ERROR);
+        assertEquals(halfCircumference, GeoFunctions.fastHaversine(0, 0, 0, 180), GeoFunctions.FAST_HAVERSINE_ERROR);
+        assertEquals(Math.PI / 2, FastTrig.asin(1), FastTrig.ASIN_ERROR);
+        assertTrue(Double.isNaN(FastTrig.asin(1.5)));
+        assertTrue(Double.isNaN(FastTrig.sin(Double.NaN)));
+        assertEquals(Math.sin(1e9), FastTrig.sin(1e9), 0);
+    }
+
+    @Test
+    /**
+     * The functions work with both engines and in both modes, and constant
+     * calls are folded.
+     */
+    public void testFunctions() {
+        for (CalculatorOptions.Engine engine : CalculatorOptions.Engine.values()) {
+            for (boolean fastTrig : new boolean[]{false, true}) {
+                CalculatorOptions options = new CalculatorOptions();
+                options.setEngine(engine);
+                options.setFastTrig(fastTrig);
+                options.setOutputFormat("fixed:0");
+                options.addCalculation("tile", "tileX(lon, 14) * 100000 + tileY(lat, 14)");
+                options.addCalculation("utm", "utmNorthing(lat, lon)");
+                CalculatorPlugin_task task = new CalculatorPlugin_task("lat,lon", "distance",
+                        "haversine(lat, lon, 48.137, 11.575)", "", options);
+                CollectingSink sink = new CollectingSink();
+                task.setSink(sink);
+                task.process(new NodeContainer(node(1, 48.137, 11.575)));
+                task.process(new NodeContainer(node(2, 48.137, 12.575)));
+                task.complete();
+                task.release();
+
+                String name = engine + ", fastTrig=" + fastTrig;
+                assertEquals(name, "distance=0,tile=871805685,utm=5334734", tags(sink.getEntities().get(0)));
+                assertEquals(name, "distance=74206,tile=876405685,utm=5334371", tags(sink.getEntities().get(1)));
+            }
+        }
+        FormulaFactory factory = new FormulaFactory(new VariableSlots(Collections.singletonList("lat"), Collections.<String>emptyList()),
+                CalculatorOptions.Engine.EXP4J);
+        assertEquals("(lat * 0.017453292519943295)", factory.optimize("lat * deg2rad(1)"));
+    }
+}
@@ -0,0 +1,65 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+
+/**
+ * Tests {@link GlobalStatistics} and {@link P2Quantile}.
+ *
+ * @author bennokue
+ */
+public class GlobalStatisticsTest {
+
+    @Test
+    public void testQuantiles() {
+        Random random = new Random(42);
+        double[] values = new double[20000];
+        P2Quantile[] estimators = new P2Quantile[]{new P2Quantile(0.05), new P2Quantile(0.5), new P2Quantile(0.95)};
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i % 2 == 0) ? random.nextGaussian() * 10 : random.nextDouble() * 50;
+            for (P2Quantile estimator : estimators) {
+                estimator.add(values[i]);
+            }
+        }
+        Arrays.sort(values);
+        double[] quantiles = new double[]{0.05, 0.5, 0.95};
+        for (int q = 0; q < quantiles.length; q++) {
+            double exact = values[(int) (quantiles[q] * (values.length - 1))];
+            assertEquals("quantile " + quantiles[q], exact, estimators[q].estimate(), 1);
+        }
+
+        // Few values are interpolated exactly
+        P2Quantile median = new P2Quantile(0.5);
+        assertTrue(Double.isNaN(median.estimate()));
+        median.add(4);
+        median.add(1);
+        assertEquals(2.5, median.estimate(), 0);
+        median.add(2);
+        assertEquals(2, median.estimate(), 0);
+    }
+
+    @Test
+    public void testStatistics() {
+        GlobalStatistics statistics = new GlobalStatistics(Arrays.asList("ele", "addr:floor"), false);
+        assertEquals(Arrays.asList("min_ele", "max_ele", "mean_ele", "stddev_ele", "p5_ele", "p25_ele", "p50_ele", "p75_ele", "p95_ele",
+                "min_addr_floor", "max_addr_floor", "mean_addr_floor", "stddev_addr_floor", "p5_addr_floor", "p25_addr_floor",
+                "p50_addr_floor", "p75_addr_floor", "p95_addr_floor"),
+                GlobalStatistics.getVariables(Arrays.asList("ele", "addr:floor")));
+        for (int i = 1; i <= 9; i++) {
+            statistics.addNode(CalculatorTaskTest.node(i, new Tag("ele", Integer.toString(i)), new Tag("addr:floor", "x")));
+        }
+        double[] values = statistics.getValues();
+        assertEquals(1, values[0], 0);
+        assertEquals(9, values[1], 0);
+        assertEquals(5, values[2], 1e-12);
+        assertEquals(Math.sqrt(60d / 9), values[3], 1e-12);
+        assertEquals(5, values[6], 0);
+        for (int i = 9; i < values.length; i++) {
+            assertTrue(Double.isNaN(values[i]));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package net.bennokue.java.osmosis;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.node;
+import static net.bennokue.java.osmosis.CalculatorTaskTest.tags;
+
+/**
+ * Tests {@link LookupTable} and the lookup variables of the task.
+ *
+ * @author bennokue
+ */
+public class LookupTableTest {
+
+    /**
+     * The directory of the tables.
+     */
+    private File directory;
+
+    @Before
+    public void createTables() throws IOException {
+        this.directory = Files.createTempDirectory("osmosiscalclookup").toFile();
+        write("countries.csv", "country_code,factor\n# comment\n\nDE, 1.5\nAT,2\nBosnia, and Herzegovina,3\nDE,0.5\n");
+        write("ids.csv", "1,10\n3,-1e3\n");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(new File(this.directory, "ids.bin")))) {
+            for (long id = -2; id < 200000; id += 2) {
+                output.writeLong(id);
+                output.writeDouble(id / 2d);
+            }
+        }
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(new File(this.directory, "unsorted.bin")))) {
+            output.writeLong(2);
+            output.writeDouble(1);
+            output.writeLong(1);
+            output.writeDouble(1);
+        }
+    }
+
+    /**
+     * @param name The name of a file in the {@link #directory}.
+     * @param content Its content.
+     * @throws IOException If the file cannot be written.
+     */
+    private void write(String name, String content) throws IOException {
+        Files.write(new File(this.directory, name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param name The name of a file in the {@link #directory}.
+     * @return Its path.
+     */
+    private String path(String name) {
+        return new File(this.directory, name).getPath();
+    }
+
+    @After
+    public void deleteTables() {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void testTables() {
+        LookupTable countries = LookupTable.load(new Lookup("factor", "country_code", path("countries.csv")));
+        assertEquals(3, countries.size());
+        assertEquals(0.5, countries.get("DE"), 0);
+        assertEquals(2, countries.get("AT"), 0);
+        assertEquals(3, countries.get("Bosnia, and Herzegovina"), 0);
+        assertTrue(Double.isNaN(countries.get("FR")));
+        assertEquals(2, countries.get(node(1, new Tag("name", "x"), new Tag("country_code", "AT"))), 0);
+        assertTrue(Double.isNaN(countries.get(node(1, new Tag("name", "AT")))));
+
+        LookupTable ids = LookupTable.load(new Lookup("correction", Lookup.ID_KEY, path("ids.csv")));
+        assertEquals(-1000, ids.get(node(3)), 0);
+        assertTrue(Double.isNaN(ids.get(2)));
+
+        LookupTable mapped = LookupTable.load(new Lookup("half", Lookup.ID_KEY, path("ids.bin")));
+        assertEquals(100001, mapped.size());
+        assertEquals(0, mapped.getHeapBytes());
+        assertEquals(-1, mapped.get(-2), 0);
+        assertEquals(12345, mapped.get(24690), 0);
+        assertEquals(99999, mapped.get(199998), 0);
+        assertTrue(Double.isNaN(mapped.get(3)));
+        assertTrue(Double.isNaN(mapped.get(200000)));
+
+        for (Lookup invalid : new Lookup[]{
+            new Lookup("x", Lookup.ID_KEY, path("unsorted.bin")),
+            new Lookup("x", "country_code", path("ids.bin")),
+            new Lookup("x", Lookup.ID_KEY, path("countries.csv")),
+            new Lookup("x", Lookup.ID_KEY, path("missing.csv"))}) {
+            try {
+                LookupTable.load(invalid);
+                fail(invalid + " has been loaded");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    /**
+     * Tag values with the same hash, and enough of them to grow the table.
+     */
+    public void testCollisions() throws IOException {
+        StringBuilder content = new StringBuilder("Aa,1\nBB,2\nAaAa,3\nBBBB,4\nAaBB,5\n");
+        for (int i = 0; i < 5000; i++) {
+            content.append("name").append(i).append(',').append(i).append('\n');
+        }
+        write("names.csv", content.toString());
+        LookupTable names = LookupTable.load(new Lookup("x", "name", path("names.csv")));
+        assertEquals(5005, names.size());
+        assertEquals(1, names.get("Aa"), 0);
+        assertEquals(2, names.get("BB"), 0);
+        assertEquals(3, names.get("AaAa"), 0);
+        assertEquals(4, names.get("BBBB"), 0);
+        assertEquals(5, names.get("AaBB"), 0);
+        assertTrue(Double.isNaN(names.get("BBAa")));
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, names.get("name" + i), 0);
+        }
+    }
+
+    @Test
+    public void testTask() {
+        for (CalculatorOptions.Engine engine : CalculatorOptions.Engine.values()) {
+            CalculatorOptions options = new CalculatorOptions();
+            options.setEngine(engine);
+            options.addLookup(new Lookup("factor", "country_code", path("countries.csv")));
+            options.addLookup(new Lookup("half", Lookup.ID_KEY, path("ids.bin")));
+            options.addCalculation("halfId", "half");
+            CalculatorPlugin_task task = new CalculatorPlugin_task("population", "weighted", "population * factor", "", options);
+            CollectingSink sink = new CollectingSink();
+            task.setSink(sink);
+            task.process(new NodeContainer(node(4, new Tag("population", "100"), new Tag("country_code", "AT"))));
+            task.process(new NodeContainer(node(5, new Tag("population", "100"))));
+            task.complete();
+            task.release();
+
+            assertEquals(engine.toString(), "population=100,country_code=AT,weighted=200.0,halfId=2.0", tags(sink.getEntities().get(0)));
+            assertEquals(engine.toString(), "population=100,weighted=NaN,halfId=NaN", tags(sink.getEntities().get(1)));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package net.bennokue.java.osmosis;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests the result cache of {@link MemoizingFormula}.
+ *
+ * @author bennokue
+ */
+public class MemoizingFormulaTest {
+
+    @Test
+    /**
+     * Repeated keys are hits, only the key slots matter and NaN is a key like
+     * any other.
+     */
+    public void testHitsAndMisses() {
+        CountingFormula formula = new CountingFormula();
+        MetricsStripe metrics = new MetricsStripe(3);
+        MemoizingFormula cache = new MemoizingFormula(formula, new int[]{0, 2}, 3, 64, metrics);
+
+        assertEquals(3, cache.evaluate(new double[]{1, 10, 2}), 0);
+        assertEquals(3, cache.evaluate(new double[]{1, 20, 2}), 0);
+        assertEquals(4, cache.evaluate(new double[]{2, 10, 2}), 0);
+        assertEquals(Double.NaN, cache.evaluate(new double[]{Double.NaN, 10, 2}), 0);
+        assertEquals(Double.NaN, cache.evaluate(new double[]{Double.NaN, 10, 2}), 0);
+        assertEquals(3, formula.evaluations);
+        assertEquals(2, metrics.get(MetricsStripe.CACHE_HITS));
+        assertEquals(3, metrics.get(MetricsStripe.CACHE_MISSES));
+
+        double[] results = new double[3];
+        cache.evaluateBatch(new double[][]{{1, 2, 3}, {0, 0, 0}, {2, 2, 2}}, 3, results);
+        assertEquals(3, results[0], 0);
+        assertEquals(4, results[1], 0);
+        assertEquals(5, results[2], 0);
+        assertEquals(4, formula.evaluations);
+    }
+
+    @Test
+    /**
+     * The cache never grows beyond its capacity, and CLOCK keeps the entries
+     * that are hit while the others are replaced.
+     */
+    public void testEviction() {
+        CountingFormula formula = new CountingFormula();
+        MemoizingFormula cache = new MemoizingFormula(formula, new int[]{0}, 2, MemoizingFormula.WAYS, new MetricsStripe(2));
+        double[] hot = new double[]{-1, 0};
+        cache.evaluate(hot);
+        for (int i = 0; i < 10 * MemoizingFormula.WAYS; i++) {
+            cache.evaluate(hot);
+            cache.evaluate(new double[]{i, 0});
+        }
+        int evaluations = formula.evaluations;
+        cache.evaluate(hot);
+        assertEquals(evaluations, formula.evaluations);
+        // The oldest keys are gone
+        cache.evaluate(new double[]{0, 0});
+        assertEquals(evaluations + 1, formula.evaluations);
+    }
+
+    /**
+     * Adds slots 0 and 2 and counts its evaluations.
+     */
+    private static class CountingFormula implements Formula {
+
+        /**
+         * The number of evaluations.
+         */
+        int evaluations = 0;
+
+        @Override
+        public double evaluate(double[] values) {
+            this.evaluations++;
+            return values[0] + values[values.length - 1];
+        }
+
+        @Override
+        public void evaluateBatch(double[][] columns, int count, double[] results) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+
+/**
+ * Compares the band sweep of the {@link NeighborhoodIndex} with a brute force
+ * search over all pairs of Nodes, including Nodes near the poles and the
+ * antimeridian.
+ *
+ * @author bennokue
+ */
+public class NeighborhoodIndexTest {
+
+    /**
+     * The radius in meters.
+     */
+    private static final double RADIUS = 500;
+
+    @Test
+    /**
+     * Every Node gets the same aggregates as a brute force search finds.
+     */
+    public void testAgainstBruteForce() {
+        Random random = new Random(42);
+        double[][] centers = new double[][]{{48.15, 11.58}, {-33.9, 151.2}, {65.0, 179.999}, {65.0, -179.999}, {89.999, 0}, {-89.999, 120}};
+        List<Node> nodes = new ArrayList<>();
+        for (double[] center : centers) {
+            for (int i = 0; i < 300; i++) {
+                double lat = Math.max(-90, Math.min(90, center[0] + (random.nextDouble() - 0.5) * 0.02));
+                double lon = center[1] + (random.nextDouble() - 0.5) * 0.05;
+                lon = (lon > 180) ? lon - 360 : (lon < -180) ? lon + 360 : lon;
+                List<Tag> tags = new ArrayList<>();
+                if (random.nextInt(4) != 0) {
+                    tags.add(new Tag("ele", Integer.toString(random.nextInt(1000))));
+                }
+                nodes.add(new Node(nodes.size() + 1, 1, new Date(0), new OsmUser(1, "test"), 1, tags, lat, lon));
+            }
+        }
+        for (CalculatorOptions.RecordStoreType recordStore : CalculatorOptions.RecordStoreType.values()) {
+            List<String> variables = NeighborhoodIndex.getVariables(Collections.singletonList("ele"));
+            assertEquals(Arrays.asList("nb_count", "nb_avg_ele", "nb_min_ele", "nb_max_ele"), variables);
+            VariableSlots slots = new VariableSlots(Collections.<String>emptyList(), variables);
+            NeighborhoodIndex index = new NeighborhoodIndex(RADIUS, Collections.singletonList("ele"), recordStore, false, slots);
+            for (Node node : nodes) {
+                index.addNode(node);
+            }
+            index.sweep();
+            EvaluationContext context = new EvaluationContext(new Formula[0], null, slots.size(), false, ResultFormatter.DEFAULT, new MetricsStripe(slots.size()));
+            for (Node node : nodes) {
+                double[] expected = bruteForce(node, nodes);
+                context.reset();
+                index.read(node.getId(), context);
+                for (int slot = 0; slot < expected.length; slot++) {
+                    String message = recordStore + ", node " + node.getId() + ", " + variables.get(slot);
+                    if (Double.isNaN(expected[slot])) {
+                        assertEquals(message, false, context.present[slot]);
+                    } else {
+                        assertEquals(message, expected[slot], context.values[slot], 1e-9);
+                    }
+                }
+            }
+            index.release();
+        }
+    }
+
+    /**
+     * @param node A Node.
+     * @param nodes All Nodes.
+     * @return The count, average, minimum and maximum of {@code ele} of the
+     * other Nodes within the radius.
+     */
+    private static double[] bruteForce(Node node, List<Node> nodes) {
+        int count = 0;
+        int values = 0;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (Node other : nodes) {
+            if (other == node || GeoMath.haversine(node.getLatitude(), node.getLongitude(), other.getLatitude(), other.getLongitude()) > RADIUS) {
+                continue;
+            }
+            count++;
+            for (Tag tag : other.getTags()) {
+                double value = Double.parseDouble(tag.getValue());
+                values++;
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        return (values == 0)
+                ? new double[]{count, Double.NaN, Double.NaN, Double.NaN}
+                : new double[]{count, sum / values, min, max};
+    }
+}
@@ -55,6 +55,27 @@ public class OsmosisRunner {
      * @throws IOException
      */
     public OsmosisRunner(File inputFile, File outputFile, String inputAttributes, String outputAttributes, String calculation, String removeAttributes) throws IOException {
+        this(inputFile, outputFile, inputAttributes, outputAttributes, calculation, removeAttributes, new CalculatorOptions());
+    }
+
+    /**
+     * Create an OsmosisRunner, initialize the CalculatorPlugin with the given
+     * options and do some sanity checks.
+     *
+     * @param inputFile The OSM data file to read.
+     * @param outputFile Where should the resulting OSM file be saved to?
+     * @param inputAttributes See
+     * {@link CalculatorPlugin_task#CalculatorPlugin_task(java.lang.String, java.lang.String, java.lang.String, java.lang.String) CalculatorPlugin_task(...)}.
+     * @param outputAttributes See
+     * {@link CalculatorPlugin_task#CalculatorPlugin_task(java.lang.String, java.lang.String, java.lang.String, java.lang.String) CalculatorPlugin_task(...)}.
+     * @param calculation See
+     * {@link CalculatorPlugin_task#CalculatorPlugin_task(java.lang.String, java.lang.String, java.lang.String, java.lang.String) CalculatorPlugin_task(...)}.
+     * @param removeAttributes See
+     * {@link CalculatorPlugin_task#CalculatorPlugin_task(java.lang.String, java.lang.String, java.lang.String, java.lang.String) CalculatorPlugin_task(...)}.
+     * @param options The {@link CalculatorOptions} to pass to the plugin.
+     * @throws IOException
+     */
+    public OsmosisRunner(File inputFile, File outputFile, String inputAttributes, String outputAttributes, String calculation, String removeAttributes, CalculatorOptions options) throws IOException {
         this.inputFile = inputFile;
 
         if (!this.inputFile.isFile() || !this.inputFile.canRead()) {
@@ -73,7 +94,7 @@ public class OsmosisRunner {
             }
         }
 
-        this.calculator = new CalculatorPlugin_task(inputAttributes, outputAttributes, calculation, removeAttributes);
+        this.calculator = new CalculatorPlugin_task(inputAttributes, outputAttributes, calculation, removeAttributes, options);
 
         this.everything_ok = true;
     }
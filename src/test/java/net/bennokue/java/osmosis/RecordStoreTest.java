@@ -0,0 +1,156 @@
+package net.bennokue.java.osmosis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+
+/**
+ * Checks that all {@link RecordStore} backends behave the same.
+ *
+ * @author bennokue
+ */
+public class RecordStoreTest {
+
+    /**
+     * Ids as they appear in extracts: Ascending with holes, a few far away
+     * ones, a negative one and one that comes out of order.
+     */
+    private static final long[] IDS = new long[]{
+        1, 2, 3, 4100, 4101, 27158119, 1603038648L, 3321568272L, 12000000000L, -5, 100
+    };
+
+    @Test
+    /**
+     * Store and look up records with every backend.
+     */
+    public void testAllBackends() {
+        for (CalculatorOptions.RecordStoreType type : CalculatorOptions.RecordStoreType.values()) {
+            RecordStore store = GeometryCalculator.createRecordStore(type, 3);
+            try {
+                for (long id : IDS) {
+                    store.put(id, record(id));
+                }
+                // The later record wins
+                store.put(4100, new double[]{7, 8, 9});
+
+                double[] buffer = new double[3];
+                for (long id : IDS) {
+                    assertTrue(type + " " + id, store.get(id, buffer));
+                    assertArrayEquals(type + " " + id, (id == 4100) ? new double[]{7, 8, 9} : record(id), buffer, 0.0);
+                }
+                for (long id : new long[]{0, 5, 99, 4099, 4102, 12000000001L, -6}) {
+                    assertFalse(type + " " + id, store.get(id, buffer));
+                }
+            } finally {
+                store.release();
+            }
+        }
+    }
+
+    @Test
+    /**
+     * Random ids with many duplicates are sorted in place, the record stored
+     * last wins.
+     */
+    public void testUnsortedIds() {
+        Random random = new Random(42);
+        ArrayRecordStore store = new ArrayRecordStore(3);
+        Map<Long, double[]> expected = new HashMap<>();
+        for (int i = 0; i < 50000; i++) {
+            long id = random.nextInt(20000) - 1000;
+            double[] record = new double[]{id, i, -i};
+            store.put(id, record);
+            expected.put(id, record);
+        }
+        store.seal();
+        assertEquals(expected.size(), store.size());
+        double[] buffer = new double[3];
+        for (long id = -1000; id < 19000; id++) {
+            assertEquals(expected.containsKey(id), store.get(id, buffer));
+            if (expected.containsKey(id)) {
+                assertArrayEquals(expected.get(id), buffer, 0.0);
+            }
+        }
+    }
+
+    @Test
+    /**
+     * The array store grows by half until its records fill the largest
+     * array, and then fails clearly instead of overflowing.
+     */
+    public void testArrayCapacity() {
+        assertEquals(1536, ArrayRecordStore.grownCapacity(1024, 5));
+        int maxCapacity = (Integer.MAX_VALUE - 8) / 5;
+        assertEquals(maxCapacity, ArrayRecordStore.grownCapacity(400000000, 5));
+        try {
+            ArrayRecordStore.grownCapacity(maxCapacity, 5);
+            fail();
+        } catch (OsmosisRuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("recordStore=mapped"));
+        }
+    }
+
+    @Test
+    /**
+     * Once sealed, every backend can be read by several threads at once, even
+     * if the ids were stored out of order.
+     */
+    public void testConcurrentReads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (CalculatorOptions.RecordStoreType type : CalculatorOptions.RecordStoreType.values()) {
+                final RecordStore store = GeometryCalculator.createRecordStore(type, 3);
+                try {
+                    for (long id = 20000; id > -1000; id--) {
+                        store.put(id, record(id));
+                    }
+                    store.seal();
+                    List<Future<Integer>> results = new ArrayList<>();
+                    for (int thread = 0; thread < 4; thread++) {
+                        results.add(executor.submit(new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                double[] buffer = new double[3];
+                                int found = 0;
+                                for (long id = -1000; id <= 20000; id++) {
+                                    if (store.get(id, buffer) && buffer[0] == id && buffer[1] == -id) {
+                                        found++;
+                                    }
+                                }
+                                return found;
+                            }
+                        }));
+                    }
+                    for (Future<Integer> result : results) {
+                        assertEquals(type.toString(), 21000, result.get().intValue());
+                    }
+                } finally {
+                    store.release();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @param id An id.
+     * @return The test record of the id.
+     */
+    private static double[] record(long id) {
+        return new double[]{id, -id, id / 2.0};
+    }
+}
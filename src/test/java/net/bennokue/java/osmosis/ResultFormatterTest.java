@@ -0,0 +1,74 @@
+package net.bennokue.java.osmosis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Checks the output formats of the {@link ResultFormatter}.
+ *
+ * @author bennokue
+ */
+public class ResultFormatterTest {
+
+    @Test
+    /**
+     * Every format writes the expected tag values, repeated results are
+     * served from the cache.
+     */
+    public void testFormats() {
+        ResultFormatter standard = new ResultFormatter("default");
+        assertEquals("514.1383389311949", standard.format(514.1383389311949));
+        assertEquals("1.0E-5", standard.format(1.0E-5));
+
+        ResultFormatter fixed = new ResultFormatter("fixed:2");
+        assertEquals("514.14", fixed.format(514.1383389311949));
+        assertEquals("-3.50", fixed.format(-3.5));
+        assertEquals("0.05", fixed.format(0.049999));
+        assertEquals("0.00", fixed.format(-0.001));
+        assertEquals("1000000000000000000.00", fixed.format(1e18));
+        // The scaled double is rounded, on both paths
+        assertEquals("0.02", fixed.format(0.015));
+        ResultFormatter fixed1 = new ResultFormatter("fixed:1");
+        assertEquals("-100000000000000.2", fixed1.format(-100000000000000.25));
+        assertEquals("100000000000000.3", fixed1.format(100000000000000.25));
+        // Beyond 2^53 the exact value, still halves towards positive infinity
+        assertEquals("-900719925474099.2", fixed1.format(-900719925474099.25));
+
+        ResultFormatter integer = new ResultFormatter("INTEGER");
+        assertEquals("514", integer.format(514.1383389311949));
+        assertEquals("3", integer.format(2.5));
+        assertEquals("-2", integer.format(-2.5));
+        assertEquals("0", integer.format(-0.4));
+        assertEquals("-1000000000000000", integer.format(-1e15 - 0.5));
+        assertEquals("1000000000000001", integer.format(1e15 + 0.5));
+
+        ResultFormatter shortest = new ResultFormatter(" shortest ");
+        assertEquals("514", shortest.format(514.0));
+        assertEquals("514.1383389311949", shortest.format(514.1383389311949));
+        assertEquals("0.00001", shortest.format(1.0E-5));
+        assertEquals("-120000000", shortest.format(-1.2E8));
+
+        for (ResultFormatter formatter : new ResultFormatter[]{standard, fixed, integer, shortest}) {
+            assertEquals("NaN", formatter.format(Double.NaN));
+            assertEquals("-Infinity", formatter.format(Double.NEGATIVE_INFINITY));
+            assertSame(formatter.format(42.125), formatter.format(42.125));
+        }
+    }
+
+    @Test
+    /**
+     * Unknown formats are rejected.
+     */
+    public void testInvalidFormats() {
+        for (String format : new String[]{"", "fixed", "fixed:", "fixed:x", "fixed:-1", "fixed:18", "scientific"}) {
+            try {
+                new ResultFormatter(format);
+                fail(format);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package net.bennokue.java.osmosis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Checks the exact, prefix and case-insensitive matching of the
+ * {@link TagKeyMatcher}.
+ *
+ * @author bennokue
+ */
+public class TagKeyMatcherTest {
+
+    @Test
+    /**
+     * Exact keys and prefixes are matched case-sensitively, the other keys
+     * like {@link String#equalsIgnoreCase(java.lang.String)}.
+     */
+    public void testMatching() {
+        TagKeyMatcher matcher = new TagKeyMatcher(Arrays.asList("source:*", "note*", "fixme", " ", "fix"),
+                Arrays.asList("ele:ft", "Yard", "ß"));
+        for (String key : new String[]{"source:", "source:ele", "note", "notes", "note:de", "fixme", "fix", "ELE:FT", "ele:Ft", "yard", "ß"}) {
+            assertTrue(key, matcher.matches(key));
+        }
+        for (String key : new String[]{"", "source", "sourc", "not", "Note", "fixm", "fixmee", "FIXME", "ele:f", "ele:ftx", "yards", "ss"}) {
+            assertFalse(key, matcher.matches(key));
+        }
+        for (String key : new String[]{"yArD", "İ", "i", "ß", "SS", "ǅ"}) {
+            assertEquals(key, key.equalsIgnoreCase("Yard") || key.equalsIgnoreCase("ß"), matcher.matches(key));
+        }
+        assertFalse(matcher.isEmpty());
+
+        TagKeyMatcher everything = new TagKeyMatcher(Collections.singletonList("*"), Collections.<String>emptyList());
+        assertTrue(everything.matches(""));
+        assertTrue(everything.matches("highway"));
+
+        TagKeyMatcher nothing = new TagKeyMatcher(Arrays.asList("", ""), Collections.<String>emptyList());
+        assertTrue(nothing.isEmpty());
+        assertFalse(nothing.matches(""));
+        assertFalse(nothing.matches("highway"));
+    }
+
+    @Test
+    /**
+     * A wildcard is only allowed at the end of a pattern.
+     */
+    public void testInvalidPatterns() {
+        for (String pattern : new String[]{"*:source", "so*urce", "source**"}) {
+            try {
+                new TagKeyMatcher(Collections.singletonList(pattern), Collections.<String>emptyList());
+                fail(pattern);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
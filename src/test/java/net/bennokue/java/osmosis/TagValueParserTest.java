@@ -0,0 +1,62 @@
+package net.bennokue.java.osmosis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the {@link TagValueParser} against
+ * {@link Double#parseDouble(java.lang.String)} and the lenient extensions.
+ *
+ * @author bennokue
+ */
+public class TagValueParserTest {
+
+    @Test
+    /**
+     * Every valid number has to be parsed to exactly the same double as the
+     * JDK would produce.
+     */
+    public void testSameAsJdk() {
+        String[] values = new String[]{
+            "0", "-0", "13", "+7", " 42 ", "48.1465401", "514.1383389311949", "1.", ".5",
+            "1e3", "1.5E-7", "-2.5e+10", "0.000000000000000000000123", "123456789012345678901234567890",
+            "9007199254740993", "1.7976931348623157e308", "4.9e-324", "3.141592653589793238462643383279"
+        };
+        TagValueParser parser = new TagValueParser(false);
+        for (String value : values) {
+            assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)), Double.doubleToLongBits(parser.parse(value)));
+        }
+    }
+
+    @Test
+    /**
+     * Invalid values result in NaN, decimal commas and units
+     * are only accepted in lenient mode and ambiguous commas not at all.
+     */
+    public void testFailuresAndLenientMode() {
+        TagValueParser strict = new TagValueParser(false);
+        String[] invalid = new String[]{"", " ", "-", ".", "1e", "abc", "12,5", "512 m", "1.2.3", "yes"};
+        for (String value : invalid) {
+            assertTrue(value, Double.isNaN(strict.parse(value)));
+        }
+
+        TagValueParser lenient = new TagValueParser(true);
+        assertEquals(12.5, lenient.parse("12,5"), 0.0);
+        assertEquals(512.0, lenient.parse("512 m"), 0.0);
+        assertEquals(50.0, lenient.parse("50 mph"), 0.0);
+        assertEquals(30.0, lenient.parse("30km/h"), 0.0);
+        assertTrue(Double.isNaN(lenient.parse("512 mx")));
+        assertTrue(Double.isNaN(lenient.parse("m")));
+
+        // A comma followed by three digits might be a thousands separator
+        assertTrue(Double.isNaN(lenient.parse("1,000")));
+        assertTrue(Double.isNaN(lenient.parse("-12,345 m")));
+        assertEquals(1.25, lenient.parse("1,25"), 0.0);
+        assertEquals(1.0005, lenient.parse("1,0005"), 0.0);
+        assertEquals(0.125, lenient.parse("0,125"), 0.0);
+        assertEquals(-0.25, lenient.parse("-0,250"), 0.0);
+        assertEquals(1234.567, lenient.parse("1234,567"), 0.0);
+        assertTrue(Double.isNaN(lenient.parse("999,999")));
+    }
+}